@@ -0,0 +1,26 @@
+package _bayou._bytes;
+
+import java.nio.file.Path;
+
+// implemented by a ByteSource whose bytes are a region of a file.
+// the server may send such a source to the socket directly from the file (zero-copy),
+// instead of reading it, see _FileTransfer. the source is then closed without being read.
+public interface _FileRegionSource
+{
+    // return null if unknown, e.g. the source has been read from.
+    Region fileRegion();
+
+    public static class Region
+    {
+        public final Path path;
+        public final long position;
+        public final long count; // -1 for all bytes till EOF
+
+        public Region(Path path, long position, long count)
+        {
+            this.path = path;
+            this.position = position;
+            this.count = count;
+        }
+    }
+}
@@ -0,0 +1,473 @@
+package _bayou._http;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+// HPACK, header compression for HTTP/2. RFC 7541
+//
+// Decoder supports everything, including huffman strings and the dynamic table.
+// Encoder is minimal: it doesn't use the dynamic table or huffman encoding;
+//   a field is either fully indexed in the static table, or a literal without indexing (with name index if possible).
+//   that costs some bytes on the wire, but no state, and nothing to go wrong with peer's table size settings.
+public class _Hpack
+{
+    public static class HpackException extends Exception  // COMPRESSION_ERROR
+    {
+        public HpackException(String message)
+        {
+            super(message);
+        }
+    }
+
+    static final String[][] STATIC_TABLE = {
+        null, // index starts from 1
+        {":authority", ""},
+        {":method", "GET"},
+        {":method", "POST"},
+        {":path", "/"},
+        {":path", "/index.html"},
+        {":scheme", "http"},
+        {":scheme", "https"},
+        {":status", "200"},
+        {":status", "204"},
+        {":status", "206"},
+        {":status", "304"},
+        {":status", "400"},
+        {":status", "404"},
+        {":status", "500"},
+        {"accept-charset", ""},
+        {"accept-encoding", "gzip, deflate"},
+        {"accept-language", ""},
+        {"accept-ranges", ""},
+        {"accept", ""},
+        {"access-control-allow-origin", ""},
+        {"age", ""},
+        {"allow", ""},
+        {"authorization", ""},
+        {"cache-control", ""},
+        {"content-disposition", ""},
+        {"content-encoding", ""},
+        {"content-language", ""},
+        {"content-length", ""},
+        {"content-location", ""},
+        {"content-range", ""},
+        {"content-type", ""},
+        {"cookie", ""},
+        {"date", ""},
+        {"etag", ""},
+        {"expect", ""},
+        {"expires", ""},
+        {"from", ""},
+        {"host", ""},
+        {"if-match", ""},
+        {"if-modified-since", ""},
+        {"if-none-match", ""},
+        {"if-range", ""},
+        {"if-unmodified-since", ""},
+        {"last-modified", ""},
+        {"link", ""},
+        {"location", ""},
+        {"max-forwards", ""},
+        {"proxy-authenticate", ""},
+        {"proxy-authorization", ""},
+        {"range", ""},
+        {"referer", ""},
+        {"refresh", ""},
+        {"retry-after", ""},
+        {"server", ""},
+        {"set-cookie", ""},
+        {"strict-transport-security", ""},
+        {"transfer-encoding", ""},
+        {"user-agent", ""},
+        {"vary", ""},
+        {"via", ""},
+        {"www-authenticate", ""},
+    };
+    static final int STATIC_SIZE = STATIC_TABLE.length - 1; // 61
+
+    static final HashMap<String,Integer> staticNameIndex = new HashMap<>();
+    static final HashMap<String,Integer> staticFieldIndex = new HashMap<>(); // "name\0value"
+    static
+    {
+        for(int i=STATIC_SIZE; i>=1; i--) // lowest index wins
+        {
+            String[] nv = STATIC_TABLE[i];
+            staticNameIndex.put(nv[0], i);
+            if(!nv[1].isEmpty())
+                staticFieldIndex.put(nv[0]+'\0'+nv[1], i);
+        }
+    }
+
+    // huffman code, appendix B. index is the symbol; 256 is EOS.
+    static final int[] HUFFMAN_CODES = {
+        0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+        0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+        0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+        0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+        0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+        0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+        0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+        0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+        0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+        0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+        0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+        0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+        0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+        0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+        0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+        0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+        0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+        0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+        0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+        0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+        0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+        0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+        0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+        0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+        0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+        0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+        0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+        0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+        0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+        0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+        0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+        0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+        0x3fffffff,
+    };
+    static final byte[] HUFFMAN_LENGTHS = {
+        13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+        28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+        6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+        5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+        13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+        7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+        15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+        6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+        20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+        24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+        22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+        21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+        26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+        19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+        20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+        26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+        30,
+    };
+
+    // decoding tree. node i has children tree[2i] (bit 0) and tree[2i+1] (bit 1).
+    // a child value >=0 is the next node; <0 is a leaf, symbol = -1-value.
+    static final int[] huffTree = buildHuffTree();
+    static int[] buildHuffTree()
+    {
+        int[] tree = new int[2*256];
+        Arrays.fill(tree, Integer.MIN_VALUE); // unassigned
+        int nodes = 1; // root is 0
+        for(int sym=0; sym<=256; sym++)
+        {
+            int code = HUFFMAN_CODES[sym];
+            int len = HUFFMAN_LENGTHS[sym];
+            int node = 0;
+            for(int b=len-1; b>=0; b--)
+            {
+                int slot = 2*node + ((code>>>b)&1);
+                if(b==0)
+                    tree[slot] = -1-sym;
+                else
+                {
+                    if(tree[slot]==Integer.MIN_VALUE)
+                        tree[slot] = nodes++;
+                    node = tree[slot];
+                }
+            }
+        }
+        return tree;
+    }
+
+    static String huffmanDecode(byte[] src, int off, int len) throws HpackException
+    {
+        StringBuilder sb = new StringBuilder(len*8/5);
+        int node = 0;
+        int depth = 0;  // bits since last symbol
+        boolean allOnes = true; // bits since last symbol are all 1
+        for(int i=off; i<off+len; i++)
+        {
+            int x = src[i]&0xff;
+            for(int b=7; b>=0; b--)
+            {
+                int bit = (x>>>b)&1;
+                int next = huffTree[2*node+bit];
+                depth++;
+                allOnes &= bit==1;
+                if(next<0)
+                {
+                    int sym = -1-next;
+                    if(sym==256)
+                        throw new HpackException("EOS in huffman string");
+                    sb.append((char)sym);
+                    node = 0;
+                    depth = 0;
+                    allOnes = true;
+                }
+                else
+                    node = next;
+            }
+        }
+        // padding: most significant bits of EOS (all 1), strictly less than 8 bits
+        if(depth>7 || !allOnes)
+            throw new HpackException("invalid huffman padding");
+        return sb.toString();
+    }
+
+
+    // decoder ================================================================================================
+
+    // a decoder is used for one direction of one connection.
+    public static class Decoder
+    {
+        public interface Sink
+        {
+            void header(String name, String value) throws HpackException;
+        }
+
+        final int maxTableSize;  // our SETTINGS_HEADER_TABLE_SIZE
+        int tableSizeLimit;      // current, set by size update. <= maxTableSize
+        final ArrayDeque<String[]> table = new ArrayDeque<>(); // newest first
+        int tableSize;
+
+        public Decoder(int maxTableSize)
+        {
+            this.maxTableSize = maxTableSize;
+            this.tableSizeLimit = maxTableSize;
+        }
+
+        byte[] src;
+        int pos;
+        int end;
+
+        // decode a complete header block
+        public void decode(byte[] src, int off, int len, Sink sink) throws HpackException
+        {
+            this.src = src;
+            this.pos = off;
+            this.end = off+len;
+            try
+            {
+                boolean fieldSeen = false;
+                while(pos<end)
+                {
+                    int b = src[pos]&0xff;
+                    if((b&0x80)!=0) // indexed field
+                    {
+                        int index = readInt(7);
+                        String[] nv = lookup(index);
+                        sink.header(nv[0], nv[1]);
+                        fieldSeen = true;
+                    }
+                    else if((b&0xc0)==0x40) // literal with incremental indexing
+                    {
+                        String[] nv = readLiteral(6);
+                        sink.header(nv[0], nv[1]);
+                        add(nv);
+                        fieldSeen = true;
+                    }
+                    else if((b&0xe0)==0x20) // dynamic table size update
+                    {
+                        if(fieldSeen)
+                            throw new HpackException("table size update after header field");
+                        int size = readInt(5);
+                        if(size>maxTableSize)
+                            throw new HpackException("table size update exceeds limit: "+size);
+                        tableSizeLimit = size;
+                        evict(0);
+                    }
+                    else // literal without indexing, or never indexed
+                    {
+                        String[] nv = readLiteral(4);
+                        sink.header(nv[0], nv[1]);
+                        fieldSeen = true;
+                    }
+                }
+            }
+            finally
+            {
+                this.src = null;
+            }
+        }
+
+        int readInt(int prefixBits) throws HpackException
+        {
+            int mask = (1<<prefixBits)-1;
+            int value = src[pos++] & mask;
+            if(value<mask)
+                return value;
+            int shift = 0;
+            while(true)
+            {
+                if(pos>=end)
+                    throw new HpackException("truncated integer");
+                int b = src[pos++]&0xff;
+                if(shift>=28)
+                    throw new HpackException("integer overflow");
+                value += (b&0x7f)<<shift;
+                if(value<0)
+                    throw new HpackException("integer overflow");
+                if((b&0x80)==0)
+                    return value;
+                shift += 7;
+            }
+        }
+
+        String readString() throws HpackException
+        {
+            if(pos>=end)
+                throw new HpackException("truncated string");
+            boolean huffman = (src[pos]&0x80)!=0;
+            int len = readInt(7);
+            if(len>end-pos)
+                throw new HpackException("truncated string");
+            String s;
+            if(huffman)
+                s = huffmanDecode(src, pos, len);
+            else
+            {
+                char[] chars = new char[len];
+                for(int i=0; i<len; i++)
+                    chars[i] = (char)(src[pos+i]&0xff);
+                s = new String(chars);
+            }
+            pos += len;
+            return s;
+        }
+
+        String[] readLiteral(int prefixBits) throws HpackException
+        {
+            int index = readInt(prefixBits);
+            String name = index==0 ? readString() : lookup(index)[0];
+            String value = readString();
+            return new String[]{name, value};
+        }
+
+        String[] lookup(int index) throws HpackException
+        {
+            if(index<=0)
+                throw new HpackException("invalid index: "+index);
+            if(index<=STATIC_SIZE)
+                return STATIC_TABLE[index];
+            int i = index - STATIC_SIZE - 1;
+            if(i>=table.size())
+                throw new HpackException("invalid index: "+index);
+            Iterator<String[]> iter = table.iterator();
+            while(i-->0)
+                iter.next();
+            return iter.next();
+        }
+
+        void add(String[] nv)
+        {
+            int size = entrySize(nv);
+            evict(size);
+            if(size>tableSizeLimit) // entry too big, table is emptied. that's not an error
+                return;
+            table.addFirst(nv);
+            tableSize += size;
+        }
+
+        void evict(int room)
+        {
+            while(tableSize+room>tableSizeLimit && !table.isEmpty())
+                tableSize -= entrySize(table.removeLast());
+        }
+
+        static int entrySize(String[] nv)
+        {
+            return 32 + nv[0].length() + nv[1].length();
+        }
+    }
+
+
+    // encoder ================================================================================================
+
+    // stateless encoder, writing into a growable byte array
+    public static class Encoder
+    {
+        byte[] buf = new byte[256];
+        int len;
+
+        public void reset()
+        {
+            len = 0;
+        }
+        public byte[] array()
+        {
+            return buf;
+        }
+        public int length()
+        {
+            return len;
+        }
+
+        // name must be in lower case. name/value chars must be latin-1
+        public void header(String name, String value)
+        {
+            Integer index = staticFieldIndex.get(name+'\0'+value);
+            if(index!=null)
+            {
+                writeInt(0x80, 7, index.intValue());
+                return;
+            }
+
+            // literal without indexing
+            index = staticNameIndex.get(name);
+            if(index!=null)
+                writeInt(0x00, 4, index.intValue());
+            else
+            {
+                writeInt(0x00, 4, 0);
+                writeString(name);
+            }
+            writeString(value);
+        }
+
+        void writeInt(int firstByte, int prefixBits, int value)
+        {
+            int mask = (1<<prefixBits)-1;
+            if(value<mask)
+            {
+                put(firstByte | value);
+                return;
+            }
+            put(firstByte | mask);
+            value -= mask;
+            while(value>=0x80)
+            {
+                put((value&0x7f)|0x80);
+                value >>>= 7;
+            }
+            put(value);
+        }
+
+        void writeString(String s)
+        {
+            int n = s.length();
+            writeInt(0x00, 7, n); // no huffman
+            ensure(n);
+            for(int i=0; i<n; i++)
+                buf[len++] = (byte)s.charAt(i);
+        }
+
+        void put(int b)
+        {
+            ensure(1);
+            buf[len++] = (byte)b;
+        }
+
+        void ensure(int n)
+        {
+            if(len+n>buf.length)
+                buf = Arrays.copyOf(buf, Math.max(buf.length*2, len+n));
+        }
+    }
+
+}
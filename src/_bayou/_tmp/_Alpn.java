@@ -0,0 +1,67 @@
+package _bayou._tmp;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import java.lang.reflect.Method;
+
+// TLS ALPN, through reflection. the API is in JDK 9+, and backported to 8u252+.
+// on older JDKs, isSupported()==false; protocols are not offered, and getApplicationProtocol() returns null.
+public class _Alpn
+{
+    static final Method setApplicationProtocols;
+    static final Method getApplicationProtocol;
+    static
+    {
+        Method set, get;
+        try
+        {
+            set = SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+            get = SSLEngine.class.getMethod("getApplicationProtocol");
+        }
+        catch (Exception e)
+        {
+            set = get = null;
+        }
+        setApplicationProtocols = set;
+        getApplicationProtocol = get;
+    }
+
+    public static boolean isSupported()
+    {
+        return setApplicationProtocols!=null;
+    }
+
+    // offer protocols, in order of preference. server side: the first one also supported by the client is chosen.
+    public static void setProtocols(SSLEngine engine, String... protocols)
+    {
+        if(!isSupported())
+            return;
+
+        SSLParameters params = engine.getSSLParameters();
+        try
+        {
+            setApplicationProtocols.invoke(params, (Object)protocols);
+        }
+        catch (Exception e)
+        {
+            throw new RuntimeException(e);
+        }
+        engine.setSSLParameters(params);
+    }
+
+    // after handshake. null if not supported; "" if no protocol is negotiated.
+    public static String getApplicationProtocol(SSLEngine engine)
+    {
+        if(!isSupported())
+            return null;
+
+        try
+        {
+            return (String)getApplicationProtocol.invoke(engine);
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+    }
+}
@@ -1,7 +1,11 @@
 package _bayou._tmp;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 // expiration based pool for ByteBuffer. reason for pool:
 //   to reduce alloc/de-alloc cost; significant for direct buffers(10K cycles for alloc?)
@@ -40,16 +44,39 @@ import java.util.concurrent.ConcurrentHashMap;
 
 // HOWEVER, we are afraid that it may cause great waste under some situations, e.g. one thread
 // may be hoarding many useless items, and another thread keeps allocating new items.
-// to be conservative, have a central pool shared by all threads.
-// THEN, for each thread, we have 1 locally cached item. that should be very helpful in most
-// apps where back to back checkOut-checkIn and checkIn-checkOut are the majority use case.
-// (possible an item is checked out on thread1 and checked in on thread2.
-// this local cache is disabled by default, to avoid many lingering buffers on many threads.
-// though it's more expensive to use shared cache, it's probably not big deal compared to file/socket IO
+// so each thread only keeps a small "magazine" of items; the rest go to a central "depot"
+// shared by all threads. (after Bonwick's magazine allocator)
+//
+// magazine: per pool per thread, an array stack of up to 2*M items. check-out/check-in on the magazine
+// is plain array access, no synchronization, no allocation. when the magazine is full, the oldest M
+// items are moved to the depot as one batch; when it's empty, one batch is taken from the depot.
+// so a thread touches the depot at most once per M operations; back to back checkOut-checkIn never does.
+// M is sys prop bayou.util.ByteBufferPool.magazineSize, default 4.
+// (possible an item is checked out on thread1 and checked in on thread2. that's fine.)
+// items in magazines don't expire. but a thread may go idle, pinning up to 2*M items of every pool it used.
+// so trimLocal() flushes magazines of the current thread that haven't been used since the previous trim
+// to the depot, where they are subject to expiration. selector threads call it periodically.
+// magazines of other threads are freed when the thread dies.
+// magazines can be disabled by sys prop defaultDoLocalCache=false; then every op goes to the depot.
+//
+// depot: a lock-free stack (Treiber) of batches. a batch is tagged with the time it is pushed.
+// pop always takes the newest batch. a new node is created for each push, and a node is never pushed twice,
+// so there's no ABA problem (GC won't recycle a node while some thread still holds a ref to it).
+// expiration: once in a while, a thread pushing a batch detaches the whole depot, deallocs expired batches,
+// and pushes the survivors back as new nodes.
+//
+// forCapacity(n) returns a pool of exactly capacity n. callers choose their capacities deliberately,
+// e.g. SSL buffers must fit a record; rounding up would waste memory on every buffer.
+//
+// depot cap: sys prop maxDepotDirectMemory caps the total bytes of direct buffers idling in depots,
+// of all pools. a batch that would exceed the cap is de-allocated instead.
+// this is NOT a cap of the total direct memory used by pools: buffers that are checked out, or in magazines,
+// are not counted, and there's no limit on them. use -XX:MaxDirectMemorySize for a hard limit.
+// default: no cap.
 
 // performance @2.5Hz, checkOut+checkIn
-//    local: 10ns
-//    shared:  uncontended: 150ns, contended(2): 520ns
+//    magazine: ~10ns
+//    depot: one CAS per M ops; no lock, no allocation except one node per batch
 public class _ByteBufferPool
 {
     static final long defaultExpiration = Long.getLong(_ByteBufferPool.class.getName()+
@@ -58,17 +85,28 @@ public class _ByteBufferPool
     static final boolean defaultDoLocalCache = _Util.booleanProp(true,
         _ByteBufferPool.class.getName()+".defaultDoLocalCache");
 
-    final Object lock(){ return this; }
-    // when `this` becomes garbage, localCache becomes garbage, and all of
-    // its local entries on all threads become garbage too.
-    final ThreadLocal<ByteBuffer> localCache;
+    static final int magazineSize = Math.max(1, Integer.getInteger(_ByteBufferPool.class.getName()+
+            ".magazineSize", 4).intValue());
+
+    // cap of idle direct buffers in depots only; see class comment.
+    static final long maxDepotDirectMemory = Long.getLong(_ByteBufferPool.class.getName()+
+            ".maxDepotDirectMemory", Long.MAX_VALUE).longValue();
+    // total bytes of direct buffers in all depots. not maintained if there's no cap.
+    static final AtomicLong depotDirectMemory = new AtomicLong();
 
     final int bufferCapacity;
     final boolean allocateDirect;
     final long expiration;
 
-    Entry oldest, newest; // double linked list
-    // todo: why linked list? just use ArrayDeque
+    final int batchSize; // M; 1 if no magazines
+    // null if no magazines.
+    // a magazine is also referenced by localMagazines of its thread, with a ref back to `this`;
+    // so `this` is not GC-ed while those threads live. fine for our pools, which are cached forever anyway.
+    final ThreadLocal<Magazine> magazines;
+
+    final AtomicReference<Batch> depot = new AtomicReference<>(); // top is the newest
+    final long sweepInterval;
+    volatile long nextSweepTime_volatile;
 
     public _ByteBufferPool(int bufferCapacity, boolean allocateDirect, long expiration, boolean doLocalCache)
     {
@@ -76,7 +114,11 @@ public class _ByteBufferPool
         this.allocateDirect = allocateDirect;
         this.expiration = expiration;
 
-        this.localCache = doLocalCache? new ThreadLocal<ByteBuffer>() : null;
+        this.batchSize = doLocalCache? magazineSize : 1;
+        this.magazines = doLocalCache? ThreadLocal.withInitial(this::newMagazine) : null;
+
+        this.sweepInterval = Math.max(1L, expiration / 8);
+        this.nextSweepTime_volatile = System.currentTimeMillis() + sweepInterval;
     }
     public _ByteBufferPool(int bufferCapacity)
     {
@@ -84,20 +126,32 @@ public class _ByteBufferPool
     }
 
     // todo: use weak ref for _ByteBufferPool, so that they can be GC-ed.
-    // tho the pool itself is not a heavy object, it prevents the ThreadLocal localCache from GC-ed.
+    // tho the pool itself is not a heavy object, it prevents the ThreadLocal magazines from GC-ed.
     static final ConcurrentHashMap<Integer, _ByteBufferPool> cachedPools = new ConcurrentHashMap<>();
     public static _ByteBufferPool forCapacity(int bufferCapacity)
+    {
+        return forCapacity(cachedPools, bufferCapacity, true);
+    }
+
+    // pools of non-direct buffers, for when an array-backed buffer is needed
+    static final ConcurrentHashMap<Integer, _ByteBufferPool> cachedHeapPools = new ConcurrentHashMap<>();
+    public static _ByteBufferPool forHeapCapacity(int bufferCapacity)
+    {
+        return forCapacity(cachedHeapPools, bufferCapacity, false);
+    }
+
+    static _ByteBufferPool forCapacity(ConcurrentHashMap<Integer, _ByteBufferPool> cachedPools,
+                                       int bufferCapacity, boolean allocateDirect)
     {
         _ByteBufferPool pool = cachedPools.get(bufferCapacity);
         if(pool!=null)
             return pool;
 
-        _ByteBufferPool poolA = new _ByteBufferPool(bufferCapacity);
+        _ByteBufferPool poolA = new _ByteBufferPool(bufferCapacity, allocateDirect, defaultExpiration, defaultDoLocalCache);
         _ByteBufferPool poolB = cachedPools.putIfAbsent(bufferCapacity, poolA);
         return poolB!=null? poolB : poolA;
     }
 
-
     public int getBufferCapacity()
     {
         return bufferCapacity;
@@ -117,17 +171,27 @@ public class _ByteBufferPool
     {
         stat(1, 0);
 
-        if(localCache!=null)
+        Magazine mag = magazines==null? null : magazines.get();
+        if(mag!=null)
         {
-            ByteBuffer local = localCache.get();
-            if(local!=null)
-            {
-                localCache.set(null);
-                // set(null) instead of remove(). we expect that a check-in follows soon.
-                return local;
-            }
+            mag.used = true;
+            if(mag.size>0)
+                return mag.pop();
+        }
+
+        Batch batch = popDepot();
+        if(batch==null)
+            return alloc(bufferCapacity, allocateDirect);
+
+        ByteBuffer[] items = batch.items;
+        int n = items.length - 1;
+        // if there's no magazine, batches have only 1 item.
+        if(mag!=null)
+        {
+            System.arraycopy(items, 0, mag.items, 0, n); // mag is empty; n < M <= 2*M
+            mag.size = n;
         }
-        return checkOut2();
+        return items[n];
     }
     // pool now owns `bb`; it can be checkout; it can be de-allocated.
     // it is critical that nobody else is still using `bb`.
@@ -147,128 +211,191 @@ public class _ByteBufferPool
 
         bb.clear();
 
-        if(localCache!=null)
+        if(magazines==null)
         {
-            ByteBuffer local = localCache.get();
-            if(local==null)
-            {
-                localCache.set(bb);
-                return;
-            }
+            pushDepot(new ByteBuffer[]{bb});
+            return;
         }
-        checkIn2(bb);
+
+        Magazine mag = magazines.get();
+        mag.used = true;
+        if(mag.size==mag.items.length) // full. move the older half to depot
+            pushDepot(mag.removeOldest(batchSize));
+        mag.items[mag.size++] = bb;
     }
 
-    static class Entry
+    // magazines of the current thread, of all pools. for trimLocal()
+    static final ThreadLocal<ArrayList<Magazine>> localMagazines = ThreadLocal.withInitial(ArrayList::new);
+
+    Magazine newMagazine()
     {
-        Entry older;
-        Entry newer;
+        Magazine mag = new Magazine(this, 2 * magazineSize);
+        localMagazines.get().add(mag);
+        return mag;
+    }
 
-        ByteBuffer bb;
-        long time;
-        Entry(ByteBuffer bb, long time)
+    // flush magazines of the current thread that are not used since the previous call, to depots.
+    // should be called periodically by a thread that uses pools and may go idle for long.
+    public static void trimLocal()
+    {
+        for(Magazine mag : localMagazines.get())
         {
-            this.bb = bb;
-            this.time = time;
+            if(mag.used)
+                mag.used = false;
+            else
+                while(mag.size>0)
+                    mag.pool.pushDepot(mag.removeOldest(Math.min(mag.size, mag.pool.batchSize)));
         }
     }
 
-    ByteBuffer checkOut2()throws OutOfMemoryError
+    static final class Magazine
     {
-        synchronized (lock())
+        final _ByteBufferPool pool;
+        final ByteBuffer[] items; // [0, size) are occupied; the last one is the newest
+        int size;
+        boolean used; // since the last trimLocal()
+
+        Magazine(_ByteBufferPool pool, int capacity)
+        {
+            this.pool = pool;
+            items = new ByteBuffer[capacity];
+        }
+
+        ByteBuffer pop()
         {
-            // remove and return newest.
-            ByteBuffer bb = checkOut3();
-            if(bb!=null)
-                return bb;
+            ByteBuffer bb = items[--size];
+            items[size] = null;
+            return bb;
         }
 
-        return alloc(bufferCapacity, allocateDirect);  // outside lock{}
+        ByteBuffer[] removeOldest(int n)
+        {
+            ByteBuffer[] oldest = Arrays.copyOf(items, n);
+            System.arraycopy(items, n, items, 0, size - n);
+            Arrays.fill(items, size - n, size, null);
+            size -= n;
+            return oldest;
+        }
     }
-    void checkIn2(ByteBuffer bb)
+
+    static final class Batch
     {
-        Entry entry = new Entry(bb, System.currentTimeMillis());
+        final ByteBuffer[] items;
+        final long time;
+        Batch next; // set before the batch is pushed; never changed after.
 
-        Entry e2;
-        synchronized (lock())
+        Batch(ByteBuffer[] items, long time)
         {
-            // install entry as the new newest.
-            // return the youngest end of expired chain
-            e2 = checkIn3(entry);
+            this.items = items;
+            this.time = time;
         }
+    }
 
-        while(e2!=null)
+    void pushDepot(ByteBuffer[] items)
+    {
+        if(!reserveDirect(items.length))
         {
-            // dealloc() is very dangerous and must be used correctly.
-            // this pool is only used internally by trusted code, checkIn-checkOut should be perfectly paired.
-            _ByteBufferUtil.dealloc(e2.bb);
-            e2=e2.older;
+            // over the cap. the items are not worth keeping.
+            for(ByteBuffer bb : items)
+                _ByteBufferUtil.dealloc(bb);
+            return;
         }
-    }
 
-    ByteBuffer checkOut3()throws OutOfMemoryError
+        long now = System.currentTimeMillis();
+        pushDepot0(new Batch(items, now));
+
+        if(now>=nextSweepTime_volatile)
+            sweep(now);
+    }
+    void pushDepot0(Batch batch)
     {
-        Entry n = newest;
-        if(n==null)
-            return null;
-        Entry n2 = n.older;
-        if(n2==null)
+        while(true)
         {
-            newest=null;
-            oldest=null;
+            Batch top = depot.get();
+            batch.next = top;
+            if(depot.compareAndSet(top, batch))
+                return;
         }
-        else
+    }
+
+    Batch popDepot()
+    {
+        while(true)
         {
-            n.older = null; // help GC?
-            n2.newer = null;
-            newest = n2;
+            Batch top = depot.get();
+            if(top==null)
+                return null;
+            if(depot.compareAndSet(top, top.next))
+            {
+                releaseDirect(top.items.length);
+                return top;
+            }
         }
-        return n.bb;
     }
-    Entry checkIn3(Entry entry)
+
+    // dealloc expired batches. concurrent sweeps are rare, and harmless.
+    // note: we could be removing expired items while the load is increasing. likelihood should be low.
+    void sweep(long now)
     {
-        Entry n = newest;
-        if(n==null) // could be quite common
+        nextSweepTime_volatile = now + sweepInterval;
+
+        long minTime = now - expiration;
+        if(lastTime(depot.get()) >= minTime) // fast path. the oldest isn't expired. very common?
+            return;
+
+        ArrayList<Batch> survivors = new ArrayList<>();
+        for(Batch b = depot.getAndSet(null); b!=null; b=b.next)
         {
-            newest = entry;
-            oldest = entry;
-            // only one entry, just checked in, it shouldn't be expired
-            return null;
+            if(b.time>=minTime)
+            {
+                survivors.add(b);
+                continue;
+            }
+            // dealloc() is very dangerous and must be used correctly.
+            // this pool is only used internally by trusted code, checkOut-checkIn should be perfectly paired.
+            releaseDirect(b.items.length);
+            for(ByteBuffer bb : b.items)
+                _ByteBufferUtil.dealloc(bb);
         }
-        else
+
+        // push back, oldest first. new nodes, so that a thread holding a stale ref to an old node
+        // won't succeed in its CAS.
+        for(int i=survivors.size()-1; i>=0; i--)
         {
-            n.newer = entry;
-            entry.older = n;
-            newest = entry;
-            return severExpired(entry.time - expiration);
+            Batch b = survivors.get(i);
+            pushDepot0(new Batch(b.items, b.time));
         }
     }
-    // note: we could be removing expired items while the load is increasing. likelihood should be low.
-    Entry severExpired(long minTime)
+    static long lastTime(Batch b)
     {
-        // caller ensured at least two entries in pool
-        Entry e1 = oldest; // not null.
-        if(!(e1.time<minTime)) // fast path. non expired. very common?
-            return null;
+        if(b==null)
+            return Long.MAX_VALUE;
+        while(b.next!=null)
+            b = b.next;
+        return b.time;
+    }
 
-        // starting from the oldest end, find the first entry that's not expired.
-        while(e1!=null && e1.time<minTime)
-            e1 = e1.newer;
+    boolean reserveDirect(int nItems)
+    {
+        if(!allocateDirect || maxDepotDirectMemory==Long.MAX_VALUE)
+            return true;
 
-        if(e1==null) // all expired, incl the newest one, due to clock precision. practically impossible.
+        long bytes = (long)nItems * bufferCapacity;
+        while(true)
         {
-            Entry e2 = newest;
-            oldest=null;
-            newest=null;
-            return e2;
+            long x = depotDirectMemory.get();
+            if(x + bytes > maxDepotDirectMemory)
+                return false;
+            if(depotDirectMemory.compareAndSet(x, x + bytes))
+                return true;
         }
+    }
+    void releaseDirect(int nItems)
+    {
+        if(!allocateDirect || maxDepotDirectMemory==Long.MAX_VALUE)
+            return;
 
-        // e1 != oldest (see fast path)
-        Entry e2 = e1.older; // not null. the youngest expired
-        oldest=e1;
-        e1.older=null;
-        e2.newer=null;
-        return e2;
+        depotDirectMemory.addAndGet(-(long)nItems * bufferCapacity);
     }
 
     static ByteBuffer alloc(int capacity, boolean allocateDirect) throws OutOfMemoryError
@@ -85,14 +85,32 @@ public class _Exec
         }
     }
 
+    // a scheduled action that can be cancelled. cancel() can be called on any thread, more than once.
+    public interface Alarm
+    {
+        void cancel();
+    }
+
     // ok if delay<0, it's same as delay=0
-    // CAUTION: there's only one thread for all scheduled actions.
+    // if the current thread owns a timing wheel (e.g. a selector thread), the action is scheduled on the wheel,
+    // and it'll be run on the current thread. that's where most timeouts are set, e.g. on network connections.
+    // CAUTION: otherwise, there's only one thread for all scheduled actions.
     // action should be really short; action should dispatch heavy work to somewhere else
-    static public ScheduledFuture<?> execNbDelayed(Duration delay, final Runnable action)
+    static public Alarm execNbDelayed(Duration delay, final Runnable action)
     {
         long nanos = delay.toNanos(); // delay must be less than 292 years or this line fails
 
-        return ExecScheduler.scheduler.schedule(action, nanos, TimeUnit.NANOSECONDS);
+        Thread thread = Thread.currentThread();
+        if(thread instanceof _TimingWheel.Owner)
+            return ((_TimingWheel.Owner)thread).getTimingWheel().schedule(nanos, action);
+
+        return scheduleOnScheduler(nanos, action);
+    }
+
+    static Alarm scheduleOnScheduler(long nanos, Runnable action)
+    {
+        ScheduledFuture<?> future = ExecScheduler.scheduler.schedule(action, nanos, TimeUnit.NANOSECONDS);
+        return () -> future.cancel(false);
     }
 
     // exec blocking ------------------------------------------------------------------------------
@@ -0,0 +1,16 @@
+package _bayou._tmp;
+
+import java.nio.channels.FileChannel;
+
+// an optional zero-copy write path of a TcpConnection: bytes of a file are sent to the socket directly,
+// by FileChannel.transferTo(), which is sendfile() on Linux. used internally by HttpServer for file bodies.
+public interface _FileTransfer
+{
+    // false if the connection can't do it, e.g. the underlying channel isn't a socket.
+    boolean canTransferFile();
+
+    // called only when the write queue is empty.
+    // non-blocking on the socket; return 0 if the socket is not writable, then awaitWritable().
+    // note: it may block on disk reads, if the file isn't in the OS cache.
+    long transferFile(FileChannel file, long position, long count) throws Exception;
+}
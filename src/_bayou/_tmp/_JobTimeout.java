@@ -3,7 +3,6 @@ package _bayou._tmp;
 import bayou.async.Async;
 
 import java.time.Duration;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeoutException;
 
 // a timeout util for this use case:
@@ -20,7 +19,7 @@ public class _JobTimeout implements Runnable
 
     String timeoutMessage;
 
-    ScheduledFuture<?> alarm;
+    _Exec.Alarm alarm;
 
     Async<?> currAction;
 
@@ -30,7 +29,7 @@ public class _JobTimeout implements Runnable
         this.timeoutMessage = timeoutMessage;
 
         // note: `this` is leaked in constructor
-        ScheduledFuture<?> alarm = _Exec.execNbDelayed(duration, this);
+        _Exec.Alarm alarm = _Exec.execNbDelayed(duration, this);
 
         synchronized (this)
         {
@@ -97,7 +96,7 @@ public class _JobTimeout implements Runnable
             }
         }
 
-        alarm.cancel(true);
+        alarm.cancel();
 
         alarm = null;
         timeoutMessage = null;
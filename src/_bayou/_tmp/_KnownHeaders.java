@@ -7,6 +7,7 @@ import bayou.mime.Headers;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 
 public class _KnownHeaders
@@ -15,6 +16,8 @@ public class _KnownHeaders
     static final HashMap<_ChArrCi,String> map1 = new HashMap<>(256);
     static final HashMap<_StrCi,String> map2 = new HashMap<>(256);
     static final HashMap<_ByteArr,String> map3 = new HashMap<>(256);
+    static final HashMap<String,byte[]> map4 = new HashMap<>(256);  // "Name: " in latin1
+    static final HashMap<_ByteArr,String> map5 = new HashMap<>(256);  // key in lower case
 
     static
     {
@@ -37,6 +40,10 @@ public class _KnownHeaders
 
             _ByteArr k3 = _ByteArr.of(s);
             map3.put(k3, s);
+
+            map4.put(s, (s+": ").getBytes(StandardCharsets.ISO_8859_1));
+
+            map5.put(_ByteArr.of(s.toLowerCase()), s);
         }
     }
     // look up a well-known header. chars may be in different cases.
@@ -59,4 +66,17 @@ public class _KnownHeaders
         return map3.get(k3);
     }
 
+    // k5 must be in lower case
+    public static String lookupLowerCase(_ByteArr k5)
+    {
+        return map5.get(k5);
+    }
+
+    // pre-encoded bytes of "Name: " for a well-known header name, in the exact case. null if unknown.
+    // caller must not modify the array.
+    public static byte[] nameColonBytes(String name)
+    {
+        return map4.get(name);
+    }
+
 }
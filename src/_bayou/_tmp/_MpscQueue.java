@@ -0,0 +1,63 @@
+package _bayou._tmp;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReference;
+
+// lock-free multi-producer single-consumer queue. (D. Vyukov's node based MPSC queue)
+// offer() can be called on any thread; poll() and isEmpty() must be called on the consumer thread only.
+//
+// offer() is wait-free: one atomic swap on `tail`, then one store to link the previous node.
+// between the two steps, the new node is not reachable from `head` yet; during that short window
+// isEmpty() returns false but poll() returns null. the consumer should simply retry later.
+//
+// the consumer role can be handed over to another thread, as long as there's a happens-before
+// edge between the two consumers, and they never poll concurrently.
+public class _MpscQueue<E>
+{
+    static final class Node<E>
+    {
+        E item;
+        volatile Node<E> next;
+
+        Node(E item)
+        {
+            this.item = item;
+        }
+    }
+
+    final AtomicReference<Node<E>> tail; // written by producers
+    Node<E> head; // accessed by consumer only. a stub node; its item was consumed (or is null initially)
+
+    public _MpscQueue()
+    {
+        head = new Node<>(null);
+        tail = new AtomicReference<>(head);
+    }
+
+    // any thread
+    public void offer(E item)
+    {
+        Node<E> node = new Node<>(Objects.requireNonNull(item));
+        Node<E> prev = tail.getAndSet(node);
+        prev.next = node; // now reachable by consumer
+    }
+
+    // consumer only. return null if empty, or if a producer is in the middle of offer().
+    public E poll()
+    {
+        Node<E> next = head.next;
+        if(next==null)
+            return null;
+
+        E item = next.item;
+        next.item = null; // `next` becomes the new stub
+        head = next;
+        return item;
+    }
+
+    // consumer only. false if any producer has started offer(), even if poll() would return null at the moment.
+    public boolean isEmpty()
+    {
+        return tail.get()==head;
+    }
+}
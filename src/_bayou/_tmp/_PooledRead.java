@@ -0,0 +1,24 @@
+package _bayou._tmp;
+
+import java.nio.ByteBuffer;
+
+// an optional, allocation-free read path of a TcpConnection. used internally by parsers that consume
+// the bytes in place, or copy them into their own buffer: request heads, and HTTP/2 frames.
+// body and websocket reads hand buffers to app; they use plain read(), which costs no extra copy.
+//
+// readPooled() is like TcpConnection.read(), except that a data buffer may be *lent* from an internal pool,
+// instead of being a fresh copy owned by the caller. when done with a lent buffer, the caller must do
+// exactly one of the following:
+//     release(bb) - give it back to the pool. bb must not be touched afterwards.
+//     unread(bb)  - give it back to the connection, with its remaining bytes, for the next read.
+// data must not escape the caller while it's in a lent buffer; copy it out if it's to be handed to app.
+// see _Tcp.readPooled() / _Tcp.release(), which also work on connections not implementing this.
+//
+// a lent buffer is array-backed.
+public interface _PooledRead
+{
+    ByteBuffer readPooled() throws Exception;
+
+    // no-op if bb is not lent by this connection
+    void release(ByteBuffer bb);
+}
@@ -7,7 +7,15 @@ import bayou.ssl.SslConnection;
 import bayou.tcp.TcpChannel;
 import bayou.tcp.TcpConnection;
 
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Supplier;
@@ -38,6 +46,147 @@ public class _Tcp
 
     }
 
+    // StandardSocketOptions.SO_REUSEPORT is JDK 9+. look it up reflectively so we still compile for 8.
+    // null if not available in this JDK.
+    static final SocketOption<Boolean> SO_REUSEPORT = lookupReusePort();
+    static SocketOption<Boolean> lookupReusePort()
+    {
+        try
+        {
+            return _Util.cast(StandardSocketOptions.class.getField("SO_REUSEPORT").get(null));
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+    }
+
+    // enable SO_REUSEPORT on the server socket; must be done before bind()
+    public static void setReusePort(ServerSocketChannel serverSocketChannel) throws Exception
+    {
+        if(SO_REUSEPORT==null || !serverSocketChannel.supportedOptions().contains(SO_REUSEPORT))
+            throw new UnsupportedOperationException("SO_REUSEPORT is not supported on this platform");
+        serverSocketChannel.setOption(SO_REUSEPORT, Boolean.TRUE);
+    }
+
+    // unix domain sockets are JDK 16+ (StandardProtocolFamily.UNIX, UnixDomainSocketAddress).
+    // look up the API reflectively so we still compile for 8. all null if not available in this JDK.
+    static final ProtocolFamily UNIX;
+    static final Method unixAddressOf; // UnixDomainSocketAddress.of(Path)
+    static final Method openUnixServerSocket; // ServerSocketChannel.open(ProtocolFamily)
+    static final Method openUnixSocket; // SocketChannel.open(ProtocolFamily)
+    static
+    {
+        ProtocolFamily unix=null;
+        Method addressOf=null, openServer=null, open=null;
+        try
+        {
+            unix = StandardProtocolFamily.valueOf("UNIX");
+            addressOf = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", Path.class);
+            openServer = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+            open = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+        }
+        catch (Exception e)
+        {
+            unix=null;
+        }
+        UNIX = unix;
+        unixAddressOf = unix==null? null : addressOf;
+        openUnixServerSocket = unix==null? null : openServer;
+        openUnixSocket = unix==null? null : open;
+    }
+
+    public static boolean isUnixDomainSupported()
+    {
+        return UNIX!=null;
+    }
+
+    static void requireUnixDomain()
+    {
+        if(UNIX==null)
+            throw new UnsupportedOperationException("unix domain sockets require JDK 16+");
+    }
+
+    public static SocketAddress unixDomainAddress(Path path)
+    {
+        requireUnixDomain();
+        return (SocketAddress)invoke(unixAddressOf, null, path);
+    }
+
+    // in blocking mode, like ServerSocketChannel.open()
+    public static ServerSocketChannel openUnixDomainServerSocket() throws IOException
+    {
+        requireUnixDomain();
+        try
+        {
+            return (ServerSocketChannel)openUnixServerSocket.invoke(null, UNIX);
+        }
+        catch (Exception e)
+        {
+            throw unwrapIOException(e);
+        }
+    }
+
+    // in blocking mode, like SocketChannel.open()
+    public static SocketChannel openUnixDomainSocket() throws IOException
+    {
+        requireUnixDomain();
+        try
+        {
+            return (SocketChannel)openUnixSocket.invoke(null, UNIX);
+        }
+        catch (Exception e)
+        {
+            throw unwrapIOException(e);
+        }
+    }
+
+    static Object invoke(Method method, Object obj, Object... args)
+    {
+        try
+        {
+            return method.invoke(obj, args);
+        }
+        catch (InvocationTargetException e)
+        {
+            Throwable cause = e.getCause();
+            if(cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            if(cause instanceof Error)
+                throw (Error)cause;
+            throw new RuntimeException(cause);
+        }
+        catch (IllegalAccessException e) // impossible, public API
+        {
+            throw new AssertionError(e);
+        }
+    }
+    static IOException unwrapIOException(Exception e)
+    {
+        Throwable cause = e instanceof InvocationTargetException? e.getCause() : e;
+        if(cause instanceof IOException)
+            return (IOException)cause;
+        if(cause instanceof RuntimeException)
+            throw (RuntimeException)cause;
+        if(cause instanceof Error)
+            throw (Error)cause;
+        throw new AssertionError(cause);
+    }
+
+    // local port of the channel; -1 if it's not bound to an inet address, e.g. a unix domain socket.
+    public static int localPort(NetworkChannel channel)
+    {
+        try
+        {
+            SocketAddress address = channel.getLocalAddress();
+            return address instanceof InetSocketAddress? ((InetSocketAddress)address).getPort() : -1;
+        }
+        catch (IOException e) // closed
+        {
+            return -1;
+        }
+    }
+
     public static Async<Void> close(TcpChannel channel, Duration drainTimeout, _ByteBufferPool bufferPool)
     {
         try
@@ -110,6 +259,31 @@ public class _Tcp
             return _Asyncs.succeed(promise, null);
     }
 
+    // pooled reads, see _PooledRead. these methods also work on connections that don't support pooled reads.
+
+    public static ByteBuffer readPooled(TcpConnection conn) throws Exception
+    {
+        if(conn instanceof _PooledRead)
+            return ((_PooledRead)conn).readPooled();
+        else
+            return conn.read();
+    }
+
+    public static void release(TcpConnection conn, ByteBuffer bb)
+    {
+        if(conn instanceof _PooledRead)
+            ((_PooledRead)conn).release(bb);
+    }
+
+    // done parsing `bb` from readPooled(). unread remaining bytes, or release bb if it's exhausted
+    public static void unreadOrRelease(TcpConnection conn, ByteBuffer bb)
+    {
+        if(bb.hasRemaining())
+            conn.unread(bb);
+        else
+            release(conn, bb);
+    }
+
     // global id generator for all connections
     public static final Supplier<Long> idGenerator = new AtomicLong(1)::getAndIncrement;
 
@@ -0,0 +1,237 @@
+package _bayou._tmp;
+
+import java.time.Duration;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+// hashed timing wheel (Varghese & Lauck). O(1) schedule and cancel.
+// it's owned by an event loop thread; schedule() and expire() must be called on the owner thread.
+// cancel() can be called on any thread.
+//
+// use case: timeouts on network connections. they are numerous; most are cancelled long before they are due;
+// precision is not important. ScheduledThreadPoolExecutor costs O(log n), a lock, and a thread hop for each.
+//
+// time is divided into ticks; a timer due at tick T is in bucket T%wheelSize. buckets are visited once per tick;
+// a timer is fired when its tick is reached; timers of later rounds in the same bucket are skipped.
+// timers are fired no earlier than due, and about 1 tick late at most, if the owner thread isn't busy.
+//
+// tick duration is sys prop _bayou._tmp._TimingWheel.tickMs, default 10ms. wheelSize is 512, i.e. 5.12s per round.
+// with 200K timers of 30-60s, each bucket holds ~400 timers, scanned once per round. that's nothing.
+//
+// cancel() on the owner thread unlinks the timer immediately. on another thread, it only marks the timer;
+// the timer is unlinked when its bucket is visited, by its due time at the latest.
+//
+// the owner can block till the earliest due timer, see millisToNextTimer(). we keep a lower bound of due ticks;
+// cancellation doesn't raise it (an early wakeup is harmless); when it's reached, the exact value is found
+// by visiting buckets in due order, which usually stops at the first few buckets.
+public class _TimingWheel
+{
+    // a thread that owns a timing wheel. _Exec.execNbDelayed() uses the wheel of the current thread, if any.
+    public interface Owner
+    {
+        _TimingWheel getTimingWheel();
+    }
+
+    static final long tickNanos = Duration.ofMillis(Math.max(1L, Long.getLong(_TimingWheel.class.getName() +
+        ".tickMs", 10L).longValue())).toNanos();
+
+    static final int wheelSize = 512; // power of 2
+    static final int wheelMask = wheelSize - 1;
+
+    final Timer[] buckets = new Timer[wheelSize]; // head of double linked list
+    final long startNanos;
+    long currTick; // all buckets <= currTick have been visited
+    int size; // number of linked timers, including ones cancelled remotely
+    long minDueTick = Long.MAX_VALUE; // <= due ticks of all pending timers. MAX_VALUE if none
+
+    public _TimingWheel()
+    {
+        startNanos = System.nanoTime();
+    }
+
+    public boolean isEmpty()
+    {
+        return size==0;
+    }
+
+    // owner thread only. ok if delayNanos<=0; the timer will be fired on next expire()
+    public Timer schedule(long delayNanos, Runnable action)
+    {
+        long now = System.nanoTime();
+        // tick T covers (T-1, T]. round up, so that the timer is not fired early.
+        long dueNanos = now - startNanos + Math.max(0L, delayNanos);
+        long dueTick = (dueNanos + tickNanos - 1) / tickNanos;
+        if(dueTick<=currTick)
+            dueTick = currTick+1;
+
+        Timer timer = new Timer(this, action, dueTick);
+        link(timer);
+        if(dueTick<minDueTick)
+            minDueTick = dueTick;
+        return timer;
+    }
+
+    // owner thread only. fire due timers; actions are submitted to `exec`, e.g. the event loop itself.
+    public void expire(Executor exec)
+    {
+        if(size==0)
+        {
+            // keep currTick up to date, cheaply. no need to visit empty buckets.
+            currTick = Math.max(currTick, (System.nanoTime() - startNanos) / tickNanos);
+            minDueTick = Long.MAX_VALUE;
+            return;
+        }
+
+        long nowTick = (System.nanoTime() - startNanos) / tickNanos;
+        long n = Math.min(nowTick - currTick, wheelSize); // if we are late by more than a round, visit each bucket once
+        for(long i=1; i<=n; i++)
+        {
+            Timer t = buckets[(int)((currTick + i) & wheelMask)];
+            while(t!=null)
+            {
+                Timer next = t.next;
+                if(t.state!=Timer.PENDING)  // cancelled remotely
+                    unlink(t);
+                else if(t.dueTick<=nowTick)
+                {
+                    unlink(t);
+                    if(Timer.updater.compareAndSet(t, Timer.PENDING, Timer.FIRED))
+                        exec.execute(t.action);
+                    t.action = null;
+                }
+                t = next;
+            }
+        }
+        if(nowTick>currTick)
+            currTick = nowTick;
+
+        if(minDueTick<=currTick) // timers up to currTick are all fired
+            minDueTick = findMinDueTick();
+    }
+
+    // the earliest due tick of pending timers; MAX_VALUE if none.
+    // a timer in the bucket of tick k (currTick < k <= currTick+wheelSize) is due at k or a later round.
+    // so if a timer due at k is found, it's the earliest; no need to visit further buckets.
+    long findMinDueTick()
+    {
+        long min = Long.MAX_VALUE;
+        for(long tick=currTick+1; tick<=currTick+wheelSize; tick++)
+        {
+            for(Timer t = buckets[(int)(tick & wheelMask)]; t!=null; t=t.next)
+                if(t.state==Timer.PENDING && t.dueTick<min)
+                    min = t.dueTick;
+            if(min<=tick)
+                break;
+        }
+        return min;
+    }
+
+    // owner thread only. how long until the earliest timer is due; -1 if none.
+    // to be used as the timeout of a blocking wait.
+    public long millisToNextTimer()
+    {
+        if(size==0 || minDueTick==Long.MAX_VALUE)
+            return -1;
+        long dueNanos = startNanos + minDueTick*tickNanos;
+        long nanos = dueNanos - System.nanoTime();
+        return Math.max(1L, (nanos + 999_999) / 1_000_000);
+    }
+
+    // owner thread only. the owner is exiting; hand over all pending timers to _Exec's scheduler.
+    public void transferToScheduler()
+    {
+        long now = System.nanoTime();
+        for(int i=0; i<wheelSize; i++)
+        {
+            for(Timer t=buckets[i]; t!=null; t=t.next)
+            {
+                t.wheel = null;
+                if(t.state!=Timer.PENDING)
+                    continue;
+                long delay = startNanos + t.dueTick*tickNanos - now;
+                t.delegate = _Exec.scheduleOnScheduler(delay, t::fireIfPending);
+                if(t.state!=Timer.PENDING) // cancelled in the meantime, it might not have seen the delegate
+                    t.delegate.cancel();
+            }
+            buckets[i] = null;
+        }
+        size = 0;
+        minDueTick = Long.MAX_VALUE;
+    }
+
+    void link(Timer t)
+    {
+        int b = (int)(t.dueTick & wheelMask);
+        Timer head = buckets[b];
+        t.next = head;
+        if(head!=null)
+            head.prev = t;
+        buckets[b] = t;
+        size++;
+    }
+
+    void unlink(Timer t)
+    {
+        if(t.prev!=null)
+            t.prev.next = t.next;
+        else
+            buckets[(int)(t.dueTick & wheelMask)] = t.next;
+        if(t.next!=null)
+            t.next.prev = t.prev;
+        t.prev = t.next = null;
+        t.wheel = null;
+        size--;
+    }
+
+    public static final class Timer implements _Exec.Alarm
+    {
+        static final int PENDING=0, CANCELLED=1, FIRED=2;
+        static final AtomicIntegerFieldUpdater<Timer> updater =
+            AtomicIntegerFieldUpdater.newUpdater(Timer.class, "state");
+
+        volatile int state;
+
+        // accessed only by the owner thread
+        _TimingWheel wheel; // null if unlinked
+        Runnable action;
+        final long dueTick;
+        Timer prev, next;
+
+        final Thread owner;
+        volatile _Exec.Alarm delegate; // after transferToScheduler()
+
+        Timer(_TimingWheel wheel, Runnable action, long dueTick)
+        {
+            this.wheel = wheel;
+            this.action = action;
+            this.dueTick = dueTick;
+            this.owner = Thread.currentThread();
+        }
+
+        // any thread
+        @Override
+        public void cancel()
+        {
+            if(!updater.compareAndSet(this, PENDING, CANCELLED))
+                return;
+
+            if(Thread.currentThread()==owner)
+            {
+                if(wheel!=null)
+                    wheel.unlink(this);
+                action = null;
+            }
+            // else, it'll be unlinked by the owner later.
+
+            _Exec.Alarm d = delegate;
+            if(d!=null)
+                d.cancel();
+        }
+
+        void fireIfPending()
+        {
+            if(updater.compareAndSet(this, PENDING, FIRED))
+                action.run();
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package _bayou._tmp;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+
+// a weight-bounded cache with W-TinyLFU eviction (simplified).
+//
+// entries are kept in two access-ordered LRU lists: a small "window" (~1% of total weight), and the "main".
+// a new entry always enters the window. when the window overflows, its LRU entry becomes a candidate for the main;
+// if the main is full, the candidate is admitted only if its estimated access frequency is higher than
+// that of the LRU victim of the main. so a burst of one-hit keys (e.g. a crawler) can't flush out popular entries,
+// while the window still gives a new entry some time to build up its frequency.
+// (real W-TinyLFU uses a segmented LRU for the main; we use a plain LRU)
+//
+// frequencies of all keys, cached or not, are estimated by a count-min sketch of 4-bit counters,
+// which are halved periodically so that old popularity fades out.
+//
+// weight is any measure of cost, e.g. bytes. it can be adjusted later, e.g. when the size is known.
+// all methods are synchronized.
+public class _TinyLfuCache<K,V>
+{
+    static class Node<V>
+    {
+        V value;
+        long weight;
+        boolean inWindow;
+
+        Node(V value, long weight)
+        {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    final long maxWeight;
+    final long maxWindowWeight;
+
+    final LinkedHashMap<K,Node<V>> window = new LinkedHashMap<>(16, 0.75f, true);
+    final LinkedHashMap<K,Node<V>> main = new LinkedHashMap<>(16, 0.75f, true);
+    long windowWeight;
+    long mainWeight;
+
+    long evictions;
+    Consumer<V> evictionListener; // may be null
+
+    // sketch. 16 counters of 4 bits per long.
+    final long[] table;
+    final int counterMask;
+    final int resetAt;
+    int additions;
+
+    // expectedEntries: only used to size the sketch
+    public _TinyLfuCache(long maxWeight, int expectedEntries)
+    {
+        if(maxWeight<0)
+            throw new IllegalArgumentException("maxWeight<0");
+
+        this.maxWeight = maxWeight;
+        this.maxWindowWeight = Math.max(1, maxWeight/100);
+
+        int n = Math.max(16, Math.min(expectedEntries, 1<<22));
+        int nLongs = Integer.highestOneBit(n-1)<<1; // power of 2, >=n
+        table = new long[nLongs];
+        counterMask = nLongs*16-1;
+        resetAt = 10*nLongs;
+    }
+
+    // invoked with the value of an entry evicted or rejected for lack of room, inside the lock.
+    // not invoked for remove()/put() replacement.
+    synchronized public _TinyLfuCache<K,V> onEvict(Consumer<V> listener)
+    {
+        this.evictionListener = listener;
+        return this;
+    }
+
+    // get the value, and make it recently used. return null if not cached.
+    // the frequency of the key is recorded, whether it's cached or not.
+    synchronized public V get(K key)
+    {
+        increment(key);
+
+        Node<V> node = main.get(key);  // moves to MRU
+        if(node==null)
+            node = window.get(key);
+        return node==null? null : node.value;
+    }
+
+    // insert or replace. the entry may be evicted immediately, e.g. if it's heavier than the window
+    // and not popular enough to be admitted to the main.
+    // return true if the entry is resident after this call; false if it's too heavy, or evicted immediately.
+    synchronized public boolean put(K key, V value, long weight)
+    {
+        remove(key);
+
+        if(weight>maxWeight)
+            return false;
+
+        Node<V> node = new Node<>(value, weight);
+        node.inWindow = true;
+        window.put(key, node);
+        windowWeight += weight;
+
+        evict();
+        return window.containsKey(key) || main.containsKey(key); // containsKey() doesn't affect LRU order
+    }
+
+    synchronized public V remove(K key)
+    {
+        Node<V> node = window.remove(key);
+        if(node!=null)
+            windowWeight -= node.weight;
+        else if((node=main.remove(key))!=null)
+            mainWeight -= node.weight;
+        return node==null? null : node.value;
+    }
+
+    // remove the entry, if it's still cached with the same value. return true if removed.
+    synchronized public boolean remove(K key, V value)
+    {
+        Node<V> node = window.get(key);
+        if(node==null)
+            node = main.get(key);
+        if(node==null || node.value!=value)
+            return false;
+        remove(key);
+        return true;
+    }
+
+    // adjust the weight of an entry, if it's still cached with the same value.
+    synchronized public void setWeight(K key, V value, long weight)
+    {
+        Node<V> node = window.get(key);
+        if(node==null)
+            node = main.get(key);
+        if(node==null || node.value!=value)
+            return;
+
+        long delta = weight - node.weight;
+        node.weight = weight;
+        if(node.inWindow)
+            windowWeight += delta;
+        else
+            mainWeight += delta;
+
+        if(weight>maxWeight)
+            remove(key);
+        else
+            evict();
+    }
+
+    void evict()
+    {
+        // move window overflow to main, as candidates
+        Iterator<Map.Entry<K,Node<V>>> windowIter = window.entrySet().iterator();
+        while(windowWeight>maxWindowWeight && windowIter.hasNext())
+        {
+            Map.Entry<K,Node<V>> candidate = windowIter.next();
+            windowIter.remove();
+            Node<V> node = candidate.getValue();
+            windowWeight -= node.weight;
+
+            if(admit(candidate.getKey(), node.weight))
+            {
+                node.inWindow = false;
+                main.put(candidate.getKey(), node);
+                mainWeight += node.weight;
+            }
+            else
+            {
+                evicted(node);
+            }
+        }
+
+        // total may still exceed max, e.g. after setWeight()
+        Iterator<Node<V>> mainIter = main.values().iterator();
+        while(windowWeight+mainWeight>maxWeight && mainIter.hasNext())
+        {
+            Node<V> victim = mainIter.next();
+            mainIter.remove();
+            mainWeight -= victim.weight;
+            evicted(victim);
+        }
+    }
+
+    void evicted(Node<V> node)
+    {
+        evictions++;
+        if(evictionListener!=null)
+            evictionListener.accept(node.value);
+    }
+
+    // make room in main for the candidate, if it's more popular than all the victims.
+    // victims are evicted only if the candidate is admitted.
+    boolean admit(K candidateKey, long weight)
+    {
+        long room = maxWeight - maxWindowWeight;
+        if(weight>room)
+            return false;
+        if(mainWeight+weight<=room)
+            return true;
+
+        int freq = frequency(candidateKey);
+        int nVictims = 0;
+        long freed = 0;
+        for(Map.Entry<K,Node<V>> victim : main.entrySet()) // LRU first. enough of them, since weight<=room
+        {
+            if(mainWeight-freed+weight<=room)
+                break;
+            if(freq <= frequency(victim.getKey()))
+                return false;
+            nVictims++;
+            freed += victim.getValue().weight;
+        }
+
+        Iterator<Node<V>> mainIter = main.values().iterator();
+        for(int i=0; i<nVictims; i++)
+        {
+            Node<V> victim = mainIter.next();
+            mainIter.remove();
+            mainWeight -= victim.weight;
+            evicted(victim);
+        }
+        return true;
+    }
+
+    // remove entries matching the predicate. return the removed values. O(n)
+    synchronized public ArrayList<V> removeIf(BiPredicate<? super K, ? super V> predicate)
+    {
+        ArrayList<V> removed = new ArrayList<>();
+        for(Iterator<Map.Entry<K,Node<V>>> iter = window.entrySet().iterator(); iter.hasNext(); )
+        {
+            Map.Entry<K,Node<V>> entry = iter.next();
+            if(predicate.test(entry.getKey(), entry.getValue().value))
+            {
+                iter.remove();
+                windowWeight -= entry.getValue().weight;
+                removed.add(entry.getValue().value);
+            }
+        }
+        for(Iterator<Map.Entry<K,Node<V>>> iter = main.entrySet().iterator(); iter.hasNext(); )
+        {
+            Map.Entry<K,Node<V>> entry = iter.next();
+            if(predicate.test(entry.getKey(), entry.getValue().value))
+            {
+                iter.remove();
+                mainWeight -= entry.getValue().weight;
+                removed.add(entry.getValue().value);
+            }
+        }
+        return removed;
+    }
+
+    // snapshot of all values. doesn't affect recency or frequency.
+    synchronized public ArrayList<V> values()
+    {
+        ArrayList<V> values = new ArrayList<>(window.size()+main.size());
+        for(Node<V> node : window.values())
+            values.add(node.value);
+        for(Node<V> node : main.values())
+            values.add(node.value);
+        return values;
+    }
+
+    // stats --------------------------------------------------------------------------------
+
+    synchronized public long getWeight()
+    {
+        return windowWeight+mainWeight;
+    }
+
+    synchronized public int getSize()
+    {
+        return window.size()+main.size();
+    }
+
+    // number of entries evicted or rejected for lack of room
+    synchronized public long getEvictions()
+    {
+        return evictions;
+    }
+
+    // sketch -------------------------------------------------------------------------------
+
+    static final int[] SEEDS = { 0x97cb3127, 0xb7658ec5, 0x85ebca6b, 0xc2b2ae35 };
+
+    int counterIndex(int h, int i)
+    {
+        int x = (h + SEEDS[i]) * SEEDS[i];
+        x ^= x >>> 15;
+        return x & counterMask;
+    }
+
+    int counter(int c)
+    {
+        return (int)(table[c>>>4] >>> ((c&15)<<2)) & 15;
+    }
+
+    int frequency(Object key)
+    {
+        int h = key.hashCode();
+        int min = 15;
+        for(int i=0; i<4; i++)
+            min = Math.min(min, counter(counterIndex(h, i)));
+        return min;
+    }
+
+    void increment(Object key)
+    {
+        int h = key.hashCode();
+        int c0=counterIndex(h,0), c1=counterIndex(h,1), c2=counterIndex(h,2), c3=counterIndex(h,3);
+        int min = Math.min(Math.min(counter(c0), counter(c1)), Math.min(counter(c2), counter(c3)));
+        if(min==15)
+            return;
+
+        // conservative update: only the counters at the min are incremented
+        if(counter(c0)==min) table[c0>>>4] += 1L << ((c0&15)<<2);
+        if(counter(c1)==min) table[c1>>>4] += 1L << ((c1&15)<<2);
+        if(counter(c2)==min) table[c2>>>4] += 1L << ((c2&15)<<2);
+        if(counter(c3)==min) table[c3>>>4] += 1L << ((c3&15)<<2);
+
+        if(++additions==resetAt)
+        {
+            // aging: halve all counters
+            for(int i=0; i<table.length; i++)
+                table[i] = (table[i] >>> 1) & 0x7777_7777_7777_7777L;
+            additions /= 2;
+        }
+    }
+
+}
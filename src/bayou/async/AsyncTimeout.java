@@ -5,23 +5,17 @@ import _bayou._tmp._Exec;
 import bayou.util.Result;
 
 import java.time.Duration;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 
 // for impl Async.timeout()
 
-// Currently we use ScheduledThreadPoolExecutor for timeout.
-// We may be able to create a better tool.
-// In most timeout(duration) calls, duration is one of several fixed values.
-// For example, we call timeout(server.confKeepAliveTimeout) a lot.
-// We can have a very simple data structure for timeouts of the same duration.
-// Another fact: most promise completes way before timeout is reached,
-// for example, socket read/write timeout. we may optimize for that to save space/time.
-//
-// Currently, ScheduledThreadPoolExecutor seems fine,
-// so we leave improvement for future versions.
+// We use _Exec.execNbDelayed() for timeout. On a selector thread, where most timeouts are set,
+// e.g. socket read/write timeouts, it's a timing wheel owned by the thread: O(1) to set and to cancel,
+// and the timeout event is fired on the same thread.
+// Most promises complete way before timeout is reached; the wheel is optimized for that.
+// On other threads, it's the single-threaded ScheduledThreadPoolExecutor.
 
 class AsyncTimeout<T> implements Consumer<Result<T>>, Runnable
 {
@@ -31,7 +25,7 @@ class AsyncTimeout<T> implements Consumer<Result<T>>, Runnable
     Duration duration;
     Supplier<Exception> exSupplier;  // may be null
 
-    ScheduledFuture<?> alarm;
+    _Exec.Alarm alarm;
 
     public AsyncTimeout(Async<T> target, Duration duration, Supplier<Exception> exSupplier)
     {
@@ -40,7 +34,7 @@ class AsyncTimeout<T> implements Consumer<Result<T>>, Runnable
         this.duration = duration;
         this.exSupplier = exSupplier;
 
-        ScheduledFuture<?> alarm = _Exec.execNbDelayed(duration, this/*run()*/);
+        _Exec.Alarm alarm = _Exec.execNbDelayed(duration, this/*run()*/);
         // note: `this` is leaked. timeout could reach at any time, even before [A]
         this.alarm = alarm;  // [A]
 
@@ -60,7 +54,7 @@ class AsyncTimeout<T> implements Consumer<Result<T>>, Runnable
     @Override // Consumer<Result<T>> // target is completed // after [A]
     public void accept(Result<T> result)
     {
-        alarm.cancel(false);
+        alarm.cancel();
     }
 
     @Override // Runnable // timeout event // may arrive before [A]
@@ -30,7 +30,7 @@ class Asyncs
         final AtomicBoolean lock = new AtomicBoolean();  // only lock owner can complete the promise
 
         // CAUTION: delayed executor is single threaded.
-        final Future<?> future = _Exec.execNbDelayed(duration, ()->
+        final _Exec.Alarm alarm = _Exec.execNbDelayed(duration, ()->
         {
             if(lock.compareAndSet(false, true))
                 promise.succeed(value);
@@ -41,7 +41,7 @@ class Asyncs
             if (lock.compareAndSet(false, true))
                 promise.fail(reason);
 
-            future.cancel(/*interrupt*/true); // interrupt has no effect here
+            alarm.cancel();
         });
         return promise;
     }
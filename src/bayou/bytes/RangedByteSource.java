@@ -1,6 +1,7 @@
 package bayou.bytes;
 
 import _bayou._async._Asyncs;
+import _bayou._bytes._FileRegionSource;
 import _bayou._tmp._Util;
 import bayou.async.Async;
 
@@ -27,7 +28,7 @@ import java.nio.ByteBuffer;
  *     this class can skip the origin by read and discard bytes.
  * </p>
  */
-public class RangedByteSource implements ByteSource
+public class RangedByteSource implements ByteSource, _FileRegionSource
 {
     ByteSource origin;
     long min, max;
@@ -157,6 +158,22 @@ public class RangedByteSource implements ByteSource
         );
     }
 
+    // for zero-copy. the range of the origin file region; only if nothing has been read yet.
+    @Override
+    public Region fileRegion()
+    {
+        if(closed || position!=0 || !(origin instanceof _FileRegionSource))
+            return null;
+        Region region = ((_FileRegionSource)origin).fileRegion();
+        if(region==null)
+            return null;
+
+        long count = max-min;
+        if(region.count!=-1)
+            count = Math.min(count, Math.max(0, region.count-min));
+        return new Region(region.path, region.position+min, count);
+    }
+
     /**
      * Close this source.
      */
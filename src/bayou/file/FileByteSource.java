@@ -1,5 +1,6 @@
 package bayou.file;
 
+import _bayou._bytes._FileRegionSource;
 import _bayou._log._Logger;
 import _bayou._tmp._ByteBufferPool;
 import _bayou._tmp._ByteBufferUtil;
@@ -37,7 +38,7 @@ import java.util.concurrent.ExecutorService;
  *
  * Each FileByteSource depends on an {@link AsynchronousFileChannel}, obtained from a {@link ChannelProvider}.
  */
-public class FileByteSource implements ByteSource
+public class FileByteSource implements ByteSource, _FileRegionSource
 {
     // experimented on local machine, file->socket, bigger bufferSize shows a lot better performance.
     // the overhead of read->complete is not small (0.1ms? on my PC)
@@ -237,6 +238,24 @@ public class FileByteSource implements ByteSource
 
 
 
+    // for zero-copy. only if nothing has been read yet (skip is ok), and the file path is known.
+    @Override
+    public Region fileRegion()
+    {
+        if(closed || channel!=null)
+            return null;
+
+        Path file;
+        if(channelProvider instanceof SimpleChannelProvider)
+            file = ((SimpleChannelProvider)channelProvider).file;
+        else if(channelProvider instanceof SharedChannelProvider)
+            file = ((SharedChannelProvider)channelProvider).file;
+        else // app provider
+            return null;
+
+        return new Region(file, position, -1);
+    }
+
     /**
      * Close this source.
      */
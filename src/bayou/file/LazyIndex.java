@@ -0,0 +1,430 @@
+package bayou.file;
+
+import _bayou._tmp._TimingWheel;
+import _bayou._tmp._TinyLfuCache;
+import bayou.async.Async;
+import bayou.file.StaticHandler.FileInfo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+// lazy index of file metadata, for StaticHandler.lazy(). see LazyStaticHandler
+//
+// an eager StaticHandler scans the whole dir tree at construction, keeps metadata of all files in memory,
+// and uses _FileMonitor, which also scans the whole tree, to keep it fresh.
+// that doesn't work for a huge tree with millions of files.
+//
+// here, the metadata of a file is resolved upon the first request of its uri, and memoized in a bounded
+// cache (W-TinyLFU by request frequency; each uri weighs 1). resolving does blocking IO (stat, confMod);
+// getAsync() does it in the blocking executor, so that selector threads are not blocked.
+// 404 is memoized briefly in a small cache, so that repeated requests of a non-existing file don't read disk
+// every time. a file created in the meantime may be reported as not found for up to NOT_FOUND_TTL.
+//
+// freshness: we can't use _FileMonitor, which requires a full scan. instead, the parent dir of every
+// memoized file, and its ancestors up to the root, are registered to a WatchService.
+// an event on a path invalidates entries of that path, and entries under that path (if it's a dir).
+// on overflow, all entries are invalidated.
+// a watched dir is ref-counted by memoized entries under it; when the last one is removed, the watch is
+// cancelled, so that the number of watches is bounded by the number of memoized entries.
+// if a dir can't be watched (e.g. inotify limit reached), files under it are resolved, but not memoized.
+class LazyIndex
+{
+    static final long NOT_FOUND_TTL = 1_000_000_000L; // nanos
+    static final int NOT_FOUND_MAX = 10_000;
+
+    final StaticHandler handler;
+    final Path rootDir;  // absolute normalized
+
+    final _TinyLfuCache<UriPath,FileInfo> cache;
+    final int maxEntries;
+
+    final _TinyLfuCache<UriPath,Long> notFound; // uri -> expiration time (System.nanoTime())
+
+    final WatchService watcher;
+    volatile long generation_volatile; // incremented before invalidation
+    volatile boolean blockingWarned_volatile;
+
+    final Object lock(){ return this; }
+    // guarded by lock. entries are added to `cache` only under lock, so evictions happen under lock too.
+    // lock order: this lock, then the cache lock.
+    final HashMap<Path,DirWatch> watchedDirs = new HashMap<>();
+    boolean watchErrorLogged;
+
+    static class DirWatch
+    {
+        WatchKey key;
+        int refs; // number of memoized entries under the dir
+
+        DirWatch(WatchKey key){ this.key = key; }
+    }
+
+    LazyIndex(StaticHandler handler, Path rootDir, int maxEntries) throws IOException
+    {
+        this.handler = handler;
+        this.rootDir = rootDir;
+        this.maxEntries = maxEntries;
+
+        cache = new _TinyLfuCache<UriPath,FileInfo>(maxEntries, maxEntries).onEvict(this::removed);
+        int notFoundMax = Math.min(maxEntries, NOT_FOUND_MAX);
+        notFound = new _TinyLfuCache<>(notFoundMax, notFoundMax);
+        watcher = rootDir.getFileSystem().newWatchService();
+    }
+
+    // blocking on miss. used by sync methods of StaticHandler, e.g. handle(), uri(); and by prewarm.
+    FileInfo get(UriPath uriPath)
+    {
+        FileInfo info = cache.get(uriPath);
+        if(info!=null)
+            return info;
+        if(isNotFound(uriPath))
+            return null;
+
+        if(Thread.currentThread() instanceof _TimingWheel.Owner && !blockingWarned_volatile) // an event loop
+        {
+            blockingWarned_volatile = true; // once; it's likely to happen on every miss
+            StaticHandler.logger.error("File metadata is read on event loop thread %s, blocking it. " +
+                "Serve requests by LazyStaticHandler.handle() instead of StaticHandler.handle(). uri=%s",
+                Thread.currentThread().getName(), uriPath.string());
+        }
+        return load(uriPath);
+    }
+
+    // non-blocking. on miss, the file is resolved in the blocking executor.
+    Async<FileInfo> getAsync(UriPath uriPath)
+    {
+        FileInfo info = cache.get(uriPath);
+        if(info!=null)
+            return Async.success(info);
+        if(isNotFound(uriPath))
+            return Async.success(null);
+
+        UriPath key = uriPath.pack(); // uriPath may be backed by a transient buffer
+        return Async.execute(() -> load(key));
+    }
+
+    boolean isNotFound(UriPath uriPath)
+    {
+        Long expiration = notFound.get(uriPath);
+        return expiration!=null && expiration-System.nanoTime()>0;
+    }
+
+    // blocking. resolve the file and memoize it.
+    FileInfo load(UriPath uriPath)
+    {
+        long generation = generation_volatile;
+        FileInfo info = resolve(uriPath);
+
+        UriPath key = uriPath.pack();
+        if(info==null)
+        {
+            notFound.put(key, System.nanoTime()+NOT_FOUND_TTL, 1);
+            if(generation_volatile!=generation) // the file may have been created. to be safe
+                notFound.remove(key);
+            return null;
+        }
+
+        synchronized (lock())
+        {
+            if(!watch(info.file))
+                return info;  // not memoized
+
+            FileInfo old = cache.remove(key); // concurrently loaded; replace it
+            if(old!=null)
+                removed(old);
+            cache.put(key, info, 1); // may evict other entries, or this one; see removed()
+        }
+        if(generation_volatile!=generation) // invalidation happened while we were resolving. to be safe
+        {
+            if(cache.remove(key, info))
+                removed(info);
+        }
+        return info;
+    }
+
+    // an entry is no longer memoized (evicted, or removed)
+    void removed(FileInfo info)
+    {
+        synchronized (lock())
+        {
+            unwatch(info.file, null);
+        }
+        handler.dropInfo(info);
+    }
+
+    // return null if not found
+    FileInfo resolve(UriPath uriPath)
+    {
+        String relative = relativePath(uriPath);
+        if(relative==null)
+            return null;
+
+        Path path;
+        try
+        {
+            path = rootDir.resolve(relative).normalize();
+        }
+        catch (InvalidPathException e) // e.g. not representable in the file system's charset
+        {
+            return null;
+        }
+        if(!path.startsWith(rootDir))
+            return null;
+
+        try
+        {
+            BasicFileAttributes attrs;
+            try
+            {
+                attrs = Files.readAttributes(path, BasicFileAttributes.class);  // follow sym link
+            }
+            catch (NoSuchFileException | NotDirectoryException e)
+            {
+                return null;
+            }
+
+            StaticFileConf conf;
+            if(attrs.isRegularFile())
+                conf = handler.newConf(path);
+            else if(attrs.isDirectory())
+                conf = findIndexFile(path);
+            else
+                conf = null;
+            if(conf==null || conf.exclude)
+                return null;
+
+            UriPath fileUri = handler._toUriPath(conf.filePath).pack();
+            FileInfo info = handler.createInfo(conf, fileUri);
+
+            // the uri must be exactly what an eager StaticHandler would map to the file.
+            // this rejects non-canonical uris, e.g. with "//", "/./", "/../"
+            if(uriPath.equals(fileUri))
+                return info;
+            for(UriPath alt : info.uriAlt)
+                if(uriPath.equals(alt))
+                    return info;
+            return null;
+        }
+        catch (Exception e)
+        {
+            StaticHandler.logger.error("Error processing file %s: %s", path, e);
+            return null;
+        }
+    }
+
+    // return null if uri is not under uriPrefix, or doesn't map to a file path
+    String relativePath(UriPath uriPath)
+    {
+        UriPath prefix = handler.uriPrefix;
+        int start = prefix.len;
+        if(uriPath.len < start-1)
+            return null;
+        for(int i=0; i<start; i++)
+        {
+            if(i==uriPath.len) // "/uri" for prefix "/uri/"
+                return i==start-1? "" : null;
+            if(uriPath.bytes[i]!=prefix.bytes[i])
+                return null;
+        }
+
+        for(int i=start; i<uriPath.len; i++)
+            if(uriPath.bytes[i]==0) // escaped reserved char, e.g. "%2F". never produced from a file name
+                return null;
+
+        try
+        {
+            return StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT)
+                .decode(ByteBuffer.wrap(uriPath.bytes, start, uriPath.len-start))
+                .toString();
+        }
+        catch (CharacterCodingException e)
+        {
+            return null;
+        }
+    }
+
+    // return the conf of the index file, or null if none. if there are multiple, pick any.
+    StaticFileConf findIndexFile(Path dir) throws Exception
+    {
+        try(DirectoryStream<Path> stream = Files.newDirectoryStream(dir))
+        {
+            for(Path file : stream)
+            {
+                if(!Files.isRegularFile(file))
+                    continue;
+                StaticFileConf conf = handler.newConf(file);
+                if(conf.isIndexFile && !conf.exclude)
+                    return conf;
+            }
+        }
+        return null;
+    }
+
+    // under lock. watch the parent dir of the file, and its ancestors up to the root,
+    // so that we know if one of them is renamed/deleted. a ref is added to each dir.
+    // return false if a dir can't be watched; no ref is added then.
+    boolean watch(Path file)
+    {
+        for(Path dir = file.getParent(); dir!=null && dir.startsWith(rootDir); dir = dir.getParent())
+        {
+            DirWatch w = watchedDirs.get(dir);
+            if(w==null || !w.key.isValid()) // not watched, or the dir was deleted (possibly recreated)
+            {
+                WatchKey key;
+                try
+                {
+                    key = dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+                }
+                catch (Exception e) // e.g. inotify limit reached. files under it won't be memoized.
+                {
+                    if(!watchErrorLogged) // it's likely to happen again on every miss; don't flood the log
+                    {
+                        watchErrorLogged = true;
+                        StaticHandler.logger.error("Unable to watch dir %s: %s. " +
+                            "Files under unwatched dirs are not memoized. Further errors are not logged.", dir, e);
+                    }
+                    unwatch(file, dir);
+                    return false;
+                }
+                if(w==null)
+                    watchedDirs.put(dir, w = new DirWatch(key));
+                else // existing refs are from entries being invalidated; they'll be released soon
+                    w.key = key;
+            }
+            w.refs++;
+        }
+        return true;
+    }
+
+    // under lock. release refs of ancestor dirs of the file, up to the root, or till `stop` (exclusive).
+    // cancel the watch of a dir that's no longer referenced.
+    void unwatch(Path file, Path stop)
+    {
+        for(Path dir = file.getParent(); dir!=null && dir.startsWith(rootDir) && !dir.equals(stop); dir = dir.getParent())
+        {
+            DirWatch w = watchedDirs.get(dir);
+            if(w==null) // not supposed to happen
+                continue;
+            if(--w.refs==0)
+            {
+                w.key.cancel();
+                watchedDirs.remove(dir);
+            }
+        }
+    }
+
+    int getWatchedDirs()
+    {
+        synchronized (lock())
+        {
+            return watchedDirs.size();
+        }
+    }
+
+    // poll watcher events, invalidate affected entries.
+    // timeout<0: don't wait.
+    void processChanges(long timeout) throws IOException, InterruptedException
+    {
+        WatchKey key;
+        try
+        {
+            key = timeout>0? watcher.poll(timeout, TimeUnit.MILLISECONDS) : watcher.poll();
+        }
+        catch (ClosedWatchServiceException e)
+        {
+            throw new IOException(e);
+        }
+        if(key==null) // fast path. no event
+            return;
+
+        HashSet<Path> changed = new HashSet<>();
+        boolean overflow = false;
+        do
+        {
+            Path dir = (Path)key.watchable();
+            for(WatchEvent<?> event : key.pollEvents())
+            {
+                if(event.kind()==OVERFLOW)
+                    overflow = true;
+                else
+                    changed.add(dir.resolve((Path)event.context()));
+            }
+            if(!key.reset()) // dir deleted/inaccessible. entries under it are invalidated, releasing the watch.
+                changed.add(dir);
+        }
+        while((key = watcher.poll())!=null);
+
+        invalidate(overflow? null : changed);
+    }
+
+    // changed==null: all
+    void invalidate(Set<Path> changed)
+    {
+        generation_volatile++; // only by the monitoring thread. or a sync call while it's not running
+        ArrayList<FileInfo> removed = cache.removeIf((uri, info) -> changed==null || affected(info.file, changed));
+        for(FileInfo info : removed)
+            removed(info);
+        notFound.removeIf((uri, expiration) -> true); // files may have been created
+    }
+
+    // the file, its precompressed sibling, or one of its ancestor dirs, changed
+    boolean affected(Path file, Set<Path> changed)
+    {
+        if(changed.contains(StaticFileConf.precompressedPath(file)))
+            return true;
+        for(Path p = file; p!=null && p.startsWith(rootDir); p = p.getParent())
+            if(changed.contains(p))
+                return true;
+        return false;
+    }
+
+    // resolve files under `path`, in parallel, in the common fork-join pool. blocking.
+    void prewarm(Path path)
+    {
+        ForkJoinPool.commonPool().invoke(new Prewarm(path));
+    }
+
+    class Prewarm extends RecursiveAction
+    {
+        final Path path;
+        Prewarm(Path path){ this.path = path; }
+
+        @Override
+        protected void compute()
+        {
+            if(!Files.isDirectory(path))
+            {
+                LazyIndex.this.get(handler._toUriPath(path));
+                return;
+            }
+
+            ArrayList<Prewarm> subTasks = new ArrayList<>();
+            try(DirectoryStream<Path> stream = Files.newDirectoryStream(path))
+            {
+                for(Path child : stream)
+                    subTasks.add(new Prewarm(child));
+            }
+            catch (IOException e)
+            {
+                StaticHandler.logger.error("Error prewarming dir %s: %s", path, e);
+            }
+            invokeAll(subTasks);
+        }
+    }
+
+}
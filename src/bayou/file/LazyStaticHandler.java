@@ -0,0 +1,58 @@
+package bayou.file;
+
+import bayou.async.Async;
+import bayou.http.HttpHandler;
+import bayou.http.HttpRequest;
+import bayou.http.HttpResponse;
+
+/**
+ * HttpHandler that serves static files with a lazy metadata index, without blocking the calling thread.
+ * <p>
+ *     An instance is created by {@link StaticHandler#lazy(String, String, int, bayou.util.function.ConsumerX)
+ *     StaticHandler.lazy(...)}. It can be used directly for an {@link bayou.http.HttpServer}, for example
+ * </p>
+ * <pre>
+ *     LazyStaticHandler handler = StaticHandler.lazy("/uri", "/dir", 100_000, conf-&gt;{});
+ *     HttpServer server = new HttpServer(handler);
+ * </pre>
+ * <p>
+ *     The metadata of a file that is not memoized yet is read in a blocking executor;
+ *     the {@link #handle(HttpRequest)} result completes after that.
+ *     Responses are the same as those of {@link StaticHandler#handle(HttpRequest)}.
+ * </p>
+ * <p>
+ *     Other operations, e.g. {@link StaticHandler#uri(String)}, {@link StaticHandler#info()},
+ *     {@link StaticHandler#prewarm(String...)}, {@link StaticHandler#cacheMaxBytes(long)},
+ *     are available on the underlying {@link #getStaticHandler() StaticHandler}.
+ *     Note that its methods read metadata synchronously on a miss, blocking the calling thread.
+ * </p>
+ */
+public class LazyStaticHandler implements HttpHandler
+{
+    final StaticHandler staticHandler;
+
+    LazyStaticHandler(StaticHandler staticHandler)
+    {
+        this.staticHandler = staticHandler;
+    }
+
+    /**
+     * Generate a response for the request.
+     * <p>
+     *     The response is always an <code>HttpResponseImpl</code>. See {@link StaticHandler#handle(HttpRequest)}.
+     * </p>
+     */
+    @Override
+    public Async<HttpResponse> handle(HttpRequest request)
+    {
+        return staticHandler.handleAsync(request);
+    }
+
+    /**
+     * Get the underlying StaticHandler.
+     */
+    public StaticHandler getStaticHandler()
+    {
+        return staticHandler;
+    }
+}
@@ -0,0 +1,290 @@
+package bayou.file;
+
+import _bayou._log._Logger;
+import _bayou._tmp._Util;
+import bayou.async.Async;
+import bayou.bytes.ByteSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// the content of a file, memory-mapped. for StaticHandler, if conf.mmap=true.
+//
+// the number of mapped files is bounded: only files in the "hot" set of StaticHandler (see mmapMaxFiles())
+// are served from mappings; others are read by FileByteSource. a file is unmapped when it leaves the hot set.
+//
+// the file is mapped lazily, upon first read of the first source, in a blocking executor.
+// sources serve read-only slices of the mapping. the data lives in the OS page cache; no copy is
+// made in the JVM, and it's not counted against heap or direct memory. a mapping is limited to 2GB,
+// so a big file is mapped in multiple regions.
+// a mapping holds an open FileChannel, which is closed after the mapping is released (unmap() or close())
+// and no source is using it anymore. the memory is released by GC after all slices become unreachable.
+//
+// file changes:
+//   if the file is replaced by rename (recommended, see StaticHandler), the mapping is still
+//       valid (old inode, old content). FileMonitor reports the change, the FileInfo is replaced,
+//       close() is called on this object, and new requests get a new MappedFile of the new file.
+//   if the file is truncated in place, reading the mapping beyond the new EOF causes SIGBUS.
+//       the JVM turns it into an InternalError (or the socket write fails with EFAULT); it won't crash.
+//       to avoid that, a source checks the size of the mapped file (fstat on the open channel)
+//       before serving each slice; if it's too short, the read fails with an IOException,
+//       as FileByteSource would.
+//   if the file is modified in place, without changing size, a client may see mixed content,
+//       same as FileByteSource.
+class MappedFile
+{
+    static final int REGION = 1<<30;
+    static final int READ_SIZE = 256*1024;
+
+    final Path file;
+    final long length;  // expected
+
+    final Object lock(){ return this; }
+    // guarded by lock
+    boolean closed;
+    boolean hot;      // in the hot set. if not, a new mapping is released as soon as its users are done
+    Mapping mapping;  // the current mapping, for new sources. null if not mapped
+
+    static class Mapping
+    {
+        final FileChannel channel;  // kept open for size check, while there are users
+        final ByteBuffer[] regions;
+        int users;         // guarded by MappedFile.lock
+        boolean released;  // guarded by MappedFile.lock
+
+        Mapping(FileChannel channel, ByteBuffer[] regions)
+        {
+            this.channel = channel;
+            this.regions = regions;
+        }
+    }
+
+    MappedFile(Path file, long length)
+    {
+        this.file = file;
+        this.length = length;
+    }
+
+    ByteSource newSource()
+    {
+        return new Source();
+    }
+
+    // the file enters/leaves the hot set. leaving it releases the current mapping.
+    // return false if it can't enter the hot set, because it's closed.
+    boolean setHot(boolean hot)
+    {
+        synchronized (lock())
+        {
+            if(hot && closed)
+                return false;
+            this.hot = hot;
+            if(!hot)
+                unmap();
+            return true;
+        }
+    }
+
+    boolean isMapped()
+    {
+        synchronized (lock())
+        {
+            return mapping!=null;
+        }
+    }
+
+    // add a user to the current mapping; null if not mapped. non-blocking
+    Mapping tryAcquire()
+    {
+        synchronized (lock())
+        {
+            Mapping m = mapping;
+            if(m!=null)
+                m.users++;
+            return m;
+        }
+    }
+
+    // add a user to the current mapping; map the file if necessary. blocking
+    Mapping acquire() throws IOException
+    {
+        synchronized (lock())
+        {
+            Mapping m = mapping;
+            if(m==null)
+            {
+                if(closed)
+                    throw new ClosedChannelException();
+
+                m = map();
+                if(hot)
+                    mapping = m;
+                else // evicted from the hot set in the meantime. only for this user
+                    m.released = true;
+            }
+            m.users++;
+            return m;
+        }
+    }
+
+    Mapping map() throws IOException
+    {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try
+        {
+            if(channel.size()<length)
+                throw new IOException("file is shorter than expected: "+file);
+
+            ByteBuffer[] regions = new ByteBuffer[(int)((length+REGION-1)/REGION)];
+            for(int i=0; i<regions.length; i++)
+            {
+                long pos = (long)i*REGION;
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(REGION, length-pos));
+            }
+            return new Mapping(channel, regions);
+        }
+        catch (IOException|RuntimeException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    void release(Mapping m)
+    {
+        synchronized (lock())
+        {
+            if(--m.users==0 && m.released)
+                closeChannel(m);
+        }
+    }
+
+    // under lock. new sources will map the file again (if not closed)
+    void unmap()
+    {
+        Mapping m = mapping;
+        if(m==null)
+            return;
+        mapping = null;
+        m.released = true;
+        if(m.users==0)
+            closeChannel(m);
+    }
+
+    static void closeChannel(Mapping m)
+    {
+        try
+        {
+            m.channel.close();
+        }
+        catch (Exception e) // not supposed to happen
+        {
+            _Logger.of(MappedFile.class).error("%s", e);
+        }
+    }
+
+    // return false if the file is truncated. not synchronized; called for every slice.
+    // the channel is open while the source is using the mapping.
+    boolean checkSize(Mapping m)
+    {
+        try
+        {
+            return m.channel.size()>=length;
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    // the file was modified/deleted. sources still in use can continue to read the mapping.
+    void close()
+    {
+        synchronized (lock())
+        {
+            closed = true;
+            unmap();
+        }
+    }
+
+    // not thread safe
+    class Source implements ByteSource
+    {
+        long position;
+        boolean closed;
+        Mapping mapping; // acquired on first read, released on close
+
+        @Override
+        public long skip(long n) throws IllegalArgumentException, IllegalStateException
+        {
+            _Util.require(n >= 0, "n>=0");
+
+            if(closed)
+                throw new IllegalStateException("closed");
+
+            position += n;  // may skip beyond EOF.
+            return n;
+        }
+
+        @Override
+        public Async<ByteBuffer> read() throws IllegalStateException
+        {
+            if(closed)
+                throw new IllegalStateException("closed");
+
+            if(position>=length)
+                return _Util.EOF;
+
+            if(mapping!=null) // usually
+                return read2();
+
+            if((mapping=tryAcquire())!=null)
+                return read2();
+
+            // not mapped yet. acquire() may block.
+            return Async.execute(MappedFile.this::acquire).then(m -> {
+                if(closed) // closed while mapping
+                {
+                    release(m);
+                    return Async.failure(new IllegalStateException("closed"));
+                }
+                mapping = m;
+                return read2();
+            });
+        }
+
+        Async<ByteBuffer> read2()
+        {
+            if(!checkSize(mapping))
+                return Async.failure(new IOException("file was truncated: "+file));
+
+            ByteBuffer region = mapping.regions[(int)(position/REGION)];
+            int offset = (int)(position%REGION);
+            int n = Math.min(READ_SIZE, region.capacity()-offset);
+
+            ByteBuffer bb = region.duplicate();
+            bb.position(offset);
+            bb.limit(offset+n);
+            position += n;
+            return Async.success(bb.slice());
+        }
+
+        @Override
+        public Async<Void> close()
+        {
+            if(closed)
+                return Async.VOID;
+            closed = true;
+            if(mapping!=null)
+            {
+                release(mapping);
+                mapping = null;
+            }
+            return Async.VOID;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package bayou.file;
+
+import _bayou._tmp._Util;
+import bayou.util.function.ConsumerX;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Tool to create precompressed files for StaticHandler.
+ * <p>
+ *     For each file under a directory that would be served with gzip by a StaticHandler
+ *     (see {@link StaticFileConf#gzip(boolean)}), this tool creates a
+ *     {@link StaticFileConf#precompressed(boolean) precompressed} sibling file
+ *     <code>(filePath+".gz")</code>, compressed at the maximum level.
+ *     A StaticHandler then serves the sibling file directly, without compressing the file at runtime.
+ * </p>
+ * <p>
+ *     This tool is meant to be run at build/deploy time. Files are compressed in parallel on all CPU cores.
+ *     A sibling file that is up to date is skipped. The last-modified time of a sibling file
+ *     is set to that of the original file.
+ * </p>
+ * <p>
+ *     Command line usage:
+ * </p>
+ * <pre>
+ *     java -cp bayou.jar bayou.file.Precompressor /dir
+ * </pre>
+ * <p>
+ *     Or in Java, with the same <code>confMod</code> that's used by the StaticHandler:
+ * </p>
+ * <pre>
+ *     Precompressor.precompress("/dir", confMod);
+ * </pre>
+ */
+public class Precompressor
+{
+    /**
+     * Run the tool on command line.
+     * <p>
+     *     <code>args</code>: directories to precompress.
+     * </p>
+     */
+    public static void main(String[] args) throws Exception
+    {
+        if(args.length==0)
+        {
+            System.err.println("usage: java bayou.file.Precompressor <dir>...");
+            System.exit(1);
+        }
+
+        for(String dir : args)
+        {
+            long t0 = System.currentTimeMillis();
+            int n = precompress(dir, conf->{});
+            System.out.printf("%s: %d files compressed in %d ms%n", dir, n, System.currentTimeMillis()-t0);
+        }
+    }
+
+    /**
+     * Precompress files under the directory.
+     * <p>
+     *     For every file under the directory, a {@link StaticFileConf} is created with default values,
+     *     then passed to <code>confMod</code>, as StaticHandler does.
+     *     If the file is not excluded, and <code>gzip=true</code>, it is precompressed.
+     * </p>
+     * <p>
+     *     This method blocks till all files are processed.
+     * </p>
+     *
+     * @return number of files compressed, excluding up to date ones.
+     * @throws Exception
+     *         if something went wrong, for example a file cannot be written.
+     *         Other files may have been compressed.
+     */
+    public static int precompress(String dirPrefix, ConsumerX<StaticFileConf> confMod) throws Exception
+    {
+        Path rootDir = Paths.get(dirPrefix).toAbsolutePath().normalize();
+        _Util.require(Files.isDirectory(rootDir), "dirPrefix is a dir");
+
+        List<Path> files = new ArrayList<>();
+        try(Stream<Path> stream = Files.walk(rootDir, FileVisitOption.FOLLOW_LINKS))
+        {
+            stream.filter(Files::isRegularFile)
+                .filter(file -> !file.getFileName().toString().endsWith(".gz"))
+                .forEach(files::add);
+        }
+
+        AtomicInteger count = new AtomicInteger();
+        ArrayList<Exception> errors = new ArrayList<>();
+        files.parallelStream().forEach(file -> {  // in the common fork-join pool
+            try
+            {
+                StaticFileConf conf = new StaticFileConf(file);
+                confMod.accept(conf);
+                if(!conf.exclude && conf.gzip && !conf.precompressed) // precompressed: up to date
+                {
+                    compress(file);
+                    count.incrementAndGet();
+                }
+            }
+            catch (Exception e)
+            {
+                synchronized (errors)
+                {
+                    errors.add(e);
+                }
+            }
+        });
+
+        if(!errors.isEmpty())
+        {
+            Exception e = errors.get(0);
+            for(int i=1; i<errors.size(); i++)
+                e.addSuppressed(errors.get(i));
+            throw e;
+        }
+        return count.get();
+    }
+
+    // write to a tmp file, then move it to the sibling path
+    static void compress(Path file) throws IOException
+    {
+        Path gzFile = StaticFileConf.precompressedPath(file);
+        Path tmpFile = Files.createTempFile(file.getParent(), gzFile.getFileName().toString()+".", ".tmp");
+        try
+        {
+            FileTime lastModified = Files.readAttributes(file, BasicFileAttributes.class).lastModifiedTime();
+
+            // same compression level as StaticHandler's on-the-fly gzip
+            try(OutputStream out = new GZIPOutputStream(Files.newOutputStream(tmpFile), 64*1024)
+                {{ def.setLevel(Deflater.BEST_COMPRESSION); }})
+            {
+                Files.copy(file, out);
+            }
+
+            // not older than the file, so it won't be considered stale.
+            // if the file is modified after we read lastModified, the gz file is stale, as it should be.
+            Files.setLastModifiedTime(tmpFile, lastModified);
+            Files.move(tmpFile, gzFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException|RuntimeException e)
+        {
+            Files.deleteIfExists(tmpFile);
+            throw e;
+        }
+    }
+}
@@ -78,6 +78,27 @@ public class StaticFileConf
             ( contentType.type().equals("text") || contentType.types().equals("application/javascript"));
 
         etag = _HttpUtil.defaultEtag(fileLastModified, null) ;
+
+        precompressed = isPrecompressed(filePath, attrs);
+    }
+
+    static Path precompressedPath(Path filePath)
+    {
+        return filePath.resolveSibling(filePath.getFileName().toString()+".gz");
+    }
+    static boolean isPrecompressed(Path filePath, BasicFileAttributes attrs)
+    {
+        BasicFileAttributes gzAttrs;
+        try
+        {
+            gzAttrs = Files.readAttributes(precompressedPath(filePath), BasicFileAttributes.class);
+        }
+        catch (Exception e) // usually NoSuchFileException
+        {
+            return false;
+        }
+        // a stale gz file is ignored
+        return gzAttrs.isRegularFile() && gzAttrs.lastModifiedTime().compareTo(attrs.lastModifiedTime())>=0;
     }
 
 
@@ -116,8 +137,9 @@ public class StaticFileConf
      *     default: true iff fileSize&gt;1024 and the default contentType is text/* or application/javascript
      * </code></p>
      * <p>
-     *     Do not pre-gzip the file; just store the original file under the directory,
-     *     StaticHandler will take care of caching the compressed file on disk or in memory.
+     *     There's no need to pre-gzip the file; StaticHandler will take care of caching
+     *     the compressed file on disk or in memory. However, if there is a
+     *     {@link #precompressed(boolean) precompressed} sibling file, it will be used instead.
      * </p>
      * @return `this`
      */
@@ -131,6 +153,35 @@ public class StaticFileConf
 
 
 
+    boolean precompressed; // init by constructor
+
+    /**
+     * Whether to use the precompressed sibling file <code>(filePath+".gz")</code> for gzip responses.
+     * <p><code>
+     *     default: true iff the sibling file exists, and is not older than this file
+     * </code></p>
+     * <p>
+     *     If <code>gzip=true</code> and <code>precompressed=true</code>, for a client that accepts gzip,
+     *     the content of the sibling file, e.g. <code>"foo.js.gz"</code>, is served as is,
+     *     saving the cost of compressing this file at runtime.
+     *     The sibling files can be created by {@link Precompressor} at build time.
+     * </p>
+     * <p>
+     *     The sibling file must be a gzip-ed copy of this file; this is not verified.
+     *     A sibling file older than this file is considered stale and is ignored by default.
+     * </p>
+     * @return `this`
+     */
+    public StaticFileConf precompressed(boolean precompressed)
+    {
+        this.precompressed=precompressed;
+        return this;
+    }
+
+
+
+
+
     boolean cache = false;
     // if cache && gzip, only the gzip-ed content is cached, original content is not.
     //    if client doesn't accept gzip (e.g. apache ab) we'll read disk for original content.
@@ -152,6 +203,42 @@ public class StaticFileConf
 
 
 
+    boolean mmap = false;
+    // if cache=true, mmap is ignored.
+    // if gzip=true, the gz file on disk is mapped too, once it's created.
+
+    /**
+     * Whether to serve the file content from memory-mapped buffers.
+     * <p><code>
+     *     default: false
+     * </code></p>
+     * <p>
+     *     The file is mapped on first request, and served directly from the OS page cache.
+     *     Unlike {@link #cache(boolean) cache}, no copy of the content is kept in the JVM,
+     *     and it's not counted against heap or direct memory; so it's suitable for big, frequently requested files.
+     *     This setting is ignored if <code>cache=true</code>.
+     * </p>
+     * <p>
+     *     The number of mapped files is limited by {@link StaticHandler#mmapMaxFiles(int)};
+     *     the most frequently requested files are mapped, others are served from disk.
+     * </p>
+     * <p>
+     *     To modify a mapped file, write the new content to a temporary file,
+     *     then move it to replace the file (e.g. <code>mv -f</code>).
+     *     If the file is truncated in place, responses being served from the old mapping will fail.
+     * </p>
+     * @return `this`
+     */
+    public StaticFileConf mmap(boolean mmap)
+    {
+        this.mmap=mmap;
+        return this;
+    }
+
+
+
+
+
     boolean isIndexFile; // init by constructor
 
     /**
@@ -321,8 +408,12 @@ public class StaticFileConf
 
     public boolean get_gzip(){ return gzip; }
 
+    public boolean get_precompressed(){ return precompressed; }
+
     public boolean get_cache(){ return cache; }
 
+    public boolean get_mmap(){ return mmap; }
+
     public boolean get_isIndexFile(){ return isIndexFile; }
 
     public Duration get_expiresRelative(){ return expiresRelative; }
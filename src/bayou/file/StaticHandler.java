@@ -6,6 +6,7 @@ import _bayou._log._Logger;
 import _bayou._str._CharDef;
 import _bayou._str._HexUtil;
 import _bayou._tmp.*;
+import bayou.async.Async;
 import bayou.bytes.ByteSource;
 import bayou.bytes.ByteSource2InputStream;
 import bayou.bytes.ByteSourceCache;
@@ -23,6 +24,7 @@ import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static bayou.mime.Headers.Accept_Encoding;
 
@@ -62,6 +64,15 @@ import static bayou.mime.Headers.Accept_Encoding;
  * <p>
  *     See {@link #handle(HttpRequest)} for types of responses StaticHandler may generate.
  * </p>
+ * <h4 id=cache-budget>Cache budget</h4>
+ * <p>
+ *     Files with {@link StaticFileConf#cache(boolean) cache=true} are loaded into memory on first request.
+ *     By default there is no limit on the total size of cached files.
+ *     If the files are too big to fit in memory, set a budget by {@link #cacheMaxBytes(long)};
+ *     file contents are then cached and evicted as needed to stay within the budget,
+ *     favoring files that are requested more frequently.
+ *     Cache statistics are reported in {@link #info()}.
+ * </p>
  * <h4 id=tagged-uri>Tagged URI</h4>
  * <p>
  *     <code>StaticHandler</code> supports tagged URI which embeds the
@@ -88,6 +99,8 @@ import static bayou.mime.Headers.Accept_Encoding;
 // also, uri(file) should be fast and non-blocking.
 // therefore we have to cache all file metadata in memory.
 // this can be a problem if there are way too many files under the directory.
+// for that case, lazy() resolves metadata on request instead, with blocking IO in a blocking executor;
+// it returns a LazyStaticHandler, whose handle() returns an Async<HttpResponse>. see LazyIndex.
 
 // an web app may have multiple server instances with different root dirs (on diff machines)
 // the file date should be consistent, regardless which dir it's under. e.g. date = VCS commit date.
@@ -138,9 +151,24 @@ public class StaticHandler implements HttpHandler
 
     final ConcurrentHashMap<UriPath, FileInfo> uri2info = new ConcurrentHashMap<>();
     // r/w by fileMonitor thread, read by handle(), uri(), info()
+    // empty if lazy
+
+    final LazyIndex lazyIndex; // null if not lazy
+
+    // bodies of FileInfo with doCache=true
+    volatile _TinyLfuCache<FileInfo,CachedBody> bodyCache_volatile;
+    volatile long cacheMaxBytes_volatile = Long.MAX_VALUE;
+    final AtomicLong cacheHits = new AtomicLong();
+    final AtomicLong cacheMisses = new AtomicLong();
+
+    // files with mmap=true that are served from mappings (the "hot" set); others are read from disk.
+    // puts and removals are done under mmapLock, so that evictions (setHot(false)) are ordered with setHot(true).
+    volatile _TinyLfuCache<MappedFile,MappedFile> mappedFiles_volatile;
+    volatile int mmapMaxFiles_volatile = 256;
+    final Object mmapLock = new Object();
 
     final Object fmLock = new Object();
-    final _FileMonitor fileMonitor;
+    final _FileMonitor fileMonitor; // null if lazy
     volatile boolean monitoring_volatile;
     volatile long lastRequestTime_volatile = System.currentTimeMillis();
 
@@ -195,6 +223,44 @@ public class StaticHandler implements HttpHandler
         // we only tested the default file system.
     }
     StaticHandler(String uriPrefix, Path rootDir, ConsumerX<StaticFileConf> confMod) throws RuntimeException
+    {
+        this(uriPrefix, rootDir, confMod, 0);
+    }
+
+    /**
+     * Create a handler with a lazy metadata index.
+     * <p>
+     *     Unlike the {@link #StaticHandler(String, String, ConsumerX) constructor}, which reads metadata
+     *     of all files under the directory upfront, this method returns immediately;
+     *     the metadata of a file is read when it's requested for the first time, and memoized
+     *     for up to <code>maxEntries</code> URIs, favoring frequently requested ones.
+     *     This is suitable for a huge directory tree, e.g. with millions of files.
+     * </p>
+     * <p>
+     *     Reading metadata, and invoking <code>confMod</code>, does blocking IO.
+     *     The returned {@link LazyStaticHandler} does that in a blocking executor,
+     *     without blocking the thread that handles the request.
+     *     A request for a non-existing file is remembered for a short time (1 second);
+     *     a file created in the meantime may be reported as not found till then.
+     *     To read metadata of some files in advance, see {@link #prewarm(String...)},
+     *     on the {@link LazyStaticHandler#getStaticHandler() underlying StaticHandler}.
+     * </p>
+     * <p>
+     *     Memoized metadata are kept up to date by watching the directories of the files.
+     *     <code>info()</code> lists memoized files only.
+     * </p>
+     */
+    public static LazyStaticHandler lazy(String uriPrefix, String dirPrefix, int maxEntries,
+                                         ConsumerX<StaticFileConf> confMod) throws RuntimeException
+    {
+        _Util.require(maxEntries > 0, "maxEntries>0");
+        return new LazyStaticHandler(
+            new StaticHandler(uriPrefix, FileSystems.getDefault().getPath(dirPrefix), confMod, maxEntries));
+    }
+
+    // lazyMaxEntries=0: not lazy
+    StaticHandler(String uriPrefix, Path rootDir, ConsumerX<StaticFileConf> confMod, int lazyMaxEntries)
+        throws RuntimeException
     {
         if(!uriPrefix.startsWith("/"))
             throw new IllegalArgumentException("uriPrefix must start with /");
@@ -217,10 +283,29 @@ public class StaticHandler implements HttpHandler
 
         this.confMod = confMod;
 
-        fileMonitor = new _FileMonitor(pathMatcher, rootDir);
+        bodyCache_volatile = new _TinyLfuCache<>(Long.MAX_VALUE, 1024);
+        mappedFiles_volatile = newMappedFiles(mmapMaxFiles_volatile);
+
+        if(lazyMaxEntries>0)
+        {
+            fileMonitor = null;
+            try
+            {
+                lazyIndex = new LazyIndex(this, rootDir, lazyMaxEntries);
+            }
+            catch (IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+        else
+        {
+            fileMonitor = new _FileMonitor(pathMatcher, rootDir);
+            lazyIndex = null;
+        }
 
         ensureMonitoring(); // throws
-        // it'll scan dirs, retrieve all files, process the files, then start monitor thread.
+        // if not lazy, it'll scan dirs, retrieve all files, process the files, then start monitor thread.
         // if we don't call it here, the 1st request will trigger the same action.
         // we do it here for early error detection, and to have info map ready to be queried.
         // if it throws error, this constructor fails too
@@ -250,6 +335,148 @@ public class StaticHandler implements HttpHandler
         }
     };
 
+    /**
+     * Set the maximum total bytes of file contents cached in memory.
+     * <p><code>
+     *     default: Long.MAX_VALUE (no limit)
+     * </code></p>
+     * <p>
+     *     This budget applies to files with {@link StaticFileConf#cache(boolean) cache=true}.
+     *     (For a file with <code>gzip=true</code>, the compressed content is cached.)
+     *     A file content is loaded into memory on a request if it's admitted to the cache,
+     *     and may be evicted later in favor of more frequently requested files (W-TinyLFU policy).
+     *     A file that's not admitted, e.g. a cold file while the cache is full of more popular ones,
+     *     or a file bigger than the budget, is served from disk, as if <code>cache=false</code>.
+     * </p>
+     * <p>
+     *     Calling this method discards all currently cached contents.
+     * </p>
+     * @return `this`
+     */
+    public StaticHandler cacheMaxBytes(long cacheMaxBytes) throws IllegalArgumentException
+    {
+        _Util.require(cacheMaxBytes >= 0, "cacheMaxBytes>=0");
+
+        // size the frequency sketch by number of files, or by budget if it's small
+        int expectedEntries = (int)Math.min(cacheMaxBytes/4096, Math.max(1024, uri2info.size()));
+        cacheMaxBytes_volatile = cacheMaxBytes;
+        bodyCache_volatile = new _TinyLfuCache<>(cacheMaxBytes, expectedEntries);
+        return this;
+    }
+
+    /**
+     * Set the maximum number of files served from memory-mapped buffers.
+     * <p><code>
+     *     default: 256
+     * </code></p>
+     * <p>
+     *     This limit applies to files with {@link StaticFileConf#mmap(boolean) mmap=true}.
+     *     Each mapped file holds a file descriptor and one or more memory mappings,
+     *     which are limited by the OS (e.g. <code>ulimit -n</code>, <code>vm.max_map_count</code>).
+     *     A file is mapped on a request if it's admitted to the set of mapped files,
+     *     and unmapped when it's evicted in favor of more frequently requested files (W-TinyLFU policy).
+     *     A file that's not admitted is served from disk, as if <code>mmap=false</code>.
+     * </p>
+     * <p>
+     *     Calling this method unmaps all currently mapped files.
+     * </p>
+     * @return `this`
+     */
+    public StaticHandler mmapMaxFiles(int mmapMaxFiles) throws IllegalArgumentException
+    {
+        _Util.require(mmapMaxFiles >= 0, "mmapMaxFiles>=0");
+
+        synchronized (mmapLock)
+        {
+            _TinyLfuCache<MappedFile,MappedFile> old = mappedFiles_volatile;
+            mmapMaxFiles_volatile = mmapMaxFiles;
+            mappedFiles_volatile = newMappedFiles(mmapMaxFiles);
+            for(MappedFile mappedFile : old.removeIf((k, v) -> true))
+                mappedFile.setHot(false);
+        }
+        return this;
+    }
+
+    _TinyLfuCache<MappedFile,MappedFile> newMappedFiles(int maxFiles)
+    {
+        return new _TinyLfuCache<MappedFile,MappedFile>(maxFiles, Math.max(1024, uri2info.size()))
+            .onEvict(mappedFile -> mappedFile.setHot(false)); // unmap
+    }
+
+    // return true if the file is in the hot set, or admitted to it; then serve it from its mapping.
+    boolean useMapped(MappedFile mappedFile)
+    {
+        _TinyLfuCache<MappedFile,MappedFile> mappedFiles = mappedFiles_volatile;
+        if(mappedFiles.get(mappedFile)!=null)
+            return true;
+
+        synchronized (mmapLock)
+        {
+            if(!mappedFile.setHot(true)) // closed; the request is served by a stale FileInfo
+                return false;
+            if(mappedFiles.put(mappedFile, mappedFile, 1))
+                return true;
+            mappedFile.setHot(false); // not admitted. it's not mapped yet; nothing to release
+            return false;
+        }
+    }
+
+    void forgetMapped(MappedFile mappedFile)
+    {
+        if(mappedFile==null)
+            return;
+        synchronized (mmapLock)
+        {
+            mappedFiles_volatile.remove(mappedFile);
+        }
+    }
+
+    static class CachedBody
+    {
+        final ByteSourceCache cache;
+        volatile boolean weighed_volatile;
+
+        CachedBody(ByteSourceCache cache)
+        {
+            this.cache = cache;
+        }
+    }
+
+    // return null if the body is not cached, i.e. it's too big for the budget, or not admitted (yet);
+    // then serve it from disk.
+    ByteSourceCache getBodyCache(FileInfo info)
+    {
+        _TinyLfuCache<FileInfo,CachedBody> bodyCache = bodyCache_volatile;
+        CachedBody body = bodyCache.get(info);
+        if(body!=null)
+        {
+            cacheHits.incrementAndGet();
+            if(!body.weighed_volatile)
+            {
+                Long length = body.cache.getTotalBytes();
+                if(length!=null) // now known after gzip-ed data is cached
+                {
+                    body.weighed_volatile = true;
+                    bodyCache.setWeight(info, body, length);
+                }
+            }
+            return body.cache;
+        }
+
+        cacheMisses.incrementAndGet();
+        // lazy, no real resource is consumed until newView() is invoked for the 1st time.
+        // concurrent misses may each create a cache; no big deal.
+        body = new CachedBody(info.newBodyCache());
+        // gzip-ed length is unknown yet; use file length as estimate, adjusted later.
+        body.weighed_volatile = !info.doGzip || info.precompressedFile!=null;
+        long weight = info.precompressedFile!=null? info.precompressedLength : info.fileLength;
+        if(!bodyCache.put(info, body, weight))
+            return null;
+        return body.cache;
+        // if the entry is rejected, e.g. the cache is full of more popular files, it's never loaded;
+        // this request is served from disk. the file is admitted later if it becomes popular enough.
+    }
+
     /**
      * Try to serve the request with a file response.
      * <p>
@@ -301,13 +528,20 @@ public class StaticHandler implements HttpHandler
         // client is supposed to have normalized the uri and removed ".." segment.
         // if uri contains ".." segment (likely malicious), we won't find the file, that's good.
 
-        String uri = request.uri();
-        int iQM = uri.indexOf('?');
-        UriPath uriPath = UriPath.parseStrict(uri, iQM!=-1 ? iQM : uri.length() );
+        UriPath uriPath = parseUriPath(request.uri());
         if(uriPath==null) // this should not happen. request.uri() is supposed to be valid
             return HttpResponse.text(400, "Malformed URI");
 
-        FileInfo info = uri2info.get(uriPath);
+        FileInfo info = getInfo(uriPath);
+        return respond(request, info);
+    }
+    static UriPath parseUriPath(String uri)
+    {
+        int iQM = uri.indexOf('?');
+        return UriPath.parseStrict(uri, iQM!=-1 ? iQM : uri.length() );
+    }
+    HttpResponseImpl respond(HttpRequest request, FileInfo info)
+    {
         if(info==null)
             return HttpResponse.text(404, "File Not Found");
 
@@ -317,7 +551,42 @@ public class StaticHandler implements HttpHandler
             return HttpResponse.text(405, "Method Not Allowed")
                 .header(Headers.Allow, "GET, HEAD");
 
-        return info.makeResponse(request, iQM);
+        return info.makeResponse(this, request, request.uri().indexOf('?'));
+    }
+
+    // same as handle(), except that, with a lazy index, metadata not yet memoized is read in a blocking executor.
+    // for LazyStaticHandler.
+    Async<HttpResponse> handleAsync(HttpRequest request)
+    {
+        if(lazyIndex==null) // eager index; handle() never blocks
+            return handle(request);
+
+        Async<FileInfo> asyncInfo;
+        try
+        {
+            lastRequestTime_volatile = System.currentTimeMillis();
+            ensureMonitoring(); // throws. low cost on busy server
+
+            UriPath uriPath = parseUriPath(request.uri());
+            if(uriPath==null) // this should not happen. request.uri() is supposed to be valid
+                return HttpResponse.text(400, "Malformed URI");
+
+            asyncInfo = lazyIndex.getAsync(uriPath); // completed if memoized
+        }
+        catch (RuntimeException e)
+        {
+            return HttpResponse.internalError(e);
+        }
+        return asyncInfo.map(info -> {
+            try
+            {
+                return respond(request, info);
+            }
+            catch (RuntimeException e)
+            {
+                return HttpResponse.internalError(e);
+            }
+        });
     }
 
 
@@ -326,6 +595,40 @@ public class StaticHandler implements HttpHandler
 
 
 
+    FileInfo getInfo(UriPath uriPath)
+    {
+        if(lazyIndex!=null)
+            return lazyIndex.get(uriPath); // may block
+        return uri2info.get(uriPath);
+    }
+
+    /**
+     * Read metadata of files in advance, if this handler has a {@link #lazy lazy} index.
+     * <p>
+     *     Each <code>relativePath</code> is relative to <code>dirPrefix</code>, and may point to a file
+     *     or a directory; all files under a directory are processed recursively.
+     *     Files are processed in parallel, in the common <code>ForkJoinPool</code>.
+     *     This method blocks until all files are processed.
+     * </p>
+     * <p>
+     *     Only up to <code>maxEntries</code> files are memoized.
+     *     This method does nothing if this handler doesn't have a lazy index.
+     * </p>
+     */
+    public void prewarm(String... relativePaths)
+    {
+        if(lazyIndex==null) // eager index, all files are already loaded
+            return;
+
+        for(String relativePath : relativePaths)
+        {
+            Path path = Paths.get(dirPrefix, relativePath).toAbsolutePath().normalize();
+            if(!path.startsWith(lazyIndex.rootDir))
+                throw new IllegalArgumentException("not under dirPrefix: "+relativePath);
+            lazyIndex.prewarm(path);
+        }
+    }
+
     // `file` is absolute normalized, under dirPrefix. maybe a dir.
     UriPath _toUriPath(Path file)
     {
@@ -384,7 +687,7 @@ public class StaticHandler implements HttpHandler
         Path file = Paths.get(dirPrefix, relativeFilePath);
         file = file.toAbsolutePath().normalize();
         UriPath uriPath = _toUriPath(file);
-        FileInfo info = uri2info.get(uriPath);
+        FileInfo info = getInfo(uriPath);
         if(info==null)
             throw new IllegalArgumentException("invalid file: "+file); // file may exist but is excluded
         return info.uriTagged;
@@ -423,9 +726,26 @@ public class StaticHandler implements HttpHandler
                 tr("dirPrefix", dirPrefix);
 
                 TreeMap<Path,FileInfo> file2info = new TreeMap<>();
-                for(FileInfo info : uri2info.values())
+                for(FileInfo info : lazyIndex!=null? lazyIndex.cache.values() : uri2info.values())
                     file2info.put(info.file, info);
                 tr("fileCount", file2info.size());
+                if(lazyIndex!=null)
+                    tr("index", "lazy, "+lazyIndex.cache.getSize()+" of max "+lazyIndex.maxEntries+" uris, "
+                        +lazyIndex.cache.getEvictions()+" evictions, "+lazyIndex.getWatchedDirs()+" watched dirs");
+
+                _TinyLfuCache<FileInfo,CachedBody> bodyCache = bodyCache_volatile;
+                long hits = cacheHits.get(), misses = cacheMisses.get();
+                long maxBytes = cacheMaxBytes_volatile;
+                tr("cache budget", maxBytes==Long.MAX_VALUE? "unlimited" : maxBytes+" bytes");
+                tr("cache resident", bodyCache.getWeight()+" bytes, "+bodyCache.getSize()+" files");
+                tr("cache hits", hits);
+                tr("cache misses", misses);
+                tr("cache hit ratio", hits+misses==0? "n/a" : String.format("%.2f%%", 100.0*hits/(hits+misses)));
+                tr("cache evictions", bodyCache.getEvictions());
+
+                _TinyLfuCache<MappedFile,MappedFile> mappedFiles = mappedFiles_volatile;
+                tr("mmap files", mappedFiles.getSize()+" of max "+mmapMaxFiles_volatile+", "
+                    +mappedFiles.getEvictions()+" evictions");
 
                 for(FileInfo info : file2info.values())
                     dumpFile(info);
@@ -441,10 +761,15 @@ public class StaticHandler implements HttpHandler
                 tr("file size", info.fileLength);
 
                 tr("gzip", info.doGzip);
+                if(info.precompressedFile!=null)
+                    tr("precompressed", info.precompressedFile);
                 // if(info.gzFile!=null) tr("gz file", info.gzFile.gzFile);
 
                 tr("cache", info.doCache);
 
+                if(info.mappedFile!=null)
+                    tr("mmap", info.mappedFile.isMapped()? "mapped" : "not mapped");
+
                 tr("ETag", info.etag);  // can be null
                 if(info.etag!=null)
                     tr("tagged uri", info.uriTagged);
@@ -540,6 +865,8 @@ public class StaticHandler implements HttpHandler
         ContentType contentType;
 
         boolean doGzip;
+        Path precompressedFile; // if doGzip && conf.precompressed. gzip-ed data is served from it.
+        long precompressedLength;
 
         boolean doCache;
 
@@ -570,12 +897,30 @@ public class StaticHandler implements HttpHandler
 
         FileByteSource.ChannelProvider originFileCP;
 
-        ByteSourceCache bodyCache;
-        // if doGzip && doCache, the bodyCache contains gzip-ed data. plain file data not cached in memory.
+        // if doGzip && doCache, the body cache contains gzip-ed data. plain file data not cached in memory.
+        ByteSourceCache newBodyCache()
+        {
+            if(doGzip && precompressedFile!=null)
+                return new ByteSourceCache( new FileByteSource(precompressedFile), precompressedLength );
+            if(doGzip) // cache gzip-ed data in memory; plain file data not cached
+                return new ByteSourceCache( gzSrc(originFileCP), null );
+            else // cache plain file data
+                return new ByteSourceCache(new FileByteSource(originFileCP), fileLength);
+        }
+
+        GzFile gzFile; // if doGzip. if doCache, used when the body is not in the memory cache
 
-        GzFile gzFile; // if doGzip && !doCache
+        MappedFile mappedFile; // if doMmap && !doCache. plain file data.
 
-        HttpResponseImpl makeResponse(HttpRequest request, int iQM)
+        void close() // file modified or deleted
+        {
+            if(mappedFile!=null)
+                mappedFile.close();
+            if(gzFile!=null)
+                gzFile.close();
+        }
+
+        HttpResponseImpl makeResponse(StaticHandler handler, HttpRequest request, int iQM)
         {
             final Instant expiresResp;
             if(iQM==-1 || etag==null)
@@ -604,6 +949,7 @@ public class StaticHandler implements HttpHandler
             final boolean gzipResp = doGzip && clientAcceptsGzip;
             final ByteSource src;  // if null, call bodyCache.newView() later. we don't want to call newView() yet.
             final Long bodyLength;
+            final ByteSourceCache bodyCache;
             if(doCache)
             {
                 if(doGzip && !clientAcceptsGzip)
@@ -614,28 +960,40 @@ public class StaticHandler implements HttpHandler
                     // note: apache benchmark tool 'ab' does not accept gzip.
                     src = new FileByteSource(originFileCP);
                     bodyLength = fileLength;
+                    bodyCache = null;
                     // another solution is to un-gzip the cached data on the fly. that costs cpu and memory.
                     // if this case does occur frequently, the solution is unlikely faster than reading the disk.
                     // if this case is rare, we don't need to optimize for an one-off case
                 }
-                else  // doGzip && clientAcceptGzip or !doGzip.
+                else if((bodyCache=handler.getBodyCache(this))!=null)  // doGzip && clientAcceptGzip or !doGzip.
                 {
                     src = null; // to use bodyCache.newView()
                     bodyLength = bodyCache.getTotalBytes(); // could be null (if gzip and copying not done)
                 }
+                else if(gzipResp) // not cached, e.g. cold, or too big for the cache budget. serve from disk
+                {
+                    src = gzFile.getSource(handler);
+                    bodyLength = gzFile.getLength(); // could be null (if gz file not created)
+                }
+                else
+                {
+                    src = new FileByteSource(originFileCP);
+                    bodyLength = fileLength;
+                }
             }
             else
             {
+                bodyCache = null;
                 if(gzipResp)
                 {
-                    src = gzFile.getSource();
+                    src = gzFile.getSource(handler);
                     bodyLength = gzFile.getLength(); // could be null (if gz file not created)
                     // if the disk-cached gz file is deleted, we can't recover automatically.
                     // user will have to touch the original file, or restart server.
                 }
                 else
                 {
-                    src = new FileByteSource(originFileCP);
+                    src = mappedFile!=null && handler.useMapped(mappedFile)? mappedFile.newSource() : new FileByteSource(originFileCP);
                     bodyLength = fileLength;
                 }
             }
@@ -698,16 +1056,14 @@ public class StaticHandler implements HttpHandler
                 //     some accumulated events (e.g. dev made file changes during the gap).
                 //     process these events sync-ly so that they are reflected in the response.
                 //     when this is happening, other requests are blocked too till events are processed.
-                List<Set<Path>> changes;
                 try
                 {
-                    changes = fileMonitor.pollFileChanges();
+                    processChanges(-1);
                 }
                 catch (Exception e)
                 {
                     throw new RuntimeException(e);
                 }
-                processChanges(changes);
 
                 monitoring_volatile =true;
 
@@ -736,10 +1092,9 @@ public class StaticHandler implements HttpHandler
     {
         while(true)
         {
-            List<Set<Path>> changes;
             try
             {
-                changes = fileMonitor.pollFileChanges(1000);
+                processChanges(1000);  // usually no change
                 // wake up every second even if there's no change, to check idle-ness
             }
             catch (InterruptedException e)
@@ -752,13 +1107,20 @@ public class StaticHandler implements HttpHandler
                 return;
             }
 
-            processChanges(changes);  // usually no change
-
             if(System.currentTimeMillis()- lastRequestTime_volatile > 5000) // no request in 5 sec
                 return;  // handler is idle, quit. not likely on a busy server.
         }
     }
 
+    // timeout<0: don't wait
+    void processChanges(long timeout) throws IOException, InterruptedException
+    {
+        if(lazyIndex!=null)
+            lazyIndex.processChanges(timeout);
+        else
+            processChanges(fileMonitor.pollFileChanges(timeout));
+    }
+
     private void processChanges(List<Set<Path>> changes)
     {
         // all files are absolute normalized under dirPrefix, since they are from fileMonitor
@@ -771,6 +1133,20 @@ public class StaticHandler implements HttpHandler
 
         for(Path fileDeleted : changes.get(2))
             deleteFile(fileDeleted);
+
+        // if a precompressed sibling "x.gz" changed, re-process "x".
+        // (not if "x.gz" is excluded by confMod; then we are not notified)
+        for(Set<Path> files : changes)
+            for(Path file : files)
+                if(file.getFileName().toString().endsWith(".gz"))
+                    updateOriginOf(file);
+    }
+    void updateOriginOf(Path gzFile)
+    {
+        String gzName = gzFile.getFileName().toString();
+        Path origin = gzFile.resolveSibling(gzName.substring(0, gzName.length() - 3));
+        if(uri2info.containsKey(_toUriPath(origin)))
+            updateFile(origin);
     }
 
     void deleteFile(Path file)
@@ -783,8 +1159,21 @@ public class StaticHandler implements HttpHandler
     {
         FileInfo info = uri2info.remove(uriPath);
         if(info!=null)
+        {
             for(UriPath alt : info.uriAlt)
                 uri2info.remove(alt);
+            dropInfo(info);
+        }
+    }
+
+    // info is no longer reachable by new requests
+    void dropInfo(FileInfo info)
+    {
+        info.close();
+        bodyCache_volatile.remove(info);
+        forgetMapped(info.mappedFile);
+        if(info.gzFile!=null)
+            forgetMapped(info.gzFile.gzMapped_volatile);
     }
 
     void updateFile(Path file) // file is created or updated
@@ -838,6 +1227,11 @@ public class StaticHandler implements HttpHandler
         info.lastModified = conf.fileLastModified;
         info.contentType = conf.contentType;
         info.doGzip = conf.gzip;
+        if(conf.gzip && conf.precompressed)
+        {
+            info.precompressedFile = StaticFileConf.precompressedPath(conf.filePath);
+            info.precompressedLength = Files.size(info.precompressedFile); // throws
+        }
         info.doCache = conf.cache;
         info.expiresAbsolute = conf.expiresAbsolute;
         info.expiresRelative = conf.expiresRelative;
@@ -895,20 +1289,13 @@ public class StaticHandler implements HttpHandler
 
         info.originFileCP =  FileByteSource.ChannelProvider.pooled(conf.filePath) ;
 
-        if(info.doCache)
-        {
-            if(info.doGzip) // cache gzip-ed data in memory; plain file data not cached
-                info.bodyCache = new ByteSourceCache( gzSrc(info.originFileCP), null );
-            else // cache plain file data
-                info.bodyCache = new ByteSourceCache(new FileByteSource(info.originFileCP), info.fileLength);
-            // all involved sources are lazy, no real resource is consumed,
-            // until bodyCache.newView() is invoked for the 1st time.
-        }
-        else
-        {
-            if(info.doGzip) // cache gzip-ed data on disk
-                info.gzFile = new GzFile(info);  // lazy
-        }
+        // if doCache, body cache is created on demand, see getBodyCache()
+
+        if(info.doGzip) // cache gzip-ed data on disk. if doCache, for when the body is not in memory
+            info.gzFile = new GzFile(info, conf.mmap && !info.doCache);  // lazy. or the precompressed file
+
+        if(conf.mmap && !info.doCache)
+            info.mappedFile = new MappedFile(info.file, info.fileLength);  // lazy
 
 
         return info;
@@ -925,24 +1312,35 @@ public class StaticHandler implements HttpHandler
         final FileByteSource.ChannelProvider gzFileCP;
 
 
+        final boolean mmap;
+
         enum State{ notCreated, creating, created, error }
         volatile State state_volatile;
         volatile Long gzLength_volatile;
+        volatile MappedFile gzMapped_volatile; // if mmap, after created
+        // gz file is never modified in place; it's created by atomic move.
 
-        GzFile(FileInfo info) throws Exception
+        GzFile(FileInfo info, boolean mmap) throws Exception
         {
             this.originFile = info.file;
             this.originFileCP = info.originFileCP;
+            this.mmap = mmap;
 
-            this.gzFile = getGzPath(originFile, info);
+            this.gzFile = info.precompressedFile!=null? info.precompressedFile : getGzPath(originFile, info);
 
             this.gzFileCP  = FileByteSource.ChannelProvider.pooled(this.gzFile);
 
-            if(Files.exists(gzFile))  // created by a prev vm
+            if(Files.exists(gzFile))  // created by a prev vm, or precompressed
             {
                 gzLength_volatile = Files.size(gzFile); // throws
+                if(mmap)
+                    gzMapped_volatile = new MappedFile(gzFile, gzLength_volatile);
                 state_volatile = State.created;
             }
+            else if(info.precompressedFile!=null) // it was deleted just now?
+            {
+                throw new NoSuchFileException(gzFile.toString(), null, "precompressed file not found");
+            }
             else
             {
                 gzLength_volatile = null;
@@ -950,10 +1348,13 @@ public class StaticHandler implements HttpHandler
             }
         }
 
-        ByteSource getSource()
+        ByteSource getSource(StaticHandler handler)
         {
             if(state_volatile ==State.created)
-                return new FileByteSource(gzFileCP);
+            {
+                MappedFile gzMapped = gzMapped_volatile;
+                return gzMapped!=null && handler.useMapped(gzMapped)? gzMapped.newSource() : new FileByteSource(gzFileCP);
+            }
 
             synchronized (lock())
             {
@@ -972,6 +1373,13 @@ public class StaticHandler implements HttpHandler
             return gzLength_volatile;
         }
 
+        void close()
+        {
+            MappedFile gzMapped = gzMapped_volatile;
+            if(gzMapped!=null)
+                gzMapped.close();
+        }
+
 
         static Path getGzPath(Path originFile, FileInfo info) throws Exception
         {
@@ -1014,6 +1422,8 @@ public class StaticHandler implements HttpHandler
                 if (len != null) // all ok
                 {
                     gzLength_volatile = len;
+                    if(mmap)
+                        gzMapped_volatile = new MappedFile(gzFile, len);
                     state_volatile = State.created;
                 }
                 else
@@ -140,7 +140,7 @@ public class GunzipByteSource implements ByteSource
 
         headerParser =null;
 
-        inflater = new Inflater(true);
+        inflater = ZipPool.acquireInflater();
         crc = new CRC32();
         return inflateBody(obb);
     }
@@ -193,7 +193,7 @@ public class GunzipByteSource implements ByteSource
             ByteBuffer obb = ByteBuffer.wrap(array, off + len - r, r);
 
             trailer = ByteBuffer.wrap(GzipByteSource.trailer(crc.getValue(), inflater.getBytesWritten()));
-            inflater.end();
+            ZipPool.releaseInflater(inflater);
             inflater=null;
             crc=null;
 
@@ -242,7 +242,7 @@ public class GunzipByteSource implements ByteSource
         if(origin!=null)
             origin.close();
         if(inflater!=null)
-            inflater.end();
+            ZipPool.releaseInflater(inflater);
 
         origin=null;
         error=null;
@@ -25,6 +25,8 @@ public class GzipByteSource implements ByteSource
     SourceWrapper origin;
     int compressionLevel;
 
+    ParallelGzip parallel; // if non-null, read()/close() are delegated to it
+
     enum State{gzipHeader, reading, deflating, gzipTrailer, gzipDone, closed }
     State state;
 
@@ -44,6 +46,29 @@ public class GzipByteSource implements ByteSource
         this.state = State.gzipHeader;
     }
 
+    /**
+     * Create a GzipByteSource, optionally compressing blocks of the origin source in parallel.
+     * <p>
+     *     If `parallel` is true, the origin bytes are split into blocks of 128K,
+     *     which are compressed in background threads, several at a time,
+     *     each with the tail of the previous block as the dictionary (like <code>pigz</code>).
+     *     The output is still a single gzip stream, slightly larger than the serial output.
+     *     This is useful for large bodies, e.g. several megabytes or more;
+     *     the thread calling <code>read()</code> doesn't spend CPU on compression.
+     * </p>
+     * <p>
+     *     If `parallel` is false, this constructor is equivalent to
+     *     {@link #GzipByteSource(ByteSource, int) GzipByteSource(origin, compressionLevel)}.
+     * </p>
+     */
+    public GzipByteSource(ByteSource origin, int compressionLevel, boolean parallel)  // caller assumes no throw
+    {
+        this(origin, compressionLevel);
+
+        if(parallel)
+            this.parallel = new ParallelGzip(origin, compressionLevel);
+    }
+
 
     // see graph [9-28-2012] [4]
     //
@@ -58,7 +83,8 @@ public class GzipByteSource implements ByteSource
     // created on 1st read
     Deflater deflater;
     CRC32 crc;
-    // Deflater uses out-of-vm resources; remember to call close() to promptly free resources.
+    // Deflater uses out-of-vm resources; it's taken from ZipPool, and returned to it after the trailer,
+    // or on close(), which should always be called.
 
     byte[] outputBuffer;
     static final int outputBufferCap = 4*1024;
@@ -72,11 +98,14 @@ public class GzipByteSource implements ByteSource
     @Override
     public Async<ByteBuffer> read() throws IllegalStateException
     {
+        if(parallel!=null)
+            return parallel.read();
+
         switch(state)
         {
             case gzipHeader:
 
-                this.deflater = new Deflater(compressionLevel, true);
+                this.deflater = ZipPool.acquireDeflater(compressionLevel);
                 this.crc = new CRC32();
 
                 state = State.reading;
@@ -98,6 +127,11 @@ public class GzipByteSource implements ByteSource
 
                 byte[] gzip_trailer = trailer(crc.getValue(), deflater.getBytesRead());
 
+                // done with deflater; don't wait for close()
+                ZipPool.releaseDeflater(deflater, compressionLevel);
+                deflater=null;
+                crc=null;
+
                 state = State.gzipDone;
 
                 return Result.success(ByteBuffer.wrap(gzip_trailer));
@@ -264,6 +298,9 @@ public class GzipByteSource implements ByteSource
     @Override
     public Async<Void> close()
     {
+        if(parallel!=null)
+            return parallel.close();
+
         if(state==State.closed)
             return Async.VOID;
         state = State.closed;
@@ -276,7 +313,7 @@ public class GzipByteSource implements ByteSource
 
         if(deflater!=null)
         {
-            deflater.end(); // free resources
+            ZipPool.releaseDeflater(deflater, compressionLevel); // reset, or end() if pool is full
             deflater=null;
             crc=null;
         }
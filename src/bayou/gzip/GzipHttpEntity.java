@@ -27,6 +27,7 @@ public class GzipHttpEntity implements HttpEntityWrapper
 
     HttpEntity origin;
     int compressionLevel;
+    boolean parallel;
 
     /**
      * Create a GzipHttpEntity, which compresses the origin entity body with gzip.
@@ -44,6 +45,18 @@ public class GzipHttpEntity implements HttpEntityWrapper
         this.compressionLevel = compressionLevel;
     }
 
+    /**
+     * Create a GzipHttpEntity, optionally compressing the body in parallel.
+     * <p>
+     *     See {@link GzipByteSource#GzipByteSource(ByteSource, int, boolean) GzipByteSource(origin, level, parallel)}.
+     * </p>
+     */
+    public GzipHttpEntity(HttpEntity origin, int compressionLevel, boolean parallel)
+    {
+        this(origin, compressionLevel);
+        this.parallel = parallel;
+    }
+
     /**
      * The origin entity.
      */
@@ -67,7 +80,7 @@ public class GzipHttpEntity implements HttpEntityWrapper
     {
         ByteSource originBody = origin.body();
         // next line doesn't throw, or we need to close originBody
-        return new GzipByteSource(originBody, compressionLevel); // no throw
+        return new GzipByteSource(originBody, compressionLevel, parallel); // no throw
     }
 
 
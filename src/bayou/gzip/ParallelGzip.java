@@ -0,0 +1,239 @@
+package bayou.gzip;
+
+import _bayou._tmp._Exec;
+import _bayou._tmp._Util;
+import bayou.async.Async;
+import bayou.async.Promise;
+import bayou.bytes.ByteSource;
+import bayou.util.End;
+import bayou.util.Result;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// gzip with blocks compressed in parallel, like pigz.
+//
+// input is split into blocks of BLOCK bytes. each block is deflated independently in the non-blocking executor,
+// with the last 32K of the previous block as the dictionary, so compression ratio is close to serial deflate.
+// every block except the last one ends with a sync flush, so its output ends on a byte boundary, without
+// the final bit; the last block is finished. concatenated in order, they form a single raw deflate stream.
+//
+// crc is computed serially by the reader. it's much faster than deflate.
+// up to `maxAhead` blocks are in flight; output is served in order.
+class ParallelGzip implements ByteSource
+{
+    static final int BLOCK = 128*1024;
+    static final int DICT = 32*1024;
+    static final int maxAhead = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    ByteSource origin;
+    final int compressionLevel;
+
+    boolean headerDone;
+    boolean originEof;
+    boolean trailerDone;
+    boolean closed;
+
+    ByteBuffer hoard; // remaining of last origin read
+    byte[] block;
+    int blockLen;
+    byte[] prevBlock; // dictionary source
+    int prevBlockLen;
+
+    final CRC32 crc = new CRC32();
+    long totalBytes;
+
+    final ArrayDeque<Async<ByteBuffer>> pending = new ArrayDeque<>();
+
+    ParallelGzip(ByteSource origin, int compressionLevel)
+    {
+        this.origin = origin;
+        this.compressionLevel = compressionLevel;
+    }
+
+    @Override
+    public Async<ByteBuffer> read() throws IllegalStateException
+    {
+        if(closed)
+            throw new IllegalStateException("closed");
+
+        if(!headerDone)
+        {
+            headerDone = true;
+            return Result.success(ByteBuffer.wrap(GzipByteSource.gzip_header));
+        }
+
+        while(true)
+        {
+            // serve output asap
+            Async<ByteBuffer> head = pending.peekFirst();
+            if(head!=null && head.pollResult()!=null)
+                return pending.removeFirst();
+
+            // feed more blocks to workers
+            if(hoard!=null && pending.size()<maxAhead)
+            {
+                consumeHoard();
+                continue;
+            }
+            if(!originEof && pending.size()<maxAhead)
+            {
+                Async<ByteBuffer> readA = origin.read();
+                Result<ByteBuffer> readR = readA.pollResult();
+                if(readR==null) // origin read is pending
+                    return readA.transform(r -> {
+                        if(closed)
+                            return Async.failure(new IllegalStateException("closed"));
+                        Exception error = onOriginRead(r);
+                        if(error!=null)
+                            return Async.failure(error);
+                        return read();
+                    });
+                Exception error = onOriginRead(readR);
+                if(error!=null)
+                    return Async.failure(error);
+                continue;
+            }
+
+            // wait for the oldest block
+            if(head!=null)
+                return pending.removeFirst();
+
+            if(!trailerDone)
+            {
+                trailerDone = true;
+                return Result.success(ByteBuffer.wrap(GzipByteSource.trailer(crc.getValue(), totalBytes)));
+            }
+
+            return _Util.EOF;
+        }
+    }
+
+    // return non-null if origin read error
+    Exception onOriginRead(Result<ByteBuffer> result)
+    {
+        Exception error = result.getException();
+        if(error instanceof End)
+        {
+            originEof = true;
+            submit(true);
+            return null;
+        }
+        if(error!=null)
+            return error; // origin may recover, state unchanged
+
+        hoard = result.getValue();
+        consumeHoard();
+        return null;
+    }
+
+    void consumeHoard()
+    {
+        while(hoard.hasRemaining() && pending.size()<maxAhead)
+        {
+            if(block==null)
+            {
+                block = new byte[BLOCK];
+                blockLen = 0;
+            }
+            int n = Math.min(hoard.remaining(), BLOCK-blockLen);
+            hoard.get(block, blockLen, n);
+            crc.update(block, blockLen, n);
+            blockLen += n;
+            totalBytes += n;
+            if(blockLen==BLOCK)
+                submit(false);
+        }
+        if(!hoard.hasRemaining())
+            hoard = null;
+    }
+
+    void submit(boolean last)
+    {
+        byte[] data = block!=null? block : new byte[0];
+        int dataLen = blockLen;
+        byte[] dict = prevBlock;
+        int dictLen = Math.min(prevBlockLen, DICT);
+        int dictOff = prevBlockLen-dictLen;
+        int level = compressionLevel;
+
+        Promise<ByteBuffer> promise = new Promise<>();
+        _Exec.execNb(() -> {
+            try
+            {
+                promise.succeed(deflate(data, dataLen, dict, dictOff, dictLen, level, last));
+            }
+            catch (Exception e)
+            {
+                promise.fail(e);
+            }
+        });
+        pending.addLast(promise);
+
+        prevBlock = data;
+        prevBlockLen = dataLen;
+        block = null;
+        blockLen = 0;
+    }
+
+    // in a worker thread
+    static ByteBuffer deflate(byte[] data, int dataLen, byte[] dict, int dictOff, int dictLen, int level, boolean last)
+    {
+        Deflater deflater = ZipPool.acquireDeflater(level);
+        try
+        {
+            if(dictLen>0)
+                deflater.setDictionary(dict, dictOff, dictLen);
+            deflater.setInput(data, 0, dataLen);
+            if(last)
+                deflater.finish();
+
+            byte[] out = new byte[dataLen + dataLen/8 + 64];
+            int outLen = 0;
+            while(true)
+            {
+                if(outLen==out.length)
+                    out = Arrays.copyOf(out, out.length*2);
+
+                int flush = last? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH;
+                int n = deflater.deflate(out, outLen, out.length-outLen, flush);
+                outLen += n;
+
+                if(last)
+                {
+                    if(deflater.finished())
+                        break;
+                }
+                else if(outLen<out.length) // sync flush is complete if output buffer is not full
+                {
+                    break;
+                }
+            }
+            return ByteBuffer.wrap(out, 0, outLen);
+        }
+        finally
+        {
+            ZipPool.releaseDeflater(deflater, level);
+        }
+    }
+
+    @Override
+    public Async<Void> close()
+    {
+        if(closed)
+            return Async.VOID;
+        closed = true;
+
+        // blocks in flight complete on their own; outputs are dropped.
+        pending.clear();
+        hoard = null;
+        block = prevBlock = null;
+
+        origin.close();
+        origin = null;
+        return Async.VOID;
+    }
+}
@@ -0,0 +1,94 @@
+package bayou.gzip;
+
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// per-thread pools of Deflater/Inflater (nowrap=true).
+//
+// a Deflater/Inflater holds a native zlib stream, with big buffers (~256K for deflate).
+// creating and ending one per gzip response is expensive, and the native memory is not tracked by GC.
+// a released instance is reset() and kept in the pool of the current thread, up to MAX per level.
+// excess instances are end()-ed.
+//
+// usually an instance is acquired and released on the same selector thread. if not, it simply
+// moves to the pool of the releasing thread.
+class ZipPool
+{
+    static final int MAX = 4;
+
+    static class Pools
+    {
+        final Deflater[][] deflaters = new Deflater[10][MAX]; // by level 0-9
+        final int[] deflaterCounts = new int[10];
+
+        final Inflater[] inflaters = new Inflater[MAX];
+        int inflaterCount;
+    }
+
+    static final ThreadLocal<Pools> threadLocal = ThreadLocal.withInitial(Pools::new);
+
+    static Deflater acquireDeflater(int level)
+    {
+        if(level<0 || level>9) // e.g. DEFAULT_COMPRESSION; not pooled
+            return new Deflater(level, true);
+
+        Pools pools = threadLocal.get();
+        int n = pools.deflaterCounts[level];
+        if(n==0)
+            return new Deflater(level, true);
+
+        pools.deflaterCounts[level] = --n;
+        Deflater deflater = pools.deflaters[level][n];
+        pools.deflaters[level][n] = null;
+        return deflater;
+    }
+
+    static void releaseDeflater(Deflater deflater, int level)
+    {
+        if(level<0 || level>9)
+        {
+            deflater.end();
+            return;
+        }
+
+        Pools pools = threadLocal.get();
+        int n = pools.deflaterCounts[level];
+        if(n==MAX)
+        {
+            deflater.end();
+            return;
+        }
+
+        deflater.reset(); // level is kept
+        pools.deflaters[level][n] = deflater;
+        pools.deflaterCounts[level] = n+1;
+    }
+
+    static Inflater acquireInflater()
+    {
+        Pools pools = threadLocal.get();
+        int n = pools.inflaterCount;
+        if(n==0)
+            return new Inflater(true);
+
+        pools.inflaterCount = --n;
+        Inflater inflater = pools.inflaters[n];
+        pools.inflaters[n] = null;
+        return inflater;
+    }
+
+    static void releaseInflater(Inflater inflater)
+    {
+        Pools pools = threadLocal.get();
+        int n = pools.inflaterCount;
+        if(n==MAX)
+        {
+            inflater.end();
+            return;
+        }
+
+        inflater.reset();
+        pools.inflaters[n] = inflater;
+        pools.inflaterCount = n+1;
+    }
+}
@@ -0,0 +1,248 @@
+package bayou.http;
+
+import _bayou._str._StrUtil;
+import bayou.async.Async;
+import bayou.async.Promise;
+import bayou.mime.Headers;
+import bayou.util.Result;
+
+import java.util.ArrayList;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * HttpHandler that coalesces concurrent identical requests into one call to the target handler.
+ * <p>Example Usage:</p>
+ * <pre>
+ *     HttpHandler handler = new ResponseCacheHandler(new CoalescingHandler(appHandler), 64*1024*1024);
+ * </pre>
+ * <p>
+ *     When a popular resource expires from a cache, many identical requests may arrive at the same time,
+ *     all of which would invoke the expensive target handler ("thundering herd").
+ *     This handler forwards only the first of them to the target handler;
+ *     the others wait for its response, which is then shared by all of them.
+ * </p>
+ * <h4>Which requests are coalesced</h4>
+ * <p>
+ *     GET requests without <code>Authorization</code> are coalesced,
+ *     if they have the same {@link HttpRequest#host() host} and {@link HttpRequest#uri() uri}.
+ *     Other requests are forwarded to the target handler directly.
+ * </p>
+ * <p>
+ *     The response is shared only if it is cacheable by a shared cache, by the same rules as
+ *     in {@link ResponseCacheHandler} (e.g. with <code>Cache-Control: max-age=0</code>, not <code>private</code>),
+ *     and only with requests that have the same values of the request headers named in <code>Vary</code>.
+ *     Otherwise, the other requests are forwarded to the target handler individually, after the first one completes.
+ * </p>
+ * <p>
+ *     The target handler is invoked in the fiber of the first request.
+ *     The shared response body is cached in memory by a {@link CachedHttpEntity},
+ *     each request reads it from an independent {@link bayou.bytes.ByteSourceCache#newView() view}.
+ * </p>
+ * <h4>Cancellation</h4>
+ * <p>
+ *     Each request has its own <code>Async&lt;HttpResponse&gt;</code>.
+ *     If it is cancelled, e.g. on timeout, only that request fails;
+ *     the call to the target handler is cancelled only if all the requests waiting on it have been cancelled.
+ * </p>
+ */
+public class CoalescingHandler implements HttpHandler
+{
+    final HttpHandler target;
+    final ConcurrentHashMap<String,Flight> inFlight = new ConcurrentHashMap<>();
+
+    // one call to the target handler, shared by waiters
+    static class Flight
+    {
+        final HttpRequest request; // of the leader
+        Async<HttpResponse> source;
+        ArrayList<Waiter> waiters = new ArrayList<>();  // null after completion. guarded by this
+
+        Flight(HttpRequest request)
+        {
+            this.request = request;
+        }
+    }
+
+    static class Waiter
+    {
+        final HttpRequest request;
+        // completes with null if the waiter needs to call the target handler by itself
+        final Promise<HttpResponse> promise = new Promise<>();
+
+        Waiter(HttpRequest request)
+        {
+            this.request = request;
+        }
+    }
+
+    /**
+     * Create a handler that coalesces requests to the target handler.
+     */
+    public CoalescingHandler(HttpHandler target)
+    {
+        this.target = target;
+    }
+
+    /**
+     * Handle a request.
+     * <p>
+     *     If an identical request is in flight, wait for its response;
+     *     otherwise forward the request to the target handler.
+     * </p>
+     */
+    @Override
+    public Async<HttpResponse> handle(HttpRequest request)
+    {
+        if(!request.method().equals("GET") || request.header(Headers.Authorization)!=null)
+            return target.handle(request);
+
+        String host = request.header(Headers.Host); // may be null for HTTP/1.0
+        String key = (host==null? "" : host.toLowerCase()) + request.uri();
+
+        Waiter waiter = new Waiter(request);
+        Flight flight;
+        while(true)
+        {
+            flight = inFlight.get(key);
+            if(flight==null)
+            {
+                Flight newFlight = new Flight(request);
+                newFlight.waiters.add(waiter);
+                if(inFlight.putIfAbsent(key, newFlight)==null)
+                    return lead(key, newFlight, waiter);
+            }
+            else if(join(flight, waiter))
+            {
+                break;
+            }
+            else // flight is just completed, but not yet removed
+            {
+                inFlight.remove(key, flight);
+            }
+        }
+
+        // a follower
+        Flight flightF = flight;
+        waiter.promise.onCancel(reason -> leave(flightF, waiter, reason));
+        return waiter.promise.then(response -> response!=null
+            ? Async.success(response)
+            : target.handle(request));
+    }
+
+    Async<HttpResponse> lead(String key, Flight flight, Waiter waiter)
+    {
+        Async<HttpResponse> source;
+        try
+        {
+            source = target.handle(flight.request); // should not throw
+            if(source==null)
+                throw new NullPointerException("null returned from "+target);
+        }
+        catch (RuntimeException|Error e) // the flight must complete anyway; or all waiters hang.
+        {
+            source = Async.failure(e instanceof Error? new RuntimeException(e) : (RuntimeException)e);
+        }
+        synchronized (flight)
+        {
+            // the leader is still in waiters, so no one could have tried to cancel the source yet
+            flight.source = source;
+        }
+
+        // note: callbacks are invoked in the leader's fiber, which the response was generated in
+        source.onCompletion(result -> onComplete(key, flight, result));
+
+        waiter.promise.onCancel(reason -> leave(flight, waiter, reason));
+        return waiter.promise;  // the leader never gets null
+    }
+
+    static boolean join(Flight flight, Waiter waiter)
+    {
+        synchronized (flight)
+        {
+            if(flight.waiters==null) // completed
+                return false;
+            flight.waiters.add(waiter);
+            return true;
+        }
+    }
+
+    static void leave(Flight flight, Waiter waiter, Exception reason)
+    {
+        Async<HttpResponse> cancelSource = null;
+        synchronized (flight)
+        {
+            if(flight.waiters==null || !flight.waiters.remove(waiter))
+                return; // already completed
+            if(flight.waiters.isEmpty())
+                cancelSource = flight.source;
+        }
+        waiter.promise.fail(reason);
+        if(cancelSource!=null)
+            cancelSource.cancel(reason);
+    }
+
+    void onComplete(String key, Flight flight, Result<HttpResponse> result)
+    {
+        inFlight.remove(key, flight);
+
+        ArrayList<Waiter> waiters;
+        synchronized (flight)
+        {
+            waiters = flight.waiters;
+            flight.waiters = null;
+        }
+
+        HttpResponse response = result.getValue();
+        if(response==null) // failure; shared by all
+        {
+            for(Waiter waiter : waiters)
+                waiter.promise.complete(result);
+            return;
+        }
+
+        Waiter leader = null;
+        if(!waiters.isEmpty() && waiters.get(0).request==flight.request)
+            leader = waiters.get(0);
+
+        if(waiters.size()==1 && leader!=null) // no contention; common case
+        {
+            leader.promise.succeed(response);
+            return;
+        }
+
+        if(ResponseCacheHandler.expiresAt(response, System.currentTimeMillis())==0) // not sharable
+        {
+            for(Waiter waiter : waiters)
+                waiter.promise.succeed(waiter==leader ? response : null);
+            return;
+        }
+
+        String vary = response.headers().get(Headers.Vary);
+        HttpResponseImpl shared = new HttpResponseImpl(response);
+        shared.entity(new CachedHttpEntity(response.entity())); // not null if sharable
+        for(Waiter waiter : waiters)
+        {
+            if(waiter==leader || sameVary(vary, flight.request, waiter.request))
+                waiter.promise.succeed(new HttpResponseImpl(shared));
+            else
+                waiter.promise.succeed(null);
+        }
+    }
+
+    // parsed as ResponseCacheHandler does. "Vary: *" never matches.
+    static boolean sameVary(String vary, HttpRequest request1, HttpRequest request2)
+    {
+        if(vary==null)
+            return true;
+        for(String name : _StrUtil.splitComma(vary))
+        {
+            if(name.equals("*"))
+                return false;
+            if(!Objects.equals(request1.header(name), request2.header(name)))
+                return false;
+        }
+        return true;
+    }
+
+}
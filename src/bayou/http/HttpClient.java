@@ -10,6 +10,7 @@ import bayou.bytes.ByteSource;
 import bayou.gzip.GunzipByteSource;
 import bayou.mime.HeaderMap;
 import bayou.mime.Headers;
+import bayou.tcp.SelectorMetrics;
 import bayou.tcp.TcpAddress;
 import bayou.tcp.TcpClient;
 import bayou.util.Result;
@@ -319,6 +320,21 @@ public class HttpClient
         return list;
     }
 
+    /**
+     * Get metrics of the selectors used by this client.
+     * <p>
+     *     Return one {@link SelectorMetrics} for every selector thread,
+     *     in the same order as {@link #getExecutors()}.
+     * </p>
+     */
+    public List<SelectorMetrics> getSelectorMetrics()
+    {
+        ArrayList<SelectorMetrics> list = new ArrayList<>();
+        for(TcpClient tcpClient : tcpClients)
+            list.add(tcpClient.getSelectorMetrics());
+        return list;
+    }
+
 
     /**
      * Close this client and free resources.
@@ -14,6 +14,7 @@ import bayou.util.function.ConsumerX;
 
 import javax.net.ssl.*;
 import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.util.Collections;
 import java.util.List;
@@ -192,6 +193,33 @@ public final class HttpClientConf implements Cloneable
 
 
 
+    Path unixSocket = null;
+    /**
+     * Unix domain socket to connect to, instead of the TCP address of the request.
+     * <p><code>
+     *     default: null (connect over TCP)
+     * </code></p>
+     * <p>
+     *     If non-null, every connection is made to the unix domain socket at this file path,
+     *     regardless of the host and port of the request, which are still used for the
+     *     <code>"Host"</code> header, SSL, and connection reuse. This is useful if the server is on the same host,
+     *     e.g. a local sidecar proxy; it avoids the overhead of the TCP stack.
+     *     If {@link #proxy(HttpProxy) proxy} or {@link #tunnels(TcpTunnel...) tunnels} are specified,
+     *     the connection to the proxy or the first tunnel is made to the unix domain socket.
+     * </p>
+     * <p>
+     *     Requires JDK 16+. {@link #socketConf(ConsumerX) socketConf} is not applied to unix domain sockets.
+     * </p>
+     * @return `this`
+     */
+    public HttpClientConf unixSocket(Path unixSocket)
+    {
+        this.unixSocket = unixSocket;
+        return this;
+    }
+
+
+
     SSLContext sslContext = null;
     /**
      * SSLContext for SSL connections.
@@ -706,6 +734,10 @@ public final class HttpClientConf implements Cloneable
     {
         return socketConf;
     }
+    public Path get_unixSocket()
+    {
+        return unixSocket;
+    }
     public SSLContext get_sslContext()
     {
         return sslContext;
@@ -239,6 +239,10 @@ class HttpClientConnMan
     }
     Async<TcpConnection> tcpConnect(TcpAddress hop, TcpClient tcpClient)
     {
+        if(conf.unixSocket!=null) // no dns. hop.host is still the peer host, e.g. for SNI
+            return tcpClient.connect(hop.host(), conf.unixSocket)
+                .then( tcpChann -> tcpChann2Conn(tcpChann, hop.ssl()));
+
         return _Dns
             .resolve(hop.host())
             .then( ip->tcpClient.connect(hop.host(), ip, hop.port()) )
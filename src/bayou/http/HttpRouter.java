@@ -0,0 +1,494 @@
+package bayou.http;
+
+import _bayou._http._HttpUtil;
+import bayou.async.Async;
+import bayou.async.Fiber;
+import bayou.async.FiberLocal;
+import bayou.mime.Headers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * HttpHandler that dispatches requests to other handlers by URI path and method.
+ * <p>Example Usage:</p>
+ * <pre>
+ *     HttpRouter router = new HttpRouter()
+ *         .get ("/",                      homeHandler)
+ *         .get ("/users/{id}",            request -&gt; showUser(HttpRouter.param("id")) )
+ *         .post("/users/{id}/posts",      newPostHandler)
+ *         .get ("/static/*",              staticHandler)
+ *         .fallback( request -&gt; HttpResponse.text(404, "Not Found") );
+ *
+ *     HttpServer server = new HttpServer(router);
+ * </pre>
+ * <h4 id=route-patterns>Route patterns</h4>
+ * <p>
+ *     A pattern must start with "/". It's matched against the {@link HttpRequest#uriPath() uriPath}
+ *     of the request, exactly (case-sensitive, no percent-decoding, no trailing-slash tolerance),
+ *     except for these special segments:
+ * </p>
+ * <ul>
+ *     <li>
+ *         <code>{name}</code> - a whole segment, matching one or more chars up to the next "/".
+ *         The value can be retrieved by {@link #param(String) HttpRouter.param(name)}.
+ *     </li>
+ *     <li>
+ *         <code>*</code> - the last segment, matching the rest of the path, possibly empty,
+ *         possibly containing "/". The value can be retrieved by <code>HttpRouter.param("*")</code>.
+ *     </li>
+ * </ul>
+ * <p>
+ *     If a path matches multiple patterns, static chars are preferred over <code>{name}</code>,
+ *     which is preferred over <code>*</code>. For example, <code>"/users/new"</code> is preferred over
+ *     <code>"/users/{id}"</code> for the path <code>"/users/new"</code>.
+ * </p>
+ * <h4>Methods</h4>
+ * <p>
+ *     A route is registered for a method, or for {@link #any any method}.
+ *     A HEAD request is dispatched to the GET route if there is no HEAD route.
+ *     If the path matches some routes, but none for the request method,
+ *     a 405 response is generated with the <code>Allow</code> header.
+ *     If the path matches no route, the request is forwarded to the {@link #fallback fallback} handler.
+ * </p>
+ * <h4>Performance</h4>
+ * <p>
+ *     Patterns are compiled into a radix trie. Matching a path costs O(path length),
+ *     regardless of the number of routes, and doesn't create any garbage
+ *     unless the route contains parameters.
+ * </p>
+ * <p>
+ *     Routes should be registered before the router serves requests;
+ *     registration is not thread-safe.
+ * </p>
+ */
+public class HttpRouter implements HttpHandler
+{
+    // routes ending at a node, or a wildcard leaf
+    static class Route
+    {
+        final String method; // null for any method
+        final HttpHandler handler;
+        final String[] paramNames; // in order of captures
+
+        Route(String method, HttpHandler handler, String[] paramNames)
+        {
+            this.method = method;
+            this.handler = handler;
+            this.paramNames = paramNames;
+        }
+    }
+
+    static class Node
+    {
+        String label;  // static chars on the edge into this node. "" for root/param/wildcard nodes
+
+        char[] firsts = new char[0];  // first chars of static children labels. small; linear scan.
+        Node[] children = new Node[0];
+
+        Node param;     // child for {name}
+        Node wildcard;  // child for *
+
+        Route[] routes; // null if no route ends here
+
+        Node(String label)
+        {
+            this.label = label;
+        }
+
+        Node child(char c)
+        {
+            char[] firsts = this.firsts;
+            for(int i=0; i<firsts.length; i++)
+                if(firsts[i]==c)
+                    return children[i];
+            return null;
+        }
+
+        void addChild(Node child)
+        {
+            int n = firsts.length;
+            firsts = Arrays.copyOf(firsts, n+1);
+            children = Arrays.copyOf(children, n+1);
+            firsts[n] = child.label.charAt(0);
+            children[n] = child;
+        }
+
+        void replaceChild(Node oldChild, Node newChild)
+        {
+            for(int i=0; i<children.length; i++)
+                if(children[i]==oldChild)
+                    children[i] = newChild;
+        }
+    }
+
+    final Node root = new Node("");
+    int maxParams;
+    HttpHandler fallback = request -> HttpResponse.text(404, "Not Found");
+
+    /**
+     * Create a router with no routes.
+     * <p>
+     *     The default {@link #fallback fallback} handler generates a simple 404 response.
+     * </p>
+     */
+    public HttpRouter()
+    {
+
+    }
+
+    /**
+     * Add a route for GET requests.
+     * <p>
+     *     This method is equivalent to {@link #route route("GET", pattern, handler)}.
+     * </p>
+     * @return `this`
+     */
+    public HttpRouter get(String pattern, HttpHandler handler)
+    {
+        return route("GET", pattern, handler);
+    }
+
+    /**
+     * Add a route for POST requests.
+     * <p>
+     *     This method is equivalent to {@link #route route("POST", pattern, handler)}.
+     * </p>
+     * @return `this`
+     */
+    public HttpRouter post(String pattern, HttpHandler handler)
+    {
+        return route("POST", pattern, handler);
+    }
+
+    /**
+     * Add a route for requests of any method.
+     * <p>
+     *     A route for a specific method is preferred over this route.
+     * </p>
+     * @return `this`
+     */
+    public HttpRouter any(String pattern, HttpHandler handler)
+    {
+        return route(null, pattern, handler);
+    }
+
+    /**
+     * Add a route.
+     * <p>
+     *     See <a href="#route-patterns">route patterns</a>.
+     * </p>
+     * @param method the request method, e.g. "GET"; or null for any method.
+     * @return `this`
+     * @throws IllegalArgumentException if the pattern is invalid,
+     *         or there's already a route for the same pattern and method.
+     */
+    public HttpRouter route(String method, String pattern, HttpHandler handler) throws IllegalArgumentException
+    {
+        if(pattern==null || !pattern.startsWith("/"))
+            throw new IllegalArgumentException("pattern must start with /: "+pattern);
+        if(handler==null)
+            throw new IllegalArgumentException("handler cannot be null");
+
+        ArrayList<String> paramNames = new ArrayList<>();
+        Node node = root;
+        int i = 0, L = pattern.length();
+        while(i<L)
+        {
+            char c = pattern.charAt(i);
+            if(c=='{')
+            {
+                int end = pattern.indexOf('}', i);
+                if(pattern.charAt(i-1)!='/' || end==-1 || (end+1<L && pattern.charAt(end+1)!='/'))
+                    throw new IllegalArgumentException("{name} must be a whole segment: "+pattern);
+                String name = pattern.substring(i+1, end);
+                if(name.isEmpty() || name.indexOf('{')!=-1 || name.indexOf('/')!=-1)
+                    throw new IllegalArgumentException("invalid param name in "+pattern);
+                if(paramNames.contains(name))
+                    throw new IllegalArgumentException("duplicate param name in "+pattern);
+                paramNames.add(name);
+
+                if(node.param==null)
+                    node.param = new Node("");
+                node = node.param;
+                i = end+1;
+            }
+            else if(c=='*')
+            {
+                if(pattern.charAt(i-1)!='/' || i+1!=L)
+                    throw new IllegalArgumentException("* must be the last segment: "+pattern);
+                paramNames.add("*");
+
+                if(node.wildcard==null)
+                    node.wildcard = new Node("");
+                node = node.wildcard;
+                i = L;
+            }
+            else if(c=='}')
+            {
+                throw new IllegalArgumentException("unmatched } in "+pattern);
+            }
+            else // static chars, up to next { or *
+            {
+                int end = i;
+                while(end<L && (c=pattern.charAt(end))!='{' && c!='*')
+                    end++;
+                node = insertStatic(node, pattern.substring(i, end));
+                i = end;
+            }
+        }
+
+        Route[] routes = node.routes;
+        if(routes==null)
+            routes = new Route[0];
+        for(Route route : routes)
+            if(method==null ? route.method==null : method.equals(route.method))
+                throw new IllegalArgumentException("duplicate route: "+method+" "+pattern);
+        routes = Arrays.copyOf(routes, routes.length+1);
+        routes[routes.length-1] = new Route(method, handler, paramNames.toArray(new String[paramNames.size()]));
+        node.routes = routes;
+
+        maxParams = Math.max(maxParams, paramNames.size());
+        return this;
+    }
+
+    // insert static chars under the node; return the node for the end of the chars.
+    static Node insertStatic(Node node, String s)
+    {
+        while(!s.isEmpty())
+        {
+            Node child = node.child(s.charAt(0));
+            if(child==null)
+            {
+                child = new Node(s);
+                node.addChild(child);
+                return child;
+            }
+
+            String label = child.label;
+            int common = 1;
+            int M = Math.min(label.length(), s.length());
+            while(common<M && label.charAt(common)==s.charAt(common))
+                common++;
+
+            if(common<label.length()) // split child at `common`
+            {
+                Node mid = new Node(label.substring(0, common));
+                node.replaceChild(child, mid);
+                child.label = label.substring(common);
+                mid.addChild(child);
+                child = mid;
+            }
+            node = child;
+            s = s.substring(common);
+        }
+        return node;
+    }
+
+    /**
+     * Set the handler for requests that match no route.
+     * <p><code>
+     *     default: request -&gt; HttpResponse.text(404, "Not Found")
+     * </code></p>
+     * @return `this`
+     */
+    public HttpRouter fallback(HttpHandler fallback)
+    {
+        if(fallback==null)
+            throw new IllegalArgumentException("fallback cannot be null");
+        this.fallback = fallback;
+        return this;
+    }
+
+
+
+
+    // caps[] is scratch space for capture offsets: [start0, end0, start1, end1 ...].
+    // a new int[] is only needed per thread, and when maxParams grows.
+    static final ThreadLocal<int[]> capsTL = new ThreadLocal<>();
+
+    /**
+     * Dispatch the request to the matching route.
+     * <p>
+     *     Before forwarding the request to the route handler,
+     *     the fiber-local params are set, which can be retrieved by {@link #param(String)}.
+     * </p>
+     */
+    @Override
+    public Async<HttpResponse> handle(HttpRequest request)
+    {
+        String uri = request.uri();
+        int L = uri.indexOf('?');
+        if(L==-1)
+            L = uri.length();
+        // if uri is not origin-form, e.g. "*", it doesn't match any route
+
+        int[] caps = capsTL.get();
+        if(caps==null || caps.length<2*maxParams)
+            capsTL.set(caps = new int[2*maxParams]);
+
+        Node node = match(root, uri, 0, L, caps, 0);
+        // root has only static children, starting with '/'. if uri is not origin-form, e.g. "*", no match.
+
+        if(node==null)
+        {
+            setParams(null);
+            return fallback.handle(request);
+        }
+
+        Route route = findRoute(node.routes, request.method());
+        if(route==null)
+        {
+            setParams(null);
+            return _HttpUtil.toAsync(HttpResponse.text(405, "Method Not Allowed")
+                .header(Headers.Allow, allow(node.routes)));
+        }
+
+        Params params = null;
+        if(route.paramNames.length>0)
+            params = new Params(uri, route.paramNames, Arrays.copyOf(caps, 2*route.paramNames.length));
+        setParams(params);
+
+        return route.handler.handle(request);
+    }
+
+    // node has matched uri[...p]. match uri[p...L]. return the node with routes, or null if no match.
+    // preference: static > param > wildcard. backtrack if a preferred branch fails.
+    static Node match(Node node, String uri, int p, int L, int[] caps, int nCaps)
+    {
+        if(p==L && node.routes!=null)
+            return node;
+
+        if(p<L)
+        {
+            Node child = node.child(uri.charAt(p));
+            if(child!=null)
+            {
+                String label = child.label;
+                int n = label.length();
+                if(p+n<=L && uri.regionMatches(p, label, 0, n))
+                {
+                    Node result = match(child, uri, p+n, L, caps, nCaps);
+                    if(result!=null)
+                        return result;
+                }
+            }
+
+            if(node.param!=null && uri.charAt(p)!='/') // non-empty segment
+            {
+                int end = p+1;
+                while(end<L && uri.charAt(end)!='/')
+                    end++;
+                caps[2*nCaps] = p;
+                caps[2*nCaps+1] = end;
+                Node result = match(node.param, uri, end, L, caps, nCaps+1);
+                if(result!=null)
+                    return result;
+            }
+        }
+
+        if(node.wildcard!=null) // matches the rest, possibly empty
+        {
+            caps[2*nCaps] = p;
+            caps[2*nCaps+1] = L;
+            return node.wildcard;
+        }
+
+        return null;
+    }
+
+    static Route findRoute(Route[] routes, String method)
+    {
+        Route any = null, get = null;
+        for(Route route : routes)
+        {
+            if(route.method==null)
+                any = route;
+            else if(route.method.equals(method))
+                return route;
+            else if(route.method.equals("GET"))
+                get = route;
+        }
+        if(get!=null && method.equals("HEAD"))
+            return get;
+        return any;  // may be null
+    }
+
+    static String allow(Route[] routes)
+    {
+        StringBuilder sb = new StringBuilder();
+        boolean hasGet=false, hasHead=false;
+        for(Route route : routes)
+        {
+            // route.method!=null; otherwise the `any` route would have been found
+            if(sb.length()>0)
+                sb.append(", ");
+            sb.append(route.method);
+            hasGet |= route.method.equals("GET");
+            hasHead |= route.method.equals("HEAD");
+        }
+        if(hasGet && !hasHead)
+            sb.append(", HEAD");
+        return sb.toString();
+    }
+
+
+
+
+    static class Params
+    {
+        final String uri;
+        final String[] names;
+        final int[] caps;
+
+        Params(String uri, String[] names, int[] caps)
+        {
+            this.uri = uri;
+            this.names = names;
+            this.caps = caps;
+        }
+
+        String get(String name)
+        {
+            for(int i=0; i<names.length; i++)
+                if(names[i].equals(name))
+                    return uri.substring(caps[2*i], caps[2*i+1]);
+            return null;
+        }
+    }
+
+    static final FiberLocal<Params> fiberLocalParams = new FiberLocal<>();
+
+    static void setParams(Params params)
+    {
+        // always set, even if null, to clear params from a previous request on the same fiber.
+        if(Fiber.current()!=null)
+            fiberLocalParams.set(params);
+    }
+
+    /**
+     * Get the value of a route parameter of the current request.
+     * <p>
+     *     For example, if the route pattern is <code>"/users/{id}/*"</code>, and the request path is
+     *     <code>"/users/123/x/y"</code>, then <code>param("id")=="123"</code> and <code>param("*")=="x/y"</code>.
+     * </p>
+     * <p>
+     *     The value is a substring of the request URI, not percent-decoded.
+     * </p>
+     * <p>
+     *     This method works on the fiber on which the route handler is invoked;
+     *     the params are fiber-local, set by the last HttpRouter that dispatched a request on the fiber.
+     *     Return null if there's no such param.
+     * </p>
+     * @throws IllegalStateException
+     *         if `Fiber.current()==null`
+     */
+    public static String param(String name) throws IllegalStateException
+    {
+        Params params = fiberLocalParams.get();
+        if(params==null)
+            return null;
+        return params.get(name);
+    }
+
+}
@@ -1,21 +1,29 @@
 package bayou.http;
 
 import _bayou._log._Logger;
+import _bayou._tmp._Alpn;
+import _bayou._tmp._Tcp;
 import _bayou._tmp._Util;
 import bayou.async.Async;
 import bayou.mime.HeaderMap;
 import bayou.mime.Headers;
 import bayou.ssl.SslChannel2Connection;
+import bayou.ssl.SslConnection;
+import bayou.tcp.SelectorMetrics;
 import bayou.tcp.TcpChannel;
 import bayou.tcp.TcpChannel2Connection;
 import bayou.tcp.TcpConnection;
 import bayou.tcp.TcpServer;
 import bayou.util.Result;
+import bayou.util.function.ConsumerX;
 
+import javax.net.ssl.SSLEngine;
 import java.net.InetSocketAddress;
 import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 
 /**
@@ -78,6 +86,7 @@ public class HttpServer
     // handler must not be null. if http not supported, e.g. pure ws server, install a dummy handler: req->404;
 
     final TcpServer tcpServer;
+    final LongAdder nOverloadRejects = new LongAdder(); // requests rejected with 503 due to overload
 
     final HttpServerConf conf;
 
@@ -115,7 +124,11 @@ public class HttpServer
 
     void onConnect(TcpConnection tcpConn)
     {
-        new ImplConn(this, tcpConn);
+        if(conf.http2 && tcpConn instanceof SslConnection
+            && "h2".equals(((SslConnection)tcpConn).getApplicationProtocol()))
+            new ImplH2Conn(this, tcpConn, null, null);
+        else
+            new ImplConn(this, tcpConn);
     }
 
 
@@ -194,7 +207,7 @@ public class HttpServer
         TcpServer.Conf tcpConf = conf.tcpConf;
 
         TcpChannel2Connection toPlain=null;
-        if(!conf.plainPorts.isEmpty())
+        if(!conf.plainPorts.isEmpty() || !conf.unixSockets.isEmpty())
         {
             toPlain
                 = new TcpChannel2Connection(conf.readBufferSize, conf.writeBufferSize);
@@ -204,12 +217,24 @@ public class HttpServer
                 InetSocketAddress address = new InetSocketAddress(conf.ip, plainPort.intValue());
                 tcpConf.handlers.put(address, handlerPlain);
             }
+            for(Path path : conf.unixSockets)
+                tcpConf.unixHandlers.put(path, handlerPlain);
         }
 
         if(!conf.sslPorts.isEmpty())
         {
+            ConsumerX<SSLEngine> sslEngineConf = conf.sslEngineConf;
+            if(conf.http2 && _Alpn.isSupported())
+            {
+                ConsumerX<SSLEngine> appEngineConf = sslEngineConf;
+                sslEngineConf = engine ->
+                {
+                    appEngineConf.accept(engine);
+                    _Alpn.setProtocols(engine, "h2", "http/1.1");
+                };
+            }
             SslChannel2Connection toSsl =
-                new SslChannel2Connection(false, conf.sslContext, conf.sslEngineConf);
+                new SslChannel2Connection(false, conf.sslContext, sslEngineConf);
             Consumer<TcpChannel> handlerSsl=null;
             Consumer<TcpChannel> handlerMixed=null;
             for(Integer sslPort : conf.sslPorts)
@@ -231,7 +256,7 @@ public class HttpServer
             }
         }
 
-        if(tcpConf.handlers.isEmpty())
+        if(tcpConf.handlers.isEmpty() && tcpConf.unixHandlers.isEmpty())
             throw new Exception("no server ports are specified");
     }
 
@@ -312,6 +337,84 @@ public class HttpServer
         return tcpServer.getConnectionCount();
     }
 
+    /**
+     * Get the number of connections accepted by each selector.
+     * <p>
+     *     See {@link TcpServer#getAcceptCounts()}.
+     * </p>
+     */
+    public long[] getAcceptCounts()
+    {
+        return tcpServer.getAcceptCounts();
+    }
+
+    /**
+     * Get metrics of the selectors used by this server.
+     * <p>
+     *     See {@link TcpServer#getSelectorMetrics()}.
+     * </p>
+     */
+    public List<SelectorMetrics> getSelectorMetrics()
+    {
+        return tcpServer.getSelectorMetrics();
+    }
+
+    /**
+     * Get the number of connections migrated from one selector to another.
+     * <p>
+     *     See {@link TcpServer#getMigrationCount()}.
+     * </p>
+     */
+    public long getMigrationCount()
+    {
+        return tcpServer.getMigrationCount();
+    }
+
+    /**
+     * Get the load of each selector, as of the last sample.
+     * <p>
+     *     See {@link TcpServer#getSelectorLoads()}.
+     * </p>
+     */
+    public double[] getSelectorLoads()
+    {
+        return tcpServer.getSelectorLoads();
+    }
+
+    /**
+     * Get the load imbalance before and after the last migration.
+     * <p>
+     *     See {@link TcpServer#getLoadImbalance()}.
+     * </p>
+     */
+    public double[] getLoadImbalance()
+    {
+        return tcpServer.getLoadImbalance();
+    }
+
+    /**
+     * Get the number of new connections that were closed immediately because all selectors were overloaded.
+     * <p>
+     *     See {@link HttpServerConf#overloadLag(Duration)} and {@link TcpServer#getShedCount()}.
+     * </p>
+     */
+    public long getShedCount()
+    {
+        return tcpServer.getShedCount();
+    }
+
+    /**
+     * Get the number of requests that were rejected with 503 because the selector was overloaded.
+     * <p>
+     *     See {@link HttpServerConf#overloadLag(Duration)}.
+     *     The count is cumulative since the server was created.
+     * </p>
+     */
+    public long getOverloadRejectCount()
+    {
+        return nOverloadRejects.sum();
+    }
+
     /**
      * Pausing accepting new requests. See <a href="#life-cycle">Life Cycle</a>.
      */
@@ -385,8 +488,9 @@ public class HttpServer
         TreeSet<Integer> ports = new TreeSet<>();
         for(ServerSocketChannel chann : tcpServer.getServerSockets())
         {
-            Integer port = chann.socket().getLocalPort();
-            ports.add(port);
+            int port = _Tcp.localPort(chann);
+            if(port!=-1) // not unix domain socket
+                ports.add(port);
         }
         for(Integer port : ports)
         {
@@ -396,6 +500,8 @@ public class HttpServer
             assert type!=null;
             System.out.printf(" port %s\t-  %s %n", port, type);
         }
+        for(Path path : conf.unixSockets)
+            System.out.printf(" unix %s\t-  plain %n", path);
 
         System.out.printf("Started on %s %n%n", new Date());
     }
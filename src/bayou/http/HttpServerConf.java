@@ -14,6 +14,7 @@ import javax.net.ssl.SSLEngine;
 import java.net.*;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.util.*;
 import java.util.function.Consumer;
@@ -193,6 +194,35 @@ public final class HttpServerConf
         return this;
     }
 
+    HashSet<Path> unixSockets = new HashSet<>();
+
+    /**
+     * Unix domain socket paths for plain connections.
+     * <p><code>
+     *     default: {}
+     * </code></p>
+     * <p>
+     *     The server also listens on unix domain sockets at these file paths. This is useful if
+     *     clients are on the same host, e.g. a local reverse proxy; it avoids the overhead of the TCP stack.
+     *     To serve only on unix domain sockets, call <code>port()</code> with no ports.
+     *     Requires JDK 16+. See {@link TcpServer.Conf#unixHandlers}.
+     * </p>
+     * @return `this`
+     */
+    public HttpServerConf unixSocket(Path... paths)
+    {
+        assertCanChange();
+        require(paths!=null, "paths!=null");
+        HashSet<Path> set = new HashSet<>();
+        for(Path path : paths)
+        {
+            require(path!=null, "path!=null");
+            set.add(path);
+        }
+        this.unixSockets = set;
+        return this;
+    }
+
     static HashSet<Integer> checkPorts(int... ports)
     {
         if(ports==null)
@@ -225,6 +255,107 @@ public final class HttpServerConf
         return this;
     }
 
+    /**
+     * Whether each selector has its own server socket, bound with <code>SO_REUSEPORT</code>.
+     * <p><code>
+     *     default: false
+     * </code></p>
+     * <p>
+     *     If enabled, the OS kernel spreads incoming connections among selector threads,
+     *     without handing connections over between threads.
+     *     See {@link TcpServer.Conf#reusePort} and {@link HttpServer#getAcceptCounts()}.
+     * </p>
+     * @return `this`
+     */
+    public HttpServerConf reusePort(boolean reusePort)
+    {
+        assertCanChange();
+        tcpConf.reusePort = reusePort;
+        return this;
+    }
+
+    /**
+     * How long a selector thread busy-polls for events before it blocks.
+     * <p><code>
+     *     default: 0 (no busy-polling)
+     * </code></p>
+     * <p>
+     *     This trades CPU for latency. See {@link TcpServer.Conf#selectorSpinTime}
+     *     and {@link HttpServer#getSelectorMetrics()}.
+     * </p>
+     * @return `this`
+     */
+    public HttpServerConf selectorSpinTime(Duration selectorSpinTime)
+    {
+        assertCanChange();
+        require(selectorSpinTime!=null && !selectorSpinTime.isNegative(), "selectorSpinTime>=0");
+        tcpConf.selectorSpinTime = selectorSpinTime;
+        return this;
+    }
+
+    /**
+     * Interval of load balancing among selectors.
+     * <p><code>
+     *     default: 0 (no load balancing)
+     * </code></p>
+     * <p>
+     *     If positive, new connections are assigned to less loaded selectors,
+     *     and idle keep-alive connections on an overloaded selector may be migrated to another selector.
+     *     See {@link TcpServer.Conf#rebalanceInterval} and {@link HttpServer#getMigrationCount()}.
+     * </p>
+     * @return `this`
+     */
+    public HttpServerConf rebalanceInterval(Duration rebalanceInterval)
+    {
+        assertCanChange();
+        require(rebalanceInterval!=null && !rebalanceInterval.isNegative(), "rebalanceInterval>=0");
+        tcpConf.rebalanceInterval = rebalanceInterval;
+        return this;
+    }
+
+    /**
+     * Event loop lag at which a selector is considered overloaded.
+     * <p><code>
+     *     default: 0 (no overload detection)
+     * </code></p>
+     * <p>
+     *     If positive, each selector measures its event loop lag periodically.
+     *     If the lag reaches this value, new connections are assigned to other selectors,
+     *     or closed immediately if all selectors are overloaded; and new requests on the overloaded selector
+     *     are answered with a cheap <code>"503 Service Unavailable"</code>, without invoking the handler,
+     *     until the lag drops to {@link #overloadRecoveryLag(Duration) overloadRecoveryLag}.
+     *     See {@link TcpServer.Conf#overloadLag}, {@link HttpServer#getShedCount()}
+     *     and {@link HttpServer#getOverloadRejectCount()}.
+     * </p>
+     * @return `this`
+     */
+    public HttpServerConf overloadLag(Duration overloadLag)
+    {
+        assertCanChange();
+        require(overloadLag!=null && !overloadLag.isNegative(), "overloadLag>=0");
+        tcpConf.overloadLag = overloadLag;
+        return this;
+    }
+
+    /**
+     * Event loop lag at which an overloaded selector recovers.
+     * <p><code>
+     *     default: null, meaning half of overloadLag
+     * </code></p>
+     * <p>
+     *     If non-null, it must not be greater than {@link #overloadLag(Duration) overloadLag}.
+     *     See {@link TcpServer.Conf#overloadRecoveryLag}.
+     * </p>
+     * @return `this`
+     */
+    public HttpServerConf overloadRecoveryLag(Duration overloadRecoveryLag)
+    {
+        assertCanChange();
+        require(overloadRecoveryLag==null || !overloadRecoveryLag.isNegative(), "overloadRecoveryLag>=0");
+        tcpConf.overloadRecoveryLag = overloadRecoveryLag;
+        return this;
+    }
+
 
     /**
      * Action to configure the server socket.
@@ -662,6 +793,35 @@ public final class HttpServerConf
         return this;
     }
 
+    boolean sendFile = false;
+    /**
+     * Whether to send file bodies with zero-copy.
+     * <p><code>
+     *     default: false
+     * </code></p>
+     * <p>
+     *     If enabled, a response body that is a {@link bayou.file.FileByteSource}, or a
+     *     {@link bayou.bytes.RangedByteSource} of it (e.g. for a range request),
+     *     with a known content length, is sent on a plain (non-SSL) connection by
+     *     <code>FileChannel.transferTo()</code> (e.g. <code>sendfile()</code> on Linux),
+     *     directly from the file to the socket, without reading it into memory.
+     *     This includes files served by {@link bayou.file.StaticHandler}
+     *     that are not cached in memory and not gzip-ed.
+     * </p>
+     * <p>
+     *     Note that the transfer is done on the selector thread, and it blocks the thread on disk reads
+     *     if the file is not in the OS cache, stalling all other connections of the thread.
+     *     Enable it if served files are mostly in the OS cache, e.g. a hot set that fits in memory.
+     * </p>
+     * @return `this`
+     */
+    public HttpServerConf sendFile(boolean sendFile)
+    {
+        assertCanChange();
+        this.sendFile = sendFile;
+        return this;
+    }
+
 
     Duration keepAliveTimeout = Duration.ofSeconds(15);
     /**
@@ -684,6 +844,106 @@ public final class HttpServerConf
         return this;
     }
 
+    int pipelineWindow = ImplConn.PIPELINE ? 16 : 1;  // >=1
+    /**
+     * Max number of pipelined requests in process on a connection.
+     * <p><code>
+     *     default: 1 (or 16 if system property "bayou.http.server.pipeline" is true)
+     * </code></p>
+     * <p>
+     *     If 1, a connection is half-duplex: the next request is not read until the current response is written.
+     * </p>
+     * <p>
+     *     If greater than 1, a connection is full-duplex: one flow reads requests and dispatches them
+     *     to the handler, while another flow writes responses in order.
+     *     Handlers of up to this number of consecutive requests may run concurrently,
+     *     each in its own fiber. Responses that are ready back-to-back are written in one batch.
+     * </p>
+     * <p>
+     *     Requests that need exclusive use of the connection
+     *     (e.g. HTTP/1.0, CONNECT, upgrade, <code>"Expect: 100-continue"</code>)
+     *     are processed only after all previous responses are written.
+     * </p>
+     * @return `this`
+     */
+    public HttpServerConf pipelineWindow(int pipelineWindow)
+    {
+        assertCanChange();
+        require(pipelineWindow >= 1, "pipelineWindow>=1");
+        this.pipelineWindow = pipelineWindow;
+        return this;
+    }
+
+    boolean http2 = false;
+    /**
+     * Whether to support HTTP/2.
+     * <p><code>
+     *     default: false
+     * </code></p>
+     * <p>
+     *     If true, HTTP/2 is negotiated on SSL ports through ALPN (if supported by the JDK),
+     *     and accepted on plain ports either with prior knowledge (the client starts with the HTTP/2 preface)
+     *     or through <code>"Upgrade: h2c"</code>.
+     * </p>
+     * <p>
+     *     Requests on HTTP/2 streams are served by the same {@link HttpHandler}, concurrently,
+     *     each in its own fiber; {@link HttpRequest#httpVersion()} is <code>"2.0"</code>.
+     *     Server push is not supported.
+     * </p>
+     * @return `this`
+     */
+    public HttpServerConf http2(boolean http2)
+    {
+        assertCanChange();
+        this.http2 = http2;
+        return this;
+    }
+
+    int http2MaxConcurrentStreams = 100;  // >=1
+    /**
+     * Max number of concurrent streams on an HTTP/2 connection.
+     * <p><code>
+     *     default: 100
+     * </code></p>
+     * <p>
+     *     This is advertised to the client as SETTINGS_MAX_CONCURRENT_STREAMS;
+     *     new streams beyond the limit are refused.
+     * </p>
+     * @return `this`
+     */
+    public HttpServerConf http2MaxConcurrentStreams(int http2MaxConcurrentStreams)
+    {
+        assertCanChange();
+        require(http2MaxConcurrentStreams >= 1, "http2MaxConcurrentStreams>=1");
+        this.http2MaxConcurrentStreams = http2MaxConcurrentStreams;
+        return this;
+    }
+
+    int http2MaxResetRate = 100;  // >=1
+    /**
+     * Max number of streams per second that the client can reset on an HTTP/2 connection.
+     * <p><code>
+     *     default: 100
+     * </code></p>
+     * <p>
+     *     A client that resets streams faster than this is abusive (e.g. the "rapid reset" attack);
+     *     the connection is closed with GOAWAY(ENHANCE_YOUR_CALM).
+     * </p>
+     * <p>
+     *     Note that the handler of a stream reset by the client is cancelled;
+     *     until it completes, the stream still counts against
+     *     {@link #http2MaxConcurrentStreams(int) http2MaxConcurrentStreams}.
+     * </p>
+     * @return `this`
+     */
+    public HttpServerConf http2MaxResetRate(int http2MaxResetRate)
+    {
+        assertCanChange();
+        require(http2MaxResetRate >= 1, "http2MaxResetRate>=1");
+        this.http2MaxResetRate = http2MaxResetRate;
+        return this;
+    }
+
     Duration requestHeadTimeout = Duration.ofSeconds(15);
     /**
      * Timeout for reading a request head.
@@ -1044,6 +1304,32 @@ public final class HttpServerConf
         return this;
     }
 
+    // parallel gzip costs more CPU in total (extra threads, slightly worse ratio); only worth it for big bodies
+    long autoGzipParallelMinContentLength = 1024*1024;
+    /**
+     * Min content length of responses to compress in parallel, with auto gzip.
+     * <p><code>
+     *     default: 1048576 (1MB)
+     * </code></p>
+     * <p>
+     *     If a response is to be compressed by {@link #autoGzip(boolean) autoGzip},
+     *     and its {@link HttpEntity#contentLength() Content-Length} is known and
+     *     &gt;= <code>autoGzipParallelMinContentLength</code>,
+     *     the body is compressed in blocks by background threads,
+     *     see {@link bayou.gzip.GzipByteSource#GzipByteSource(bayou.bytes.ByteSource, int, boolean)
+     *     GzipByteSource(origin, level, parallel)}.
+     *     Use <code>Long.MAX_VALUE</code> to disable parallel gzip.
+     * </p>
+     * @return `this`
+     */
+    public HttpServerConf autoGzipParallelMinContentLength(long autoGzipParallelMinContentLength)
+    {
+        assertCanChange();
+        require(autoGzipParallelMinContentLength >= 0, "autoGzipParallelMinContentLength>=0");
+        this.autoGzipParallelMinContentLength = autoGzipParallelMinContentLength;
+        return this;
+    }
+
 
 
 
@@ -1311,6 +1597,10 @@ public final class HttpServerConf
         Collections.sort(list);
         return list;
     }
+    public Set<Path> get_unixSockets()
+    {
+        return new HashSet<>(unixSockets);
+    }
     public ConsumerX<ServerSocketChannel> get_serverSocketConf()
     {
         return tcpConf.serverSocketConf;
@@ -1323,6 +1613,26 @@ public final class HttpServerConf
     {
         return tcpConf.serverSocketBacklog;
     }
+    public boolean get_reusePort()
+    {
+        return tcpConf.reusePort;
+    }
+    public Duration get_selectorSpinTime()
+    {
+        return tcpConf.selectorSpinTime;
+    }
+    public Duration get_rebalanceInterval()
+    {
+        return tcpConf.rebalanceInterval;
+    }
+    public Duration get_overloadLag()
+    {
+        return tcpConf.overloadLag;
+    }
+    public Duration get_overloadRecoveryLag()
+    {
+        return tcpConf.overloadRecoveryLag;
+    }
     public int get_maxConnections()
     {
         return tcpConf.maxConnections;
@@ -1379,10 +1689,30 @@ public final class HttpServerConf
     {
         return outboundBufferSize;
     }
+    public boolean get_sendFile()
+    {
+        return sendFile;
+    }
     public Duration get_keepAliveTimeout()
     {
         return keepAliveTimeout;
     }
+    public int get_pipelineWindow()
+    {
+        return pipelineWindow;
+    }
+    public boolean get_http2()
+    {
+        return http2;
+    }
+    public int get_http2MaxConcurrentStreams()
+    {
+        return http2MaxConcurrentStreams;
+    }
+    public int get_http2MaxResetRate()
+    {
+        return http2MaxResetRate;
+    }
     public Duration get_requestHeadTimeout()
     {
         return requestHeadTimeout;
@@ -1429,6 +1759,10 @@ public final class HttpServerConf
     {
         return autoGzipMinContentLength;
     }
+    public long get_autoGzipParallelMinContentLength()
+    {
+        return autoGzipParallelMinContentLength;
+    }
     public boolean get_autoConditional()
     {
         return autoConditional;
@@ -2,6 +2,7 @@ package bayou.http;
 
 import _bayou._str._CharDef;
 
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 
 /**
@@ -27,6 +28,7 @@ public class HttpStatus
     final int code;
     final String phrase;
     final String string; // "200 OK". server accesses this field frequently.
+    final byte[] line11; // "HTTP/1.1 200 OK\r\n" in latin1, pre-encoded for the server. do not modify.
 
     /**
      * Create an HttpStatus instance.
@@ -44,6 +46,7 @@ public class HttpStatus
         this.code = code;
         this.phrase = phrase;
         this.string = ""+code+" "+phrase.trim();
+        this.line11 = statusLine(string);
     }
 
     // for internal use
@@ -52,6 +55,12 @@ public class HttpStatus
         this.code = code;
         this.phrase = phrase;
         this.string = ""+code+" "+phrase;
+        this.line11 = statusLine(string);
+    }
+
+    static byte[] statusLine(String string)
+    {
+        return ("HTTP/1.1 "+string+"\r\n").getBytes(StandardCharsets.ISO_8859_1);
     }
 
     /**
@@ -13,6 +13,7 @@ import bayou.tcp.TcpConnection;
 import bayou.util.Result;
 
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -48,6 +49,9 @@ class ImplConn
         if(dump!=null)
             dump.print(connId(), " open [", tcpConn.getPeerIp().getHostAddress(), "] ==\r\n");
 
+        if(conf.pipelineWindow>1)
+            pipe = new ImplConnPipe(this, conf.pipelineWindow);
+
         if(FIBER)
             startFiber(); // do that in a named method, to have a better fiber trace.
         else
@@ -80,6 +84,9 @@ class ImplConn
 
     HttpResponse response;
     ImplConnResp xResp;
+    int respReqId;
+
+    ImplConnPipe pipe; // null if half-duplex
 
 
     enum Goto
@@ -87,9 +94,11 @@ class ImplConn
         NA,  // suspended while awaiting, or stopped after close()
 
         reqNew, reqNone, reqErr, reqBad, reqGood,
+        reqHeld, reqAbort,  // pipe internal goto
+        reqH2,  // h2 preface, prior knowledge
 
         respStart, respWrite, respEnd, awaitReq,
-        respPipeBody, respDrainMark, respFlushAll,  // xResp internal goto
+        respPipeBody, respDrainMark, respFlushAll, respSendFile,  // xResp internal goto
 
     }
 
@@ -97,6 +106,9 @@ class ImplConn
     {
         if(FIBER) assert Fiber.current()!=null;
 
+        if(tcpConn==null) // closed, by the other flow if pipelining. this is a late callback.
+            return;
+
         try
         {
             while(g!=Goto.NA)
@@ -108,11 +120,7 @@ class ImplConn
             // the problem must be logged and investigated.
             HttpServer.logUnexpected(t);
             close(null, "unexpected error: ", t);
-            return;
         }
-
-        if(PIPELINE && flush==1) // delayed flush
-            flush1();
     }
     Goto execOne(Goto g)
     {
@@ -123,6 +131,9 @@ class ImplConn
             case reqErr  : return errorReadingRequest();
             case reqBad  : return gotBadRequest();
             case reqGood : return gotGoodRequest();
+            case reqHeld : return pipe.resumeHeld();
+            case reqAbort: return pipe.abort();
+            case reqH2   : return startH2();
 
             case respStart : return startResponding();
             case respWrite : return responseWrite();
@@ -132,6 +143,7 @@ class ImplConn
             case respPipeBody  : return xResp.pipeBody();
             case respDrainMark : return xResp.drainMark();
             case respFlushAll  : return xResp.flushAll();
+            case respSendFile  : return xResp.sendFile();
 
             default: throw new AssertionError();
         }
@@ -154,6 +166,9 @@ class ImplConn
         // if ssl, if client didn't close_notify, read() will throw and we won't reach here.
         //         if client did close_notify, we don't respond close_notify.
 
+        if(pipe!=null && !pipe.isIdle()) // write pending responses first
+            return pipe.pause(Goto.reqNone);
+
         xReq = null;
 
         return close(null, "closed by client", null);
@@ -170,6 +185,9 @@ class ImplConn
         // it's probably due to a severe network problem, not likely recoverable.
 
         assert xReq.readError!=null;
+        if(pipe!=null && !pipe.isIdle())
+            return pipe.pause(Goto.reqErr);
+
         HttpServer.logErrorOrDebug(xReq.readError);  // most likely a checked network exception
 
         if(xReq.toDump!=null)
@@ -199,6 +217,9 @@ class ImplConn
         //
         // even if write fails, not a big loss, since this is a bad request.
 
+        if(pipe!=null && !pipe.isIdle()) // write pending responses first
+            return pipe.pause(Goto.reqBad);
+
         if(xReq.toDump!=null)
         {
             xReq.toDump.add("<BAD REQUEST>\r\n\r\n");
@@ -213,6 +234,7 @@ class ImplConn
 
         xReq = null;
 
+        respReqId = reqId;
         xResp = ImplRespMod.modErr(this, request, resp); // no throw. is last response.
         if(dump!=null)
             xResp.dumpResp();
@@ -226,14 +248,32 @@ class ImplConn
         if(xReq.toDump!=null)
             dump.print(xReq.toDump);
 
-        request = xReq.request;
+        ImplHttpRequest request = xReq.request;
         assert request.sealed; // sealed = good request
 
         xReq = null;
 
+        if(pipe!=null)
+            return pipe.onRequest(request);
+
+        return handleGoodRequest(request);
+    }
+
+    // half-duplex: the request is handled, and its response written, before the next request is read.
+    Goto handleGoodRequest(ImplHttpRequest request)
+    {
+        this.request = request;
+        respReqId = reqId;
+
         if(FIBER) HttpRequest.setFiberLocal(request);
         if(FIBER) Fiber.current().setName(fiberName(request));
 
+        if(server.tcpServer.isCurrentSelectorOverloaded())
+            return rejectOverloaded();
+
+        if(ImplH2Conn.isUpgrade(this, request))
+            return upgradeH2();
+
         HttpUpgrader upgrader = server.findUpgrader(request.headers);
         if(upgrader!=null)
             return tryUpgrade(upgrader);
@@ -241,6 +281,57 @@ class ImplConn
         return handleRequest();
     }
 
+    // the selector thread of this connection is overloaded. shed the request cheaply,
+    // without invoking the app handler, and close the connection after the response.
+    Goto rejectOverloaded()
+    {
+        response = overloadedResponse(server);
+        return Goto.respStart;
+    }
+    static HttpResponse overloadedResponse(HttpServer server)
+    {
+        server.nOverloadRejects.increment();
+
+        return HttpResponse.text(503, "Server is overloaded. Please try again later.")
+            .header(Headers.Retry_After, "1")
+            .header(Headers.Connection, "close");
+    }
+
+    // "Upgrade: h2c". the request becomes stream 1 of the HTTP/2 connection
+    Goto upgradeH2()
+    {
+        byte[] settings = ImplH2Conn.decodeSettingsHeader(request.headers.get("HTTP2-Settings"));
+        if(settings==null) // malformed. ignore the upgrade
+            return handleRequest();
+
+        tcpConn.queueWrite(ByteBuffer.wrap(ImplH2Conn.resp101Bytes));
+        if(dump!=null)
+            dump.print(respId(), "HTTP/1.1 101 Switching Protocols\r\n\r\n");
+
+        ImplHttpRequest upgradeRequest = request;
+        request = null;
+        return switchToH2(upgradeRequest, settings);
+    }
+
+    Goto startH2()
+    {
+        xReq = null;
+        return switchToH2(null, null);
+    }
+
+    Goto switchToH2(ImplHttpRequest upgradeRequest, byte[] settings)
+    {
+        if(dump!=null)
+            dump.print(connId(), " switched to h2 ==\r\n");
+
+        TcpConnection tcpConnL = tcpConn;
+        tcpConn = null; // I'm retired. late callbacks, if any, are ignored
+        if(FIBER) promise.succeed(null); // this fiber ends
+
+        new ImplH2Conn(server, tcpConnL, upgradeRequest, settings);
+        return Goto.NA;
+    }
+
     Goto tryUpgrade(HttpUpgrader upgrader)
     {
         Async<HttpResponse> upgradeAsync;
@@ -295,17 +386,7 @@ class ImplConn
 
     Goto handleRequest()
     {
-        Async<HttpResponse> respAsync;
-        try
-        {
-            respAsync = server.handler.handle(request); // should not throw
-            if(respAsync==null)
-                throw new NullPointerException("null returned from "+server.handler);
-        }
-        catch (RuntimeException|Error e)
-        {
-            respAsync = HttpResponse.internalError(e);
-        }
+        Async<HttpResponse> respAsync = invokeHandler(server, request);
 
         if(request.method.equals("CONNECT"))
             respAsync = respAsync.then( resp->server.tunneller.tryConnect(request, resp, this) );
@@ -321,6 +402,21 @@ class ImplConn
         return Goto.NA;
     }
 
+    static Async<HttpResponse> invokeHandler(HttpServer server, ImplHttpRequest request)
+    {
+        try
+        {
+            Async<HttpResponse> respAsync = server.handler.handle(request); // should not throw
+            if(respAsync==null)
+                throw new NullPointerException("null returned from "+server.handler);
+            return respAsync;
+        }
+        catch (RuntimeException|Error e)
+        {
+            return HttpResponse.internalError(e);
+        }
+    }
+
     Goto handlerDone(Result<? extends HttpResponse> respResult)
     {
         try
@@ -424,11 +520,16 @@ class ImplConn
             return Goto.NA;
         }
 
+        List<Cookie> jarCookies = FIBER? (ArrayList<Cookie>)CookieJar.getAllChanges() : Collections.emptyList();
+        // leave fiber local cookie jars. may be needed by response body. clear them after response is written
+
+        return writeResp(jarCookies);
+    }
+
+    Goto writeResp(List<Cookie> jarCookies)
+    {
         try
         {
-            List<Cookie> jarCookies = FIBER? (ArrayList<Cookie>)CookieJar.getAllChanges() : Collections.emptyList();
-            // leave fiber local cookie jars. may be needed by response body. clear them after response is written
-
             xResp = ImplRespMod.modApp(this, request, response, jarCookies);  // may throw. may be last response
         }
         catch (Exception e) // something wrong in the user response, e.g. illegal header value
@@ -448,22 +549,7 @@ class ImplConn
 
     Goto responseWrite()
     {
-        if(!PIPELINE)
-            return xResp.startWrite();
-
-        switch(flush)
-        {
-            case 0 :
-                return xResp.startWrite();
-            case 1 :
-                flush=0;
-                return xResp.startWrite();
-            case 2 :
-                flush=3;
-                return Goto.NA;
-            default :
-                throw new AssertionError();
-        }
+        return xResp.startWrite();
     }
 
     Goto responseEnded()  // fail or success
@@ -502,12 +588,18 @@ class ImplConn
             return close(conf.closeTimeout, "closed by server", null);
         }
 
+        if(pipe!=null && pipe.outboundBusy) // inbound is running on its own. write the next response, if ready
+            return pipe.responseEnded();
+
         // keep alive connection, go on to next request
         return Goto.awaitReq; // most fibers are in this state
     }
 
     Goto awaitNewRequest()
     {
+        if(pipe!=null && !pipe.isIdle())
+            return pipe.awaitRequest();
+
         // typically client doesn't do pipeline, so it's unlikely connection is readable here.
         //   an imm read() at this point probably will fail, so we better awaitReadable() here.
         Async<Void> awaitReadable = tcpConn.awaitReadable(/*accepting*/true);
@@ -525,14 +617,13 @@ class ImplConn
                 return onNextRequestReadable(awaitReadableResult);
 
             // likely due to a prev unread() because of request pipelining.
-            // to be fair to other connections, yield, do not goto reqNew directly, unless PIPELINE=true.
+            // to be fair to other connections, yield, do not goto reqNew directly, unless pipelining is enabled.
             // note: even if sever is not accepting, the buffered data in tcpConn is still accepted here
 
-            if(PIPELINE)
+            if(pipe!=null)
                 return Goto.reqNew;
 
-            Executor executor = FIBER ? Fiber.current().getExecutor() : tcpConn.getExecutor();
-            executor.execute(() -> jump(Goto.reqNew));
+            executor().execute(() -> jump(Goto.reqNew));
             return Goto.NA;
         }
     }
@@ -582,6 +673,9 @@ class ImplConn
 
     Goto close(Duration drainTimeout, String reason, Throwable exception)
     {
+        if(tcpConn==null) // closed already, by the other flow if pipelining
+            return Goto.NA;
+
         if(dump!=null)
             dump.print(
                 connId(), " closed == ",
@@ -596,8 +690,6 @@ class ImplConn
             tunnelConn=null;
         }
 
-        if(PIPELINE) flush=0;
-
         Async<Void> closing = tcpConn.close(drainTimeout);
         tcpConn =null;
 
@@ -647,75 +739,23 @@ class ImplConn
     }
     String respId()
     {
-        return "== response #"+ tcpConn.getId()+"-"+reqId+" ==\r\n";
+        return "== response #"+ tcpConn.getId()+"-"+respReqId+" ==\r\n";
+    }
+
+    Executor executor()
+    {
+        return FIBER ? Fiber.current().getExecutor() : tcpConn.getExecutor();
     }
 
 
     /////////////////////////////////////////////////////////////////////////////////////////////
 
     static final boolean PIPELINE = _Util.booleanProp(false, "bayou.http.server.pipeline");
-    // if enabled, give preference to pipelined requests in a connection; multiple responses may be buffered.
+    // if enabled, the default HttpServerConf.pipelineWindow is 16 instead of 1. see ImplConnPipe.
     //
     // pipeline isn't common in browsers. most are half-duplex: drain the response before writing next request.
     // this class was written with that in mind, because half-duplex is simpler to code.
-    // we patched this class with a little hack to batch-process pipelined requests.
-    // a better impl would be 2 concurrent flows, for inbound and outbound, like we do in HttpClient.
-    // and we should expose HttpServerConnection to app for low-level request/response handling. TBA.
-
-
-    byte flush; // [0] none [1] delayed  [2] awaitWritable  [3] new response
-
-    void flush1()
-    {
-        try
-        {
-            tcpConn.write();
-        }
-        catch (Exception e)
-        {
-            // something wrong with the connection. we don't need to handle it here.
-            // the problem will manifest itself again, e.g. awaitReadable() should fail.
-            HttpServer.logErrorOrDebug(e);
-            flush=0;
-            return;
-        }
-
-        if(tcpConn.getWriteQueueSize()==0)
-        {
-            flush=0;
-            return;
-        }
-
-        // not all data are flushed. await writable and try again.
-        flush=2;
-        tcpConn.awaitWritable().timeout(conf.writeTimeout)
-            .onCompletion(this::flush2);
-        // here we have 2 concurrent flows - main-flow and flush-flow.
-        // they are on the same thread; no lock is needed.
-        // but they can't both do write, especially, no concurrent awaitWritable(). flush-flow controls writes.
-        // main-flow may alter the state before flush-flow wakes up from awaitWritable()
-        //   -> 3  a new response is added
-        //   -> 0  close called
-
-    }
-
-    void flush2(Result<Void> result)
-    {
-        if(flush==0)
-            return;
-
-        if(flush==3)
-        {
-            flush=0;
-            jump(Goto.respWrite);  // becomes main-flow
-            return;
-        }
-
-        flush1();
-    }
-
-
-
-
+    // ImplConnPipe adds 2 concurrent flows, for inbound and outbound, like we do in HttpClient.
+    // TBA: expose HttpServerConnection to app for low-level request/response handling.
 
 }
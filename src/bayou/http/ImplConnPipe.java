@@ -0,0 +1,335 @@
+package bayou.http;
+
+import _bayou._http._HttpUtil;
+import _bayou._tmp._ControlException;
+import bayou.async.Async;
+import bayou.async.Fiber;
+import bayou.async.Promise;
+import bayou.mime.Headers;
+import bayou.util.Result;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static bayou.http.ImplConn.Goto;
+
+// full-duplex pipelining for a connection, if conf.pipelineWindow>1.
+//
+// 2 flows on the connection fiber:
+//   inbound : read request -> dispatch to handler -> (await request body EOF) -> read next request ...
+//   outbound: write responses of dispatched requests, in order of requests.
+// they never run concurrently (same fiber), but they interleave. inbound uses hConn.xReq;
+// outbound uses hConn.request/response/xResp, like in half-duplex mode.
+//
+// a dispatched request is an Exchange in `inflight`, until its response is written.
+// up to `window` exchanges can be in flight; their handlers may run concurrently, each in its own fiber.
+//
+// some requests need the connection exclusively (see exclusive()), e.g. 100-continue writes to the connection
+// while the request body is being read. such a request waits till the pipe is idle (inflight is empty),
+// then it's processed the half-duplex way, by hConn itself; inbound resumes after its response is written.
+//
+// inbound never closes the connection while outbound is busy; a terminal inbound step (EOF, bad request,
+// read error) is paused till the pipe is idle, so that all previous responses are written first.
+class ImplConnPipe
+{
+    static class Exchange
+    {
+        final int id;
+        final ImplHttpRequest request;
+
+        boolean ready;  // handler is done
+        HttpResponse response;
+        List<Cookie> jarCookies = Collections.emptyList();
+
+        boolean drainOnDone; // drain request body after handler is done
+
+        Exchange(int id, ImplHttpRequest request)
+        {
+            this.id = id;
+            this.request = request;
+        }
+    }
+
+    final ImplConn hConn;
+    final int window;
+
+    final ArrayDeque<Exchange> inflight = new ArrayDeque<>();
+    boolean outboundBusy; // writing the response of inflight.peek()
+
+    Goto paused; // inbound step that is postponed till the window has room, or till the pipe is idle
+    ImplHttpRequest held; // exclusive request, postponed till the pipe is idle
+    String abortReason;
+    Exception abortError;
+
+    Async<Void> inAwait; // non-accepting wait for the next request, while pipe is busy
+
+    ImplConnPipe(ImplConn hConn, int window)
+    {
+        this.hConn = hConn;
+        this.window = window;
+    }
+
+    boolean isIdle()
+    {
+        return inflight.isEmpty();
+    }
+
+    // [inbound] ----------------------------------------------------------------------------------
+
+    Goto pause(Goto g)
+    {
+        paused = g;
+        return Goto.NA;
+    }
+
+    static boolean exclusive(ImplConn hConn, ImplHttpRequest request)
+    {
+        return request.httpMinorVersion==0
+            || request.state100!=0
+            || request.method.equals("CONNECT")
+            || ImplH2Conn.isUpgrade(hConn, request)
+            || hConn.server.findUpgrader(request.headers)!=null;
+    }
+
+    Goto onRequest(ImplHttpRequest request)
+    {
+        if(exclusive(hConn, request))
+        {
+            if(isIdle())
+                return hConn.handleGoodRequest(request);
+
+            held = request;
+            return pause(Goto.reqHeld);
+        }
+
+        Exchange ex = new Exchange(hConn.reqId, request);
+        inflight.addLast(ex);
+
+        if(hConn.server.tcpServer.isCurrentSelectorOverloaded())
+        {
+            // the response is Connection:close; no more requests will be read.
+            ex.ready = true;
+            ex.response = ImplConn.overloadedResponse(hConn.server);
+            if(!outboundBusy && inflight.peekFirst()==ex)
+                return startNext();
+            return Goto.NA;
+        }
+
+        dispatch(ex);
+
+        if(_HttpUtil.containsToken(request.headers.xGet(Headers.Connection), "close"))
+            return Goto.NA;  // its response will be the last one. stop reading.
+
+        if(request.entity==null)  // common
+            return Goto.awaitReq;
+
+        // the next request can't be read until this request body is read, by the handler or by us.
+        ImplHttpEntity.Body body = request.entity.body;
+        if(body.eof())
+            return Goto.awaitReq;
+
+        body.awaitEof = new Promise<>();
+        body.awaitEof.onCompletion(result -> hConn.jump(afterBodyEof(ex, result)));
+        return Goto.NA;
+    }
+
+    void dispatch(Exchange ex)
+    {
+        ImplHttpRequest request = ex.request;
+
+        if(!ImplConn.FIBER)
+        {
+            ImplConn.invokeHandler(hConn.server, request)
+                .onCompletion(result -> hConn.jump(handlerDone(ex, result)));
+            return;
+        }
+
+        // each handler runs in its own fiber, with its own fiber locals, e.g. CookieJar.
+        Fiber<HttpResponse> fiber = new Fiber<>(hConn.tcpConn.getExecutor(), hConn.fiberName(request), ()->
+        {
+            HttpRequest.setFiberLocal(request);
+
+            return ImplConn.invokeHandler(hConn.server, request).transform(result -> {
+                ex.jarCookies = CookieJar.getAllChanges2(); // while we are still in the handler fiber
+                return result;
+            });
+        });
+        fiber.join().onCompletion(result -> hConn.jump(handlerDone(ex, result)));
+    }
+
+    Goto resumeHeld()
+    {
+        ImplHttpRequest request = held;
+        held = null;
+        return hConn.handleGoodRequest(request);
+    }
+
+    Goto afterBodyEof(Exchange ex, Result<Void> result)
+    {
+        if(result.isSuccess())
+            return Goto.awaitReq;
+
+        // read error, or closed by handler before EOF. drain after handler is done.
+        if(!ex.ready)
+        {
+            ex.drainOnDone = true;
+            return Goto.NA;
+        }
+        return drainBody(ex);
+    }
+
+    Goto drainBody(Exchange ex)
+    {
+        ex.request.entity.body
+            .drain()
+            .timeout(hConn.conf.drainRequestTimeout)
+            .onCompletion(result -> hConn.jump(afterDrain(result)));
+        return Goto.NA;
+    }
+
+    Goto afterDrain(Result<Void> result)
+    {
+        Exception e = result.getException();
+        if(e==null)
+            return Goto.awaitReq;
+
+        HttpServer.logErrorOrDebug(e);
+        abortReason = "failed to drain request body: ";
+        abortError = e;
+        if(isIdle())
+            return abort();
+        return pause(Goto.reqAbort);
+    }
+
+    Goto abort()
+    {
+        return hConn.close(null, abortReason, abortError);
+    }
+
+    // pipe is busy. await the next request without timeout, and without `accepting`,
+    // since the connection is not idle. see resumeInbound()
+    Goto awaitRequest()
+    {
+        if(inflight.size()>=window)
+            return pause(Goto.awaitReq);
+
+        Async<Void> awaitReadable = hConn.tcpConn.awaitReadable(/*accepting*/false);
+        Result<Void> result = awaitReadable.pollResult();
+        if(result!=null)
+            return onReadable(result);
+
+        inAwait = awaitReadable;
+        awaitReadable.onCompletion(r -> hConn.jump(onReadable(r)));
+        return Goto.NA;
+    }
+
+    Goto onReadable(Result<Void> result)
+    {
+        inAwait = null;
+
+        if(result.isSuccess())
+            return Goto.reqNew;
+
+        // cancelled by resumeInbound() because pipe became idle; or some error.
+        // await again, as idle or after idle; in the latter case, the error will likely recur, and close the conn.
+        if(isIdle())
+            return Goto.awaitReq;
+        return pause(Goto.awaitReq);
+    }
+
+    // called by outbound after an exchange is done.
+    void resumeInbound()
+    {
+        if(paused!=null)
+        {
+            if(isIdle() || (paused==Goto.awaitReq && inflight.size()<window))
+            {
+                Goto g = paused;
+                paused = null;
+                hConn.executor().execute(() -> hConn.jump(g));
+            }
+        }
+        else if(inAwait!=null && isIdle())
+        {
+            // await again with `accepting` and keepAliveTimeout
+            inAwait.cancel(new _ControlException("pipe is idle"));
+        }
+    }
+
+    // [outbound] ---------------------------------------------------------------------------------
+
+    Goto handlerDone(Exchange ex, Result<HttpResponse> result)
+    {
+        try
+        {
+            ex.response = result.getOrThrow();
+            if(ex.response==null)
+                throw new NullPointerException("response==null");
+        }
+        catch (Exception e)
+        {
+            ex.response = HttpResponse.internalError(e);
+        }
+        ex.ready = true;
+
+        if(ex.request.entity!=null)
+        {
+            // forbid app from reading request body from now on. it's drained by inbound if necessary
+            ex.request.entity.body.close();
+
+            if(ex.drainOnDone)
+            {
+                ex.drainOnDone = false;
+                drainBody(ex); // inbound flow continues from there, in a callback
+            }
+        }
+
+        if(outboundBusy || inflight.peekFirst()!=ex)
+            return Goto.NA;  // wait for previous responses to be written
+
+        return startNext();
+    }
+
+    Goto startNext()
+    {
+        Exchange ex = inflight.peekFirst();
+        outboundBusy = true;
+
+        hConn.request = ex.request;
+        hConn.response = ex.response;
+        hConn.respReqId = ex.id;
+        ex.response = null;
+
+        if(ImplConn.FIBER) HttpRequest.setFiberLocal(ex.request);
+        if(ImplConn.FIBER) Fiber.current().setName(hConn.fiberName(ex.request));
+
+        return hConn.writeResp(ex.jarCookies);
+    }
+
+    // is the response after the current one ready? if so, the current one doesn't need to be flushed.
+    boolean nextReady()
+    {
+        if(!outboundBusy || inflight.size()<2)
+            return false;
+        Iterator<Exchange> iter = inflight.iterator();
+        iter.next();
+        return iter.next().ready;
+    }
+
+    // the current response is written, and it's not the last one
+    Goto responseEnded()
+    {
+        inflight.removeFirst();
+        outboundBusy = false;
+
+        resumeInbound();
+
+        Exchange next = inflight.peekFirst();
+        if(next!=null && next.ready)
+            return startNext();
+
+        return Goto.NA;
+    }
+}
@@ -4,6 +4,7 @@ import _bayou._http._HttpUtil;
 import _bayou._tmp._Array2ReadOnlyList;
 import _bayou._http._HttpHostPort;
 import _bayou._tmp._JobTimeout;
+import _bayou._tmp._Tcp;
 import _bayou._str._StrUtil;
 import bayou.async.Async;
 import bayou.mime.ContentType;
@@ -92,7 +93,7 @@ class ImplConnReq
         ByteBuffer bb;
         try
         {
-            bb = hConn.tcpConn.read();
+            bb = _Tcp.readPooled(hConn.tcpConn); // bb may be lent; must be released or unread below
         }
         catch(Exception t)
         {
@@ -117,12 +118,19 @@ class ImplConnReq
 
         // we have some bytes we can parse
 
+        if(request==null && hConn.reqId==1 && hConn.conf.http2 && ImplH2Conn.isPreface(hConn.tcpConn, bb))
+        {
+            // HTTP/2 with prior knowledge. the preface is read again by ImplH2Conn
+            hConn.tcpConn.unread(bb);
+            return finish(Goto.reqH2);
+        }
+
         if(request==null) // beginning bytes
         {
             request = new ImplHttpRequest();
             request.ip = hConn.tcpConn.getPeerIp();
             request.isHttps = hConn.tcpConn instanceof SslConnection;
-            request.certs = certs();
+            request.certs = certs(hConn.tcpConn);
             parser = new ImplReqHeadParser(request);
 
             if(hConn.dump!=null)
@@ -143,8 +151,8 @@ class ImplConnReq
             toDump.add(new String(chars));
         }
 
-        if(bb.hasRemaining())
-            hConn.tcpConn.unread(bb);
+        _Tcp.unreadOrRelease(hConn.tcpConn, bb);
+        // the parser copied whatever it needs from bb
 
         if(parser.state == ImplReqHeadParser.State.DONE)
         {
@@ -340,12 +348,12 @@ class ImplConnReq
     }
 
 
-    List<X509Certificate> certs()
+    static List<X509Certificate> certs(TcpConnection tcpConn)
     {
-        if(!(hConn.tcpConn instanceof SslConnection))
+        if(!(tcpConn instanceof SslConnection))
             return Collections.emptyList();
 
-        SSLSession session = ((SslConnection)hConn.tcpConn).getSslSession();
+        SSLSession session = ((SslConnection)tcpConn).getSslSession();
 
         Certificate[] array;
         try
@@ -1,7 +1,11 @@
 package bayou.http;
 
+import _bayou._bytes._FileRegionSource;
+import _bayou._http._HttpDate;
 import _bayou._str._CharSeqSaver;
 import _bayou._str._StringSaver;
+import _bayou._tmp._FileTransfer;
+import _bayou._tmp._KnownHeaders;
 import _bayou._tmp._Util;
 import bayou.async.Async;
 import bayou.bytes.ByteSource;
@@ -14,6 +18,9 @@ import bayou.util.Result;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.time.Duration;
 import java.util.List;
 import java.util.Map;
@@ -87,9 +94,144 @@ class ImplConnResp
         // even if head is bigger than confResponseBufferSize (unlikely).
         // head will be pushed to client promptly, even if body read stalls.
 
+        _FileRegionSource.Region region = fileRegion();
+        if(region!=null)
+            return openFile(region);
+
         return pipeBody();
     }
 
+    // zero-copy of file body ---------------------------------------------------------------------
+    // if the body is a region of a file, it's sent by FileChannel.transferTo() on a plain connection.
+    // not for SSL (bytes must be encrypted), or gzip/chunked (body isn't a plain file region).
+    // the body source is never read; it's closed at the end, as usual.
+
+    FileChannel file;
+    long filePosition;
+    long fileRemaining;
+
+    _FileRegionSource.Region fileRegion()
+    {
+        if(!hConn.conf.sendFile || bodyLength<=0)
+            return null;
+        if(!(body instanceof _FileRegionSource))
+            return null;
+        if(!(tcpConn instanceof _FileTransfer) || !((_FileTransfer)tcpConn).canTransferFile())
+            return null;
+
+        _FileRegionSource.Region region = ((_FileRegionSource)body).fileRegion();
+        if(region==null)
+            return null;
+        if(region.count!=-1 && region.count<bodyLength)
+            return null; // let pipeBody() report the inconsistency
+        return region;
+    }
+
+    Goto openFile(_FileRegionSource.Region region)
+    {
+        // open() may block; don't do it on the selector thread.
+        Async.execute(() -> FileChannel.open(region.path, StandardOpenOption.READ))
+            .onCompletion(result -> hConn.jump(fileOpened(result, region)));
+        return Goto.NA;
+    }
+
+    Goto fileOpened(Result<FileChannel> result, _FileRegionSource.Region region)
+    {
+        if(result.isFailure()) // fall back to reading the body, which will likely fail the same way
+            return Goto.respPipeBody;
+
+        file = result.getValue();
+        if(hConn.tcpConn==null) // conn closed meanwhile. this is a late callback.
+        {
+            closeBody();
+            return Goto.NA;
+        }
+
+        filePosition = region.position;
+        fileRemaining = bodyLength;
+        try
+        {
+            long fileSize = file.size();
+            if(fileSize < filePosition+bodyLength) // e.g. file was modified
+                return bodyErr(new IllegalStateException(
+                    "response entity body is shorter than Content-Length. file size="+fileSize));
+        }
+        catch (Exception e)
+        {
+            return bodyErr(e);
+        }
+        return Goto.respSendFile;
+    }
+
+    Goto sendFile()
+    {
+        _FileTransfer transfer = (_FileTransfer)tcpConn;
+        long sent = 0;
+        try
+        {
+            // head first
+            if(tcpConn_write()>0)
+                return tcpConn_uponWritable(Goto.respSendFile);
+
+            // don't hog the selector thread for a huge file on a fast link.
+            // after a portion, await writable, which gives other connections a turn.
+            long portion = Math.max(highMark, 1024*1024);
+            while(fileRemaining>0 && sent<portion)
+            {
+                long n = transfer.transferFile(file, filePosition, Math.min(fileRemaining, portion-sent)); // throws
+                if(n==0) // socket not writable; or file truncated, then transferTo() returns 0 forever
+                {
+                    long fileSize = file.size(); // throws
+                    if(fileSize<=filePosition) // as FileByteSource would fail on EOF
+                        return bodyErr(new IOException("file was truncated. file size="+fileSize));
+                    break;
+                }
+                filePosition += n;
+                fileRemaining -= n;
+                sent += n;
+            }
+        }
+        catch (Exception e)
+        {
+            return connErr(e);
+        }
+        finally
+        {
+            bodyTotal += sent;
+            writtenTotal += sent;
+        }
+
+        if(fileRemaining>0)
+        {
+            if(sent==0)
+            {
+                try
+                {   checkThroughput();   }
+                catch (Exception e)
+                {   return connErr(e);   }
+            }
+            return tcpConn_uponWritable(Goto.respSendFile);
+        }
+
+        closeBody(); // closes file too
+        return toFlushAll();
+    }
+
+    void closeFile()
+    {
+        if(file==null)
+            return;
+        try
+        {
+            file.close();
+        }
+        catch (Exception e) // not supposed to happen
+        {
+            HttpServer.logErrorOrDebug(e);
+        }
+        file = null;
+    }
+
     void printHead(_StringSaver out)
     {
         //noinspection StringEquality
@@ -114,11 +256,125 @@ class ImplConnResp
         out.append("\r\n");
     }
 
+    // encode the head directly to bytes, without an intermediary char sequence.
+    // the status line is pre-encoded in HttpStatus, well-known header names are pre-encoded in _KnownHeaders,
+    // the Date line is cached per second. the total length is computed first, so that there's only
+    // one allocation for the bytes.
+    // the array is heap based; tcpConn copies it to its pooled direct buffer anyway, and we don't know
+    // when it's written, therefore we can't use our own pooled buffer.
     void queueHead()
     {
-        _StringSaver chars = new _StringSaver( 64 );
-        printHead(chars);
-        tcpConn.queueWrite(ByteBuffer.wrap(chars.toLatin1Bytes()));
+        byte[] statusLine = status.line11;
+        //noinspection StringEquality
+        boolean v11 = httpVersion=="1.1" || httpVersion.equals("1.1");
+        if(!v11 && !httpVersion.equals("1.0"))  // unlikely. status chars were checked
+            statusLine = ("HTTP/"+httpVersion+" "+status.string+"\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+        int length = statusLine.length + 2;
+        for(Map.Entry<String,String> nv : headers.entrySet())
+            length += headerLength(nv.getKey(), nv.getValue());
+
+        String[] cookieStrings = null;
+        if(!cookies.isEmpty())
+        {
+            cookieStrings = new String[cookies.size()];
+            for(int i=0; i<cookieStrings.length; i++)
+            {
+                cookieStrings[i] = cookies.get(i).toSetCookieString(); // guaranteed to be valid
+                length += headerLength(Headers.Set_Cookie, cookieStrings[i]);
+            }
+        }
+
+        byte[] bytes = new byte[length];
+        System.arraycopy(statusLine, 0, bytes, 0, statusLine.length);
+        if(!v11 && statusLine==status.line11)
+            bytes[7] = '0';  // HTTP/1.0
+        int j = statusLine.length;
+
+        for(Map.Entry<String,String> nv : headers.entrySet())
+            j = putHeader(bytes, j, nv.getKey(), nv.getValue());
+            // name value have been sanity checked. we'll not generate syntactically incorrect header.
+
+        if(cookieStrings!=null)
+            for(String cookieString : cookieStrings)
+                j = putHeader(bytes, j, Headers.Set_Cookie, cookieString);
+
+        bytes[j++] = '\r';
+        bytes[j++] = '\n';
+        assert j==length;
+
+        tcpConn.queueWrite(ByteBuffer.wrap(bytes));
+    }
+
+    static int headerLength(String name, String value)
+    {
+        // "Name: Value\r\n". same for pre-encoded name or Date line
+        return name.length() + 2 + value.length() + 2;
+    }
+
+    static int putHeader(byte[] bytes, int j, String name, String value)
+    {
+        //noinspection StringEquality
+        if(name==Headers.Date)
+        {
+            byte[] dateLine = dateLine(value);
+            if(dateLine!=null)
+            {
+                System.arraycopy(dateLine, 0, bytes, j, dateLine.length);
+                return j+dateLine.length;
+            }
+        }
+
+        byte[] nameColon = _KnownHeaders.nameColonBytes(name);
+        if(nameColon!=null)
+        {
+            System.arraycopy(nameColon, 0, bytes, j, nameColon.length);
+            j += nameColon.length;
+        }
+        else
+        {
+            j = putLatin1(bytes, j, name);
+            bytes[j++] = ':';
+            bytes[j++] = ' ';
+        }
+        j = putLatin1(bytes, j, value);
+        bytes[j++] = '\r';
+        bytes[j++] = '\n';
+        return j;
+    }
+
+    static int putLatin1(byte[] bytes, int j, String str)
+    {
+        for(int i=0, L=str.length(); i<L; i++)
+            bytes[j++] = (byte)str.charAt(i);
+        return j;
+    }
+
+    // "Date: Fri, 23 Mar 2012 17:21:57 GMT\r\n", for the current second.
+    // all responses in the same second share the same value string from _HttpDate.getCurrStr().
+    static class DateLine
+    {
+        final String value;
+        final byte[] bytes;
+        DateLine(String value, byte[] bytes){ this.value=value; this.bytes=bytes; }
+    }
+    static volatile DateLine dateLine_volatile;
+
+    // null if value is not the current date string
+    static byte[] dateLine(String value)
+    {
+        DateLine dl = dateLine_volatile;
+        //noinspection StringEquality
+        if(dl!=null && dl.value==value)  // most likely
+            return dl.bytes;
+
+        //noinspection StringEquality
+        if(value!=_HttpDate.getCurrStr())  // app supplied Date, or the second just turned.
+            return null;
+
+        byte[] bytes = ("Date: "+value+"\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        dateLine_volatile = new DateLine(value, bytes);  // benign race
+        return bytes;
     }
 
     void dumpResp()
@@ -256,26 +512,29 @@ class ImplConnResp
 
         long remain = tcpConn.getWriteQueueSize();
         if(remain>0) // check throughput when write stalls
-        {
-            long timeSpent = System.currentTimeMillis() - writeT0 - readStallTime;  // exclude our read stall time.
-            // other than our read stall time, all overhead from us are included, and blamed on client.
-            // that should be fine on normal loads. on a busy system tho, it's unclear how to get accurate
-            // timeSpent that's fairly incurred by client.
-            // because the default min download throughput is quite low, if it's reached for many clients
-            // due to system overload, there is a big problem anyway.
-            // server probably should limit connections, so it never reaches such overload state.
-            // if server is willing to server many concurrent clients slowly, set a very low min download throughput.
-            if(timeSpent>10_000)  // don't check in the beginning
-            {
-                long minGoal = minThroughput * timeSpent / 1000;
-                if(writtenTotal < minGoal)
-                    throw new IOException("Client download throughput too low");  // as if network error
-            }
-        }
+            checkThroughput();
 
         return remain;
     }
 
+    void checkThroughput() throws IOException
+    {
+        long timeSpent = System.currentTimeMillis() - writeT0 - readStallTime;  // exclude our read stall time.
+        // other than our read stall time, all overhead from us are included, and blamed on client.
+        // that should be fine on normal loads. on a busy system tho, it's unclear how to get accurate
+        // timeSpent that's fairly incurred by client.
+        // because the default min download throughput is quite low, if it's reached for many clients
+        // due to system overload, there is a big problem anyway.
+        // server probably should limit connections, so it never reaches such overload state.
+        // if server is willing to server many concurrent clients slowly, set a very low min download throughput.
+        if(timeSpent>10_000)  // don't check in the beginning
+        {
+            long minGoal = minThroughput * timeSpent / 1000;
+            if(writtenTotal < minGoal)
+                throw new IOException("Client download throughput too low");  // as if network error
+        }
+    }
+
     Goto body_awaitReadComplete()
     {
         // note: non trivial time gap since we last checked it's completion status
@@ -335,10 +594,11 @@ class ImplConnResp
             tcpConn.queueWrite(TcpConnection.TCP_FIN);
         }
 
-        if(ImplConn.PIPELINE) // delay actual flush
+        if(!isLast && hConn.pipe!=null && hConn.pipe.nextReady())
         {
-            writtenTotal+=tcpConn.getWriteQueueSize();
-            hConn.flush=1;
+            // the next response is ready; it'll be queued after this one, and flushed together.
+            // count queued bytes as written, for the access log.
+            writtenTotal = headLength + bodyTotal;
             return Goto.respEnd;
         }
 
@@ -407,6 +667,8 @@ class ImplConnResp
 
     void closeBody()
     {
+        closeFile();
+
         if(body ==null) // was closed
             return;
 
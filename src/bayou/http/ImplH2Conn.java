@@ -0,0 +1,984 @@
+package bayou.http;
+
+import _bayou._http._HttpUtil;
+import _bayou._http._Hpack;
+import _bayou._tmp._ControlException;
+import _bayou._tmp._Tcp;
+import bayou.async.Async;
+import bayou.async.Fiber;
+import bayou.async.Promise;
+import bayou.mime.Headers;
+import bayou.ssl.SslConnection;
+import bayou.tcp.TcpConnection;
+import bayou.util.Result;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+
+// HTTP/2 connection. RFC 7540
+//
+// created instead of ImplConn if "h2" is negotiated through ALPN; or, on a plain connection, if the client starts
+// with the h2 preface (prior knowledge), or upgrades an HTTP/1.1 request with "Upgrade: h2c".
+//
+// all frames are processed on the connection fiber. each stream is an ImplH2Stream; its handler runs in its own
+// fiber, on the same executor. response bodies are also read and written on the connection fiber.
+//
+// inbound : read bytes -> parse frames -> dispatch to streams. it never waits for the app; request bodies are
+//           buffered in streams, bounded by our stream window (65535, the default INITIAL_WINDOW_SIZE).
+// outbound: frames are queued to tcpConn, and flushed in a task after the current event, so that frames generated
+//           in the same event go out in one write(). response DATA is queued only while the write queue is under
+//           conf.outboundBufferSize, and within the peer's flow control windows; otherwise the stream waits
+//           in `blocked`, till the queue is drained, or the windows are updated.
+//
+// not supported: server push, CONNECT, 100-continue, priorities (PRIORITY is ignored; streams are served
+// round-robin when blocked).
+class ImplH2Conn
+{
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    static final byte[] resp101Bytes = ("HTTP/1.1 101 Switching Protocols\r\n"
+        + "Connection: Upgrade\r\nUpgrade: h2c\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    // frame types
+    static final int DATA=0x0, HEADERS=0x1, PRIORITY=0x2, RST_STREAM=0x3, SETTINGS=0x4, PUSH_PROMISE=0x5,
+        PING=0x6, GOAWAY=0x7, WINDOW_UPDATE=0x8, CONTINUATION=0x9;
+    // flags
+    static final int END_STREAM=0x1, ACK=0x1, END_HEADERS=0x4, PADDED=0x8, PRIORITY_FLAG=0x20;
+    // error codes
+    static final int NO_ERROR=0x0, PROTOCOL_ERROR=0x1, INTERNAL_ERROR=0x2, FLOW_CONTROL_ERROR=0x3,
+        STREAM_CLOSED=0x5, FRAME_SIZE_ERROR=0x6, REFUSED_STREAM=0x7, CANCEL=0x8, COMPRESSION_ERROR=0x9,
+        ENHANCE_YOUR_CALM=0xb;
+    // settings
+    static final int SETTINGS_HEADER_TABLE_SIZE=0x1, SETTINGS_ENABLE_PUSH=0x2, SETTINGS_MAX_CONCURRENT_STREAMS=0x3,
+        SETTINGS_INITIAL_WINDOW_SIZE=0x4, SETTINGS_MAX_FRAME_SIZE=0x5, SETTINGS_MAX_HEADER_LIST_SIZE=0x6;
+
+    static final int DEFAULT_WINDOW = 65535;
+    static final int MAX_FRAME_SIZE = 16384;   // ours, the default. we don't raise it.
+    static final int HEADER_TABLE_SIZE = 4096; // ours, the default.
+
+    // a connection error. the connection is closed with GOAWAY
+    static class H2Error extends Exception
+    {
+        final int code;
+        H2Error(int code, String message)
+        {
+            super(message, null, false, false);
+            this.code = code;
+        }
+    }
+
+    final HttpServer server;
+    final HttpServerConf conf;
+    TcpConnection tcpConn; // null after close
+    final long connId;
+    final boolean isHttps;
+    final List<X509Certificate> certs;
+    Promise<Void> promise;
+    Executor executor;
+
+    final _Hpack.Decoder decoder = new _Hpack.Decoder(HEADER_TABLE_SIZE);
+    final _Hpack.Encoder encoder = new _Hpack.Encoder();
+
+    final HashMap<Integer,ImplH2Stream> streams = new HashMap<>();
+    // handlers of aborted streams, cancelled but not completed yet. they count against http2MaxConcurrentStreams,
+    // so that a client can't run unbounded handlers by HEADERS+RST_STREAM (rapid reset)
+    int nAbortedHandlers;
+    // streams reset by client in the current 1-second window. for http2MaxResetRate
+    int nResets;
+    long resetWindowStart;
+    int lastStreamId;  // highest stream id from client
+    boolean goaway;    // received GOAWAY from client; no new streams will come
+    boolean closing;   // no more streams or frames processed; close after flush, or closed
+    boolean finQueued; // GOAWAY and FIN are queued; nothing can be queued after them
+    String closeReason;
+
+    // peer settings
+    int peerInitialWindow = DEFAULT_WINDOW;
+    int peerMaxFrameSize = MAX_FRAME_SIZE;
+    long sendWindow = DEFAULT_WINDOW; // connection level
+
+    int recvUnacked; // connection level. bytes received, not yet returned to peer by WINDOW_UPDATE
+
+    // inbound bytes, not yet parsed
+    byte[] in = new byte[2*(9+MAX_FRAME_SIZE)];
+    int inStart, inEnd;
+    boolean prefaceRead;
+    boolean settingsReceived;
+
+    // header block being assembled, from HEADERS and CONTINUATION frames
+    int contStreamId; // 0 if none
+    int contFlags;
+    byte[] block = new byte[1024];
+    int blockLen;
+
+    Async<Void> readWait;
+    boolean readWaitAccepting;
+
+    boolean flushScheduled;
+    boolean awaitingWritable;
+    final ArrayDeque<ImplH2Stream> blocked = new ArrayDeque<>();
+
+    // upgradeRequest: if upgraded from HTTP/1.1 with "h2c", that request is stream 1, half closed (remote).
+    // upgradeSettings: the decoded HTTP2-Settings header of the upgrade request
+    ImplH2Conn(HttpServer server, TcpConnection tcpConn, ImplHttpRequest upgradeRequest, byte[] upgradeSettings)
+    {
+        this.server = server;
+        this.conf = server.conf;
+        this.tcpConn = tcpConn;
+        this.connId = tcpConn.getId();
+        this.isHttps = tcpConn instanceof SslConnection;
+        this.certs = ImplConnReq.certs(tcpConn);
+
+        if(ImplConn.FIBER)
+            startFiber(upgradeRequest, upgradeSettings); // do that in a named method, to have a better fiber trace.
+        else
+        {
+            executor = tcpConn.getExecutor();
+            start(upgradeRequest, upgradeSettings);
+        }
+    }
+
+    void startFiber(ImplHttpRequest upgradeRequest, byte[] upgradeSettings)
+    {
+        new Fiber<Void>(tcpConn.getExecutor(), fiberName(), ()->
+        {
+            promise = new Promise<>();
+            promise.fiberTracePop();
+
+            executor = Fiber.current().getExecutor();
+            start(upgradeRequest, upgradeSettings);
+
+            return promise;
+        });
+    }
+
+    void start(ImplHttpRequest upgradeRequest, byte[] upgradeSettings)
+    {
+        // server preface
+        byte[] settings = new byte[2*6];
+        putSetting(settings, 0, SETTINGS_MAX_CONCURRENT_STREAMS, conf.http2MaxConcurrentStreams);
+        putSetting(settings, 6, SETTINGS_MAX_HEADER_LIST_SIZE, conf.requestHeadTotalMaxLength);
+        queueFrame(SETTINGS, 0, 0, settings, 0, settings.length);
+
+        if(upgradeRequest!=null)
+        {
+            try
+            {
+                applySettings(upgradeSettings, 0, upgradeSettings.length);
+            }
+            catch (H2Error e)
+            {
+                goAway(e.code, "bad HTTP2-Settings: "+e.getMessage());
+                return;
+            }
+
+            lastStreamId = 1;
+            ImplH2Stream stream = new ImplH2Stream(this, 1);
+            streams.put(1, stream);
+            stream.onUpgrade(upgradeRequest);
+        }
+
+        flushLater();
+        read();
+    }
+
+    static void putSetting(byte[] bytes, int pos, int id, int value)
+    {
+        bytes[pos  ] = (byte)(id>>>8);
+        bytes[pos+1] = (byte)(id);
+        putInt(bytes, pos+2, value);
+    }
+
+    // h2c ----------------------------------------------------------------------------------------
+
+    // on a plain connection, does the client start with the h2 preface? bb: the first bytes read.
+    static boolean isPreface(TcpConnection tcpConn, ByteBuffer bb)
+    {
+        if(tcpConn instanceof SslConnection)  // over TLS, h2 must be negotiated through ALPN
+            return false;
+
+        int n = Math.min(bb.remaining(), PREFACE.length);
+        if(n<3) // "PRI"
+            return false;
+        int p = bb.position();
+        for(int i=0; i<n; i++)
+            if(bb.get(p+i)!=PREFACE[i])
+                return false;
+        return true;
+    }
+
+    // "Upgrade: h2c" on a plain connection. we don't upgrade if the request has a body.
+    static boolean isUpgrade(ImplConn hConn, ImplHttpRequest request)
+    {
+        if(!hConn.conf.http2 || hConn.tcpConn instanceof SslConnection)
+            return false;
+        if(!_HttpUtil.containsToken(request.headers.xGet(Headers.Upgrade), "h2c"))
+            return false;
+        if(request.headers.get("HTTP2-Settings")==null)
+            return false;
+        return request.entity==null || request.entity.body.eof();
+    }
+
+    // null if the header is malformed
+    static byte[] decodeSettingsHeader(String hv)
+    {
+        try
+        {
+            byte[] bytes = Base64.getUrlDecoder().decode(hv.trim());
+            return bytes.length%6==0 ? bytes : null;
+        }
+        catch (IllegalArgumentException e)
+        {
+            return null;
+        }
+    }
+
+
+    // [inbound] ----------------------------------------------------------------------------------
+
+    void read()
+    {
+        if(tcpConn==null || closing)
+            return;
+
+        ByteBuffer bb;
+        try
+        {
+            bb = _Tcp.readPooled(tcpConn); // bb may be lent
+        }
+        catch (Exception e)
+        {
+            HttpServer.logErrorOrDebug(e);  // most likely a checked network exception
+            close(null, "error while reading: ", e);
+            return;
+        }
+
+        if(bb==TcpConnection.STALL)
+        {
+            awaitReadable();
+            return;
+        }
+        if(bb==TcpConnection.TCP_FIN || bb==SslConnection.SSL_CLOSE_NOTIFY)
+        {
+            close(null, "closed by client", null);
+            return;
+        }
+
+        append(bb);
+        _Tcp.release(tcpConn, bb);
+
+        try
+        {
+            parseFrames();
+        }
+        catch (H2Error e)
+        {
+            goAway(e.code, e.getMessage());
+            return;
+        }
+
+        // more bytes may be available. to be fair to other connections, yield before reading again.
+        executor.execute(this::read);
+    }
+
+    void awaitReadable()
+    {
+        // if no stream is active, the connection is idle, subject to keepAliveTimeout and server accepting.
+        // otherwise, wait without timeout; streams have their own timeouts.
+        boolean accepting = streams.isEmpty();
+        Async<Void> wait = tcpConn.awaitReadable(accepting);
+        readWait = wait;
+        readWaitAccepting = accepting;
+        if(accepting)
+            wait = wait.timeout(conf.keepAliveTimeout);
+        wait.onCompletion(this::onReadable);
+    }
+
+    void onReadable(Result<Void> result)
+    {
+        readWait = null;
+        if(tcpConn==null || closing)
+            return;
+
+        Exception e = result.getException();
+        if(e==null)
+        {
+            read();
+            return;
+        }
+
+        if(e instanceof _ControlException) // cancelled by streamClosed(), the connection became idle
+        {
+            awaitReadable();
+            return;
+        }
+
+        if(e instanceof TimeoutException)
+        {
+            goAway(NO_ERROR, "keep alive timeout");
+            return;
+        }
+
+        HttpServer.logErrorOrDebug(e);
+        close(null, "error while waiting for frames: ", e);
+    }
+
+    void append(ByteBuffer bb)
+    {
+        int n = bb.remaining();
+        if(inEnd+n > in.length)
+        {
+            int len = inEnd-inStart;
+            if(len+n > in.length)
+            {
+                byte[] in2 = new byte[Math.max(in.length*2, len+n)];
+                System.arraycopy(in, inStart, in2, 0, len);
+                in = in2;
+            }
+            else
+                System.arraycopy(in, inStart, in, 0, len);
+            inStart = 0;
+            inEnd = len;
+        }
+        bb.get(in, inEnd, n);
+        inEnd += n;
+    }
+
+    void parseFrames() throws H2Error
+    {
+        if(!prefaceRead)
+        {
+            int n = Math.min(inEnd-inStart, PREFACE.length);
+            for(int i=0; i<n; i++)
+                if(in[inStart+i]!=PREFACE[i])
+                    throw new H2Error(PROTOCOL_ERROR, "invalid connection preface");
+            if(n<PREFACE.length)
+                return;
+            inStart += PREFACE.length;
+            prefaceRead = true;
+        }
+
+        while(inEnd-inStart>=9 && tcpConn!=null && !closing)
+        {
+            int length = (in[inStart]&0xff)<<16 | (in[inStart+1]&0xff)<<8 | (in[inStart+2]&0xff);
+            if(length>MAX_FRAME_SIZE)
+                throw new H2Error(FRAME_SIZE_ERROR, "frame too large: "+length);
+            if(inEnd-inStart < 9+length)
+                break;
+
+            int type = in[inStart+3]&0xff;
+            int flags = in[inStart+4]&0xff;
+            int streamId = getInt(in, inStart+5) & 0x7fff_ffff;
+            int p = inStart+9;
+            inStart += 9+length;
+
+            onFrame(type, flags, streamId, p, length);
+        }
+
+        if(inStart==inEnd)
+            inStart = inEnd = 0;
+    }
+
+    // payload is in[p, p+len), valid only during the call.
+    void onFrame(int type, int flags, int streamId, int p, int len) throws H2Error
+    {
+        if(contStreamId!=0 && type!=CONTINUATION)
+            throw new H2Error(PROTOCOL_ERROR, "expected CONTINUATION");
+        if(!settingsReceived && type!=SETTINGS)
+            throw new H2Error(PROTOCOL_ERROR, "expected SETTINGS");
+
+        switch(type)
+        {
+            case DATA          : onData(flags, streamId, p, len); break;
+            case HEADERS       : onHeaders(flags, streamId, p, len); break;
+            case PRIORITY      : onPriority(streamId, len); break;
+            case RST_STREAM    : onRstStream(streamId, p, len); break;
+            case SETTINGS      : onSettings(flags, streamId, p, len); break;
+            case PUSH_PROMISE  : throw new H2Error(PROTOCOL_ERROR, "PUSH_PROMISE from client");
+            case PING          : onPing(flags, streamId, p, len); break;
+            case GOAWAY        : onGoAway(streamId, len); break;
+            case WINDOW_UPDATE : onWindowUpdate(streamId, p, len); break;
+            case CONTINUATION  : onContinuation(flags, streamId, p, len); break;
+            default: break; // unknown frame types are ignored
+        }
+    }
+
+    void onSettings(int flags, int streamId, int p, int len) throws H2Error
+    {
+        if(streamId!=0)
+            throw new H2Error(PROTOCOL_ERROR, "SETTINGS on a stream");
+        if((flags&ACK)!=0)
+        {
+            if(len!=0)
+                throw new H2Error(FRAME_SIZE_ERROR, "SETTINGS ack with payload");
+            return;
+        }
+        if(len%6!=0)
+            throw new H2Error(FRAME_SIZE_ERROR, "SETTINGS length: "+len);
+
+        applySettings(in, p, len);
+        settingsReceived = true;
+
+        queueFrame(SETTINGS, ACK, 0, null, 0, 0);
+        flushLater();
+    }
+
+    void applySettings(byte[] bytes, int p, int len) throws H2Error
+    {
+        for(int end=p+len; p<end; p+=6)
+        {
+            int id = (bytes[p]&0xff)<<8 | (bytes[p+1]&0xff);
+            int value = getInt(bytes, p+2); // unsigned; negative if >2^31-1
+            switch(id)
+            {
+                case SETTINGS_ENABLE_PUSH:
+                    if(value!=0 && value!=1)
+                        throw new H2Error(PROTOCOL_ERROR, "SETTINGS_ENABLE_PUSH: "+value);
+                    break; // we don't push anyway
+
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if(value<0)
+                        throw new H2Error(FLOW_CONTROL_ERROR, "SETTINGS_INITIAL_WINDOW_SIZE too large");
+                    int delta = value - peerInitialWindow;
+                    peerInitialWindow = value;
+                    for(ImplH2Stream stream : streams.values())
+                    {
+                        stream.sendWindow += delta;
+                        if(stream.sendWindow>Integer.MAX_VALUE)
+                            throw new H2Error(FLOW_CONTROL_ERROR, "stream window overflow");
+                    }
+                    if(delta>0)
+                        wakeBlocked();
+                    break;
+
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if(value<16384 || value>16777215)
+                        throw new H2Error(PROTOCOL_ERROR, "SETTINGS_MAX_FRAME_SIZE: "+value);
+                    peerMaxFrameSize = value;
+                    break;
+
+                default:
+                    // SETTINGS_HEADER_TABLE_SIZE: our encoder doesn't use the dynamic table.
+                    // SETTINGS_MAX_CONCURRENT_STREAMS: limits pushes only, which we don't do.
+                    // SETTINGS_MAX_HEADER_LIST_SIZE: advisory.
+                    // unknown settings are ignored.
+                    break;
+            }
+        }
+    }
+
+    void onPing(int flags, int streamId, int p, int len) throws H2Error
+    {
+        if(streamId!=0)
+            throw new H2Error(PROTOCOL_ERROR, "PING on a stream");
+        if(len!=8)
+            throw new H2Error(FRAME_SIZE_ERROR, "PING length: "+len);
+        if((flags&ACK)!=0) // we don't send pings
+            return;
+
+        queueFrame(PING, ACK, 0, in, p, 8);
+        flushLater();
+    }
+
+    void onGoAway(int streamId, int len) throws H2Error
+    {
+        if(streamId!=0)
+            throw new H2Error(PROTOCOL_ERROR, "GOAWAY on a stream");
+        if(len<8)
+            throw new H2Error(FRAME_SIZE_ERROR, "GOAWAY length: "+len);
+
+        // client won't start new streams. existing streams are served to completion.
+        goaway = true;
+        if(streams.isEmpty())
+            goAway(NO_ERROR, "GOAWAY from client");
+    }
+
+    void onPriority(int streamId, int len) throws H2Error
+    {
+        if(streamId==0)
+            throw new H2Error(PROTOCOL_ERROR, "PRIORITY on connection");
+        if(len!=5)
+            throw new H2Error(FRAME_SIZE_ERROR, "PRIORITY length: "+len);
+        // ignored
+    }
+
+    void onRstStream(int streamId, int p, int len) throws H2Error
+    {
+        if(streamId==0)
+            throw new H2Error(PROTOCOL_ERROR, "RST_STREAM on connection");
+        if(len!=4)
+            throw new H2Error(FRAME_SIZE_ERROR, "RST_STREAM length: "+len);
+        if(streamId>lastStreamId)
+            throw new H2Error(PROTOCOL_ERROR, "RST_STREAM on idle stream");
+
+        ImplH2Stream stream = streams.get(streamId);
+        if(stream==null) // closed
+            return;
+
+        long now = System.currentTimeMillis();
+        if(now-resetWindowStart>=1000)
+        {
+            resetWindowStart = now;
+            nResets = 0;
+        }
+        if(++nResets>conf.http2MaxResetRate)
+            throw new H2Error(ENHANCE_YOUR_CALM, "too many streams reset by client");
+
+        stream.abort("reset by client, error code "+getInt(in, p));
+    }
+
+    void onWindowUpdate(int streamId, int p, int len) throws H2Error
+    {
+        if(len!=4)
+            throw new H2Error(FRAME_SIZE_ERROR, "WINDOW_UPDATE length: "+len);
+        int increment = getInt(in, p) & 0x7fff_ffff;
+
+        if(streamId==0)
+        {
+            if(increment==0)
+                throw new H2Error(PROTOCOL_ERROR, "WINDOW_UPDATE increment 0");
+            sendWindow += increment;
+            if(sendWindow>Integer.MAX_VALUE)
+                throw new H2Error(FLOW_CONTROL_ERROR, "connection window overflow");
+            wakeBlocked();
+            return;
+        }
+
+        ImplH2Stream stream = streams.get(streamId);
+        if(stream==null) // closed
+            return;
+        if(increment==0)
+        {
+            stream.reset(PROTOCOL_ERROR, "WINDOW_UPDATE increment 0");
+            return;
+        }
+        stream.sendWindow += increment;
+        if(stream.sendWindow>Integer.MAX_VALUE)
+        {
+            stream.reset(FLOW_CONTROL_ERROR, "stream window overflow");
+            return;
+        }
+        if(stream.blocked)
+        {
+            blocked.remove(stream);
+            stream.blocked = false;
+            stream.pumpBody();
+        }
+    }
+
+    void onHeaders(int flags, int streamId, int p, int len) throws H2Error
+    {
+        if(streamId==0 || streamId%2==0)
+            throw new H2Error(PROTOCOL_ERROR, "HEADERS on invalid stream "+streamId);
+
+        int end = p+len;
+        int pad = 0;
+        if((flags&PADDED)!=0)
+        {
+            if(len<1)
+                throw new H2Error(FRAME_SIZE_ERROR, "HEADERS length: "+len);
+            pad = in[p++]&0xff;
+        }
+        if((flags&PRIORITY_FLAG)!=0)
+            p += 5; // ignored
+        if(p+pad>end)
+            throw new H2Error(PROTOCOL_ERROR, "HEADERS padding too large");
+        end -= pad;
+
+        contStreamId = streamId;
+        contFlags = flags;
+        blockLen = 0;
+        appendBlock(p, end-p);
+
+        if((flags&END_HEADERS)!=0)
+            endHeaders();
+    }
+
+    void onContinuation(int flags, int streamId, int p, int len) throws H2Error
+    {
+        if(contStreamId==0 || streamId!=contStreamId)
+            throw new H2Error(PROTOCOL_ERROR, "unexpected CONTINUATION");
+
+        appendBlock(p, len);
+
+        if((flags&END_HEADERS)!=0)
+            endHeaders();
+    }
+
+    void appendBlock(int p, int len) throws H2Error
+    {
+        if(blockLen+len > conf.requestHeadTotalMaxLength)
+            throw new H2Error(ENHANCE_YOUR_CALM, "header block exceeds requestHeadTotalMaxLength");
+        if(blockLen+len > block.length)
+            block = java.util.Arrays.copyOf(block, Math.max(block.length*2, blockLen+len));
+        System.arraycopy(in, p, block, blockLen, len);
+        blockLen += len;
+    }
+
+    void endHeaders() throws H2Error
+    {
+        int streamId = contStreamId;
+        boolean endStream = (contFlags&END_STREAM)!=0;
+        contStreamId = 0;
+
+        // always decode, to keep the decoder's dynamic table in sync, even if the stream is to be ignored
+        ArrayList<String> fields = new ArrayList<>();
+        int[] size = {0};
+        try
+        {
+            decoder.decode(block, 0, blockLen, (name, value) ->
+            {
+                size[0] += 32 + name.length() + value.length();
+                if(size[0]<=conf.requestHeadTotalMaxLength)
+                {
+                    fields.add(name);
+                    fields.add(value);
+                }
+            });
+        }
+        catch (_Hpack.HpackException e)
+        {
+            throw new H2Error(COMPRESSION_ERROR, e.getMessage());
+        }
+        boolean tooLarge = size[0]>conf.requestHeadTotalMaxLength;
+
+        ImplH2Stream stream = streams.get(streamId);
+        if(stream!=null) // trailers. ignored
+        {
+            if(stream.remoteEnd)
+                stream.reset(STREAM_CLOSED, "HEADERS after END_STREAM");
+            else if(!endStream)
+                stream.reset(PROTOCOL_ERROR, "trailers without END_STREAM");
+            else
+                stream.onRemoteEnd();
+            return;
+        }
+
+        if(streamId<=lastStreamId) // closed stream, e.g. reset by us. ignore
+            return;
+        lastStreamId = streamId;
+
+        if(goaway)
+            return;
+
+        if(streams.size()+nAbortedHandlers>=conf.http2MaxConcurrentStreams)
+        {
+            queueRstStream(streamId, REFUSED_STREAM);
+            flushLater();
+            return;
+        }
+
+        stream = new ImplH2Stream(this, streamId);
+        streams.put(streamId, stream);
+        stream.onHeaders(fields, tooLarge, endStream);
+    }
+
+    void onData(int flags, int streamId, int p, int len) throws H2Error
+    {
+        if(streamId==0)
+            throw new H2Error(PROTOCOL_ERROR, "DATA on connection");
+
+        int end = p+len;
+        if((flags&PADDED)!=0)
+        {
+            if(len<1)
+                throw new H2Error(FRAME_SIZE_ERROR, "DATA length: "+len);
+            int pad = in[p++]&0xff;
+            if(p+pad>end)
+                throw new H2Error(PROTOCOL_ERROR, "DATA padding too large");
+            end -= pad;
+        }
+
+        // the whole frame counts against flow control, including padding.
+        // the connection window is returned to the peer as soon as bytes are received;
+        // buffering is bounded by stream windows.
+        if(len > DEFAULT_WINDOW - recvUnacked)
+            throw new H2Error(FLOW_CONTROL_ERROR, "connection window exceeded");
+        recvUnacked += len;
+        if(recvUnacked>=DEFAULT_WINDOW/2)
+        {
+            queueWindowUpdate(0, recvUnacked);
+            recvUnacked = 0;
+            flushLater();
+        }
+
+        ImplH2Stream stream = streams.get(streamId);
+        if(stream==null)
+        {
+            if(streamId>lastStreamId)
+                throw new H2Error(PROTOCOL_ERROR, "DATA on idle stream");
+            return; // closed stream, e.g. reset by us. ignore
+        }
+        if(stream.remoteEnd)
+        {
+            stream.reset(STREAM_CLOSED, "DATA after END_STREAM");
+            return;
+        }
+
+        stream.onData(in, p, end-p, len, (flags&END_STREAM)!=0);
+    }
+
+    // called by stream, after it's done (response written, or reset)
+    void streamClosed(ImplH2Stream stream)
+    {
+        streams.remove(stream.id);
+        if(stream.blocked)
+        {
+            blocked.remove(stream);
+            stream.blocked = false;
+        }
+
+        if(!streams.isEmpty() || tcpConn==null || closing)
+            return;
+
+        if(goaway)
+        {
+            goAway(NO_ERROR, "GOAWAY from client");
+            return;
+        }
+
+        // connection is idle now. await readable again, with `accepting` and keepAliveTimeout
+        if(readWait!=null && !readWaitAccepting)
+            readWait.cancel(new _ControlException("idle"));
+    }
+
+
+    // [outbound] ---------------------------------------------------------------------------------
+
+    static ByteBuffer frameHead(int length, int type, int flags, int streamId)
+    {
+        ByteBuffer bb = ByteBuffer.allocate(9);
+        bb.put((byte)(length>>>16)).put((byte)(length>>>8)).put((byte)length)
+            .put((byte)type).put((byte)flags).putInt(streamId);
+        bb.flip();
+        return bb;
+    }
+
+    void queueFrame(int type, int flags, int streamId, byte[] payload, int off, int len)
+    {
+        if(tcpConn==null || finQueued)
+            return;
+
+        ByteBuffer bb = ByteBuffer.allocate(9+len);
+        bb.put((byte)(len>>>16)).put((byte)(len>>>8)).put((byte)len)
+            .put((byte)type).put((byte)flags).putInt(streamId);
+        if(len>0)
+            bb.put(payload, off, len);
+        bb.flip();
+        tcpConn.queueWrite(bb);
+    }
+
+    // HEADERS, followed by CONTINUATION if the block is larger than peer's max frame size
+    void queueHeaders(int streamId, byte[] block, int len, boolean endStream)
+    {
+        int n = Math.min(len, peerMaxFrameSize);
+        int flags = (endStream? END_STREAM : 0) | (n==len? END_HEADERS : 0);
+        queueFrame(HEADERS, flags, streamId, block, 0, n);
+        for(int p=n; p<len; p+=n)
+        {
+            n = Math.min(len-p, peerMaxFrameSize);
+            queueFrame(CONTINUATION, p+n==len? END_HEADERS : 0, streamId, block, p, n);
+        }
+    }
+
+    // `data` is owned by tcpConn afterwards
+    void queueData(int streamId, ByteBuffer data, boolean endStream)
+    {
+        if(tcpConn==null || finQueued)
+            return;
+
+        tcpConn.queueWrite(frameHead(data.remaining(), DATA, endStream? END_STREAM : 0, streamId));
+        if(data.hasRemaining())
+            tcpConn.queueWrite(data);
+    }
+
+    void queueRstStream(int streamId, int code)
+    {
+        byte[] payload = new byte[4];
+        putInt(payload, 0, code);
+        queueFrame(RST_STREAM, 0, streamId, payload, 0, 4);
+    }
+
+    void queueWindowUpdate(int streamId, int increment)
+    {
+        byte[] payload = new byte[4];
+        putInt(payload, 0, increment);
+        queueFrame(WINDOW_UPDATE, 0, streamId, payload, 0, 4);
+    }
+
+    // can write more DATA?
+    boolean writable()
+    {
+        return tcpConn!=null && !finQueued && tcpConn.getWriteQueueSize()<=conf.outboundBufferSize;
+    }
+
+    void flushLater()
+    {
+        if(flushScheduled || awaitingWritable || tcpConn==null)
+            return;
+        flushScheduled = true;
+        executor.execute(this::flush);
+    }
+
+    void flush()
+    {
+        flushScheduled = false;
+        if(tcpConn==null)
+            return;
+
+        long remaining;
+        try
+        {
+            tcpConn.write();
+            remaining = tcpConn.getWriteQueueSize();
+        }
+        catch (Exception e)
+        {
+            HttpServer.logErrorOrDebug(e);
+            close(null, "error while writing: ", e);
+            return;
+        }
+
+        if(remaining>0)
+        {
+            awaitingWritable = true;
+            tcpConn.awaitWritable().timeout(conf.writeTimeout)
+                .onCompletion(result -> {
+                    awaitingWritable = false;
+                    if(tcpConn==null)
+                        return;
+                    Exception e = result.getException();
+                    if(e!=null)
+                    {
+                        HttpServer.logErrorOrDebug(e);
+                        close(null, "error while writing: ", e);
+                    }
+                    else
+                        flush();
+                });
+        }
+        else if(closing)
+        {
+            close(conf.closeTimeout, closeReason, null);
+            return;
+        }
+
+        if(remaining<=conf.outboundBufferSize)
+            wakeBlocked();
+    }
+
+    // streams waiting for write space or connection window. round robin.
+    void wakeBlocked()
+    {
+        for(int n=blocked.size(); n>0 && sendWindow>0 && writable(); n--)
+        {
+            ImplH2Stream stream = blocked.pollFirst();
+            stream.blocked = false;
+            stream.pumpBody(); // may be blocked again, at the tail
+        }
+    }
+
+    void block(ImplH2Stream stream)
+    {
+        stream.blocked = true;
+        blocked.addLast(stream);
+        flushLater();
+    }
+
+
+    // [close] ------------------------------------------------------------------------------------
+
+    // graceful close, or connection error. abort remaining streams; send GOAWAY; close after flush.
+    void goAway(int code, String reason)
+    {
+        if(tcpConn==null || closing)
+            return;
+
+        if(code!=NO_ERROR)
+            HttpServer.logger.debug("HTTP/2 connection error %s: %s", code, reason);
+
+        closing = true;
+        closeReason = reason;
+        abortStreams(reason);
+
+        byte[] payload = new byte[8];
+        putInt(payload, 0, lastStreamId);
+        putInt(payload, 4, code);
+        queueFrame(GOAWAY, 0, 0, payload, 0, 8);
+
+        tcpConn.queueWrite(SslConnection.SSL_CLOSE_NOTIFY);
+        tcpConn.queueWrite(TcpConnection.TCP_FIN);
+        finQueued = true;
+
+        if(readWait!=null)
+            readWait.cancel(new _ControlException("closing"));
+
+        flushLater();
+    }
+
+    void abortStreams(String reason)
+    {
+        blocked.clear();
+        for(ImplH2Stream stream : new ArrayList<>(streams.values()))
+            stream.abort(reason);
+    }
+
+    void close(Duration drainTimeout, String reason, Throwable exception)
+    {
+        if(tcpConn==null)
+            return;
+
+        closing = true;
+        abortStreams(reason);
+
+        if(conf.trafficDumpWrapper!=null)
+            conf.trafficDumpWrapper.print(
+                "== h2 connection #", ""+connId, " closed == ",
+                reason==null?"":reason,
+                exception==null?"":exception.toString(),
+                "\r\n"
+            );
+
+        Async<Void> closing = tcpConn.close(drainTimeout);
+        tcpConn = null;
+
+        if(ImplConn.FIBER)
+        {
+            if(closing.isCompleted())
+                promise.complete(closing.pollResult());
+            else
+                closing.onCompletion(promise::complete);
+        }
+    }
+
+
+    // --------------------------------------------------------------------------------------------
+
+    String fiberName()
+    {
+        return (isHttps?"https":"http") + " h2 connection #" + connId
+            + " [" + tcpConn.getPeerIp().getHostAddress() + "]";
+    }
+
+    static int getInt(byte[] bytes, int p)
+    {
+        return (bytes[p]&0xff)<<24 | (bytes[p+1]&0xff)<<16 | (bytes[p+2]&0xff)<<8 | (bytes[p+3]&0xff);
+    }
+
+    static void putInt(byte[] bytes, int p, int value)
+    {
+        bytes[p  ] = (byte)(value>>>24);
+        bytes[p+1] = (byte)(value>>>16);
+        bytes[p+2] = (byte)(value>>>8);
+        bytes[p+3] = (byte)(value);
+    }
+}
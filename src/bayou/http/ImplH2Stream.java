@@ -0,0 +1,830 @@
+package bayou.http;
+
+import _bayou._async._Asyncs;
+import _bayou._http._HttpHostPort;
+import _bayou._http._HttpUtil;
+import _bayou._str._ByteArr;
+import _bayou._str._StrUtil;
+import _bayou._tmp._ByteBufferUtil;
+import bayou.async.Async;
+import bayou.async.Fiber;
+import bayou.async.Promise;
+import bayou.bytes.ByteSource;
+import bayou.mime.ContentType;
+import bayou.mime.HeaderMap;
+import bayou.mime.Headers;
+import bayou.tcp.TcpConnection;
+import bayou.util.End;
+import bayou.util.Result;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static bayou.http.ImplH2Conn.*;
+
+// a stream of an HTTP/2 connection: one request, one response.
+// all methods are called on the connection fiber, except ImplH2Body.read() etc. which are called by the app,
+// on the handler fiber, which runs on the same executor.
+//
+// the stream is done (removed from conn) when the response is written, or when it's reset by either side.
+// if the request body isn't fully received by then, RST_STREAM(NO_ERROR) tells the client to stop sending it.
+class ImplH2Stream
+{
+    final ImplH2Conn conn;
+    final int id;
+
+    ImplHttpRequest request;
+    ImplH2Body body; // request body; null if none, or if the request is rejected
+
+    boolean remoteEnd; // END_STREAM received
+    boolean done;      // response written, or reset
+    Async<HttpResponse> handlerAsync; // while the handler is running
+
+    // inbound flow control
+    int recvWindow = DEFAULT_WINDOW;
+    int recvUnacked;   // consumed, not yet returned to peer
+    long received;
+
+    // outbound
+    long sendWindow;
+    boolean blocked;   // in conn.blocked
+
+    ImplConnResp resp;
+    List<Cookie> jarCookies = Collections.emptyList();
+    ByteSource respBody;
+    long bodyLength;   // -1 if unknown
+    long bodyTotal;
+    ByteBuffer pendingData; // read from respBody, not yet sent
+    Async<ByteBuffer> bodyPendingRead;
+    long writeT0;
+    long bodyWritten;
+
+    ImplH2Stream(ImplH2Conn conn, int id)
+    {
+        this.conn = conn;
+        this.id = id;
+        this.sendWindow = conn.peerInitialWindow;
+    }
+
+    // [request] ----------------------------------------------------------------------------------
+
+    // fields: name, value, name, value, ...  names are in lower case per spec.
+    void onHeaders(ArrayList<String> fields, boolean tooLarge, boolean endStream)
+    {
+        HttpServerConf conf = conn.conf;
+
+        request = new ImplHttpRequest();
+        request.ip = conn.tcpConn.getPeerIp();
+        request.isHttps = conn.isHttps;
+        request.certs = conn.certs;
+        request.http2 = true;
+        request.httpMinorVersion = 1; // for response mod, it's like an HTTP/1.1 request
+        request.timeReceived = System.currentTimeMillis();
+        HeaderMap headers = request.headers;
+
+        remoteEnd = endStream;
+
+        // malformed requests are stream errors, 8.1.2.6
+        String method=null, scheme=null, path=null, authority=null;
+        boolean regular = false;
+        for(int i=0; i<fields.size(); i+=2)
+        {
+            String name = fields.get(i);
+            String value = fields.get(i+1);
+            if(name.startsWith(":"))
+            {
+                if(regular)
+                {   reset(PROTOCOL_ERROR, "pseudo-header after regular header"); return;   }
+
+                String prev;
+                switch(name)
+                {
+                    case ":method"   : prev=method;    method=value;    break;
+                    case ":scheme"   : prev=scheme;    scheme=value;    break;
+                    case ":path"     : prev=path;      path=value;      break;
+                    case ":authority": prev=authority; authority=value; break;
+                    default:
+                    {   reset(PROTOCOL_ERROR, "invalid pseudo-header: "+name); return;   }
+                }
+                if(prev!=null)
+                {   reset(PROTOCOL_ERROR, "duplicate pseudo-header: "+name); return;   }
+                continue;
+            }
+
+            regular = true;
+            if(!isLowerCase(name))
+            {   reset(PROTOCOL_ERROR, "upper case header name: "+name); return;   }
+            if(isConnectionSpecific(name, value))
+            {   reset(PROTOCOL_ERROR, "connection-specific header: "+name); return;   }
+
+            String prev = headers.get(name);
+            if(prev!=null) // multiple cookie fields are joined with "; ", others with ", "
+                value = prev + (name.equals("cookie")? "; " : ", ") + value;
+            try
+            {
+                _HttpUtil.checkHeader(name, value);
+                headers.put(name, value);
+            }
+            catch (IllegalArgumentException e)
+            {
+                request.method = "GET"; // for the error response
+                respondBad(HttpStatus.c400_Bad_Request, "Bad header: "+name);
+                return;
+            }
+        }
+        if(method==null || scheme==null || path==null || path.isEmpty())
+        {   reset(PROTOCOL_ERROR, "missing pseudo-header"); return;   }
+
+        request.uri = path;
+        request.method = conf.supportedMethods.get(_ByteArr.of(method));
+        if(request.method==null || request.method.equals("CONNECT"))
+        {
+            request.method = method;
+            respondBad(HttpStatus.c501_Not_Implemented, "Method not supported: "+method);
+            return;
+        }
+        if(tooLarge)
+        {
+            respondBad(HttpStatus.c400_Bad_Request,
+                "Request head total length > "+conf.requestHeadTotalMaxLength);
+            return;
+        }
+
+        String hv; // var for header values
+
+        // request-target. origin-form, or "*" for OPTIONS
+        if(!_HttpUtil.isOriginFormUri(path) && !(path.equals("*") && method.equals("OPTIONS")))
+        {
+            respondBad(HttpStatus.c400_Bad_Request, "Invalid :path: "+path);
+            return;
+        }
+
+        // :authority is preferred over Host
+        hv = authority!=null ? authority : headers.xGet(Headers.Host);
+        if(hv==null || hv.isEmpty())
+        {
+            respondBad(HttpStatus.c400_Bad_Request, "Host is missing");
+            return;
+        }
+        _HttpHostPort hp = _HttpHostPort.parse(hv);
+        if(hp==null)
+        {
+            respondBad(HttpStatus.c400_Bad_Request, "Invalid Host: "+hv);
+            return;
+        }
+        headers.xPut(Headers.Host, hp.toString(request.isHttps ? 443 : 80)); // reconstructed, normalized
+
+        ContentType contentType=null;
+        if(null!=(hv=headers.xGet(Headers.Content_Type)))
+        {
+            try
+            {
+                contentType = ContentType.parse(hv); // throws
+            }
+            catch (Exception e) // parse error
+            {
+                respondBad(HttpStatus.c400_Bad_Request, "Bad Content-Type");
+                return;
+            }
+        }
+
+        Long bodyLength = null;
+        if(null!=(hv=headers.xGet(Headers.Content_Length)))
+        {
+            long len;
+            try
+            {   len = Long.parseLong(hv, 10); }
+            catch (NumberFormatException e)
+            {   len = -1; }
+            if(len<0 || (endStream && len>0))
+            {
+                respondBad(HttpStatus.c400_Bad_Request, "Bad Content-Length");
+                return;
+            }
+            if(len > conf.requestBodyMaxLength)
+            {
+                respondBad(HttpStatus.c413_Request_Entity_Too_Large,
+                    "Request body length exceeds confRequestBodyMaxLength="+conf.requestBodyMaxLength);
+                return;
+            }
+            bodyLength = len;
+        }
+        else if(endStream && contentType!=null)
+        {
+            bodyLength = 0L; // entity metadata, no body. see ImplConnReq.parse2()
+        }
+
+        if(!endStream || bodyLength!=null)
+        {
+            body = new ImplH2Body(this, conf.readTimeout);
+            body.end = endStream;
+            ImplHttpEntity reqEntity = new ImplHttpEntity(body, bodyLength);
+            request.entity = reqEntity;
+            reqEntity.contentType = contentType; // can be null
+
+            if(null!=(hv=headers.xGet(Headers.Content_Encoding)))
+            {
+                if(conf._requestEncodingReject)
+                {
+                    respondBad(HttpStatus.c415_Unsupported_Media_Type, "Unsupported Content-Encoding: " + hv);
+                    return;
+                }
+                reqEntity.contentEncoding = hv.toLowerCase();
+            }
+        }
+
+        if(null!=(hv=headers.xGet(Headers.Expect)))
+        {
+            // we don't send interim responses; the client sends the body anyway after a while.
+            if(!_StrUtil.equalIgnoreCase(hv, "100-continue"))
+            {
+                respondBad(HttpStatus.c417_Expectation_Failed,
+                    "Only `100-continue` is understood for Expect header");
+                return;
+            }
+        }
+
+        request.fixForward(conf.xForwardLevel);
+        request.seal();
+
+        dispatch();
+    }
+
+    static boolean isLowerCase(String name)
+    {
+        for(int i=0; i<name.length(); i++)
+        {
+            char c = name.charAt(i);
+            if(c>='A' && c<='Z')
+                return false;
+        }
+        return true;
+    }
+
+    // 8.1.2.2
+    static boolean isConnectionSpecific(String name, String value)
+    {
+        switch(name)
+        {
+            case "connection":
+            case "keep-alive":
+            case "proxy-connection":
+            case "transfer-encoding":
+            case "upgrade":
+                return true;
+            case "te":
+                return !value.equals("trailers");
+            default:
+                return false;
+        }
+    }
+
+    // the HTTP/1.1 request that upgraded the connection. it has no body.
+    void onUpgrade(ImplHttpRequest upgradeRequest)
+    {
+        request = upgradeRequest;
+        remoteEnd = true;
+
+        if(request.entity!=null)
+            request.entity.body.close();
+
+        dispatch();
+    }
+
+    void dispatch()
+    {
+        HttpServer server = conn.server;
+        if(server.tcpServer.isCurrentSelectorOverloaded())
+        {
+            respond(ImplConn.overloadedResponse(server));
+            return;
+        }
+
+        if(!ImplConn.FIBER)
+        {
+            handlerAsync = ImplConn.invokeHandler(server, request);
+            handlerAsync.onCompletion(this::handlerDone);
+            return;
+        }
+
+        // the handler runs in its own fiber, with its own fiber locals, e.g. CookieJar.
+        Fiber<HttpResponse> fiber = new Fiber<>(conn.tcpConn.getExecutor(), fiberName(), ()->
+        {
+            HttpRequest.setFiberLocal(request);
+
+            return ImplConn.invokeHandler(server, request).transform(result -> {
+                jarCookies = CookieJar.getAllChanges2(); // while we are still in the handler fiber
+                return result;
+            });
+        });
+        handlerAsync = fiber.join(); // cancelling it cancels the fiber task
+        handlerAsync.onCompletion(this::handlerDone);
+    }
+
+    void handlerDone(Result<HttpResponse> result)
+    {
+        handlerAsync = null;
+        if(done) // reset while handler was running. see abort()
+        {
+            conn.nAbortedHandlers--;
+            return;
+        }
+
+        HttpResponse response;
+        try
+        {
+            response = result.getOrThrow();
+            if(response==null)
+                throw new NullPointerException("response==null");
+        }
+        catch (Exception e)
+        {
+            response = HttpResponse.internalError(e);
+        }
+
+        if(body!=null)
+            body.close(); // forbid app from reading request body from now on. further DATA is discarded.
+
+        respond(response);
+    }
+
+    void respondBad(HttpStatus status, String msg)
+    {
+        // request is not sealed; it's not passed to app.
+        // request body, if any, will be discarded
+        if(body!=null)
+            body.close();
+        respond(HttpHelper.simpleResp(status, msg));
+    }
+
+    void onData(byte[] src, int off, int dataLen, int frameLen, boolean endStream)
+    {
+        recvWindow -= frameLen;
+        if(recvWindow<0)
+        {
+            reset(FLOW_CONTROL_ERROR, "stream window exceeded");
+            return;
+        }
+
+        if(body==null || body.closed) // discard
+        {
+            consumed(frameLen);
+        }
+        else
+        {
+            consumed(frameLen-dataLen); // padding
+            received += dataLen;
+
+            Long bodyLength = request.entity.bodyLength;
+            if(bodyLength!=null && received>bodyLength)
+            {
+                body.error(new IOException("request body is longer than Content-Length"));
+                reset(PROTOCOL_ERROR, "request body is longer than Content-Length");
+                return;
+            }
+            if(received>conn.conf.requestBodyMaxLength)
+            {
+                body.error(new IOException("Request body length exceeds confRequestBodyMaxLength="
+                    +conn.conf.requestBodyMaxLength));
+                reset(CANCEL, "request body too large");
+                return;
+            }
+
+            if(dataLen>0)
+            {
+                byte[] data = new byte[dataLen];
+                System.arraycopy(src, off, data, 0, dataLen);
+                body.add(ByteBuffer.wrap(data));
+            }
+        }
+
+        if(endStream)
+            onRemoteEnd();
+    }
+
+    void onRemoteEnd()
+    {
+        remoteEnd = true;
+
+        if(body!=null && !body.closed)
+        {
+            Long bodyLength = request.entity.bodyLength;
+            if(bodyLength!=null && received!=bodyLength)
+            {
+                body.error(new IOException("request body is shorter than Content-Length"));
+                reset(PROTOCOL_ERROR, "request body is shorter than Content-Length");
+                return;
+            }
+            body.end();
+        }
+    }
+
+    // n bytes of the stream window are consumed, by app, or discarded.
+    void consumed(int n)
+    {
+        if(n==0)
+            return;
+        recvUnacked += n;
+        if(!remoteEnd && !done && recvUnacked>=DEFAULT_WINDOW/2)
+        {
+            conn.queueWindowUpdate(id, recvUnacked);
+            recvWindow += recvUnacked;
+            recvUnacked = 0;
+            conn.flushLater();
+        }
+    }
+
+
+    // [response] ---------------------------------------------------------------------------------
+
+    void respond(HttpResponse response)
+    {
+        HttpServerConf conf = conn.conf;
+        try
+        {
+            resp = ImplRespMod.modApp(conf, null, request, response, jarCookies);  // may throw
+        }
+        catch (Exception e) // something wrong in the user response, e.g. illegal header value
+        {
+            resp = ImplRespMod.modApp(conf, null, request, HttpResponse.internalError(e), Collections.emptyList());
+        }
+
+        writeT0 = System.currentTimeMillis();
+
+        _bayou._http._Hpack.Encoder encoder = conn.encoder;
+        encoder.reset();
+        encoder.header(":status", Integer.toString(resp.status.code()));
+        for(Map.Entry<String,String> nv : resp.headers.entrySet())
+            encoder.header(nv.getKey().toLowerCase(), nv.getValue());
+        for(Cookie cookie : resp.cookies)
+            encoder.header("set-cookie", cookie.toSetCookieString());
+
+        respBody = resp.body;
+        bodyLength = resp.bodyLength;
+        resp.body = null;
+
+        if(bodyLength==0)
+        {
+            respBody.close();
+            respBody = null;
+            conn.queueHeaders(id, encoder.array(), encoder.length(), true);
+            responseEnded(null);
+            return;
+        }
+
+        conn.queueHeaders(id, encoder.array(), encoder.length(), false);
+        pumpBody();
+    }
+
+    // respBody.read() -> DATA frames, within windows, and while conn isn't congested.
+    void pumpBody()
+    {
+        while(!done)
+        {
+            if(pendingData==null)
+            {
+                Async<ByteBuffer> readAsync = respBody.read();
+                Result<ByteBuffer> readResult = readAsync.pollResult();
+                if(readResult==null)
+                {
+                    // read stall. push queued frames to client meanwhile
+                    conn.flushLater();
+                    bodyPendingRead = readAsync;
+                    readAsync.onCompletion(result -> {
+                        bodyPendingRead = null;
+                        if(done)
+                            return;
+                        if(onBodyRead(result))
+                            pumpBody();
+                    });
+                    return;
+                }
+                if(!onBodyRead(readResult))
+                    return;
+                if(pendingData==null) // empty bb
+                    continue;
+            }
+
+            if(!sendData())
+            {
+                conn.block(this);
+                return;
+            }
+        }
+    }
+
+    // return false if there's nothing more to pump
+    boolean onBodyRead(Result<ByteBuffer> result)
+    {
+        ByteBuffer bb;
+        try
+        {   bb = result.getOrThrow();   }
+        catch (End end)
+        {   bb = null; }
+        catch (Exception e)
+        {   bodyErr(e); return false;   }
+
+        if(bb==null) // EOF
+        {
+            if(bodyLength>0 && bodyTotal<bodyLength)
+            {
+                bodyErr(new IllegalStateException(
+                    "response entity body is shorter than Content-Length. "+bodyTotal+"<"+bodyLength));
+                return false;
+            }
+            closeBody();
+            conn.queueData(id, ByteBuffer.allocate(0), true);
+            responseEnded(null);
+            return false;
+        }
+
+        bodyTotal += bb.remaining();
+        if(bodyLength>=0 && bodyTotal>bodyLength)
+        {
+            bodyErr(new IllegalStateException(
+                "response entity body is larger than Content-Length. "+bodyTotal+">"+bodyLength));
+            return false;
+        }
+
+        if(bb.hasRemaining())
+            pendingData = bb;
+        return true;
+    }
+
+    // send pendingData as DATA frames. return false if blocked by windows, or by conn write queue.
+    boolean sendData()
+    {
+        while(pendingData.hasRemaining())
+        {
+            if(!conn.writable())
+                return false;
+            int n = (int)Math.min(pendingData.remaining(), Math.min(conn.peerMaxFrameSize,
+                Math.min(sendWindow, conn.sendWindow)));
+            if(n<=0)
+                return false;
+
+            ByteBuffer data = _ByteBufferUtil.slice(pendingData, n);
+            sendWindow -= n;
+            conn.sendWindow -= n;
+            bodyWritten += n;
+
+            boolean last = !pendingData.hasRemaining() && bodyLength>=0 && bodyTotal==bodyLength;
+            conn.queueData(id, data, last);
+            if(last)
+            {
+                pendingData = null;
+                closeBody();
+                responseEnded(null);
+                return true;
+            }
+        }
+        pendingData = null;
+        return true;
+    }
+
+    void bodyErr(Exception error)
+    {
+        HttpServer.logUnexpected(error); // if it's not really interesting, disable logging for it
+        closeBody();
+        conn.queueRstStream(id, INTERNAL_ERROR);
+        conn.flushLater();
+        responseEnded(error);
+    }
+
+    void closeBody()
+    {
+        if(respBody==null)
+            return;
+
+        ByteSource bodyL = respBody;
+        respBody = null;
+
+        if(bodyPendingRead==null)
+            bodyL.close();
+        else // can't close during read pending; only after read is completed
+        {
+            bodyPendingRead.cancel(new Exception("cancelled"));
+            bodyPendingRead.onCompletion(result -> bodyL.close());
+            bodyPendingRead = null;
+        }
+    }
+
+    void responseEnded(Exception error)
+    {
+        if(done)
+            return;
+        done = true;
+
+        doAccessLog(error);
+
+        if(!remoteEnd) // request body isn't fully received. tell client to stop sending
+        {
+            if(error==null)
+                conn.queueRstStream(id, NO_ERROR);
+            if(body!=null)
+                body.error(new IOException("stream closed"));
+        }
+        conn.flushLater();
+
+        if(ImplConn.FIBER) CookieJar.clearAll();
+
+        conn.streamClosed(this);
+    }
+
+    void doAccessLog(Exception error)
+    {
+        if(resp==null || !request.sealed) // bad request
+            return;
+
+        HttpAccessLoggerWrapper printer = conn.conf.accessLoggerWrapper;
+        if(printer==null)
+            return;
+
+        HttpAccess entry = new HttpAccess(
+            request, resp.asHttpResponse(), bodyWritten,
+            request.timeReceived, writeT0, System.currentTimeMillis(),
+            error);
+
+        printer.print(entry);
+    }
+
+
+    // [reset] ------------------------------------------------------------------------------------
+
+    // stream error, by us
+    void reset(int code, String reason)
+    {
+        if(done)
+            return;
+
+        conn.queueRstStream(id, code);
+        conn.flushLater();
+        abort(reason);
+    }
+
+    // stream is reset by either side; or conn is closing
+    void abort(String reason)
+    {
+        if(done)
+            return;
+        done = true;
+
+        if(body!=null)
+            body.error(new IOException("stream aborted: "+reason));
+
+        pendingData = null;
+        closeBody();
+
+        if(resp!=null)
+            doAccessLog(new IOException("stream aborted: "+reason));
+
+        // the stream leaves conn.streams now, but still counts against the concurrency limit
+        // till the handler completes. handlerDone() may be invoked synchronously by cancel()
+        if(handlerAsync!=null)
+        {
+            conn.nAbortedHandlers++;
+            handlerAsync.cancel(new IOException("stream aborted: "+reason));
+        }
+
+        conn.streamClosed(this);
+    }
+
+
+    String fiberName()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(conn.isHttps?"https":"http")
+            .append(" h2 connection #").append(conn.connId)
+            .append(" [").append(request.ip.getHostAddress()).append("]")
+            .append(" stream #").append(id)
+            .append(' ').append(request.method());
+        String uri = request.uri();
+        if(uri.length()>40)
+            uri = uri.substring(0, 37) + "...";
+        sb.append(' ').append(uri);
+        return sb.toString();
+    }
+
+
+    // request body, fed by DATA frames.
+    static class ImplH2Body extends ImplHttpEntity.Body
+    {
+        final ImplH2Stream stream;
+        final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<>();
+        boolean end;
+        Exception error;
+        Promise<ByteBuffer> pending;
+
+        ImplH2Body(ImplH2Stream stream, Duration readTimeout)
+        {
+            super(null, readTimeout, 0);
+            this.stream = stream;
+        }
+
+        @Override
+        boolean eof()
+        {
+            return end && chunks.isEmpty();
+        }
+
+        @Override
+        ByteBuffer nb_read() throws Exception
+        {
+            ByteBuffer bb = chunks.pollFirst();
+            if(bb!=null)
+            {
+                bytesRead += bb.remaining();
+                stream.consumed(bb.remaining());
+                return bb;
+            }
+            if(error!=null)
+                throw error;
+            if(end)
+                return END;
+            return TcpConnection.STALL;
+        }
+
+        @Override
+        Async<ByteBuffer> read2(Promise<ByteBuffer> promise)
+        {
+            ByteBuffer bb;
+            try
+            {
+                bb = nb_read();
+            }
+            catch (Exception e)
+            {
+                return _Asyncs.fail(promise, e);
+            }
+
+            if(bb==END)
+                return _Asyncs.fail(promise, End.instance());
+
+            if(bb!=TcpConnection.STALL)
+                return _Asyncs.succeed(promise, bb);
+
+            // await more DATA frames. readX() applies readTimeout.
+            Promise<ByteBuffer> promiseF = (promise!=null)?promise : new Promise<ByteBuffer>();
+            pending = promiseF;
+            promiseF.onCancel(reason -> {
+                if(pending==promiseF)
+                {
+                    pending = null;
+                    promiseF.fail(reason);
+                }
+            });
+            return promiseF;
+        }
+
+        void wakeup()
+        {
+            Promise<ByteBuffer> promise = pending;
+            if(promise!=null)
+            {
+                pending = null;
+                read2(promise);
+            }
+        }
+
+        void add(ByteBuffer bb)
+        {
+            chunks.addLast(bb);
+            wakeup();
+        }
+
+        void end()
+        {
+            end = true;
+            wakeup();
+        }
+
+        void error(Exception e)
+        {
+            if(error==null)
+                error = e;
+            chunks.clear();
+            wakeup();
+        }
+
+        @Override
+        public Async<Void> close()
+        {
+            super.close();
+
+            // discard buffered data; return its window to peer
+            int n = 0;
+            for(ByteBuffer bb : chunks)
+                n += bb.remaining();
+            chunks.clear();
+            stream.consumed(n);
+
+            return Async.VOID;
+        }
+    }
+}
@@ -45,6 +45,13 @@ class ImplHttpEntity implements HttpEntity
         }
     }
 
+    // for request on an HTTP/2 stream
+    ImplHttpEntity(Body body, Long bodyLength)
+    {
+        this.bodyLength = bodyLength;
+        this.body = body;
+    }
+
     void expect100(ImplConn hConn, ImplHttpRequest request)
     {
         request.state100 = 1;
@@ -21,7 +21,7 @@ class ImplHttpRequest implements HttpRequest
     List<X509Certificate> certs = Collections.emptyList();
     String method;
     String uri;
-    final HeaderMap headers = new HeaderMap();
+    final ImplReqHeaders headers = new ImplReqHeaders(); // lazy, see ImplReqHeaders
     ImplHttpEntity entity;
     boolean sealed; // if sealed, request is good
 
@@ -133,11 +133,14 @@ class ImplHttpRequest implements HttpRequest
     }
 
 
-    byte httpMinorVersion=-1;   // 0 or 1. -1 if parse error.
+    byte httpMinorVersion=-1;   // 0 or 1. -1 if parse error. 1 if http2.
+    boolean http2;
 
     @Override
     public String httpVersion()
     {
+        if(http2)
+            return "2.0";
         return (httpMinorVersion==0) ? "1.0" : "1.1";
     }
 
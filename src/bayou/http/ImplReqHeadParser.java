@@ -10,7 +10,10 @@ import java.nio.ByteBuffer;
 
 import static java.lang.System.arraycopy;
 
-// performance: about 25 cycles for each byte in request head.
+// performance: about 25 cycles for each byte in request head, if bytes are checked one at a time.
+// URI and header values, which make up most of a request head, are scanned 8 bytes at a time (SWAR).
+// running out of bytes in the middle of a field is not an exception; parse3() returns NEED_MORE,
+// and the next parse() resumes from `state`.
 class ImplReqHeadParser
 {
     static final int nameMax = 64;
@@ -31,27 +34,19 @@ class ImplReqHeadParser
     {
         return new String(array, 0, p0, px-p0); // byte->char, ISO-8859-1
     }
-    static String trim_string(byte[] array, int p0, int px)  // trim only SP and HT
-    {
-        while(p0<px && wsp(array[p0]))
-            p0++;
-        while(p0<px && wsp(array[px-1]))
-            px--;
-        return string(array, p0, px);
-    }
 
     static final byte SP=' ', HT='\t', CR='\r', LF='\n', COLON=':';
     
     static boolean wsp(byte ch){ return ch==SP || ch==HT; }
 
-    static public class NeedMoreBytes extends _ControlException
-    {
-        int p0; // current field starts at p0; need more bytes for the field.
+    static final int NEED_MORE = -1;
 
-        public NeedMoreBytes(int p0)
-        {
-            this.p0 = p0;
-        }
+    int needP0; // when NEED_MORE: current field starts at needP0; need more bytes for the field.
+
+    int needMore(int p0)
+    {
+        needP0 = p0;
+        return NEED_MORE;
     }
 
     static public class ParseError extends _ControlException
@@ -89,23 +84,28 @@ class ImplReqHeadParser
         }
     }
 
-    static byte read(byte[] bb, int px, int L) throws NeedMoreBytes
+    // return px after the collected chars; at least one char is available at px for next read.
+    // return NEED_MORE if bb[L] is reached.
+    int collect(byte[] bb, int p0, int L, long[] charDef, int max) throws ParseError
     {
-        if(px<L)
-            return bb[px];
-        else // p==L
-            throw new NeedMoreBytes(px);
+        return collect(bb, null, p0, L, charDef, max, 0);
     }
 
-    int collect(byte[] bb, int p0, int L, long[] charDef, int max) throws NeedMoreBytes, ParseError
+    // swar: SWAR_URI or SWAR_VALUE, for a fast scan of 8 bytes at a time; charDef must match it.
+    int collect(byte[] bb, ByteBuffer view, int p0, int L, long[] charDef, int max, int swar) throws ParseError
     {
         int px = p0;
         int M = Math.min(L, p0+max+1);
+        if(swar!=0) // skip words that are all legal chars. stop at the word containing the 1st delimiter
+        {
+            while(px+8<=M && swarAllLegal(view.getLong(px), swar))
+                px+=8;
+        }
         while(px<M)
         {
             int c = 0xff & bb[px];
             if(!_CharDef.check(c, charDef))
-                return px; // if this method returns normally, at least one char is available for next read
+                return px;
 
             px++;
         }
@@ -113,7 +113,31 @@ class ImplReqHeadParser
         if(px-p0>max)
             throw fieldTooLong(px-1, max);
         else // px==L
-            throw new NeedMoreBytes(p0);
+            return NEED_MORE;
+    }
+
+    // SWAR (SIMD within a register): test 8 bytes in a long at once.
+    // hasLess(x,n) is true iff any byte in x is less than n (0<=n<=128). bytes >=0x80 are never less.
+    // it's exact for the existence of such byte, though not for its position; collect() finds the position
+    // by checking bytes one at a time.
+    static final long ONES  = 0x01_01_01_01_01_01_01_01L;
+    static final long HIGHS = 0x80_80_80_80_80_80_80_80L;
+    static final int SWAR_URI=1, SWAR_VALUE=2;
+
+    static boolean hasLess(long x, int n)
+    {
+        return 0L != ( (x - ONES*n) & ~x & HIGHS );
+    }
+    static boolean hasByte(long x, int b)
+    {
+        return hasLess(x ^ (ONES*b), 1);
+    }
+    static boolean swarAllLegal(long x, int swar)
+    {
+        if(swar==SWAR_URI)  // reqUriChars: 0x21-0xFF, except '#'
+            return !hasLess(x, 0x21) && !hasByte(x, '#');
+        else // SWAR_VALUE  // headerValueChars: HT, 0x20-0x7E, 0x80-0xFF. HT is left to the slow path
+            return !hasLess(x, 0x20) && !hasByte(x, 0x7F);
     }
 
 
@@ -195,64 +219,64 @@ class ImplReqHeadParser
             arraycopy(bb, p, buf, bufN, copy);
             int bufL = bufN + copy;
 
+            int px;
             try
             {
-                int px = parse3(buf, 0, bufL, conf, prevHeaders);  // [D]
-                return px + (p-bufN); // DONE
+                px = parse3(buf, 0, bufL, conf, prevHeaders);  // [D]
             }
             catch (ParseError e)  // e.px is relative to buf; make it relative to bb.
             {
                 e.px += (p-bufN);
                 throw e;
             }
-            catch (NeedMoreBytes e)   // [E]
+            if(px!=NEED_MORE)
+                return px + (p-bufN); // DONE
+
+            // [E]
+            pTotal += needP0;
+
+            if(copy==L-p)       // [F] no more bytes in bb
             {
-                pTotal += e.p0;
-
-                if(copy==L-p)       // [F] no more bytes in bb
-                {
-                    bufN = bufL-e.p0;
-                    arraycopy(buf, e.p0, buf, 0, bufN);  // possible: bufN==0 || e.p0==0
-                    return L; // goto [C]
-                }
-                else // copy<L-p   // [G] more bytes in bb
-                {
-                    p = e.p0 + (p-bufN);
-                    // goto [A]
-                }
+                bufN = bufL-needP0;
+                arraycopy(buf, needP0, buf, 0, bufN);  // possible: bufN==0 || needP0==0
+                return L; // goto [C]
+            }
+            else // copy<L-p   // [G] more bytes in bb
+            {
+                p = needP0 + (p-bufN);
+                // goto [A]
             }
         }
 
-        try
-        {
-            int px = parse3(bb, p, L, conf, prevHeaders);  // [A]
+        int px = parse3(bb, p, L, conf, prevHeaders);  // [A]
+        if(px!=NEED_MORE)
             return px; // DONE
-        }
-        catch (NeedMoreBytes e)       // [B]
-        {
-            pTotal += e.p0-p;
 
-            bufN = L-e.p0; // possible: bufN==0
-            if(bufN>0)
-            {
-                // TBA: start `buf` at a smaller size (128); expand as necessary.
-                if(buf==null) buf = new byte[ Math.max(nameMax, conf.requestHeadFieldMaxLength) + 1 ];
-                arraycopy(bb, e.p0, buf, 0, bufN);
-            }
-            return L; // goto [C]
+        // [B]
+        pTotal += needP0-p;
+
+        bufN = L-needP0; // possible: bufN==0
+        if(bufN>0)
+        {
+            // TBA: start `buf` at a smaller size (128); expand as necessary.
+            if(buf==null) buf = new byte[ Math.max(nameMax, conf.requestHeadFieldMaxLength) + 1 ];
+            arraycopy(bb, needP0, buf, 0, bufN);
         }
+        return L; // goto [C]
     }
 
 
-    String currHeaderName;
-    boolean currHeaderX;
-    String currHeaderValue;
+    // names/values are kept as raw bytes in request.headers; strings are created on demand. see ImplReqHeaders
+    String currHeaderName;  // well-known name; null if unknown, at headers.bytes[currNameOff...]
+    int currNameOff, currNameLen;
+    int currValueOff, currValueLen;  // raw value at headers.bytes[currValueOff...]
+    String currHeaderValue;  // only if obs-fold; replaces the raw value
 
-    // return px if parsing is done
-    int parse3(byte[] bb, int p, int L, HttpServerConf conf, HeaderMap prevHeaders) throws NeedMoreBytes, ParseError
+    // return px if parsing is done; return NEED_MORE (with needP0) if more bytes are needed
+    int parse3(byte[] bb, int p, int L, HttpServerConf conf, HeaderMap prevHeaders) throws ParseError
     {
         // at the beginning of each state-case, we read one or more chars.
-        // read may fail with NeedMoreBytes, then next parse3() will jump to the same state and resume the read.
+        // if bytes run out, return NEED_MORE, then next parse3() will jump to the same state and resume the read.
 
         // line break: CRLF per spec; we also accept a single LF
 
@@ -261,7 +285,8 @@ class ImplReqHeadParser
         byte c;      // a single char read
 
         _ByteArr ba = new _ByteArr();
-        HeaderMap headers = request.headers;
+        ImplReqHeaders headers = request.headers;
+        ByteBuffer view = ByteBuffer.wrap(bb); // for SWAR reads. index is the same as bb's
 
         GOTO_STATE: while(true)
         {
@@ -269,7 +294,8 @@ class ImplReqHeadParser
             {
                 // ignore one empty line before the request line. [ CRLF / LF ]
                 case LF0: // LF    // uncommon. it's here to be out of the common path START->METHOD
-                    c = read(bb, px++, L);
+                    if(px==L) return needMore(px);
+                    c = bb[px++];
                     if(c==LF) {
                         state= State.METHOD;
                         continue GOTO_STATE;
@@ -278,7 +304,8 @@ class ImplReqHeadParser
                     }
 
                 case START:
-                    c = read(bb, px, L);
+                    if(px==L) return needMore(px);
+                    c = bb[px];
                     if(c==CR) {  // rare
                         px++;
                         state= State.LF0;
@@ -302,6 +329,7 @@ class ImplReqHeadParser
                     else
                     {
                         px = collect(bb, p0=px, L, _CharDef.Http.tokenChars, nameMax);
+                        if(px==NEED_MORE) return needMore(p0);
                         if(px-p0==0)
                             throw err(px, HttpStatus.c400_Bad_Request, "Invalid Method token");
                         if(!wsp(bb[px]))
@@ -320,11 +348,13 @@ class ImplReqHeadParser
 
                 case WSP1:  // *WSP   // METHOD consumed one WSP already
                     px = collect(bb, p0=px, L, _CharDef.wspChars, nameMax-1);
+                    if(px==NEED_MORE) return needMore(p0);
                     state=State.URI;
                     // goto URI
 
                 case URI: // 1*uri-char WSP
-                    px = collect(bb, p0=px, L, _CharDef.Http.reqUriChars, conf.requestHeadFieldMaxLength);
+                    px = collect(bb, view, p0=px, L, _CharDef.Http.reqUriChars, conf.requestHeadFieldMaxLength, SWAR_URI);
+                    if(px==NEED_MORE) return needMore(p0);
                     c = bb[px]; // the non-uri char that terminates the uri field. should be WSP.
 
                     // we are being very strict about uri, don't allow any unsanctioned chars.
@@ -341,6 +371,7 @@ class ImplReqHeadParser
 
                 case WSP2: // *WSP   // URI consumed one WSP already
                     px = collect(bb, p0=px, L, _CharDef.wspChars, nameMax-1);
+                    if(px==NEED_MORE) return needMore(p0);
                     state=State.VERSION;
                     // goto VERSION
 
@@ -353,6 +384,7 @@ class ImplReqHeadParser
                     else
                     {
                         px = collect(bb, p0=px, L, _CharDef.Http.versionChars, 8);
+                        if(px==NEED_MORE) return needMore(p0);
                         // if more than 8, fieldTooLong() -> errBadVersion()
                         if( px-p0!=8 ) // less than 8
                             throw errBadVersion(px);
@@ -363,7 +395,8 @@ class ImplReqHeadParser
                     // goto CR1
 
                 case CR1: // CR | LF   // we accept a single LF as line terminator; that should be uncommon.
-                    c = read(bb, px++, L);
+                    if(px==L) return needMore(px);
+                    c = bb[px++];
                     if(c==CR) {
                         state= State.LF1;
                         // goto LF1
@@ -376,7 +409,8 @@ class ImplReqHeadParser
                     }
 
                 case LF1: // LF
-                    c = read(bb, px++, L);
+                    if(px==L) return needMore(px);
+                    c = bb[px++];
                     if(c==LF) {
                         state= State.NL;
                         // goto NL
@@ -387,7 +421,8 @@ class ImplReqHeadParser
                 // end of request line -------------------------------------------------------------
 
                 case NL:  // next line (no folding). new name / end of head. test for CR/LF
-                    c = read(bb, px, L);
+                    if(px==L) return needMore(px);
+                    c = bb[px];
 
                     // check total head size after each line. no need to be too precise.
                     if(pTotal+(px-p) > conf.requestHeadTotalMaxLength)
@@ -409,6 +444,7 @@ class ImplReqHeadParser
 
                 case NAME:  // 1*toke-char COLON
                     px = collect(bb, p0=px, L, _CharDef.Http.tokenChars, nameMax);
+                    if(px==NEED_MORE) return needMore(p0);
                     c = bb[px]; // won't fail after collect(). the 1st non token-char.
 
                     if(px-p0==0) // 1st char is not token-char. could be WSP (first header after request line)
@@ -421,16 +457,19 @@ class ImplReqHeadParser
                             throw err(px, HttpStatus.c400_Bad_Request, "COLON expected after header name");
                     }
 
-                    currHeaderName = _KnownHeaders.lookup(ba.reset(bb, p0, px-p0));
-                    currHeaderX = (currHeaderName!=null); // usually true
-                    if(!currHeaderX) // not a well-known header, (or known header in wrong case)
-                        currHeaderName = string(bb, p0, px);
+                    currHeaderName = _KnownHeaders.lookup(ba.reset(bb, p0, px-p0)); // usually succeeds
+                    if(currHeaderName==null) // known header in different case, or not a well-known header
+                    {
+                        currHeaderName = lookupIgnoreCase(ba, bb, p0, px);
+                        if(currHeaderName==null)
+                            currNameOff = headers.appendBytes(bb, p0, currNameLen=px-p0);
+                    }
 
                     px++; // consume COLON
 
                     if(ImplConn.PREV_HEADERS)
                     {
-                        px = matchPrevHeader(currHeaderName, currHeaderX, prevHeaders, headers, bb, p0=px, L);
+                        px = matchPrevHeader(currHeaderName, prevHeaders, headers, bb, p0=px, L);
                         if(px>p0) // match. header saved. px advanced after CR LF.
                         {
                             state = State.NL;
@@ -442,18 +481,26 @@ class ImplReqHeadParser
                     // goto VALUE
 
                 case VALUE: // *value-char
-                    px = collect(bb, p0=px, L, _CharDef.Http.headerValueChars, conf.requestHeadFieldMaxLength);
+                    px = collect(bb, view, p0=px, L, _CharDef.Http.headerValueChars, conf.requestHeadFieldMaxLength, SWAR_VALUE);
+                    if(px==NEED_MORE) return needMore(p0);
                     // next char should be CR/LF
 
-                    // rfc7230$3.2 - OWS field-value OWS
-                    String value = trim_string(bb, p0, px); // usually there's a leading SP
+                    // rfc7230$3.2 - OWS field-value OWS. trim only SP and HT. usually there's a leading SP
+                    int v0 = p0, vx = px;
+                    while(v0<vx && wsp(bb[v0]))
+                        v0++;
+                    while(v0<vx && wsp(bb[vx-1]))
+                        vx--;
                     // note: even if value is empty, we'll include it in the `headers`.
                     // a header present with an empty value can be different from a header missing. see `Accept`
 
-                    if(currHeaderValue==null)
-                        currHeaderValue = value;
+                    if(currHeaderValue==null) // usually. keep the raw bytes
+                    {
+                        currValueOff = headers.appendBytes(bb, v0, currValueLen=vx-v0);
+                    }
                     else // previous obs-fold. rare. "sender MUST NOT" use obs-fold.
                     {
+                        String value = string(bb, v0, vx);
                         // obs-fold is still not clearly defined. see thread
                         //     https://lists.w3.org/Archives/Public/ietf-http-wg/2014OctDec/0788.html
                         // we follow Simon's formulation. FWS is trimmed. field-ows is replaced by one SP.
@@ -468,7 +515,8 @@ class ImplReqHeadParser
                     // goto CR2
 
                 case CR2: // CR | LF
-                    c = read(bb, px++, L);
+                    if(px==L) return needMore(px);
+                    c = bb[px++];
                     if(c==CR) {
                         state= State.LF2;
                         // goto LF2
@@ -481,7 +529,8 @@ class ImplReqHeadParser
                     }
 
                 case LF2: // LF
-                    c = read(bb, px++, L);
+                    if(px==L) return needMore(px);
+                    c = bb[px++];
                     if(c==LF) {
                         state= State.POST_LF2;
                         // goto POST_LF2
@@ -491,25 +540,19 @@ class ImplReqHeadParser
 
                 case POST_LF2:
                     // we need to peek a char to see if there's line folding ahead
-                    c = read(bb, px, L);
+                    if(px==L) return needMore(px);
+                    c = bb[px];
                     if(wsp(c)){ // line folding. obsolete. continue VALUE
+                        if(currHeaderValue==null)
+                            currHeaderValue = headers.string(currValueOff, currValueLen);
                         px++;
                         state= State.VALUE;
                         continue GOTO_STATE;
                     } else {  // not line folding. value ends.
 
-                        if(currHeaderX)
-                        {
-                            String oldValue = headers.xPut(currHeaderName, currHeaderValue);
-                            if(oldValue!=null)   // headers with same name
-                                headers.xPut(currHeaderName, oldValue + ", " + currHeaderValue);
-                        }
-                        else
-                        {
-                            String oldValue = headers.put(currHeaderName, currHeaderValue);
-                            if(oldValue!=null)   // headers with same name
-                                headers.put(currHeaderName, oldValue +", "+ currHeaderValue);
-                        }
+                        // headers with same name are joined later by `headers`
+                        headers.add(currHeaderName, currNameOff, currNameLen,
+                            currHeaderValue, currValueOff, currValueLen);
                         currHeaderName = currHeaderValue = null;
 
                         state= State.NL;
@@ -519,7 +562,8 @@ class ImplReqHeadParser
                 // end of name-value -----------------------------------------------------
 
                 case LF3 :  // LF
-                    c = read(bb, px++, L);
+                    if(px==L) return needMore(px);
+                    c = bb[px++];
                     if(c==LF) {
                         state= State.DONE;
                         // goto DONE
@@ -539,14 +583,27 @@ class ImplReqHeadParser
     } // parse
 
 
+    byte[] lowerBuf;
+    // px-p0<=nameMax
+    String lookupIgnoreCase(_ByteArr ba, byte[] bb, int p0, int px)
+    {
+        if(lowerBuf==null) lowerBuf = new byte[nameMax];
+        for(int i=p0; i<px; i++)
+        {
+            byte b = bb[i];
+            lowerBuf[i-p0] = ('A'<=b && b<='Z') ? (byte)(b+('a'-'A')) : b;
+        }
+        return _KnownHeaders.lookupLowerCase(ba.reset(lowerBuf, 0, px-p0));
+    }
+
     // it's very likely that the header is the same as in the last request. optimize for that
 
     // return p0 if no match; otherwise, return px after CR LF
-    static int matchPrevHeader(String currHeaderName, boolean currHeaderX, HeaderMap prevHeaders, HeaderMap headers,
+    static int matchPrevHeader(String currHeaderName, HeaderMap prevHeaders, ImplReqHeaders headers,
                         byte[] bb, final int p0, int L)
     {
         if(prevHeaders==null) return p0;
-        if(!currHeaderX) return p0;
+        if(currHeaderName==null) return p0; // not well-known
         String prevValue = prevHeaders.xGet(currHeaderName);
         if(prevValue==null) return p0;
 
@@ -569,12 +626,7 @@ class ImplReqHeadParser
 
         if(wsp(bb[px])) return p0;  // line folding
 
-        String v = headers.xPut(currHeaderName, prevValue);
-        if(v!=null) // unlikely. back off.
-        {
-            headers.xPut(currHeaderName, v);
-            return p0;
-        }
+        headers.add(currHeaderName, 0, 0, prevValue, 0, 0);  // same string object. no new garbage
 
         // match! CRLF is consumed
         return px;
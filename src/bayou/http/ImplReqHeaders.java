@@ -0,0 +1,346 @@
+package bayou.http;
+
+import _bayou._tmp._KnownHeaders;
+import bayou.mime.HeaderMap;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+// headers of a request parsed by the server.
+// raw bytes of names/values are kept, with an index of offsets. a value String is created only when
+// the header is looked up. well-known names are resolved by the parser through _KnownHeaders without allocation.
+// most handlers only look at a few headers, and server internally looks up known headers by xGet(),
+// so most values are never materialized.
+//
+// any other Map operation (iteration, size, unknown names etc.) materializes all headers into the
+// super HeaderMap, in the original order; afterwards this map works exactly like a HeaderMap.
+// duplicate headers are joined with ", ", like before.
+//
+// freeze() is postponed until materialization, since super can't be written to after it's frozen;
+// mutating methods here check `frozen` themselves.
+//
+// thread safety: a frozen request HeaderMap may be read by multiple threads concurrently, e.g. by an app
+// that passes the request to other threads. lazy lookups modify the index (cached values, merged duplicates),
+// and materialization fills super; so, while lazy, all operations are done under lock().
+// lazy_volatile is cleared only after super is filled; afterwards, operations go straight to super.
+class ImplReqHeaders extends HeaderMap
+{
+    // raw bytes of unknown names and values. copied from the read buffer, which is recycled.
+    byte[] bytes;
+    int bytesN;
+
+    // index. entry i:
+    //    names[i]  - well-known name; null for unknown name at bytes[nameOffs[i]...+nameLens[i]]
+    //    values[i] - value string if materialized or given; otherwise at bytes[valueOffs[i]...+valueLens[i]]
+    // a removed entry has names[i]==REMOVED
+    String[] names;
+    String[] values;
+    int[] nameOffs, nameLens, valueOffs, valueLens;
+    int n;
+
+    final Object lock(){ return this; }
+    // true if there are entries not yet materialized into super. set by parser; cleared under lock
+    volatile boolean lazy_volatile;
+    boolean frozen; // guarded by lock while lazy
+
+    static final String REMOVED = new String("");
+
+    ImplReqHeaders()
+    {
+    }
+
+    // append raw bytes; return the offset
+    int appendBytes(byte[] src, int p0, int len)
+    {
+        if(bytes==null)
+            bytes = new byte[Math.max(256, len)];
+        else if(bytesN+len>bytes.length)
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length*2, bytesN+len));
+
+        System.arraycopy(src, p0, bytes, bytesN, len);
+        int off = bytesN;
+        bytesN += len;
+        return off;
+    }
+
+    @SuppressWarnings("deprecation")
+    String string(int off, int len)
+    {
+        return new String(bytes, 0, off, len); // byte->char, ISO-8859-1
+    }
+
+    // called by parser. name is a well-known name, or null for the unknown name at bytes[nameOff...].
+    // value is a string, or null for bytes[valueOff...]. a duplicate name is added as a separate entry.
+    void add(String name, int nameOff, int nameLen, String value, int valueOff, int valueLen)
+    {
+        if(names==null)
+        {
+            names = new String[16];
+            values = new String[16];
+            nameOffs = new int[16];
+            nameLens = new int[16];
+            valueOffs = new int[16];
+            valueLens = new int[16];
+        }
+        else if(n==names.length)
+        {
+            int cap = n*2;
+            names = Arrays.copyOf(names, cap);
+            values = Arrays.copyOf(values, cap);
+            nameOffs = Arrays.copyOf(nameOffs, cap);
+            nameLens = Arrays.copyOf(nameLens, cap);
+            valueOffs = Arrays.copyOf(valueOffs, cap);
+            valueLens = Arrays.copyOf(valueLens, cap);
+        }
+
+        names[n] = name;
+        values[n] = value;
+        nameOffs[n] = nameOff;
+        nameLens[n] = nameLen;
+        valueOffs[n] = valueOff;
+        valueLens[n] = valueLen;
+        n++;
+        lazy_volatile = true;
+    }
+
+    String value(int i)
+    {
+        String v = values[i];
+        if(v==null)
+            values[i] = v = string(valueOffs[i], valueLens[i]);
+        return v;
+    }
+
+    // look up a well-known name among the entries; join duplicates. under lock
+    String lazyGet(Object key)
+    {
+        int first = -1;
+        String value = null;
+        for(int i=0; i<n; i++)
+        {
+            if(!key.equals(names[i]))  // names[i] is usually identical to key if equal
+                continue;
+
+            if(first==-1)
+            {
+                first = i;
+                value = value(i);
+            }
+            else // duplicate. rare. merge it into the first entry
+            {
+                value = value + ", " + value(i);
+                values[first] = value;
+                names[i] = REMOVED;
+            }
+        }
+        return value;
+    }
+
+    // materialize all entries into super, in order.
+    void materialize()
+    {
+        if(!lazy_volatile)
+            return;
+        synchronized (lock())
+        {
+            if(lazy_volatile) // not materialized by another thread meanwhile
+                materialize0();
+        }
+    }
+    void materialize0()
+    {
+        for(int i=0; i<n; i++)
+        {
+            String name = names[i];
+            //noinspection StringEquality
+            if(name==REMOVED)
+                continue;
+            String value = value(i);
+            if(name!=null)
+            {
+                String oldValue = super.xPut(name, value);
+                if(oldValue!=null)   // headers with same name
+                    super.xPut(name, oldValue + ", " + value);
+            }
+            else
+            {
+                name = string(nameOffs[i], nameLens[i]);
+                String oldValue = super.put(name, value);
+                if(oldValue!=null)   // headers with same name
+                    super.put(name, oldValue + ", " + value);
+            }
+        }
+        bytes = null;
+        names = values = null;
+        nameOffs = nameLens = valueOffs = valueLens = null;
+        n = 0;
+
+        if(frozen)
+            super.freeze();
+
+        lazy_volatile = false; // publish super to threads reading without lock
+    }
+
+    void checkWrite()
+    {
+        if(frozen)
+            throw new UnsupportedOperationException("this map is read only");
+    }
+
+    @Override
+    public void freeze()
+    {
+        synchronized (lock())
+        {
+            frozen = true;
+            if(!lazy_volatile)
+                super.freeze();
+        }
+    }
+
+    // lookups of well-known names don't materialize ------------------------------------------
+
+    @Override
+    public String xGet(Object key)
+    {
+        if(lazy_volatile)
+        {
+            synchronized (lock())
+            {
+                if(lazy_volatile)
+                    return lazyGet(key);
+            }
+        }
+        return super.xGet(key);
+    }
+
+    @Override
+    public boolean xContainsKey(Object key)
+    {
+        return xGet(key)!=null;
+    }
+
+    @Override
+    public String get(Object key)
+    {
+        if(lazy_volatile && key instanceof String)
+        {
+            String known = _KnownHeaders.lookup((String)key); // usually known==key
+            if(known!=null)
+                return xGet(known);
+        }
+        materialize();
+        return super.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key)
+    {
+        return get(key)!=null;
+    }
+
+    @Override
+    public String xPut(String key, String value)
+    {
+        if(lazy_volatile)
+        {
+            synchronized (lock())
+            {
+                if(lazy_volatile)
+                    return lazyPut(key, value);
+            }
+        }
+        return super.xPut(key, value);
+    }
+    String lazyPut(String key, String value)
+    {
+        checkWrite();
+        if(value==null)
+            throw new IllegalArgumentException("header value cannot be null");
+
+        String oldValue = lazyGet(key);  // duplicates merged
+        if(oldValue==null)
+        {
+            add(key, 0, 0, value, 0, 0);
+            return null;
+        }
+        for(int i=0; i<n; i++)  // replace in place, keeping the order
+        {
+            if(key.equals(names[i]))
+            {
+                values[i] = value;
+                break;
+            }
+        }
+        return oldValue;
+    }
+
+    @Override
+    public String xRemove(Object key)
+    {
+        if(lazy_volatile)
+        {
+            synchronized (lock())
+            {
+                if(lazy_volatile)
+                    return lazyRemove(key);
+            }
+        }
+        return super.xRemove(key);
+    }
+    String lazyRemove(Object key)
+    {
+        checkWrite();
+        String oldValue = lazyGet(key);  // duplicates merged
+        if(oldValue!=null)
+            for(int i=0; i<n; i++)
+                if(key.equals(names[i]))
+                    names[i] = REMOVED;
+        return oldValue;
+    }
+
+    // everything else materializes --------------------------------------------------------
+
+    @Override public int size() { materialize(); return super.size(); }
+    @Override public boolean isEmpty() { materialize(); return super.isEmpty(); }
+    @Override public boolean containsValue(Object value) { materialize(); return super.containsValue(value); }
+
+    @Override
+    public void forEach(BiConsumer<? super String, ? super String> action)
+    {
+        materialize();
+        super.forEach(action);
+    }
+
+    @Override public void clear() { materialize(); super.clear(); }
+    @Override public Set<String> keySet() { materialize(); return super.keySet(); }
+    @Override public Collection<String> values() { materialize(); return super.values(); }
+    @Override public Set<Entry<String, String>> entrySet() { materialize(); return super.entrySet(); }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends String> m)
+    {
+        materialize();
+        super.putAll(m);
+    }
+
+    @Override public String toString() { materialize(); return super.toString(); }
+
+    @Override
+    public String remove(Object key)
+    {
+        materialize();
+        return super.remove(key);
+    }
+
+    @Override
+    public String put(String key, String value) throws IllegalArgumentException
+    {
+        materialize();
+        return super.put(key, value);
+    }
+
+}
@@ -139,7 +139,8 @@ class ImplRespMod
             return new ImplChunkedSource(conf.outboundBufferSize, body);
 
         if(bodyType==3)
-            return new ImplChunkedSource(conf.outboundBufferSize, new GzipByteSource(body, 1));
+            return new ImplChunkedSource(conf.outboundBufferSize,
+                new GzipByteSource(body, 1, gzipInParallel(entity, conf)));
 
         throw new AssertionError();
     }
@@ -159,6 +160,16 @@ class ImplRespMod
     static ImplConnResp modApp(ImplConn hConn, ImplHttpRequest request, HttpResponse appResponse,
                                List<Cookie> jarCookies)
     {
+        return modApp(hConn.conf, hConn, request, appResponse, jarCookies);
+    }
+
+    // hConn==null for an HTTP/2 stream: no Connection/Transfer-Encoding headers, no chunking;
+    // the returned resp is not init-ed, caller takes headers/body/bodyLength from it.
+    static ImplConnResp modApp(HttpServerConf conf, ImplConn hConn, ImplHttpRequest request,
+                               HttpResponse appResponse, List<Cookie> jarCookies)
+    {
+        boolean h2 = hConn==null;
+
         // here we depend on original request headers, which we know app cannot temper with.
 
         HttpStatus statusL = appResponse.status(); // may change later (200 to 304/412/206)
@@ -186,6 +197,8 @@ class ImplRespMod
         resp.httpVersion = appResponse.httpVersion();
         if(request.httpMinorVersion==0)
             resp.httpVersion = "1.0";
+        if(h2)
+            resp.httpVersion = "2.0";
         // not sure how the 1.0 client reacts to a higher version response; send the same version instead.
 
         resp.status = statusL;
@@ -207,7 +220,6 @@ class ImplRespMod
                 headers.put(name, value);
             }
 
-        HttpServerConf conf = hConn.conf;
         boolean isGET  = request.method.equals("GET"); // usually true
         boolean isHEAD = !isGET && request.method.equals("HEAD");
         HeaderMap requestHeaders = request.headers;
@@ -278,7 +290,7 @@ class ImplRespMod
         else
         {
             Long BL = entityL.contentLength();
-            if(acceptGzip==1 && shouldGzip(entityL, conf))
+            if(acceptGzip==1 && !h2 && shouldGzip(entityL, conf))
             {
                 bodyLength = -1;
                 hTransferEncoding = "gzip,chunked";
@@ -296,7 +308,11 @@ class ImplRespMod
             else
             {
                 bodyLength=-1;
-                if(request.httpMinorVersion>=1)
+                if(h2) // DATA frames are self-delimiting
+                {
+                    bodyType = 1;
+                }
+                else if(request.httpMinorVersion>=1)
                 {
                     hTransferEncoding = "chunked"; // even if response.httpVersion=1.0; the 1.1 client understands.
                     bodyType = 2;
@@ -329,6 +345,22 @@ class ImplRespMod
 
 
 
+        if(h2) // connection-specific headers are not allowed in HTTP/2
+        {
+            if(!appHeaders.isEmpty())
+            {
+                headers.xRemove(Connection);
+                headers.xRemove(Keep_Alive);
+                headers.xRemove(Upgrade);
+            }
+            putDateServer(headers);
+
+            resp.isLast = false;
+            resp.body = body(conf, entityL, bodyType);
+            resp.bodyLength = bodyLength;
+            return resp;
+        }
+
         // Connection header. depends on body length
         String respConnection = appHeaders.isEmpty()? null : headers.xGet(Connection);
         String reqConnection = requestHeaders.xGet(Connection);
@@ -342,7 +374,14 @@ class ImplRespMod
         headers.xPut(Connection, respConnection);
 
 
-        // other headers
+        putDateServer(headers);
+
+        ByteSource body = body(conf, entityL, bodyType);
+        return resp.init(hConn, isLast, body, bodyLength); // no throw
+    }
+
+    static void putDateServer(HeaderMap headers)
+    {
         String prev;
 
         prev = headers.xPut(Date, _HttpDate.getCurrStr());
@@ -350,10 +389,6 @@ class ImplRespMod
 
         prev = headers.xPut(Server, "bayou.io");
         if(prev!=null) headers.xPut(Server, prev);
-
-
-        ByteSource body = body(conf, entityL, bodyType);
-        return resp.init(hConn, isLast, body, bodyLength); // no throw
     }
 
     static boolean isLastResponse(byte req_httpMinorVersion, long bodyLength, byte state100,
@@ -433,7 +468,13 @@ class ImplRespMod
         _HttpUtil.addVaryHeader(resp.headers, Accept_Encoding);
 
         if(acceptGzip==2) // Accept-Encoding: gzip
-            resp.entity = new GzipHttpEntity(entity, 1);  // on-the-fly gzip, use level 1, good enough.
+            resp.entity = new GzipHttpEntity(entity, 1, gzipInParallel(entity, conf));  // on-the-fly gzip, use level 1, good enough.
+    }
+
+    static boolean gzipInParallel(HttpEntity entity, HttpServerConf conf)
+    {
+        Long bodyLen = entity.contentLength();
+        return bodyLen!=null && bodyLen.longValue()>=conf.autoGzipParallelMinContentLength;
     }
 
     // for request header TE or Accept-Encoding
@@ -20,7 +20,6 @@ import java.nio.ByteBuffer;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Map;
-import java.util.concurrent.Executor;
 import java.util.function.Consumer;
 
 // tunnel:  http://tools.ietf.org/html/rfc7230#section-2.3
@@ -93,11 +92,12 @@ class ImplTunneller
     Async<HttpResponse> tryConnect2(InetAddress ip, int port, HttpResponse response, ImplConn ic)
     {
         TcpClient client = clients[0];
-        // prefer client associated with the current selector thread
-        Executor exec = ic.tcpConn.getExecutor();
+        // prefer client associated with the current selector thread.
+        // compare threads, not ic.tcpConn.getExecutor(), which is a per-chann forwarder if the chann can migrate.
+        Thread thread = Thread.currentThread();
         for(TcpClient c : clients)
         {
-            if(c.getExecutor()==exec)
+            if(c.getExecutor()==thread)
             {
                 client = c; // this should be reached; caller is in one of the selector threads
                 break;
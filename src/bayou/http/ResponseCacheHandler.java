@@ -0,0 +1,610 @@
+package bayou.http;
+
+import _bayou._http._HttpDate;
+import _bayou._http._HttpUtil;
+import _bayou._str._StrUtil;
+import _bayou._tmp._TinyLfuCache;
+import bayou.async.Async;
+import bayou.async.Fiber;
+import bayou.bytes.ByteSource;
+import bayou.bytes.SimpleByteSource;
+import bayou.mime.ContentType;
+import bayou.mime.HeaderMap;
+import bayou.mime.Headers;
+import bayou.util.End;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * HttpHandler that caches responses of the target handler in memory.
+ * <p>Example Usage:</p>
+ * <pre>
+ *     HttpHandler handler = new ResponseCacheHandler(appHandler, 64*1024*1024);
+ *     HttpServer server = new HttpServer(handler);
+ *
+ *     // in appHandler, an expensive page that can be shared by all users for 60 seconds
+ *     return HttpResponse.html(200, page).header("Cache-Control", "max-age=60");
+ * </pre>
+ * <p>
+ *     This is useful for dynamic pages that are expensive to generate, but identical for many requests.
+ *     A cached response is served without invoking the target handler.
+ * </p>
+ * <h4>What is cached</h4>
+ * <p>
+ *     Only responses to GET requests are cached. A HEAD request is served from the cached GET response.
+ *     Requests with <code>Authorization</code> are always forwarded to the target handler.
+ * </p>
+ * <p>
+ *     A response from the target handler is cached only if it is meant to be shared, as indicated by the
+ *     headers set by the target handler (before server defaults are applied):
+ * </p>
+ * <ul>
+ *     <li>
+ *         The status is 200, 203, 300, 301, 404, 405, 410, 414 or 501, and there is an entity.
+ *     </li>
+ *     <li>
+ *         There is an explicit freshness lifetime: <code>Cache-Control: s-maxage</code>
+ *         or <code>max-age</code>, or {@link HttpEntity#expires() entity expires},
+ *         or an <code>Expires</code> header.
+ *     </li>
+ *     <li>
+ *         <code>Cache-Control</code> does not contain <code>no-store</code>, <code>no-cache</code>,
+ *         or <code>private</code>.
+ *     </li>
+ *     <li>
+ *         There are no cookies in the response or in the {@link CookieJar}s, and no <code>Vary: *</code>.
+ *     </li>
+ * </ul>
+ * <p>
+ *     A cached response is fresh until its lifetime expires; after that, the next request
+ *     is forwarded to the target handler, and the new response replaces the cached one.
+ *     An <code>Age</code> header is added to responses served from cache.
+ * </p>
+ * <h4>Cache key</h4>
+ * <p>
+ *     Responses are keyed on the {@link HttpRequest#host() host} and {@link HttpRequest#uri() uri}
+ *     of the request. If the response contains a <code>Vary</code> header, the values of the named
+ *     request headers are part of the key too; for example, with <code>Vary: Accept-Encoding</code>,
+ *     requests with different <code>Accept-Encoding</code> values are cached separately.
+ * </p>
+ * <h4>Conditional requests</h4>
+ * <p>
+ *     Conditional GET requests (<code>If-None-Match</code>, <code>If-Modified-Since</code> etc.)
+ *     are evaluated against the {@link HttpEntity#etag() etag} and
+ *     {@link HttpEntity#lastModified() lastModified} of the cached entity,
+ *     and 304 responses are generated directly from the cache.
+ * </p>
+ * <h4>Memory</h4>
+ * <p>
+ *     Bodies are cached by {@link CachedHttpEntity}. The cache is bounded by <code>maxBytes</code>;
+ *     entries are evicted by a W-TinyLFU policy, which is similar to LRU, except that a new entry is admitted
+ *     only if it's requested more frequently than the entries to be evicted. This protects popular responses
+ *     from being flushed out by bursts of rarely requested ones.
+ * </p>
+ * <p>
+ *     A response is buffered in memory only if it is admitted into the cache;
+ *     otherwise it is returned as is. A response with a content length greater than <code>maxBytes</code>
+ *     is never buffered.
+ * </p>
+ * <p>
+ *     If the content length of a response is unknown, the body is served as is, and copied along the way;
+ *     it is cached after it is completely served. The copying stops if a body is too big;
+ *     in total, bodies being copied take no more than <code>maxBytes</code>.
+ * </p>
+ * <p>
+ *     Note that with {@link HttpServerConf#autoGzip(boolean) autoGzip}, a cached response is compressed
+ *     each time it's served. To cache compressed bodies, compress them in the target handler,
+ *     with <code>Vary: Accept-Encoding</code>.
+ * </p>
+ * <h4>Metrics</h4>
+ * <p>
+ *     See {@link #getHitCount()}, {@link #getMissCount()}, {@link #getEvictionCount()},
+ *     {@link #getCachedBytes()}, {@link #getEntryCount()}.
+ * </p>
+ */
+public class ResponseCacheHandler implements HttpHandler
+{
+    static final long ENTRY_OVERHEAD = 512; // headers etc.
+
+    static class Entry
+    {
+        final HttpResponse response; // null for a vary marker
+        final String[] vary;         // names of request headers in Vary; null if none
+        final long storedAt;
+        final long expiresAt;
+
+        Entry(HttpResponse response, String[] vary, long storedAt, long expiresAt)
+        {
+            this.response = response;
+            this.vary = vary;
+            this.storedAt = storedAt;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    final HttpHandler target;
+    final _TinyLfuCache<String,Entry> cache;
+    final long maxBytes;
+    final AtomicLong collectingBytes = new AtomicLong(); // copies of bodies of unknown length, in progress
+
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Create a handler that caches responses from the target handler, up to <code>maxBytes</code> in total.
+     */
+    public ResponseCacheHandler(HttpHandler target, long maxBytes)
+    {
+        this.target = target;
+        this.cache = new _TinyLfuCache<>(maxBytes, (int)Math.min(maxBytes/4096, Integer.MAX_VALUE));
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Handle a request.
+     * <p>
+     *     Serve the response from cache if possible; otherwise forward the request to the target handler,
+     *     and cache the response if it's cacheable.
+     * </p>
+     */
+    @Override
+    public Async<HttpResponse> handle(HttpRequest request)
+    {
+        String method = request.method();
+        boolean isGet = method.equals("GET");
+        if(!isGet && !method.equals("HEAD"))
+            return target.handle(request);
+
+        if(request.header(Headers.Authorization)!=null)
+            return target.handle(request);
+
+        String host = request.header(Headers.Host); // may be null for HTTP/1.0
+        String key = (host==null? "" : host.toLowerCase()) + request.uri();
+
+        long now = System.currentTimeMillis();
+        Entry entry = cache.get(key);
+        if(entry!=null && entry.response==null) // vary marker
+            entry = cache.get(varyKey(key, entry.vary, request));
+        if(entry!=null && now<entry.expiresAt)
+        {
+            hits.incrementAndGet();
+            return _HttpUtil.toAsync(serve(entry, key, request, now));
+        }
+
+        misses.incrementAndGet();
+        if(!isGet)
+            return target.handle(request);
+        return target.handle(request).map(response -> store(response, key, request));
+    }
+
+    HttpResponse serve(Entry entry, String key, HttpRequest request, long now)
+    {
+        HttpResponse cached = entry.response;
+        HttpEntity entity = cached.entity();
+
+        // a copy; the server may modify the response.
+        HttpResponseImpl response = new HttpResponseImpl(cached);
+        response.header(Headers.Age, Long.toString((now-entry.storedAt)/1000));
+
+        if(cached.status().code()==200 && hasConditions(request))
+        {
+            Map<String,String> map = request.headers();
+            HeaderMap requestHeaders = map instanceof HeaderMap ? (HeaderMap)map : new HeaderMap(map);
+            HttpStatus status = ImplRespMod.checkConditions(requestHeaders, entity); // 200, 304, 412
+            if(status==HttpStatus.c304_Not_Modified)
+            {
+                // keep entity headers, discard body
+                _HttpUtil.copyEntityHeaders(entity, response.headers);
+                response.status(status);
+                response.entity(null);
+            }
+            // 412 is left to the server, if autoConditional is enabled; unlikely for GET anyway.
+        }
+        return response;
+    }
+
+    static boolean hasConditions(HttpRequest request)
+    {
+        return request.header(Headers.If_None_Match)!=null
+            || request.header(Headers.If_Modified_Since)!=null
+            || request.header(Headers.If_Match)!=null
+            || request.header(Headers.If_Unmodified_Since)!=null;
+    }
+
+    HttpResponse store(HttpResponse response, String key, HttpRequest request)
+    {
+        long now = System.currentTimeMillis();
+        long expiresAt = expiresAt(response, now);
+        if(expiresAt<=now)
+            return response;
+
+        String vary = response.headers().get(Headers.Vary);
+        String[] varyNames = null;
+        if(vary!=null)
+        {
+            ArrayList<String> list = _StrUtil.splitComma(vary);
+            if(list.contains("*"))
+                return response;
+            if(!list.isEmpty())
+                varyNames = list.toArray(new String[list.size()]);
+        }
+
+        HttpEntity entity = response.entity();
+        String entryKey = cacheKey(key, varyNames, request);
+        HttpResponseImpl cached = new HttpResponseImpl(response); // a copy; the server may modify the response.
+        String[] varyNamesF = varyNames;
+
+        Long length = entity.contentLength();
+        if(length==null) // serve the body as is, and cache a copy after it's completely served
+        {
+            HttpResponseImpl teed = new HttpResponseImpl(response);
+            teed.entity(new TeeEntity(entity, collected -> {
+                cached.entity(collected);
+                put(key, varyNamesF, entryKey, new Entry(cached, varyNamesF, now, expiresAt),
+                    collected.length + ENTRY_OVERHEAD);
+            }));
+            return teed;
+        }
+
+        OriginEntity originEntity = new OriginEntity(entity);
+        cached.entity(new CachedHttpEntity(originEntity)); // lazy. nothing is buffered till body() is read
+        Entry entry = new Entry(cached, varyNames, now, expiresAt);
+        // if the origin body fails, the cached body would replay the error to every hit. remove the entry.
+        originEntity.onError = () -> cache.remove(entryKey, entry);
+
+        if(!put(key, varyNames, entryKey, entry, length + ENTRY_OVERHEAD))
+            return response; // too big, or not admitted. don't buffer the body for this response alone.
+
+        // the first response reads the body from the cache too; the origin body is read only once.
+        return new HttpResponseImpl(cached);
+    }
+
+    // return true if the entry is admitted into the cache
+    boolean put(String key, String[] varyNames, String entryKey, Entry entry, long weight)
+    {
+        if(varyNames!=null)
+            cache.put(key, new Entry(null, varyNames, entry.storedAt, Long.MAX_VALUE), ENTRY_OVERHEAD);
+        return cache.put(entryKey, entry, weight);
+    }
+
+    // for a body of unknown length. the origin body is served as is, and a copy is collected along the way.
+    // if the body ends successfully, the copy is passed to `onCollected`.
+    // collecting stops if the body is skipped or closed early, fails, or the copies of all bodies
+    // being collected would exceed maxBytes.
+    class TeeEntity implements HttpEntityWrapper
+    {
+        final HttpEntity origin;
+        final Consumer<CollectedEntity> onCollected;
+        final AtomicBoolean teed = new AtomicBoolean();
+
+        TeeEntity(HttpEntity origin, Consumer<CollectedEntity> onCollected)
+        {
+            this.origin = origin;
+            this.onCollected = onCollected;
+        }
+
+        @Override
+        public HttpEntity getOriginEntity()
+        {
+            return origin;
+        }
+
+        @Override
+        public ByteSource body()
+        {
+            ByteSource body = origin.body();
+            if(!teed.compareAndSet(false, true)) // only the first body is collected
+                return body;
+
+            return new ByteSource()
+            {
+                ArrayList<ByteBuffer> copies = new ArrayList<>(); // null if not collecting
+                long copied;
+
+                void stop()
+                {
+                    if(copies==null)
+                        return;
+                    copies = null;
+                    collectingBytes.addAndGet(-copied);
+                }
+
+                @Override
+                public Async<ByteBuffer> read()
+                {
+                    return body.read().transform(result -> {
+                        if(copies==null)
+                            return result;
+
+                        Exception e = result.getException();
+                        if(e instanceof End)
+                        {
+                            CollectedEntity collected = new CollectedEntity(origin, copies, copied);
+                            onCollected.accept(collected);
+                            stop();
+                        }
+                        else if(e!=null)
+                        {
+                            stop();
+                        }
+                        else
+                        {
+                            ByteBuffer bb = result.getValue();
+                            int n = bb.remaining();
+                            if(collectingBytes.addAndGet(n)>maxBytes) // too big; give up
+                            {
+                                collectingBytes.addAndGet(-n);
+                                stop();
+                            }
+                            else
+                            {
+                                ByteBuffer copy = ByteBuffer.allocate(n);
+                                copy.put(bb.duplicate()).flip();
+                                copies.add(copy);
+                                copied += n;
+                            }
+                        }
+                        return result;
+                    });
+                }
+
+                @Override
+                public long skip(long n)
+                {
+                    stop();
+                    return body.skip(n);
+                }
+
+                @Override
+                public Async<Void> close()
+                {
+                    stop();
+                    return body.close();
+                }
+            };
+        }
+    }
+
+    // a body collected in memory, with a copy of the metadata of the origin entity. sharable.
+    // like CachedHttpEntity, it doesn't keep a reference to the origin entity.
+    static class CollectedEntity implements HttpEntity
+    {
+        final ArrayList<ByteBuffer> buffers;
+        final long length;
+
+        final ContentType contentType;
+        final String contentEncoding;
+        final Instant lastModified;
+        final Instant expires;
+        final String etag;
+        final boolean etagIsWeak;
+
+        CollectedEntity(HttpEntity origin, ArrayList<ByteBuffer> buffers, long length)
+        {
+            this.buffers = buffers;
+            this.length = length;
+
+            this.contentType = origin.contentType();
+            this.contentEncoding = origin.contentEncoding();
+            this.lastModified = origin.lastModified();
+            this.expires = origin.expires();
+            this.etag = origin.etag();
+            this.etagIsWeak = origin.etagIsWeak();
+        }
+
+        @Override public ByteSource body()
+        {
+            return new SimpleByteSource(buffers.stream().map(ByteBuffer::duplicate));
+        }
+
+        @Override public Long contentLength(){ return length; }
+        @Override public ContentType contentType(){ return contentType; }
+        @Override public String contentEncoding(){ return contentEncoding; }
+        @Override public Instant lastModified(){ return lastModified; }
+        @Override public Instant expires(){ return expires; }
+        @Override public String etag(){ return etag; }
+        @Override public boolean etagIsWeak(){ return etagIsWeak; }
+    }
+
+    // the origin entity, with a callback on body read error
+    static class OriginEntity implements HttpEntityWrapper
+    {
+        final HttpEntity origin;
+        Runnable onError;
+
+        OriginEntity(HttpEntity origin)
+        {
+            this.origin = origin;
+        }
+
+        @Override
+        public HttpEntity getOriginEntity()
+        {
+            return origin;
+        }
+
+        @Override
+        public ByteSource body()
+        {
+            ByteSource body = origin.body();
+            return new ByteSource()
+            {
+                @Override
+                public Async<ByteBuffer> read()
+                {
+                    Async<ByteBuffer> read = body.read();
+                    read.onCompletion(result -> {
+                        Exception e = result.getException();
+                        if(e!=null && !(e instanceof End))
+                            onError.run();
+                    });
+                    return read;
+                }
+
+                @Override
+                public long skip(long n)
+                {
+                    return body.skip(n);
+                }
+
+                @Override
+                public Async<Void> close()
+                {
+                    return body.close();
+                }
+            };
+        }
+    }
+
+    // return expiration time of a cacheable response; return 0 if not cacheable.
+    static long expiresAt(HttpResponse response, long now)
+    {
+        switch(response.status().code())
+        {
+            case 200: case 203: case 300: case 301: case 404: case 405: case 410: case 414: case 501:
+                break;
+            default:
+                return 0;
+        }
+
+        HttpEntity entity = response.entity();
+        if(entity==null)
+            return 0;
+
+        if(!response.cookies().isEmpty())
+            return 0;
+        if(Fiber.current()!=null && !CookieJar.getAllChanges().isEmpty())
+            return 0;
+
+        Map<String,String> headers = response.headers();
+        if(headers.get(Headers.Set_Cookie)!=null)
+            return 0;
+
+        String cc = headers.get(Headers.Cache_Control);
+        if(cc!=null)
+        {
+            long maxAge = parseMaxAge(cc);
+            if(maxAge==-2)
+                return 0;
+            if(maxAge>=0)
+                return now + maxAge*1000;
+        }
+
+        Instant expires = entity.expires();
+        if(expires==null)
+        {
+            String hv = headers.get(Headers.Expires);
+            if(hv!=null)
+                expires = _HttpDate.parse(hv);
+        }
+        if(expires!=null)
+            return expires.toEpochMilli();
+
+        return 0;
+    }
+
+    // return seconds of s-maxage or max-age; -1 if none; -2 if not cacheable
+    static long parseMaxAge(String cacheControl)
+    {
+        long maxAge=-1, sMaxAge=-1;
+        for(String directive : _StrUtil.splitComma(cacheControl))
+        {
+            int iEQ = directive.indexOf('=');
+            String name = (iEQ==-1? directive : directive.substring(0, iEQ)).trim();
+            if(name.equalsIgnoreCase("no-store")
+                || name.equalsIgnoreCase("no-cache")
+                || name.equalsIgnoreCase("private"))
+                return -2;
+
+            boolean isMax = name.equalsIgnoreCase("max-age");
+            boolean isSMax = !isMax && name.equalsIgnoreCase("s-maxage");
+            if((isMax||isSMax) && iEQ!=-1)
+            {
+                String value = directive.substring(iEQ+1).trim();
+                if(value.length()>=2 && value.startsWith("\"") && value.endsWith("\"")) // max-age="60"
+                    value = value.substring(1, value.length()-1);
+                long seconds;
+                try
+                {   seconds = Long.parseLong(value);   }
+                catch(NumberFormatException e)
+                {   return -2;   }  // malformed; don't risk it
+                if(seconds<0)
+                    return -2;
+                seconds = Math.min(seconds, Integer.MAX_VALUE);
+                if(isMax)
+                    maxAge = seconds;
+                else
+                    sMaxAge = seconds;
+            }
+        }
+        return sMaxAge>=0 ? sMaxAge : maxAge;
+    }
+
+    static String varyKey(String key, String[] varyNames, HttpRequest request)
+    {
+        StringBuilder sb = new StringBuilder(key);
+        for(String name : varyNames)
+        {
+            String value = request.header(name);
+            sb.append('\n');
+            if(value!=null)
+                sb.append(value);
+        }
+        return sb.toString();
+    }
+
+    static String cacheKey(String key, String[] varyNames, HttpRequest request)
+    {
+        return varyNames==null ? key : varyKey(key, varyNames, request);
+    }
+
+    // metrics ---------------------------------------------------------------------------------
+
+    /**
+     * The number of GET/HEAD requests served from the cache.
+     */
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+
+    /**
+     * The number of GET/HEAD requests that were not served from the cache,
+     * excluding those with <code>Authorization</code>.
+     */
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+
+    /**
+     * The number of responses evicted from the cache, or not admitted into the cache,
+     * for lack of room.
+     */
+    public long getEvictionCount()
+    {
+        return cache.getEvictions();
+    }
+
+    /**
+     * The total bytes of cached responses (estimated).
+     */
+    public long getCachedBytes()
+    {
+        return cache.getWeight();
+    }
+
+    /**
+     * The number of entries in the cache.
+     */
+    public int getEntryCount()
+    {
+        return cache.getSize();
+    }
+}
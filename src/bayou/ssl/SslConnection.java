@@ -33,4 +33,22 @@ public interface SslConnection extends TcpConnection
     // we only expose the SSLSession, instead of the SSLEngine.
     // other methods in SSLEngine are probably uninteresting to app.
 
+    /**
+     * Get the application protocol negotiated through ALPN during the handshake, e.g. "h2".
+     * <p>
+     *     Return null if ALPN is not supported, or the connection is closed;
+     *     return "" if no application protocol is negotiated.
+     * </p>
+     * <p>
+     *     To offer protocols, configure SSLEngine through
+     *     {@link bayou.ssl.SslChannel2Connection#SslChannel2Connection(boolean, javax.net.ssl.SSLContext, bayou.util.function.ConsumerX)
+     *     sslEngineConf}.
+     *     This method requires JDK 9+, or 8u252+.
+     * </p>
+     */
+    default String getApplicationProtocol()
+    {
+        return null;
+    }
+
 }
@@ -1,5 +1,6 @@
 package bayou.ssl;
 
+import _bayou._tmp._Alpn;
 import _bayou._tmp._ByteBufferPool;
 import _bayou._tmp._ByteBufferUtil;
 import _bayou._tmp._Tcp;
@@ -61,6 +62,13 @@ class SslConnectionImpl implements SslConnection, _TcpConn2Chann
         return engine.getSession();
     }
 
+    @Override
+    public String getApplicationProtocol()
+    {
+        SSLEngine engine = this.engine;
+        return engine==null? null : _Alpn.getApplicationProtocol(engine);
+    }
+
     // note on ssl close
     // in tcp, two sides can close independently, each closes only its outbound direction.
     // in ssl, close semantics is rather odd. receiver of close_notify must immediately close its outbound.
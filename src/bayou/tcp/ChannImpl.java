@@ -9,7 +9,9 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.CancelledKeyException;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.concurrent.Executor;
@@ -32,12 +34,15 @@ class ChannImpl implements TcpChannel, SelectorThread.OnSelected
     }
 
 
-    // these two fields can be accessed by any flow
+    // these fields can be accessed by any flow
     final SocketChannel socketChannel;
-    final SelectorThread selectorThread;
+    final boolean unixDomain; // unix domain socket; there's no peer ip/port
+    volatile SelectorThread selectorThread; // changes only if the chann is migrated to another selector
+    Executor executor; // set before the chann is handed to app, if it can be migrated
 
     // following fields are accessed only by selector flow
-    Agent agent;
+    Agent agent; // null while the chann is being migrated to another selector
+    long migrationNanos; // when the chann was last migrated; 0 if never
 
     boolean closed;
 
@@ -49,9 +54,10 @@ class ChannImpl implements TcpChannel, SelectorThread.OnSelected
 
     Promise<Void> writablePromise;
 
-    ChannImpl(SocketChannel socketChannel, SelectorThread selectorThread, Agent agent)
+    ChannImpl(SocketChannel socketChannel, boolean unixDomain, SelectorThread selectorThread, Agent agent)
     {
         this.socketChannel = socketChannel;
+        this.unixDomain = unixDomain;
         this.selectorThread = selectorThread;
 
         this.agent = agent;
@@ -68,12 +74,16 @@ class ChannImpl implements TcpChannel, SelectorThread.OnSelected
     @Override
     public InetAddress getPeerIp()
     {
+        if(unixDomain) // the peer is a local process
+            return InetAddress.getLoopbackAddress();
         return socketChannel.socket().getInetAddress();
     }
 
     @Override
     public int getPeerPort()
     {
+        if(unixDomain)
+            return 0;
         return socketChannel.socket().getPort();
     }
 
@@ -81,11 +91,16 @@ class ChannImpl implements TcpChannel, SelectorThread.OnSelected
 
     @Override public int read(ByteBuffer bb) throws Exception
     {
-        return socketChannel.read(bb);
+        int n = socketChannel.read(bb);
+        SelectorThread thread = selectorThread;
+        if(n>0 && thread==Thread.currentThread())
+            thread.nBytesRead += n;
+        return n;
     }
     @Override public Async<Void> awaitReadable(boolean accepting)
     {
         Promise<Void> promise = new Promise<>();
+        SelectorThread selectorThread = this.selectorThread;
         if(selectorThread==Thread.currentThread())
             onAwaitReadable(accepting, promise);
         else
@@ -95,7 +110,21 @@ class ChannImpl implements TcpChannel, SelectorThread.OnSelected
 
     @Override public long write(ByteBuffer... srcs) throws Exception
     {
-        return socketChannel.write(srcs);
+        long n = socketChannel.write(srcs);
+        SelectorThread thread = selectorThread;
+        if(n>0 && thread==Thread.currentThread())
+            thread.nBytesWritten += n;
+        return n;
+    }
+
+    // zero-copy from file. see _FileTransfer
+    long transferFrom(FileChannel file, long position, long count) throws Exception
+    {
+        long n = file.transferTo(position, count, socketChannel);
+        SelectorThread thread = selectorThread;
+        if(n>0 && thread==Thread.currentThread())
+            thread.nBytesWritten += n;
+        return n;
     }
 
     @Override public void shutdownOutput() throws Exception
@@ -106,6 +135,7 @@ class ChannImpl implements TcpChannel, SelectorThread.OnSelected
     @Override public Async<Void> awaitWritable()
     {
         Promise<Void> promise = new Promise<>();
+        SelectorThread selectorThread = this.selectorThread;
         if(selectorThread==Thread.currentThread())
             onAwaitWritable(promise);
         else
@@ -116,7 +146,49 @@ class ChannImpl implements TcpChannel, SelectorThread.OnSelected
     @Override
     public Executor getExecutor()
     {
-        return selectorThread;
+        Executor executor = this.executor;
+        return executor!=null? executor : selectorThread;
+    }
+
+    // migration ----------------------------------------------------------------------------------
+    // a server chann can be moved to another selector while it's idle, see TcpServer.Conf.rebalanceInterval.
+    // the chann executor then forwards tasks to whichever selector thread the chann is on,
+    // so the app flow (e.g. an http connection fiber) moves along with the chann.
+
+    void enableMigration()
+    {
+        executor = task -> selectorThread.execute(task);
+    }
+
+    // idle: awaiting new input from peer, e.g. next http request. no other flow is going on.
+    boolean canMigrate()
+    {
+        return executor!=null && !closed && acceptingR && writablePromise==null;
+    }
+
+    // on the old selector thread. the new agent will adopt the chann on the new selector thread.
+    void migrateTo(SelectorThread newThread)
+    {
+        if(selectionKey!=null)
+            selectionKey.cancel(); // deregistered by the next select() on the old selector
+        selectionKey = null;
+        interestOps = 0;
+
+        agent = null; // in transit
+        selectorThread = newThread;
+    }
+
+    // an event of this chann arrived at the old selector thread after migration,
+    // or at the new one before adoption. it should be forwarded to where the chann is.
+    boolean misplaced()
+    {
+        if(executor==null) // never migrated
+            return false;
+        SelectorThread thread = selectorThread;
+        if(agent==null)
+            return true;
+        return thread!=Thread.currentThread() && !thread.threadKilled_volatile;
+        // after the thread is killed, events are run by orphanFlow.
     }
 
     @Override public void close() // no throw
@@ -153,6 +225,15 @@ class ChannImpl implements TcpChannel, SelectorThread.OnSelected
             }
             catch (ClosedChannelException e) // impossible
             {    throw new AssertionError(e);   }
+            catch (CancelledKeyException e)
+            {
+                // the chann was migrated away from this selector and back, before the old key was
+                // deregistered. retry after the next select(), which deregisters the old key.
+                // that select must not block; nothing would wake it up for the retry event.
+                interestOps = 0;
+                selectorThread.blockingOnSelect = false; // we are in beforeSelect(); the next select is selectNow()
+                selectorThread.execute( ()->agent.toUpdateInterest(this) );
+            }
         }
     }
 
@@ -173,6 +254,12 @@ class ChannImpl implements TcpChannel, SelectorThread.OnSelected
 
     void onAwaitReadable(boolean accepting, Promise<Void> promise)
     {
+        if(misplaced())
+        {
+            selectorThread.execute( ()->onAwaitReadable(accepting, promise) );
+            return;
+        }
+
         if(readablePromise!=null) // programming error
         {
             promise.fail(new IllegalStateException("already awaiting readable"));
@@ -196,6 +283,12 @@ class ChannImpl implements TcpChannel, SelectorThread.OnSelected
     }
     void onCancelAwaitReadable(Promise<Void> promise, Exception reason)
     {
+        if(misplaced())
+        {
+            selectorThread.execute( ()->onCancelAwaitReadable(promise, reason) );
+            return;
+        }
+
         // cancel can come arbitrarily late; check to see if it's still relevant
         if(promise==readablePromise)
             onReadable(reason);
@@ -216,6 +309,12 @@ class ChannImpl implements TcpChannel, SelectorThread.OnSelected
 
     void onAwaitWritable(Promise<Void> promise)
     {
+        if(misplaced())
+        {
+            selectorThread.execute( ()->onAwaitWritable(promise) );
+            return;
+        }
+
         if(writablePromise!=null) // programming error
         {
             promise.fail(new IllegalStateException("already awaiting writable"));
@@ -234,6 +333,12 @@ class ChannImpl implements TcpChannel, SelectorThread.OnSelected
     }
     void onCancelAwaitWritable(Promise<Void> promise, Exception reason)
     {
+        if(misplaced())
+        {
+            selectorThread.execute( ()->onCancelAwaitWritable(promise, reason) );
+            return;
+        }
+
         // cancel can come arbitrarily late; check to see if it's still relevant
         if(promise==writablePromise)
             onWritable(reason);
@@ -253,6 +358,12 @@ class ChannImpl implements TcpChannel, SelectorThread.OnSelected
 
     void onCloseChann()
     {
+        if(misplaced())
+        {
+            selectorThread.execute( this::onCloseChann );
+            return;
+        }
+
         // not unusually to try to close a chann multiple times
         if(closed)
             return;
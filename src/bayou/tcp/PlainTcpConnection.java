@@ -2,6 +2,8 @@ package bayou.tcp;
 
 import _bayou._tmp._ByteBufferPool;
 import _bayou._tmp._ByteBufferUtil;
+import _bayou._tmp._FileTransfer;
+import _bayou._tmp._PooledRead;
 import _bayou._tmp._Tcp;
 import _bayou._tmp._TcpConn2Chann;
 import bayou.async.Async;
@@ -9,22 +11,25 @@ import bayou.ssl.SslConnection;
 
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.time.Duration;
 import java.util.ArrayDeque;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
 
-class PlainTcpConnection implements TcpConnection, _TcpConn2Chann
+class PlainTcpConnection implements TcpConnection, _TcpConn2Chann, _PooledRead, _FileTransfer
 {
     _ByteBufferPool readBufferPool;
     _ByteBufferPool writeBufferPool;
+    _ByteBufferPool pooledReadBufferPool;
     TcpChannel channel;
     long id;
 
     ByteBuffer unread;
 
     PlainTcpConnection(TcpChannel channel, long id,
-                       _ByteBufferPool readBufferPool, _ByteBufferPool writeBufferPool)
+                       _ByteBufferPool readBufferPool, _ByteBufferPool writeBufferPool,
+                       _ByteBufferPool pooledReadBufferPool)
     {
         if(trace)trace("cstor()");
         this.channel = channel;
@@ -33,6 +38,7 @@ class PlainTcpConnection implements TcpConnection, _TcpConn2Chann
 
         this.readBufferPool = readBufferPool;
         this.writeBufferPool = writeBufferPool;
+        this.pooledReadBufferPool = pooledReadBufferPool;
 
         this.cbM = writeBufferPool.getBufferCapacity();
     }
@@ -68,7 +74,10 @@ class PlainTcpConnection implements TcpConnection, _TcpConn2Chann
             return closeAction;
 
         if(unread!=null)
+        {
+            release(unread); // if it was lent
             unread = null;
+        }
 
         freeWriteBuffers();
 
@@ -100,6 +109,12 @@ class PlainTcpConnection implements TcpConnection, _TcpConn2Chann
             ByteBuffer bb = unread;
             unread = null;
             if(trace)trace("return unread");
+            if(bb==lent) // from a prev pooled read. caller of read() owns the result, so give it a copy.
+            {
+                ByteBuffer copy = _ByteBufferUtil.copyOf(bb);
+                release(bb);
+                return copy;
+            }
             return bb;
         }
 
@@ -125,6 +140,61 @@ class PlainTcpConnection implements TcpConnection, _TcpConn2Chann
         }
     }
 
+    // pooled read ==================================================================
+    // the lent buffer is read into directly, no copy, no allocation.
+    // (it is a heap buffer, since our parsers need array-backed buffers. so the JDK still copies
+    //  from its internal per-thread direct buffer; that's the same number of copies as read().)
+
+    ByteBuffer lent; // at most one buffer is lent at a time. it's either with the caller, or in `unread`.
+
+    @Override
+    public ByteBuffer readPooled() throws Exception
+    {
+        if(trace)trace("readPooled()");
+        if(closeAction !=null)
+            throw new IllegalStateException("closed");
+
+        if(unread!=null) // may or may not be lent
+        {
+            ByteBuffer bb = unread;
+            unread = null;
+            return bb;
+        }
+
+        assert lent==null : "prev lent buffer is not released";
+
+        ByteBuffer readBuffer = pooledReadBufferPool.checkOut(); // throws
+        int r;
+        try
+        {
+            r = channel.read(readBuffer); // throws
+        }
+        catch (Exception e)
+        {
+            pooledReadBufferPool.checkIn(readBuffer);
+            throw e;
+        }
+
+        if(r<=0)
+        {
+            pooledReadBufferPool.checkIn(readBuffer);
+            return r==-1 ? TCP_FIN : STALL;
+        }
+
+        readBuffer.flip();
+        lent = readBuffer;
+        return readBuffer;
+    }
+
+    @Override
+    public void release(ByteBuffer bb)
+    {
+        if(bb!=lent)
+            return;
+        lent = null;
+        pooledReadBufferPool.checkIn(bb);
+    }
+
     @Override public Async<Void> awaitReadable(boolean accepting)
     {
         if(trace)trace("requestRead()");
@@ -336,6 +406,25 @@ class PlainTcpConnection implements TcpConnection, _TcpConn2Chann
     }
 
 
+    @Override
+    public boolean canTransferFile()
+    {
+        return channel instanceof ChannImpl;
+    }
+
+    @Override
+    public long transferFile(FileChannel file, long position, long count) throws Exception
+    {
+        if(closeAction !=null)
+            throw new IllegalStateException("closed");
+        if(wr()!=0)
+            throw new IllegalStateException("write queue is not empty");
+
+        long w = ((ChannImpl)channel).transferFrom(file, position, count); // throws
+        if(trace)trace("transferFile", w);
+        return w;
+    }
+
     @Override public Async<Void> awaitWritable()
     {
         if(trace)trace("requestWrite");
@@ -0,0 +1,209 @@
+package bayou.tcp;
+
+/**
+ * Runtime metrics of a selector thread.
+ * <p>
+ *     Each selector is associated with a dedicated thread; see {@link TcpServer.Conf#selectorIds}.
+ *     The getters read live counters maintained by the selector thread, with no synchronization;
+ *     counters are cumulative since the thread started. Sample them periodically to get rates.
+ * </p>
+ * <p>
+ *     The selector thread runs a loop: wait for channel events in <code>select()</code>,
+ *     then run all pending events (I/O callbacks, tasks submitted to the executor, timeouts).
+ *     If a loop is busy most of the time, or has a deep event queue,
+ *     the selector is overloaded. If the longest task is long, some handler is probably blocking the thread.
+ * </p>
+ * <p>
+ *     The counters are updated at the end of each loop. Timing of individual tasks starts
+ *     when a SelectorMetrics is first obtained for the selector; it costs 2 <code>System.nanoTime()</code>
+ *     calls per task.
+ * </p>
+ * <p>
+ *     Note that a selector thread may be shared by multiple servers and clients;
+ *     the metrics cover all of them.
+ * </p>
+ */
+public final class SelectorMetrics
+{
+    final SelectorThread thread;
+
+    SelectorMetrics(SelectorThread thread)
+    {
+        this.thread = thread;
+
+        thread.taskTiming_volatile = true;
+    }
+
+    /**
+     * The id of the selector.
+     */
+    public Object getSelectorId()
+    {
+        return thread.id;
+    }
+
+    /**
+     * Number of non-blocking polls that found no events, while spinning before a blocking select.
+     * <p>
+     *     See {@link TcpServer.Conf#selectorSpinTime}.
+     * </p>
+     */
+    public long getSpinCount()
+    {
+        return thread.nSpins_volatile;
+    }
+
+    /**
+     * Number of blocking selects, i.e. how many times the thread went idle waiting for events.
+     */
+    public long getBlockingSelectCount()
+    {
+        return thread.nBlockingSelects_volatile;
+    }
+
+    /**
+     * Number of blocking selects that were woken up by events from other threads.
+     */
+    public long getWakeupCount()
+    {
+        return thread.nWakeups_volatile;
+    }
+
+    /**
+     * Number of iterations of the event loop.
+     */
+    public long getLoopCount()
+    {
+        return thread.nLoops_volatile;
+    }
+
+    /**
+     * Number of events processed by the event loop.
+     * <p>
+     *     Divide the delta by the delta of {@link #getLoopCount()} to get events per loop.
+     * </p>
+     */
+    public long getEventCount()
+    {
+        return thread.nEvents_volatile;
+    }
+
+    /**
+     * Total time spent waiting for channel events in <code>select()</code>, including spinning, in nanoseconds.
+     */
+    public long getSelectWaitNanos()
+    {
+        return thread.selectNanos_volatile;
+    }
+
+    /**
+     * Total time spent processing channel events and other events, in nanoseconds.
+     * <p>
+     *     Compare the deltas of busy time and {@link #getSelectWaitNanos() wait time}
+     *     to see how loaded the thread is.
+     * </p>
+     */
+    public long getBusyNanos()
+    {
+        return thread.busyNanos_volatile;
+    }
+
+    /**
+     * Number of local events pending at the start of the last event loop.
+     * <p>
+     *     Local events are submitted on the selector thread itself, e.g. I/O callbacks.
+     * </p>
+     */
+    public int getLocalQueueDepth()
+    {
+        return thread.localQueueDepth_volatile;
+    }
+
+    /**
+     * Number of remote events pending at the start of the last event loop.
+     * <p>
+     *     Remote events are submitted from other threads to the selector thread's executor.
+     * </p>
+     */
+    public int getRemoteQueueDepth()
+    {
+        return thread.remoteQueueDepth_volatile;
+    }
+
+    /**
+     * Number of channels registered with the selector, at the end of the last event loop.
+     */
+    public int getRegisteredKeyCount()
+    {
+        return thread.registeredKeys_volatile;
+    }
+
+    /**
+     * Number of bytes read from channels of this selector.
+     * <p>
+     *     Only reads done on the selector thread are counted, which is the normal case.
+     * </p>
+     */
+    public long getReadBytes()
+    {
+        return thread.nBytesRead_volatile;
+    }
+
+    /**
+     * Number of bytes written to channels of this selector.
+     * <p>
+     *     Only writes done on the selector thread are counted, which is the normal case.
+     * </p>
+     */
+    public long getWrittenBytes()
+    {
+        return thread.nBytesWritten_volatile;
+    }
+
+    /**
+     * The run time of the longest event in the last interval (1 second), in nanoseconds.
+     * <p>
+     *     The value is 0 until an interval completes after task timing starts.
+     *     If the thread is idle, the value is from the last interval in which the thread was active.
+     * </p>
+     */
+    public long getLongestTaskNanos()
+    {
+        return thread.longestTaskNanos_volatile;
+    }
+
+    /**
+     * The event loop lag measured by the last probe, in nanoseconds.
+     * <p>
+     *     The lag is the delay between posting an event to the selector thread and running it;
+     *     it grows when the thread can't keep up with its events.
+     *     Probing is only done if some server requested it, see {@link TcpServer.Conf#overloadLag};
+     *     otherwise the value is 0.
+     * </p>
+     */
+    public long getEventLoopLagNanos()
+    {
+        return thread.lagNanos_volatile;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SelectorMetrics{id=" + getSelectorId()
+            + ", loops=" + getLoopCount()
+            + ", events=" + getEventCount()
+            + ", selectWaitNanos=" + getSelectWaitNanos()
+            + ", busyNanos=" + getBusyNanos()
+            + ", localQueue=" + getLocalQueueDepth()
+            + ", remoteQueue=" + getRemoteQueueDepth()
+            + ", keys=" + getRegisteredKeyCount()
+            + ", readBytes=" + getReadBytes()
+            + ", writtenBytes=" + getWrittenBytes()
+            + ", longestTaskNanos=" + getLongestTaskNanos()
+            + ", lagNanos=" + getEventLoopLagNanos()
+            + ", spins=" + getSpinCount()
+            + ", blockingSelects=" + getBlockingSelectCount()
+            + ", wakeups=" + getWakeupCount()
+            + "}";
+    }
+}
@@ -3,18 +3,24 @@ package bayou.tcp;
 import _bayou._async._WithPreferredFiberDefaultExec;
 import _bayou._async._WithThreadLocalFiber;
 import _bayou._log._Logger;
+import _bayou._tmp._ByteBufferPool;
 import _bayou._tmp._Exec;
+import _bayou._tmp._MpscQueue;
+import _bayou._tmp._TimingWheel;
 import _bayou._tmp._Util;
 
+import java.io.IOException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.util.*;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 // note WindowsSelectorImpl creates one sub-selector/thread for every 1024 channels.
 
-class SelectorThread extends Thread implements Executor, _WithThreadLocalFiber, _WithPreferredFiberDefaultExec
+class SelectorThread extends Thread implements Executor, _WithThreadLocalFiber, _WithPreferredFiberDefaultExec,
+    _TimingWheel.Owner
 {
     static final _Logger logger = _Logger.of(SelectorThread.class);
 
@@ -75,6 +81,11 @@ class SelectorThread extends Thread implements Executor, _WithThreadLocalFiber,
         void onSelected(SelectionKey sk);
     }
 
+    interface OnLagProbed
+    {
+        void onLagProbed(long lagNanos);
+    }
+
     // =======================================================================================
 
     int acquireCount; // accessed only by acquire/release, under global lock.
@@ -87,11 +98,55 @@ class SelectorThread extends Thread implements Executor, _WithThreadLocalFiber,
     boolean stopRequested;
     ArrayDeque<Runnable> localEvents = new ArrayDeque<>();
 
-    // remote events from other threads. use `remoteEvents` as the lock
-    final ArrayDeque<Runnable> remoteEvents = new ArrayDeque<>();
-    volatile boolean remoteEventFlag_volatile;
-    boolean blockingOnSelect =true;
-    boolean threadKilled;
+    // remote events from other threads. lock-free; this thread is the single consumer.
+    // after the thread is killed, the consumer role is handed over to orphanFlow.
+    final _MpscQueue<Runnable> remoteEvents = new _MpscQueue<>();
+    volatile boolean threadKilled_volatile;
+
+    // timers set on this thread, e.g. connection timeouts. accessed only by this thread.
+    // fired timers become local events.
+    final _TimingWheel timingWheel = new _TimingWheel();
+
+    boolean blockingOnSelect =true; // accessed only by this thread
+    // armed before a blocking select(). the first remote event producer that disarms it
+    // pays for selector.wakeup(); other producers in the same select cycle skip the syscall.
+    final AtomicBoolean wakeupArmed = new AtomicBoolean(false);
+
+    // before a blocking select(), busy-poll selectNow() and remote events for this long. 0 = no spinning.
+    // if the thread is shared by multiple servers, the largest requested value wins.
+    // a server withdraws its request when it's stopped.
+    long spinNanos; // accessed only by this thread
+    final HashMap<Object,Long> spinRequests = new HashMap<>(); // requester -> nanos. accessed only by this thread
+
+    // event loop lag: the delay between posting a local event and running it. probed periodically,
+    // only if someone requested it. if the thread is shared by multiple servers, the shortest interval wins.
+    long lagProbeNanos; // 0 = not probing. accessed only by this thread
+    ArrayList<OnLagProbed> lagListeners = new ArrayList<>(); // accessed only by this thread
+
+    // loop metrics. written only by this thread; read by any thread through SelectorMetrics.
+    volatile long nSpins_volatile;          // selectNow() calls while spinning, that found nothing
+    volatile long nBlockingSelects_volatile; // blocking select() calls
+    volatile long nWakeups_volatile;        // blocking selects interrupted by remote events (selector.wakeup())
+    volatile long nLoops_volatile;          // run1() iterations
+    volatile long nEvents_volatile;         // events run by the local event loop, incl. remote and timer events
+    volatile long selectNanos_volatile;     // time waiting for channel events, incl. spinning
+    volatile long busyNanos_volatile;       // time processing channel events and local events
+    volatile int localQueueDepth_volatile;  // local events pending at the start of the last event loop
+    volatile int remoteQueueDepth_volatile; // remote events pending at the start of the last event loop
+    volatile int registeredKeys_volatile;   // at the end of the last loop
+    volatile long longestTaskNanos_volatile; // longest event in the last completed interval
+    volatile long nBytesRead_volatile;      // by channels of this selector, on this thread
+    volatile long nBytesWritten_volatile;
+    volatile long lagNanos_volatile;        // of the last lag probe
+    // timing each event costs 2 nanoTime() calls; only done after someone asks for SelectorMetrics.
+    volatile boolean taskTiming_volatile;
+
+    static final long metricsIntervalNanos = 1_000_000_000L;
+    // accessed only by this thread
+    long loopEndNanos = System.nanoTime();
+    long intervalStartNanos = loopEndNanos;
+    long maxTaskNanos;  // in the current interval
+    long nBytesRead, nBytesWritten; // updated by ChannImpl; published at the end of each loop
 
     SelectorThread(Object id, Selector selector)
     {
@@ -121,6 +176,12 @@ class SelectorThread extends Thread implements Executor, _WithThreadLocalFiber,
         return this;
     }
 
+    @Override // _TimingWheel.Owner
+    public _TimingWheel getTimingWheel()
+    {
+        return timingWheel;
+    }
+
     @Override // Executor
     public void execute(Runnable event)
     {
@@ -135,45 +196,185 @@ class SelectorThread extends Thread implements Executor, _WithThreadLocalFiber,
         }
 
         // addEvent() called from another thread. hopefully this is not common.
-        int x = 0;
-        synchronized (remoteEvents)
+        remoteEvents.offer(event);
+
+        if(threadKilled_volatile)
         {
-            if(threadKilled)
+            // orphan event, diverted to the single-threaded orphanFlow.
+            // not big deal for tasks after kill, they should be light-weighted.
+            // we may schedule redundant drains; that's fine.
+            orphanFlow.execute(this::drainOrphanEvents);
+            return;
+        }
+        // offer() and the flag check are ordered against the killing thread's flag set and final drain;
+        // either we see the flag, or the final drain sees our event.
+
+        if(wakeupArmed.get() && wakeupArmed.compareAndSet(true, false))
+            selector.wakeup(); // ok if selector is closed
+        // likewise, either we see the armed flag, or the selector thread sees our event before it blocks.
+    }
+
+    // called on this thread
+    void requestSpin(Object requester, long nanos)
+    {
+        spinRequests.put(requester, nanos);
+        if(nanos>spinNanos)
+            spinNanos = nanos;
+    }
+
+    // called on this thread
+    void cancelSpin(Object requester)
+    {
+        if(spinRequests.remove(requester)==null)
+            return;
+        long max = 0;
+        for(long nanos : spinRequests.values())
+            max = Math.max(max, nanos);
+        spinNanos = max;
+    }
+
+    // called on this thread
+    void requestLagProbe(long intervalNanos)
+    {
+        boolean start = lagProbeNanos==0;
+        if(start || intervalNanos<lagProbeNanos)
+            lagProbeNanos = intervalNanos;
+        if(start)
+            scheduleLagProbe();
+    }
+
+    // the probe is a timer; when it's due, it's posted as a local event. the lag is how late it runs.
+    // that covers both the time the loop was too busy to check timers, and the wait in the local queue.
+    // timers may be late by up to 1 tick by design, which is negligible compared to lag of concern.
+    // probing never stops once started; it's only one event per interval.
+    void scheduleLagProbe()
+    {
+        long dueNanos = System.nanoTime() + lagProbeNanos;
+        timingWheel.schedule(lagProbeNanos, () -> onLagProbe(dueNanos));
+    }
+
+    void onLagProbe(long dueNanos)
+    {
+        if(Thread.currentThread()!=this) // the thread was killed; timer handed over to the scheduler
+            return;
+
+        long lagNanos = Math.max(0L, System.nanoTime() - dueNanos);
+        lagNanos_volatile = lagNanos;
+        for(OnLagProbed listener : lagListeners)
+            listener.onLagProbed(lagNanos);
+
+        scheduleLagProbe();
+    }
+
+    // flush idle buffer pool magazines of this thread, in case the thread goes idle for long.
+    // see _ByteBufferPool.trimLocal(). it's only one event per interval.
+    static final long trimPoolsNanos = 30_000_000_000L;
+    void scheduleTrimPools()
+    {
+        timingWheel.schedule(trimPoolsNanos, this::onTrimPools);
+    }
+    void onTrimPools()
+    {
+        if(Thread.currentThread()!=this) // the thread was killed; timer handed over to the scheduler
+            return;
+
+        _ByteBufferPool.trimLocal();
+        scheduleTrimPools();
+    }
+
+    // on orphanFlow, after the thread is killed. orphanFlow is now the single consumer of remoteEvents
+    void drainOrphanEvents()
+    {
+        while(!remoteEvents.isEmpty())
+        {
+            Runnable event = remoteEvents.poll();
+            if(event==null) // a producer is in the middle of offer(). it'll be linked momentarily.
             {
-                // orphan event, diverted to the single-threaded orphanFlow.
-                // not big deal for tasks after kill, they should be light-weighted.
-                x = 1; // orphanFlow.execute(event);
+                Thread.yield();
+                continue;
             }
-            else
-            {
-                remoteEvents.addLast(event);
-                remoteEventFlag_volatile = true;
 
-                if(blockingOnSelect)
-                    x=2; // selector.wakeup();
+            try
+            {
+                event.run();
+            }
+            catch (RuntimeException e)
+            {
+                _Util.logUnexpected(logger, e);
             }
         }
-        if(x==1)
-            orphanFlow.execute(event);
-        else if(x==2)
-            selector.wakeup(); // ok if selector is closed
     }
 
-    void moveRemoteEventsToLocal()
+    int moveRemoteEventsToLocal()
     {
-        assert Thread.holdsLock(remoteEvents);
+        int n = 0;
+        Runnable event;
+        while((event=remoteEvents.poll())!=null)
+        {
+            localEvents.addLast(event);
+            n++;
+        }
+        return n;
+    }
+
 
-        localEvents.addAll(remoteEvents);
-        remoteEvents.clear();
-        remoteEventFlag_volatile = false;
+    // trade CPU for latency: spin for a while, in the hope that channel/remote events arrive soon,
+    // so that we don't pay for the block-wakeup trip through the kernel scheduler.
+    int spinThenSelect() throws IOException
+    {
+        long deadline = System.nanoTime() + spinNanos;
+        long spins = 0;
+        try
+        {
+            while(true)
+            {
+                int selectR = selector.selectNow();
+                if(selectR>0 || !remoteEvents.isEmpty())
+                    return selectR;
+                // local events are empty, we only get here after the event loop depleted them.
+
+                ++spins;
+                if(System.nanoTime()-deadline>=0)
+                    break;
+            }
+        }
+        finally
+        {
+            nSpins_volatile += spins;
+        }
+
+        return blockingSelect();
     }
 
+    int blockingSelect() throws IOException
+    {
+        nBlockingSelects_volatile++;
+
+        wakeupArmed.set(true);
+        int selectR;
+        long timeout = timingWheel.millisToNextTimer();
+        if(!remoteEvents.isEmpty()) // a remote event arrived before arming. don't block.
+            selectR = selector.selectNow();
+        else if(timeout>0)
+            selectR = selector.select(timeout); // await channel events, or the earliest timer
+        else
+            selectR = selector.select();     // await channel events
+
+        if(!wakeupArmed.getAndSet(false)) // a producer disarmed it and called wakeup()
+            nWakeups_volatile++;
+        // the wakeup() could come after select() returned; next select() might return
+        // immediately for nothing. that's rare and harmless.
+
+        return selectR;
+    }
 
     @Override
     public void run()
     {
         try
         {
+            scheduleTrimPools();
+
             while( run1() ) continue;
         }
         catch(RuntimeException|Error t) // unrecoverable; `this` is corrupt.
@@ -196,12 +397,14 @@ class SelectorThread extends Thread implements Executor, _WithThreadLocalFiber,
         int selectR;
         try
         {
-            if(blockingOnSelect) // can read it without sync{}, cause only this thread writes to it.
+            if(blockingOnSelect)
             {
-                selectR = selector.select();     // await channel events
+                if(spinNanos>0)
+                    selectR = spinThenSelect();
+                else
+                    selectR = blockingSelect();
 
-                synchronized (remoteEvents)
-                {   blockingOnSelect = false;   }
+                blockingOnSelect = false;
             }
             else
             {
@@ -212,6 +415,7 @@ class SelectorThread extends Thread implements Executor, _WithThreadLocalFiber,
         {
             throw new RuntimeException(t);
         }
+        long selectEndNanos = System.nanoTime();
 
         // channel events ==============================================================================
         // process acceptable/readable/writable/connectable events. may generate local events
@@ -228,6 +432,10 @@ class SelectorThread extends Thread implements Executor, _WithThreadLocalFiber,
             selectedKeys.clear();
         }
 
+        // timer events ================================================================================
+        // fired timers are added as local events
+        timingWheel.expire(this);
+
         // local event loop =========================================================================
 
         // local event loop may be dominated by some channels (by successively adding new events)
@@ -239,48 +447,40 @@ class SelectorThread extends Thread implements Executor, _WithThreadLocalFiber,
 
         int iLoop=0;
 
+        boolean taskTiming = taskTiming_volatile;
+        remoteQueueDepth_volatile = remoteEvents.isEmpty()? 0 : moveRemoteEventsToLocal();
+        localQueueDepth_volatile = localEvents.size();
+
         while(true)
         {
-            if(remoteEventFlag_volatile)  /*0*/
-            {
-                synchronized (remoteEvents)
-                {
-                    moveRemoteEventsToLocal();
-                }
-            }
+            if(!remoteEvents.isEmpty())
+                moveRemoteEventsToLocal();
 
             Runnable event = localEvents.pollFirst();
             if(event==null)
             {
-                synchronized (remoteEvents)
+                if(!remoteEvents.isEmpty()) // a producer is in the middle of offer(). rare.
+                    continue;
+
+                // local & remote events are depleted. end this event loop
+                if(stopRequested)
                 {
-                    if(!remoteEventFlag_volatile) // local & remove events are depleted. end this event loop
-                    {
-                        if(stopRequested)
-                        {
-                            // kill this selector thread. no more local events,
-                            // no more channel events (all channels should have been closed)
-                            // divert future remote events to orphanFlow
-                            threadKilled = true;
-                            return false;  // exit run()
-                        }
-                        else // awaiting channel events, block on select()
-                        {
-                            blockingOnSelect = true;
-                            break;
-                        }
-                    }
-                    else // remote events. should be rare, coz we just checked the flag at /*0*/
-                    {
-                        moveRemoteEventsToLocal();
-                        // goto /*1*/, then goto /*2*/
-                    }
+                    // kill this selector thread. no more local events,
+                    // no more channel events (all channels should have been closed)
+                    // divert future remote events to orphanFlow
+                    timingWheel.transferToScheduler(); // pending timers, e.g. Async.sleep() by app code
+                    threadKilled_volatile = true;
+                    orphanFlow.execute(this::drainOrphanEvents); // remote events that raced with the kill
+                    return false;  // exit run()
+                }
+                else // awaiting channel events, block on select()
+                {
+                    blockingOnSelect = true;
+                    break;
                 }
-                /*1*/
-                event = localEvents.pollFirst(); // non null
             }
 
-            /*2*/
+            long taskStartNanos = taskTiming? System.nanoTime() : 0L;
             try
             {
                 event.run(); // may add more local events
@@ -290,6 +490,12 @@ class SelectorThread extends Thread implements Executor, _WithThreadLocalFiber,
                 _Util.logUnexpected(logger, e);
                 // one chann flow may be corrupted; but keep the selector going
             }
+            if(taskTiming)
+            {
+                long taskNanos = System.nanoTime() - taskStartNanos;
+                if(taskNanos>maxTaskNanos)
+                    maxTaskNanos = taskNanos;
+            }
 
             if( ( ++iLoop & ((1<<10)-1) ) !=0 )  // loop at least 2^10 times before checking time
                 continue;
@@ -305,9 +511,32 @@ class SelectorThread extends Thread implements Executor, _WithThreadLocalFiber,
 
         } // while(true)
 
+        updateMetrics(selectEndNanos, iLoop);
+
         return true; // repeat, goto select()/selectNow()
     }
 
+    // a few volatile writes per loop; a loop usually includes a select() syscall which costs far more.
+    void updateMetrics(long selectEndNanos, int nEvents)
+    {
+        long now = System.nanoTime();
 
+        nLoops_volatile++;
+        nEvents_volatile += nEvents;
+        selectNanos_volatile += selectEndNanos - loopEndNanos; // incl. beforeSelect actions, which are trivial
+        busyNanos_volatile += now - selectEndNanos;
+        registeredKeys_volatile = selector.keys().size();
+        nBytesRead_volatile = nBytesRead;
+        nBytesWritten_volatile = nBytesWritten;
+
+        if(now - intervalStartNanos >= metricsIntervalNanos)
+        {
+            longestTaskNanos_volatile = maxTaskNanos;
+            maxTaskNanos = 0;
+            intervalStartNanos = now;
+        }
+
+        loopEndNanos = now;
+    }
 
 }
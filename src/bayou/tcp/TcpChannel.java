@@ -37,11 +37,17 @@ public interface TcpChannel
 
     /**
      * Get the IP address of the peer.
+     * <p>
+     *     If this channel is a unix domain socket connection, the loopback address is returned.
+     * </p>
      */
     InetAddress getPeerIp();
 
     /**
      * Get the TCP port of the peer.
+     * <p>
+     *     If this channel is a unix domain socket connection, 0 is returned.
+     * </p>
      */
     int getPeerPort();
 
@@ -21,6 +21,7 @@ public class TcpChannel2Connection
 
     final _ByteBufferPool plainReadBufferPool;
     final _ByteBufferPool plainWriteBufferPool;
+    final _ByteBufferPool plainPooledReadBufferPool; // for lent buffers of pooled reads; must be array-backed
 
     /** Create a TcpChannel to TcpConnection converter.
      *
@@ -36,6 +37,7 @@ public class TcpChannel2Connection
         // read/writeBufferSize - not to be confused with socket receive/send buffer size.
         plainReadBufferPool  = _ByteBufferPool.forCapacity(readBufferSize);
         plainWriteBufferPool = _ByteBufferPool.forCapacity(writeBufferSize);
+        plainPooledReadBufferPool = _ByteBufferPool.forHeapCapacity(readBufferSize);
         // use default expiration for buffer pools
     }
 
@@ -45,7 +47,8 @@ public class TcpChannel2Connection
     public TcpConnection convert(TcpChannel channel)
     {
         long id = idGenerator.get().longValue();
-        return new PlainTcpConnection(channel, id, plainReadBufferPool, plainWriteBufferPool);
+        return new PlainTcpConnection(channel, id, plainReadBufferPool, plainWriteBufferPool,
+            plainPooledReadBufferPool);
     }
 
 }
@@ -2,6 +2,7 @@ package bayou.tcp;
 
 
 import _bayou._log._Logger;
+import _bayou._tmp._Tcp;
 import _bayou._tmp._Util;
 import bayou.async.Async;
 import bayou.async.Fiber;
@@ -11,7 +12,9 @@ import bayou.util.function.ConsumerX;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.channels.*;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.concurrent.Executor;
@@ -120,7 +123,35 @@ public class TcpClient implements AutoCloseable
     //          whether that is correct is debatable. this usually shouldn't be a problem.
     public Async<TcpChannel> connect(String peerHost, InetAddress ip, int port)
     {
-        return agent.connect(peerHost, ip, port);
+        return agent.connect(peerHost, new InetSocketAddress(ip, port), false);
+    }
+
+    /**
+     * Connect to a local server through a unix domain socket.
+     * <p>
+     *     This method is similar to {@link #connect(String, InetAddress, int)},
+     *     except that the connection is made to the unix domain socket at the file path.
+     *     Unix domain sockets require JDK 16+; otherwise this action fails.
+     * </p>
+     * <p>
+     *     {@link Conf#socketConf} is not applied, since it's for TCP options.
+     *     The TcpChannel's {@link TcpChannel#getPeerIp() peerIp} is the loopback address.
+     *     The `peerHost` argument will become the TcpChannel's
+     *     {@link TcpChannel#getPeerHost() peerHost}; it can be null.
+     * </p>
+     */
+    public Async<TcpChannel> connect(String peerHost, Path unixSocketPath)
+    {
+        SocketAddress address;
+        try
+        {
+            address = _Tcp.unixDomainAddress(unixSocketPath);
+        }
+        catch (RuntimeException e) // not supported, or invalid path
+        {
+            return Async.failure(e);
+        }
+        return agent.connect(peerHost, address, true);
     }
 
     /**
@@ -132,6 +163,14 @@ public class TcpClient implements AutoCloseable
     }
     // another method for number of pending connections? probably unnecessary.
 
+    /**
+     * Get metrics of the selector used by this client.
+     */
+    public SelectorMetrics getSelectorMetrics()
+    {
+        return new SelectorMetrics(agent.selectorThread);
+    }
+
     /**
      * Close the client and free resources.
      * <p>
@@ -221,14 +260,14 @@ public class TcpClient implements AutoCloseable
 
 
 
-        Async<TcpChannel> connect(String peerHost, InetAddress ip, int port)
+        Async<TcpChannel> connect(String peerHost, SocketAddress address, boolean unixDomain)
         {
             Promise<TcpChannel> promise = new Promise<>();
-            selectorThread.execute( ()-> onInitConnect(promise, peerHost, ip, port) );
+            selectorThread.execute( ()-> onInitConnect(promise, peerHost, address, unixDomain) );
             return promise;
         }
 
-        void onInitConnect(Promise<TcpChannel> promise, String peerHost, InetAddress ip, int port)
+        void onInitConnect(Promise<TcpChannel> promise, String peerHost, SocketAddress address, boolean unixDomain)
         {
             if(closed)
             {
@@ -239,7 +278,7 @@ public class TcpClient implements AutoCloseable
             SocketChannel socketChannel;
             try
             {
-                socketChannel = SocketChannel.open();
+                socketChannel = unixDomain? _Tcp.openUnixDomainSocket() : SocketChannel.open();
             }
             catch (IOException e)
             {
@@ -251,9 +290,10 @@ public class TcpClient implements AutoCloseable
             try
             {
                 socketChannel.configureBlocking(false);
-                socketConf.accept(socketChannel);
+                if(!unixDomain) // tcp options
+                    socketConf.accept(socketChannel);
 
-                connected = socketChannel.connect(new InetSocketAddress(ip, port));
+                connected = socketChannel.connect(address);
             }
             catch (Exception e)
             {
@@ -262,15 +302,15 @@ public class TcpClient implements AutoCloseable
                 return;
             }
 
-            if(connected) // connect() javadoc says this can happen. not observed in practice.
+            if(connected) // connect() javadoc says this can happen. common for unix domain sockets.
             {
-                ChannImpl chann = new ChannImpl(socketChannel, selectorThread, this);
+                ChannImpl chann = new ChannImpl(socketChannel, unixDomain, selectorThread, this);
                 chann.peerHost = peerHost;
                 promise.succeed(chann);
             }
             else
             {
-                Pending pending = new Pending(this, peerHost, socketChannel, promise);
+                Pending pending = new Pending(this, peerHost, socketChannel, unixDomain, promise);
                 pending.onAwaitConnectable();
             }
 
@@ -317,13 +357,16 @@ public class TcpClient implements AutoCloseable
         ClientAgent agent;
         String peerHost;
         SocketChannel socketChannel;
+        boolean unixDomain;
         Promise<TcpChannel> connectPromise;
 
-        Pending(ClientAgent agent, String peerHost, SocketChannel socketChannel, Promise<TcpChannel> promise)
+        Pending(ClientAgent agent, String peerHost, SocketChannel socketChannel, boolean unixDomain,
+                Promise<TcpChannel> promise)
         {
             this.agent = agent;
             this.peerHost = peerHost;
             this.socketChannel = socketChannel;
+            this.unixDomain = unixDomain;
             this.connectPromise = promise;
         }
 
@@ -389,7 +432,7 @@ public class TcpClient implements AutoCloseable
 
             // here, the client has received server ACK/SYN, and sent client ACK.
 
-            ChannImpl chann = new ChannImpl(socketChannel, agent.selectorThread, agent);
+            ChannImpl chann = new ChannImpl(socketChannel, unixDomain, agent.selectorThread, agent);
             chann.peerHost = peerHost;
             // pass selectionKey to chann
             sk.attach(chann);
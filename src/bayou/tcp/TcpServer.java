@@ -2,6 +2,7 @@ package bayou.tcp;
 
 
 import _bayou._log._Logger;
+import _bayou._tmp._Exec;
 import _bayou._tmp._Tcp;
 import _bayou._tmp._Util;
 import bayou.util.function.ConsumerX;
@@ -13,6 +14,8 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.nio.channels.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
@@ -95,6 +98,33 @@ public class TcpServer
          */
         public Map<InetSocketAddress, Consumer<TcpChannel>> handlers = new HashMap<>();
 
+        /**
+         * Handlers for each unix domain socket path.
+         * <p><code>
+         *     default: empty
+         * </code></p>
+         * <p>
+         *     Same as {@link #handlers}, except that the server listens on unix domain sockets
+         *     at the specified file paths. This avoids the overhead of the TCP stack when clients are
+         *     on the same host, e.g. a local reverse proxy. Unix domain sockets require JDK 16+;
+         *     otherwise {@link TcpServer#start()} fails.
+         * </p>
+         * <p>
+         *     The socket file must not exist before the server starts; it is deleted when
+         *     the server stops accepting. {@link #serverSocketConf} and {@link #socketConf}
+         *     are not applied to unix domain sockets, since they are for TCP options.
+         *     Unix domain socket connections are not subject to {@link #maxConnectionsPerIp};
+         *     their {@link TcpChannel#getPeerIp() peer ip} is the loopback address.
+         * </p>
+         * <p>
+         *     Example:
+         * </p>
+         * <pre>
+         *     conf.unixHandlers.put( Paths.get("/run/app.sock"), channel-&gt;{...} );
+         * </pre>
+         */
+        public Map<Path, Consumer<TcpChannel>> unixHandlers = new HashMap<>();
+
         /**
          * Ids of selectors for this server.
          * <p><code>
@@ -118,6 +148,110 @@ public class TcpServer
          */
         public int serverSocketBacklog = 50;
 
+        /**
+         * Whether each selector has its own server socket, bound with <code>SO_REUSEPORT</code>.
+         * <p><code>
+         *     default: false
+         * </code></p>
+         * <p>
+         *     By default, there is one server socket per address, and only one selector thread
+         *     accepts on it at a time; accepted connections are handed over to other selector threads.
+         * </p>
+         * <p>
+         *     If this property is true, one server socket per address per selector is opened,
+         *     with <code>SO_REUSEPORT</code> enabled; the OS kernel spreads incoming connections
+         *     among these sockets, and each connection is served by the thread that accepted it.
+         *     This may help when accepting becomes the bottleneck, e.g. under connection storms.
+         *     See also {@link TcpServer#getAcceptCounts()}.
+         * </p>
+         * <p>
+         *     <code>SO_REUSEPORT</code> requires JDK 9+ and OS support (e.g. Linux 3.9+);
+         *     otherwise {@link TcpServer#start()} fails.
+         * </p>
+         */
+        public boolean reusePort = false;
+
+        /**
+         * How long a selector thread busy-polls for events before it blocks.
+         * <p><code>
+         *     default: 0 (no busy-polling)
+         * </code></p>
+         * <p>
+         *     When a selector thread runs out of events, it normally blocks in <code>select()</code>;
+         *     new events must wake it up through the kernel, which adds latency.
+         *     If this property is positive, the thread first polls with <code>selectNow()</code>
+         *     in a busy loop for up to this amount of time. This trades CPU for tail latency.
+         * </p>
+         * <p>
+         *     If a selector is shared by multiple servers, the largest value applies.
+         *     See {@link TcpServer#getSelectorMetrics()} for spin/select/wakeup counts and other loop metrics.
+         * </p>
+         */
+        public Duration selectorSpinTime = Duration.ZERO;
+
+        /**
+         * Interval of load balancing among selectors.
+         * <p><code>
+         *     default: 0 (no load balancing)
+         * </code></p>
+         * <p>
+         *     By default, a new connection is assigned to the selector with the fewest connections,
+         *     and it stays on that selector. However, connection counts say nothing about load;
+         *     a few heavy connections may keep one selector thread busy while others are idle.
+         * </p>
+         * <p>
+         *     If this property is positive, the server samples the load of each selector every interval,
+         *     based on its busy time and bytes transferred (see {@link SelectorMetrics}).
+         *     New connections are assigned to less loaded selectors. If a selector is overloaded,
+         *     some of its idle connections are migrated to the least loaded selector.
+         *     A connection is idle if it is awaiting new input in
+         *     {@link TcpChannel#awaitReadable(boolean) awaitReadable(accepting=true)},
+         *     e.g. an http keep-alive connection between requests.
+         * </p>
+         * <p>
+         *     When a connection is migrated, its {@link TcpChannel#getExecutor() executor}
+         *     starts to execute tasks on the new selector thread.
+         *     See {@link TcpServer#getMigrationCount()} and {@link TcpServer#getSelectorLoads()}.
+         * </p>
+         */
+        public Duration rebalanceInterval = Duration.ZERO;
+
+        /**
+         * Event loop lag at which a selector is considered overloaded.
+         * <p><code>
+         *     default: 0 (no overload detection)
+         * </code></p>
+         * <p>
+         *     If this property is positive, each selector thread measures its event loop lag periodically,
+         *     i.e. the delay between posting an event to the thread and running it
+         *     (see {@link SelectorMetrics#getEventLoopLagNanos()}).
+         *     If the lag reaches this value, the selector is overloaded; new connections are assigned
+         *     to other selectors that are not overloaded. If all selectors are overloaded,
+         *     new connections are accepted and closed immediately, to shed load early,
+         *     instead of letting the latency of every connection blow up.
+         * </p>
+         * <p>
+         *     The selector is no longer overloaded when the lag drops to {@link #overloadRecoveryLag}.
+         *     App can check {@link TcpServer#isCurrentSelectorOverloaded()} to shed load on existing connections,
+         *     e.g. by rejecting new requests cheaply.
+         *     See also {@link TcpServer#getShedCount()}.
+         * </p>
+         */
+        public Duration overloadLag = Duration.ZERO;
+
+        /**
+         * Event loop lag at which an overloaded selector recovers.
+         * <p><code>
+         *     default: null, meaning half of {@link #overloadLag}
+         * </code></p>
+         * <p>
+         *     If non-null, it must not be greater than {@link #overloadLag}.
+         *     The gap between the two thresholds prevents a selector from flapping
+         *     in and out of the overloaded state.
+         * </p>
+         */
+        public Duration overloadRecoveryLag = null;
+
         /**
          * Max number of connections. Must be positive.
          * <p><code>
@@ -210,12 +344,18 @@ public class TcpServer
     final Object lock = new Object();
 
     LinkedHashMap<ServerSocketChannel, Consumer<TcpChannel>> handlers;
+    HashMap<ServerSocketChannel, ServerSocketChannel[]> reusePortSockets; // if conf.reusePort. one per selector
+    HashMap<ServerSocketChannel, Path> unixSockets; // unix domain server sockets, among `handlers`
 
     ServerAgent[] serverAgentList; // one per selector thread
     enum ServerState{ err, init, accepting, acceptingPaused, acceptingStopped, allStopped }
     volatile ServerState state;
     ConcurrentHashMap<InetAddress,AtomicInteger> ip2Channs;
 
+    // load imbalance (max load - min load) when the last migration was triggered, and at the next sample.
+    volatile double imbalanceBefore_volatile = Double.NaN;
+    volatile double imbalanceAfter_volatile = Double.NaN;
+
     /**
      * Create a TcpServer. The server is in <code>init</code> state.
      */
@@ -259,24 +399,50 @@ public class TcpServer
                     ++maxConnPerAgent;
                 // maxConnPerAgent>0
 
+                _Util.require(!conf.selectorSpinTime.isNegative(), "!confSelectorSpinTime.isNegative()");
+                _Util.require(!conf.rebalanceInterval.isNegative(), "!confRebalanceInterval.isNegative()");
+                _Util.require(!conf.overloadLag.isNegative(), "!confOverloadLag.isNegative()");
+                _Util.require(conf.overloadRecoveryLag==null ||
+                    !conf.overloadRecoveryLag.isNegative() && conf.overloadRecoveryLag.compareTo(conf.overloadLag)<=0,
+                    "confOverloadRecoveryLag==null || 0<=confOverloadRecoveryLag<=confOverloadLag");
+
                 _Util.require(conf.maxConnectionsPerIp >0, "confMaxConnectionsPerIp>0");
                 if(conf.maxConnectionsPerIp <Integer.MAX_VALUE)
                     ip2Channs = new ConcurrentHashMap<>();
 
                 handlers = new LinkedHashMap<>();
+                if(conf.reusePort)
+                    reusePortSockets = new HashMap<>();
                 for(Map.Entry<InetSocketAddress, Consumer<TcpChannel>> entry : conf.handlers.entrySet())
                 {
                     InetSocketAddress serverAddress = entry.getKey();
                     Consumer<TcpChannel> handler = entry.getValue();
 
-                    ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
-                    rollbacks.addFirst(() -> _Util.closeNoThrow(serverSocketChannel, logger));
-
-                    serverSocketChannel.configureBlocking(false);
-                    conf.serverSocketConf.accept(serverSocketChannel);
-                    serverSocketChannel.socket().bind(serverAddress, conf.serverSocketBacklog); // may fail
+                    ServerSocketChannel serverSocketChannel = openServerSocket(serverAddress, rollbacks);
 
                     handlers.put(serverSocketChannel, handler);
+
+                    if(conf.reusePort)
+                    {
+                        // other sockets bind to the same port; the port may have been auto-allocated (0)
+                        InetSocketAddress address2 = new InetSocketAddress(serverAddress.getAddress(),
+                            serverSocketChannel.socket().getLocalPort());
+                        ServerSocketChannel[] sockets = new ServerSocketChannel[NS];
+                        sockets[0] = serverSocketChannel;
+                        for(int i=1; i<NS; i++)
+                            sockets[i] = openServerSocket(address2, rollbacks);
+                        reusePortSockets.put(serverSocketChannel, sockets);
+                    }
+                }
+
+                unixSockets = new HashMap<>();
+                for(Map.Entry<Path, Consumer<TcpChannel>> entry : conf.unixHandlers.entrySet())
+                {
+                    Path path = entry.getKey();
+                    ServerSocketChannel serverSocketChannel = openUnixServerSocket(path, rollbacks);
+                    handlers.put(serverSocketChannel, entry.getValue());
+                    unixSockets.put(serverSocketChannel, path);
+                    // no reusePort for unix domain sockets. one socket per path; accepter role rotates.
                 }
 
                 serverAgentList = new ServerAgent[NS];
@@ -294,6 +460,8 @@ public class TcpServer
                 rollbacks.forEach( Runnable::run );
                 serverAgentList=null;
                 handlers=null;
+                reusePortSockets=null;
+                unixSockets=null;
                 ip2Channs = null;
 
                 throw e;
@@ -305,12 +473,53 @@ public class TcpServer
             ServerAgent sa0 = serverAgentList[0];
             sa0.selectorThread.execute( sa0::onBecomeAcceptor0 );
             // onBecomeAcceptor0 must be sent AFTER all threads received onInit
+            // in reusePort mode, every thread is an accepter on its own socket since onInit,
+            // except for unix domain sockets, which are shared.
+            if(!conf.rebalanceInterval.isZero() && serverAgentList.length>1)
+                sa0.selectorThread.execute( sa0::scheduleRebalance ); // agent 0 is the balancer
 
             state=ServerState.accepting;
 
         } // synchronized(lock)
     }
 
+    ServerSocketChannel openServerSocket(InetSocketAddress address, ArrayDeque<Runnable> rollbacks) throws Exception
+    {
+        ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+        rollbacks.addFirst(() -> _Util.closeNoThrow(serverSocketChannel, logger));
+
+        serverSocketChannel.configureBlocking(false);
+        conf.serverSocketConf.accept(serverSocketChannel);
+        if(conf.reusePort)
+            _Tcp.setReusePort(serverSocketChannel); // throws if not supported
+        serverSocketChannel.socket().bind(address, conf.serverSocketBacklog); // may fail
+        return serverSocketChannel;
+    }
+
+    ServerSocketChannel openUnixServerSocket(Path path, ArrayDeque<Runnable> rollbacks) throws Exception
+    {
+        ServerSocketChannel serverSocketChannel = _Tcp.openUnixDomainServerSocket(); // throws if not JDK 16+
+        rollbacks.addFirst(() -> _Util.closeNoThrow(serverSocketChannel, logger));
+
+        serverSocketChannel.configureBlocking(false);
+        // conf.serverSocketConf is not applied; socket().xxx() isn't supported for unix domain sockets.
+        serverSocketChannel.bind(_Tcp.unixDomainAddress(path), conf.serverSocketBacklog); // fails if file exists
+        rollbacks.addFirst(() -> deleteSocketFile(path));
+        return serverSocketChannel;
+    }
+
+    static void deleteSocketFile(Path path)
+    {
+        try
+        {
+            Files.deleteIfExists(path);
+        }
+        catch (Exception e)
+        {
+            logger.error("Error deleting unix domain socket file %s: %s", path, e);
+        }
+    }
+
     // note that our use of `lock` guarantees that each selector thread receives these events in good order
     //     onInit -> [onBecomeAccepter0] ->
     //     *( onPauseAccepting -> onResumeAccepting -> )
@@ -321,6 +530,7 @@ public class TcpServer
     /**
      * Get server sockets.
      * <p>
+     *     This includes unix domain server sockets, see {@link Conf#unixHandlers}.
      *     Returns an empty set if the server is not started, or has been stopped.
      * </p>
      */
@@ -335,6 +545,163 @@ public class TcpServer
         return set;
     }
 
+    /**
+     * Get the number of connections accepted by each selector.
+     * <p>
+     *     Element <code>i</code> of the returned array is the number of connections accepted
+     *     on the thread of selector <code>conf.selectorIds[i]</code> since the server started.
+     *     Sample it periodically to get accept rates, e.g. to check that accepts are spread evenly
+     *     in {@link Conf#reusePort reusePort} mode.
+     * </p>
+     * <p>
+     *     Returns an empty array if the server is not started, or has been stopped.
+     * </p>
+     */
+    public long[] getAcceptCounts()
+    {
+        ServerAgent[] serverAgentList;
+        synchronized (lock)
+        {
+            serverAgentList = this.serverAgentList;
+        }
+
+        if(serverAgentList ==null)
+            return new long[0];
+
+        long[] counts = new long[serverAgentList.length];
+        for(int i=0; i<serverAgentList.length; i++)
+            counts[i] = serverAgentList[i].nAccepted_volatile;
+        return counts;
+    }
+
+    /**
+     * Get metrics of the selectors used by this server.
+     * <p>
+     *     The list is in the same order as {@link Conf#selectorIds}.
+     *     Returns an empty list if the server is not started, or has been stopped.
+     * </p>
+     */
+    public List<SelectorMetrics> getSelectorMetrics()
+    {
+        ServerAgent[] serverAgentList;
+        synchronized (lock)
+        {
+            serverAgentList = this.serverAgentList;
+        }
+
+        ArrayList<SelectorMetrics> list = new ArrayList<>();
+        if(serverAgentList !=null)
+            for(ServerAgent sa : serverAgentList)
+                list.add(new SelectorMetrics(sa.selectorThread));
+        return list;
+    }
+
+    /**
+     * Get the number of connections migrated from one selector to another.
+     * <p>
+     *     See {@link Conf#rebalanceInterval}. The count is cumulative since the server started.
+     * </p>
+     */
+    public long getMigrationCount()
+    {
+        ServerAgent[] serverAgentList;
+        synchronized (lock)
+        {
+            serverAgentList = this.serverAgentList;
+        }
+
+        long count = 0;
+        if(serverAgentList!=null)
+            for(ServerAgent sa : serverAgentList)
+                count += sa.nMigratedOut_volatile;
+        return count;
+    }
+
+    /**
+     * Get the load of each selector, as of the last sample.
+     * <p>
+     *     See {@link Conf#rebalanceInterval}. The array is in the same order as {@link Conf#selectorIds}.
+     *     Loads are relative; the average is 1.0. If load balancing is not enabled,
+     *     or no sample has been taken yet, every element is 1.0.
+     * </p>
+     * <p>
+     *     Returns an empty array if the server is not started, or has been stopped.
+     * </p>
+     */
+    public double[] getSelectorLoads()
+    {
+        ServerAgent[] serverAgentList;
+        synchronized (lock)
+        {
+            serverAgentList = this.serverAgentList;
+        }
+
+        if(serverAgentList ==null)
+            return new double[0];
+
+        double[] loads = new double[serverAgentList.length];
+        for(int i=0; i<serverAgentList.length; i++)
+            loads[i] = serverAgentList[i].load_volatile;
+        return loads;
+    }
+
+    /**
+     * Get the load imbalance before and after the last migration.
+     * <p>
+     *     The imbalance is the difference between the max and the min of {@link #getSelectorLoads()}.
+     *     Returns <code>[before, after]</code>, where <code>before</code> is the imbalance
+     *     that triggered the last migration, and <code>after</code> is the imbalance at the next sample.
+     *     An element is NaN if not available yet.
+     * </p>
+     */
+    public double[] getLoadImbalance()
+    {
+        return new double[]{ imbalanceBefore_volatile, imbalanceAfter_volatile };
+    }
+
+    /**
+     * Whether the current thread is a selector thread of this server, and the selector is overloaded.
+     * <p>
+     *     See {@link Conf#overloadLag}. This method is cheap; a channel handler can call it
+     *     on the channel's selector thread, e.g. before processing each request,
+     *     and reject the request if the selector is overloaded.
+     *     Returns false if overload detection is not enabled.
+     * </p>
+     */
+    public boolean isCurrentSelectorOverloaded()
+    {
+        ServerAgent[] serverAgentList = this.serverAgentList; // racy read; fine on a selector thread
+        if(serverAgentList==null || conf.overloadLag.isZero())
+            return false;
+
+        Thread thread = Thread.currentThread();
+        for(ServerAgent sa : serverAgentList)
+            if(sa.selectorThread==thread)
+                return sa.overloaded_volatile;
+        return false;
+    }
+
+    /**
+     * Get the number of new connections that were closed immediately because all selectors were overloaded.
+     * <p>
+     *     See {@link Conf#overloadLag}. The count is cumulative since the server started.
+     * </p>
+     */
+    public long getShedCount()
+    {
+        ServerAgent[] serverAgentList;
+        synchronized (lock)
+        {
+            serverAgentList = this.serverAgentList;
+        }
+
+        long count = 0;
+        if(serverAgentList!=null)
+            for(ServerAgent sa : serverAgentList)
+                count += sa.nShed_volatile;
+        return count;
+    }
+
     /**
      * Get the number of connections.
      */
@@ -426,7 +793,14 @@ public class TcpServer
 
             for(ServerSocketChannel serverSocketChannel : handlers.keySet())
                 _Util.closeNoThrow(serverSocketChannel, logger);
+            if(reusePortSockets!=null)
+                for(ServerSocketChannel[] sockets : reusePortSockets.values())
+                    for(ServerSocketChannel serverSocketChannel : sockets)
+                        _Util.closeNoThrow(serverSocketChannel, logger);
+            unixSockets.values().forEach(TcpServer::deleteSocketFile);
             handlers=null;
+            reusePortSockets=null;
+            unixSockets=null;
             // we don't own the ports now. another server can take the ports.
 
             state =ServerState.acceptingStopped;
@@ -501,7 +875,7 @@ public class TcpServer
     // number of connections per ip. in very rare cases we may allow an ip a few extra connections.
     boolean ip2Channs_tryInc(InetAddress ip)
     {
-        if(ip2Channs ==null) // no limit
+        if(ip2Channs ==null || ip==null) // no limit. ip==null for unix domain sockets
             return true;
 
         AtomicInteger counter = ip2Channs.get(ip);
@@ -523,7 +897,7 @@ public class TcpServer
     }
     void ip2Channs_dec(InetAddress ip)
     {
-        if(ip2Channs ==null) // no limit
+        if(ip2Channs ==null || ip==null) // no limit
             return;
         AtomicInteger counter = ip2Channs.get(ip);
         if(counter==null) // possible due to under-count
@@ -539,7 +913,7 @@ public class TcpServer
 
 
     // one per selector. accessed by only select flow
-    static class ServerAgent implements ChannImpl.Agent, SelectorThread.BeforeSelect
+    static class ServerAgent implements ChannImpl.Agent, SelectorThread.BeforeSelect, SelectorThread.OnLagProbed
     {
         final int index;
         final TcpServer server;
@@ -553,6 +927,13 @@ public class TcpServer
         // then, the thread with the least connections becomes the next accepter for the address.
         // initially thread[0] is the accepter.
         // during pause (accepting=false), accepter is still working, by accept() and discard.
+        // in reusePort mode, every thread has its own server socket per address, and is always the accepter.
+
+        volatile long nAccepted_volatile; // written only by this thread
+        volatile long nMigratedOut_volatile; // written only by this thread
+        volatile double load_volatile = 1.0; // written only by agent 0. relative; the average is 1.0
+        volatile boolean overloaded_volatile; // written only by this thread
+        volatile long nShed_volatile; // written only by this thread
 
         volatile int nConnections_volatile;
         HashSet<ChannImpl> allChann = new HashSet<>();
@@ -576,11 +957,19 @@ public class TcpServer
             // therefore `acceptAgents` have same order across threads.
             server.handlers.forEach((serverSocketChannel, handler)->
             {
-                AcceptAgent aa = new AcceptAgent(acceptAgents.size(), this, serverSocketChannel, handler);
+                boolean unixDomain = server.unixSockets.containsKey(serverSocketChannel);
+                ServerSocketChannel[] ownSockets = server.reusePortSockets==null? null
+                    : server.reusePortSockets.get(serverSocketChannel); // null for unix domain sockets
+                if(ownSockets!=null) // use my own socket
+                    serverSocketChannel = ownSockets[index];
+
+                AcceptAgent aa = new AcceptAgent(acceptAgents.size(), this, serverSocketChannel, handler,
+                    ownSockets!=null, unixDomain);
                 acceptAgents.add(aa);
                 try
                 {
-                    aa.acceptSK = serverSocketChannel.register(selectorThread.selector, 0, aa);
+                    int ops = aa.reusePort ? SelectionKey.OP_ACCEPT : 0;
+                    aa.acceptSK = serverSocketChannel.register(selectorThread.selector, ops, aa);
                 }
                 catch(ClosedChannelException e) // impossible
                 {
@@ -589,18 +978,29 @@ public class TcpServer
             });
 
             selectorThread.actionsBeforeSelect.add(this);
+
+            selectorThread.requestSpin(this, server.conf.selectorSpinTime.toNanos());
+
+            if(!server.conf.overloadLag.isZero())
+            {
+                selectorThread.lagListeners.add(this);
+                selectorThread.requestLagProbe(lagProbeInterval(server.conf.overloadLag.toNanos()));
+            }
         }
 
         void onBecomeAcceptor0() // cannot be part of onInit of serverAgent0; must be arranged after ALL onInit.
         {
-            acceptAgents.forEach( aa->aa.acceptSK.interestOps(SelectionKey.OP_ACCEPT) );
+            for(AcceptAgent aa : acceptAgents)
+                if(!aa.reusePort) // otherwise it's been accepting on its own socket
+                    aa.acceptSK.interestOps(SelectionKey.OP_ACCEPT);
         }
 
         @Override
         public void beforeSelect()
         {
             for(ChannImpl chann : interestUpdateList)
-                chann.updateInterest();
+                if(chann.agent==this) // otherwise it was migrated to another selector
+                    chann.updateInterest();
             interestUpdateList.clear();
         }
 
@@ -622,7 +1022,7 @@ public class TcpServer
         {
             allChann.remove(chann);
             nConnections_volatile--;
-            server.ip2Channs_dec(chann.getPeerIp());
+            server.ip2Channs_dec(chann.unixDomain? null : chann.getPeerIp());
         }
 
         @Override
@@ -660,13 +1060,19 @@ public class TcpServer
 
             SelectionKey acceptSK;
             boolean accepting=true;
+            boolean reusePort; // on my own socket
+            boolean unixDomain;
+            int[] loadRanks; // null if no load balancing
 
-            AcceptAgent(int aaIndex, ServerAgent sa, ServerSocketChannel serverSocketChannel, Consumer<TcpChannel> handler)
+            AcceptAgent(int aaIndex, ServerAgent sa, ServerSocketChannel serverSocketChannel, Consumer<TcpChannel> handler,
+                        boolean reusePort, boolean unixDomain)
             {
                 this.aaIndex = aaIndex;
 
                 saIndex = sa.index;
                 serverAgentList = sa.server.serverAgentList;
+                this.reusePort = reusePort;
+                this.unixDomain = unixDomain;
 
                 this.serverSocketChannel = serverSocketChannel;
                 this.handler = handler;
@@ -677,11 +1083,43 @@ public class TcpServer
             @Override
             public void onSelected(SelectionKey sk)
             {
-                int connList[] = new int[serverAgentList.length];
-                for(int i=0; i<serverAgentList.length; i++)
-                    connList[i] = serverAgentList[i].nConnections_volatile;
-                // a local understanding of number of connections on each thread.
-                // not accounting for updates by other threads at the same time.
+                ServerAgent self = serverAgentList[saIndex];
+
+                int connList[] = null;
+                if(!reusePort)
+                {
+                    connList = new int[serverAgentList.length];
+                    for(int i=0; i<serverAgentList.length; i++)
+                        connList[i] = serverAgentList[i].nConnections_volatile;
+                    // a local understanding of number of connections on each thread.
+                    // not accounting for updates by other threads at the same time.
+
+                }
+                if(!reusePort || self.overloaded_volatile)
+                {
+                    if(connList==null) // reusePort, but this thread is overloaded; others may take the connections
+                    {
+                        connList = new int[serverAgentList.length];
+                        for(int i=0; i<serverAgentList.length; i++)
+                            connList[i] = serverAgentList[i].nConnections_volatile;
+                    }
+
+                    boolean balancing = !self.server.conf.rebalanceInterval.isZero();
+                    boolean admission = !self.server.conf.overloadLag.isZero();
+                    if(!balancing && !admission)
+                        loadRanks = null;
+                    else // rank by overload and load first
+                    {
+                        if(loadRanks==null)
+                            loadRanks = new int[serverAgentList.length];
+                        for(int i=0; i<serverAgentList.length; i++)
+                        {
+                            ServerAgent sa = serverAgentList[i];
+                            loadRanks[i] = admission && sa.overloaded_volatile ? Integer.MAX_VALUE
+                                : balancing ? loadRank(sa.load_volatile) : 0;
+                        }
+                    }
+                }
 
                 while(true)
                 {
@@ -696,6 +1134,8 @@ public class TcpServer
                     if(socketChannel==null)
                         break;
 
+                    self.nAccepted_volatile++;
+
                     if(trace)trace("accept()", Thread.currentThread().getName(), socketChannel);
                     // tcp handshake was complete, the client considers that the connection is established.
                     // however the server may immediately close the connection because of limits,
@@ -707,11 +1147,24 @@ public class TcpServer
                         continue;
                     }
 
-                    // dispatch the connection to the thread with the least connections
-                    int indexMin = findMinConn(saIndex, connList);
-                    ++connList[indexMin];
-                    ServerAgent agent = serverAgentList[indexMin];
-                    agent.selectorThread.execute( ()->agent.onInitChann(socketChannel, handler) );
+                    ServerAgent agent;
+                    if(connList==null) // reusePort. keep the connection on this thread. no cross-thread handoff.
+                    {
+                        agent = self;
+                    }
+                    else // dispatch the connection to the thread with the least connections
+                    {
+                        int indexMin = findMinConn(saIndex, loadRanks, connList);
+                        if(loadRanks!=null && loadRanks[indexMin]==Integer.MAX_VALUE) // all overloaded. shed
+                        {
+                            self.nShed_volatile++;
+                            _Util.closeNoThrow(socketChannel, logger);
+                            continue;
+                        }
+                        ++connList[indexMin];
+                        agent = serverAgentList[indexMin];
+                    }
+                    agent.selectorThread.execute( ()->agent.onInitChann(socketChannel, unixDomain, handler) );
                     // typically, agent==this, in which case we still postpone onInitChann() to later time
                     // because we want to do accept() first to empty the backlog.
 
@@ -720,8 +1173,11 @@ public class TcpServer
 
                 } // while(true)
 
+                if(reusePort) // this thread remains the accepter of its own socket
+                    return;
+
                 // choose the next "accepter", the thread with the least connections
-                int indexMin = findMinConn(saIndex, connList);
+                int indexMin = findMinConn(saIndex, loadRanks, connList);
                 if(indexMin!= saIndex)
                 {
                     ServerAgent agent = serverAgentList[indexMin];
@@ -735,15 +1191,68 @@ public class TcpServer
         } // AcceptAgent
 
         // find the thread with the least connections. preferably this thread.
-        static int findMinConn(int thisIndex, int[] connList)
+        // if loadRanks!=null, find the least loaded thread first; then the least connections among them.
+        // an overloaded thread has rank MAX_VALUE; it is chosen only if all threads are overloaded.
+        static int findMinConn(int thisIndex, int[] loadRanks, int[] connList)
         {
             int indexMin = thisIndex;
             int connMin = connList[indexMin];
+            int rankMin = loadRanks==null? 0 : loadRanks[indexMin];
             for(int i=0; i<connList.length; i++)
-                if(connList[i]<connMin)
+            {
+                int rank = loadRanks==null? 0 : loadRanks[i];
+                if(rank<rankMin || rank==rankMin && connList[i]<connMin)
+                {
+                    rankMin = rank;
                     connMin = connList[indexMin=i];
+                }
+            }
             return indexMin;
         }
+        // loads that differ by less than 1/4 of the average are considered equal,
+        // so that connection counts still matter under light or even load.
+        static int loadRank(double load)
+        {
+            return (int)(load*4);
+        }
+
+        // admission control ------------------------------------------------------------------------
+        // each thread decides whether itself is overloaded, based on the lag probed by the selector thread.
+        // hysteresis: overloaded at lag>=overloadLag; recovered at lag<=overloadRecoveryLag.
+
+        // probe a few times per overloadLag, so that overload is detected soon after it happens.
+        // a probe is cheap; but don't probe more often than every 10ms (the default timer tick).
+        static long lagProbeInterval(long overloadLagNanos)
+        {
+            return Math.max(overloadLagNanos/4, 10_000_000L);
+        }
+
+        @Override
+        public void onLagProbed(long lagNanos)
+        {
+            Duration recoveryLag = server.conf.overloadRecoveryLag;
+            long overloadNanos = server.conf.overloadLag.toNanos();
+            long recoveryNanos = recoveryLag!=null? recoveryLag.toNanos() : overloadNanos/2;
+
+            if(!overloaded_volatile)
+            {
+                if(lagNanos>=overloadNanos)
+                {
+                    overloaded_volatile = true;
+                    logger.warn("selector overloaded, event loop lag=%sms, thread=%s",
+                        lagNanos/1_000_000, selectorThread.getName());
+                }
+            }
+            else
+            {
+                if(lagNanos<=recoveryNanos)
+                {
+                    overloaded_volatile = false;
+                    logger.info("selector recovered from overload, event loop lag=%sms, thread=%s",
+                        lagNanos/1_000_000, selectorThread.getName());
+                }
+            }
+        }
 
         Void _abandon(SocketChannel socketChannel)
         {
@@ -751,7 +1260,7 @@ public class TcpServer
             _Util.closeNoThrow(socketChannel, logger);
             return (Void)null;
         }
-        Void onInitChann(SocketChannel socketChannel, Consumer<TcpChannel> handler)
+        Void onInitChann(SocketChannel socketChannel, boolean unixDomain, Consumer<TcpChannel> handler)
         {
             if(trace)trace("onInitChann", Thread.currentThread().getName(), socketChannel);
 
@@ -763,7 +1272,7 @@ public class TcpServer
             if(nConnections_volatile>maxConnPerAgent)
                 return _abandon(socketChannel);
 
-            InetAddress ip = socketChannel.socket().getInetAddress();
+            InetAddress ip = unixDomain? null : socketChannel.socket().getInetAddress(); // null: no ip limit
 
             if(!server.ip2Channs_tryInc(ip)) // too many connections from that ip
                 return _abandon(socketChannel);
@@ -771,7 +1280,8 @@ public class TcpServer
             try
             {
                 socketChannel.configureBlocking(false);
-                server.conf.socketConf.accept(socketChannel);
+                if(!unixDomain) // tcp options
+                    server.conf.socketConf.accept(socketChannel);
             }
             catch(Exception e)
             {
@@ -780,7 +1290,9 @@ public class TcpServer
                 return _abandon(socketChannel);
             }
 
-            ChannImpl chann = new ChannImpl(socketChannel, selectorThread, this);
+            ChannImpl chann = new ChannImpl(socketChannel, unixDomain, selectorThread, this);
+            if(!server.conf.rebalanceInterval.isZero())
+                chann.enableMigration();
             try
             {
                 handler.accept(chann); // user code, must not throw
@@ -794,6 +1306,169 @@ public class TcpServer
         }
 
 
+        // load balancing ---------------------------------------------------------------------------
+        // agent 0 samples metrics of all selectors every interval, on its own thread.
+        // load of a selector = average of its share of busy time and its share of bytes, times N.
+        // so the average load is 1.0. a selector thread may be shared with other servers/clients;
+        // its load is not all ours, but it's still the load we have to share the thread with.
+
+        static final double minImbalanceToMigrate = 0.5; // max load - min load
+        static final double minBusyRatioToMigrate = 0.5; // of the most loaded thread, busy/(busy+select wait)
+        static final int maxMigrationsPerInterval = 256;
+
+        // a chann migrated recently is not migrated again for a while; otherwise a busy chann that
+        // is idle between requests would bounce between selectors, taking its load with it each time.
+        static final int migrationCooldownIntervals = 10;
+
+        long[] prevBusyNanos, prevTotalNanos, prevBytes; // agent 0 only
+        double pendingImbalanceBefore = Double.NaN; // of the last migration, until the next sample
+
+        void scheduleRebalance()
+        {
+            _Exec.execNbDelayed(server.conf.rebalanceInterval, this::onRebalance); // on this thread's timing wheel
+        }
+
+        void onRebalance()
+        {
+            if(Thread.currentThread()!=selectorThread) // the thread was killed; timer handed over elsewhere
+                return;
+            if(acceptAgents==null) // accepting stopped. no more rebalancing
+                return;
+
+            ServerAgent[] agents = server.serverAgentList;
+            if(agents==null) // stopped
+                return;
+            int N = agents.length;
+
+            long[] busyNanos = new long[N], totalNanos = new long[N], bytes = new long[N];
+            for(int i=0; i<N; i++)
+            {
+                SelectorThread t = agents[i].selectorThread;
+                busyNanos[i] = t.busyNanos_volatile;
+                totalNanos[i] = busyNanos[i] + t.selectNanos_volatile;
+                bytes[i] = t.nBytesRead_volatile + t.nBytesWritten_volatile;
+            }
+
+            if(prevBusyNanos!=null)
+                rebalance(agents, busyNanos, totalNanos, bytes);
+
+            prevBusyNanos = busyNanos;
+            prevTotalNanos = totalNanos;
+            prevBytes = bytes;
+
+            scheduleRebalance();
+        }
+
+        void rebalance(ServerAgent[] agents, long[] busyNanos, long[] totalNanos, long[] bytes)
+        {
+            int N = agents.length;
+            double sumBusy=0, sumBytes=0;
+            for(int i=0; i<N; i++)
+            {
+                sumBusy += busyNanos[i] - prevBusyNanos[i];
+                sumBytes += bytes[i] - prevBytes[i];
+            }
+
+            int hot=0, cool=-1; // cool: the least loaded agent that can take more connections
+            double[] loads = new double[N];
+            for(int i=0; i<N; i++)
+            {
+                double busyShare = sumBusy>0 ? (busyNanos[i]-prevBusyNanos[i])/sumBusy : 1.0/N;
+                double bytesShare = sumBytes>0 ? (bytes[i]-prevBytes[i])/sumBytes : 1.0/N;
+                loads[i] = N * (busyShare + bytesShare) / 2;
+                agents[i].load_volatile = loads[i];
+
+                if(loads[i]>loads[hot]) hot=i;
+                if(agents[i].roomForConns()>0 && (cool==-1 || loads[i]<loads[cool])) cool=i;
+            }
+            if(cool==-1) // all at capacity
+                cool = hot;
+            double imbalance = loads[hot] - loads[cool];
+
+            if(!Double.isNaN(pendingImbalanceBefore)) // the last migration is done; publish before/after
+            {
+                server.imbalanceBefore_volatile = pendingImbalanceBefore;
+                server.imbalanceAfter_volatile = imbalance;
+                pendingImbalanceBefore = Double.NaN;
+            }
+
+            long hotTotal = totalNanos[hot] - prevTotalNanos[hot];
+            double hotBusyRatio = hotTotal>0 ? (busyNanos[hot]-prevBusyNanos[hot])/(double)hotTotal : 0;
+            if(imbalance<minImbalanceToMigrate || hotBusyRatio<minBusyRatioToMigrate)
+                return;
+
+            pendingImbalanceBefore = imbalance;
+
+            ServerAgent from = agents[hot], to = agents[cool];
+            int max = Math.min(Math.min(maxMigrationsPerInterval, Math.max(1, from.nConnections_volatile/4)),
+                to.roomForConns());
+            long cooldownNanos = server.conf.rebalanceInterval.toNanos() * migrationCooldownIntervals;
+            from.selectorThread.execute( ()->from.onMigrate(to, max, cooldownNanos) );
+        }
+
+        // how many more connections this agent can take. read by any thread; approximate.
+        int roomForConns()
+        {
+            return maxConnPerAgent - nConnections_volatile;
+        }
+
+        // move up to `max` idle channs to `to`
+        void onMigrate(ServerAgent to, int max, long cooldownNanos)
+        {
+            if(!accepting || allChann==null)
+                return;
+
+            max = Math.min(max, to.roomForConns()); // it may have accepted more since rebalance()
+
+            long now = System.nanoTime();
+            ArrayList<ChannImpl> list = new ArrayList<>();
+            for(ChannImpl chann : allChann)
+            {
+                if(list.size()>=max)
+                    break;
+                if(chann.canMigrate() && (chann.migrationNanos==0 || now-chann.migrationNanos>=cooldownNanos))
+                    list.add(chann);
+            }
+
+            for(ChannImpl chann : list)
+            {
+                allChann.remove(chann);
+                nConnections_volatile--;
+                chann.migrationNanos = now;
+                chann.migrateTo(to.selectorThread);
+                // events of the chann arriving here from now on are forwarded to the new thread
+                to.selectorThread.execute( ()->to.onAdoptChann(chann) );
+            }
+            nMigratedOut_volatile += list.size();
+
+            if(trace)trace("onMigrate", Thread.currentThread().getName(), list.size());
+        }
+
+        void onAdoptChann(ChannImpl chann)
+        {
+            chann.agent = this;
+
+            if(allChann==null) // killed
+            {
+                chann.xClose();
+                return;
+            }
+
+            allChann.add(chann);
+            ++nConnections_volatile;
+
+            if(nConnections_volatile>maxConnPerAgent) // accepted more while the chann was in transit. rare.
+            {
+                chann.onCloseChann(); // it's idle; like closing an idle keep-alive connection
+                return;
+            }
+
+            toUpdateInterest(chann); // register on this selector
+
+            if(!accepting && chann.acceptingR) // onPauseAccepting arrived earlier. see onPauseAccepting()
+                chann.onReadable(new IOException("server stops accepting new connections"));
+        }
+
         void onPauseAccepting(Phaser phaser)
         {
             assert accepting;
@@ -847,6 +1522,8 @@ public class TcpServer
             interestUpdateList=null;
 
             selectorThread.actionsBeforeSelect.remove(this);
+            selectorThread.lagListeners.remove(this);
+            selectorThread.cancelSpin(this);
 
             phaser.arrive();
             // event issuer now knows that all chann closed; no read/write/awaitRW/yield() works.